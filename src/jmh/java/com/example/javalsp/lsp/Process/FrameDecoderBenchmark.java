@@ -0,0 +1,66 @@
+package com.example.javalsp.lsp.Process;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Content-Length frame parsing as done by the stdout reader of
+ * {@link LanguageServerProcess}, in its String and raw passthrough variants.
+ * Scores are frames per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameDecoderBenchmark {
+
+    private static final int FRAMES = 256;
+
+    @Param({ "small", "completion", "diagnostics", "mixed" })
+    public String distribution;
+
+    private byte[] stream;
+
+    @Setup
+    public void prepare() {
+        stream = LspMessages.framed(LspMessages.generate(distribution, FRAMES, 42));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decodeToString(Blackhole blackhole) throws IOException {
+        LspFrameDecoder decoder = new LspFrameDecoder(new ByteArrayInputStream(stream));
+        while (decoder.next()) {
+            blackhole.consume(decoder.contentAsString());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decodePassthrough(Blackhole blackhole) throws IOException {
+        LspFrameDecoder decoder = new LspFrameDecoder(new ByteArrayInputStream(stream));
+        while (decoder.next()) {
+            int offset = decoder.contentOffset();
+            byte[] frame = Arrays.copyOfRange(decoder.buffer(), offset, offset + decoder.contentLength());
+            blackhole.consume(JsonRpcEnvelope.scan(frame));
+        }
+    }
+}
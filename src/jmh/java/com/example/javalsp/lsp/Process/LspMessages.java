@@ -0,0 +1,177 @@
+package com.example.javalsp.lsp.Process;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Message mixes for the benchmarks, shaped after what JDT-LS and Monaco
+ * exchange: small notifications and hovers, completion lists of a few KB,
+ * diagnostics of tens of KB, and the occasional large workspace/symbol or
+ * full-document didChange.
+ */
+public final class LspMessages {
+
+    private LspMessages() {
+    }
+
+    /**
+     * {@code small} (~300 B), {@code completion} (~8 KB), {@code diagnostics}
+     * (~64 KB), {@code large} (~1 MB) or {@code mixed}: 70% small, 20%
+     * completion, 8% diagnostics, 2% large.
+     */
+    public static String[] generate(String distribution, int count, long seed) {
+        Random random = new Random(seed);
+        String[] messages = new String[count];
+        for (int i = 0; i < count; i++) {
+            messages[i] = message(pick(distribution, random), i, random);
+        }
+        return messages;
+    }
+
+    /**
+     * Editor-side traffic of the same sizes: full-document didChange
+     * notifications, which need no response.
+     */
+    public static String[] generateDidChanges(String distribution, int count, long seed) {
+        Random random = new Random(seed);
+        String[] messages = new String[count];
+        for (int i = 0; i < count; i++) {
+            int size = pick(distribution, random);
+            StringBuilder text = new StringBuilder();
+            while (text.length() < size - 160) {
+                text.append("    System.out.println(\\\"line ").append(random.nextInt(10_000)).append("\\\");\\n");
+            }
+            messages[i] = "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":{\"textDocument\":"
+                    + "{\"uri\":\"file:///workspace/Main.java\",\"version\":" + (i + 1) + "},\"contentChanges\":"
+                    + "[{\"text\":\"" + text + "\"}]}}";
+        }
+        return messages;
+    }
+
+    private static int pick(String distribution, Random random) {
+        switch (distribution) {
+            case "small":
+                return 300;
+            case "completion":
+                return 8 * 1024;
+            case "diagnostics":
+                return 64 * 1024;
+            case "large":
+                return 1024 * 1024;
+            case "mixed":
+                int roll = random.nextInt(100);
+                return roll < 70 ? 300 : roll < 90 ? 8 * 1024 : roll < 98 ? 64 * 1024 : 1024 * 1024;
+            default:
+                throw new IllegalArgumentException("Unknown distribution " + distribution);
+        }
+    }
+
+    private static String message(int size, int id, Random random) {
+        StringBuilder items = new StringBuilder();
+        String prefix = "{\"jsonrpc\":\"2.0\",\"id\":" + id + ",\"result\":{\"isIncomplete\":false,\"items\":[";
+        while (prefix.length() + items.length() < size - 64) {
+            if (items.length() > 0) {
+                items.append(',');
+            }
+            items.append("{\"label\":\"method").append(random.nextInt(100_000))
+                    .append("()\",\"kind\":2,\"detail\":\"java.util.List<é>\",\"sortText\":\"")
+                    .append(Integer.toHexString(random.nextInt())).append("\"}");
+        }
+        return prefix + items + "]}}";
+    }
+
+    /**
+     * The messages as a Content-Length framed stream, as a server writes them.
+     */
+    public static byte[] framed(String[] messages) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String message : messages) {
+            byte[] content = message.getBytes(StandardCharsets.UTF_8);
+            out.writeBytes(("Content-Length: " + content.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.writeBytes(content);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A process that has already answered {@code initialize}, swallows its
+     * stdin and never exits.
+     */
+    public static Process readyProcess() {
+        String initialized = "{\"jsonrpc\":\"2.0\",\"id\":0,\"result\":{\"capabilities\":{}}}";
+        byte[] stdout = framed(new String[] { initialized });
+        return new Process() {
+            private final CompletableFuture<Process> exit = new CompletableFuture<>();
+
+            @Override
+            public OutputStream getOutputStream() {
+                return OutputStream.nullOutputStream();
+            }
+
+            @Override
+            public InputStream getInputStream() {
+                return new ByteArrayInputStream(stdout);
+            }
+
+            @Override
+            public InputStream getErrorStream() {
+                return InputStream.nullInputStream();
+            }
+
+            @Override
+            public int waitFor() throws InterruptedException {
+                exit.join();
+                return 0;
+            }
+
+            @Override
+            public int exitValue() {
+                throw new IllegalThreadStateException();
+            }
+
+            @Override
+            public boolean isAlive() {
+                return !exit.isDone();
+            }
+
+            @Override
+            public CompletableFuture<Process> onExit() {
+                return exit;
+            }
+
+            @Override
+            public long pid() {
+                return -1;
+            }
+
+            @Override
+            public void destroy() {
+                exit.complete(this);
+            }
+        };
+    }
+
+    /**
+     * Starts a language server on {@link #readyProcess()} and waits for it to
+     * become ready.
+     */
+    public static LanguageServerProcess readyServer(Consumer<String> handler)
+            throws InterruptedException {
+        LanguageServerProcess server = new LanguageServerProcess(readyProcess(), "java", handler, "bench");
+        server.sendMessage("{\"jsonrpc\":\"2.0\",\"id\":0,\"method\":\"initialize\",\"params\":{}}");
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!server.isReady() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        if (!server.isReady()) {
+            throw new IllegalStateException("Benchmark language server did not become ready");
+        }
+        return server;
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.javalsp.lsp.Process;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The client-to-server path of a ready {@link LanguageServerProcess}: inbound
+ * queue, header building and the write to stdin (a null stream here, so the
+ * score is the proxy's own cost). Scores are messages per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendMessageBenchmark {
+
+    private static final int MESSAGES = 256;
+
+    @Param({ "small", "completion", "diagnostics", "mixed" })
+    public String distribution;
+
+    private String[] messages;
+    private LanguageServerProcess server;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void start() throws InterruptedException {
+        messages = LspMessages.generateDidChanges(distribution, MESSAGES, 42);
+        server = LspMessages.readyServer(message -> {
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        server.destroy();
+    }
+
+    @Benchmark
+    public void sendMessage() {
+        server.sendMessage(messages[next++ & (MESSAGES - 1)]);
+    }
+}
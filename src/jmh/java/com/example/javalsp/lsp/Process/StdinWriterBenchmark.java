@@ -0,0 +1,150 @@
+package com.example.javalsp.lsp.Process;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+/**
+ * Several sessions writing to one server's stdin, a real pipe to {@code cat}:
+ * the former per-message path (headers and body through a
+ * {@link BufferedWriter} and a flush per message, under a lock) against
+ * {@link LspWriteScheduler}. Scores are messages per second; the write calls
+ * per message, one syscall each, are printed after each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class StdinWriterBenchmark {
+
+    private static final int MESSAGES = 256;
+    // Producers wait beyond this backlog, so the score is what the pipe takes
+    private static final int MAX_QUEUED = 1024;
+
+    /**
+     * Counts the writes that reach the pipe.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private final AtomicLong writes = new AtomicLong();
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writes.incrementAndGet();
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            writes.incrementAndGet();
+            out.write(b);
+        }
+    }
+
+    @Param({ "per-message", "batched" })
+    public String writer;
+
+    @Param({ "small", "mixed" })
+    public String distribution;
+
+    private String[] messages;
+    private Process cat;
+    private CountingOutputStream stdin;
+    private BufferedWriter bufferedWriter;
+    private LspWriteScheduler scheduler;
+    private final AtomicLong sent = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        messages = LspMessages.generateDidChanges(distribution, MESSAGES, 42);
+        cat = new ProcessBuilder("cat").redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        // Unbuffered, so every write is one syscall
+        stdin = new CountingOutputStream(new FilterOutputStream(cat.getOutputStream()) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                out.flush();
+            }
+        });
+        bufferedWriter = new BufferedWriter(new OutputStreamWriter(stdin, StandardCharsets.UTF_8));
+        scheduler = new LspWriteScheduler(false, stdin, new LspWriteScheduler.Listener() {
+            @Override
+            public void writing(JsonRpcEnvelope envelope, int contentLength) {
+            }
+
+            @Override
+            public void withdrawn(JsonRpcEnvelope request, int code, String message) {
+            }
+
+            @Override
+            public void failed(IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }, LspThreads.PLATFORM.writers(), "java", new CompositeMeterRegistry());
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws InterruptedException {
+        while (scheduler.getQueuedCount() > 0) {
+            Thread.sleep(1);
+        }
+        System.out.printf("%n%s [%s]: %.3f writes per message%n", writer, distribution,
+                stdin.writes.get() / (double) sent.get());
+        scheduler.close();
+        cat.destroy();
+    }
+
+    @Benchmark
+    public void send() throws IOException {
+        String message = messages[(int) (sent.getAndIncrement() & (MESSAGES - 1))];
+        // Both paths classify the message, as sendMessageInternal does
+        JsonRpcEnvelope envelope = JsonRpcEnvelope.scan(message);
+        if (writer.equals("batched")) {
+            while (scheduler.getQueuedCount() > MAX_QUEUED) {
+                // Leave the CPU to the writer on small machines
+                Thread.yield();
+            }
+            scheduler.submit(message, envelope);
+            return;
+        }
+        if (!envelope.isValid()) {
+            throw new IllegalStateException(message);
+        }
+        byte[] content = message.getBytes(StandardCharsets.UTF_8);
+        String headers = "Content-Length: " + content.length + "\r\n"
+                + "Content-Type: application/vscode-jsonrpc; charset=utf-8\r\n\r\n";
+        synchronized (bufferedWriter) {
+            bufferedWriter.write(headers);
+            bufferedWriter.write(message);
+            bufferedWriter.flush();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.javalsp.lsp.Process;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.lsp4j.jsonrpc.json.MessageJsonHandler;
+import org.eclipse.lsp4j.jsonrpc.messages.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * What the two transport engines do per message beyond the shared relay:
+ * the raw engine scans the JSON envelope, the typed engine parses the whole
+ * message into LSP4J objects and derives the envelope and coalescing key
+ * from it. Either way this is the only classification of a message: the
+ * document URI and cancelled id the inbound queue needs come with the
+ * envelope. {@code server} messages are completion responses, typed as
+ * {@code CompletionList}; {@code client} messages are full-document
+ * didChange notifications. Scores are messages per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportEngineBenchmark {
+
+    private static final int MESSAGES = 256;
+
+    @Param({ "raw", "typed" })
+    public String engine;
+
+    @Param({ "server", "client" })
+    public String direction;
+
+    @Param({ "small", "completion", "diagnostics", "mixed" })
+    public String distribution;
+
+    private String[] messages;
+    private MessageJsonHandler handler;
+
+    @Setup
+    public void prepare() {
+        messages = direction.equals("server")
+                ? LspMessages.generate(distribution, MESSAGES, 42)
+                : LspMessages.generateDidChanges(distribution, MESSAGES, 42);
+        handler = LanguageServerProcessTyped.newJsonHandler(id -> "textDocument/completion");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void classify(Blackhole blackhole) {
+        if (engine.equals("raw")) {
+            for (String message : messages) {
+                blackhole.consume(JsonRpcEnvelope.scan(message));
+            }
+            return;
+        }
+        for (String message : messages) {
+            Message parsed = handler.parseMessage(message);
+            blackhole.consume(LanguageServerProcessTyped.envelopeOf(parsed));
+            blackhole.consume(LanguageServerProcessTyped.coalescingSubject(parsed));
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.example.javalsp.lsp;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.example.javalsp.lsp.Process.LanguageServerMultiplexer;
+import com.example.javalsp.lsp.Process.LanguageServerProcess;
+import com.example.javalsp.lsp.Process.LanguageServerProcessManager;
+import com.example.javalsp.lsp.Process.LspMessages;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * {@code TextMessage} relay through {@link LspWebSocketHandler}: editor
+ * messages through the multiplexer into a ready language server, and server
+ * output onto a session's outbound queue and into the WebSocket. The
+ * WebSocket and the server process are stubs, so the score is the proxy's
+ * own cost. Scores are messages per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WebSocketRelayBenchmark {
+
+    private static final int MESSAGES = 256;
+
+    @Param({ "small", "completion", "diagnostics", "mixed" })
+    public String distribution;
+
+    private String[] editorMessages;
+    private String[] serverMessages;
+    private LspWebSocketHandler handler;
+    private StubSession session;
+    private LanguageServerProcess server;
+    private Consumer<String> toEditor;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        editorMessages = LspMessages.generateDidChanges(distribution, MESSAGES, 42);
+        serverMessages = LspMessages.generate(distribution, MESSAGES, 43);
+
+        LanguageServerMultiplexer multiplexer = new LanguageServerMultiplexer("bench");
+        server = LspMessages.readyServer(multiplexer::onServerMessage);
+        multiplexer.setProcess(server);
+
+        LanguageServerProcessManager manager = new LanguageServerProcessManager(new SimpleMeterRegistry()) {
+            @Override
+            public LanguageServerMultiplexer attachSession(String userId, String sessionId, String lang,
+                    Consumer<String> messageHandler, Consumer<ByteBuffer> rawMessageHandler, Runnable onRejected) {
+                toEditor = messageHandler;
+                multiplexer.attach(sessionId, messageHandler, rawMessageHandler);
+                return multiplexer;
+            }
+
+            @Override
+            public LanguageServerMultiplexer getMultiplexer(String userId) {
+                return multiplexer;
+            }
+        };
+        handler = new LspWebSocketHandler(manager, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(handler, "outboundMaxBytes", 8L * 1024 * 1024);
+        // Wait for the drain instead of dropping, so every message is sent
+        ReflectionTestUtils.setField(handler, "outboundOverflow", "block");
+        ReflectionTestUtils.setField(handler, "outboundBlockTimeoutMs", 60_000L);
+        ReflectionTestUtils.setField(handler, "threadMode", "platform");
+        handler.startSendExecutor();
+
+        session = new StubSession();
+        handler.afterConnectionEstablished(session);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        handler.afterConnectionClosed(session, CloseStatus.NORMAL);
+        handler.stopSendExecutor();
+        server.destroy();
+    }
+
+    @Benchmark
+    public void editorToServer() {
+        handler.handleTextMessage(session, new TextMessage(editorMessages[next++ & (MESSAGES - 1)]));
+    }
+
+    @Benchmark
+    public void serverToEditor() {
+        toEditor.accept(serverMessages[next++ & (MESSAGES - 1)]);
+    }
+
+    /**
+     * An open session that accepts and counts everything.
+     */
+    static final class StubSession implements WebSocketSession {
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>(
+                Map.of("userId", "bench", "language", "java"));
+        private final LongAdder sent = new LongAdder();
+
+        @Override
+        public String getId() {
+            return "bench-session";
+        }
+
+        @Override
+        public URI getUri() {
+            return URI.create("ws://localhost/lsp");
+        }
+
+        @Override
+        public HttpHeaders getHandshakeHeaders() {
+            return new HttpHeaders();
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public Principal getPrincipal() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public String getAcceptedProtocol() {
+            return null;
+        }
+
+        @Override
+        public void setTextMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getTextMessageSizeLimit() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getBinaryMessageSizeLimit() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public List<WebSocketExtension> getExtensions() {
+            return List.of();
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) {
+            sent.increment();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void close(CloseStatus status) {
+        }
+    }
+}
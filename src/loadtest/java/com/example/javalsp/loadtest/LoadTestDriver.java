@@ -0,0 +1,305 @@
+package com.example.javalsp.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Opens N editor sessions against a running proxy, half on {@code /lsp} and
+ * half on {@code /php}, and reports per step of N: connection setup
+ * (handshake, and handshake until the initialize response), request latency
+ * percentiles, and the proxy's live threads and heap as read from
+ * {@code /actuator/metrics}. When the proxy runs on this host the resident
+ * memory of the stub language servers is added from {@code /proc}.
+ *
+ * <p>
+ * Start the proxy with the {@code loadtest} Spring profile, which launches
+ * {@link StubLanguageServer} instead of JDT-LS and intelephense, then run
+ *
+ * <pre>
+ * mvn -Ploadtest -DskipTests test-compile exec:exec -Dloadtest.args="--clients 50,100,200 --requests 100"
+ * </pre>
+ *
+ * Options: {@code --url} (default {@code ws://localhost:8080}),
+ * {@code --clients} (comma separated steps), {@code --requests} per client,
+ * {@code --think-ms} between requests of a client, {@code --languages}
+ * ({@code java,php}).
+ */
+public final class LoadTestDriver {
+
+    private static final Pattern ID = Pattern.compile("\"id\"\\s*:\\s*(-?\\d+)");
+    private static final Pattern VALUE = Pattern.compile("\"value\"\\s*:\\s*([-0-9.Ee]+)");
+    private static final String DOCUMENT = "class Main {\\n    void run() {\\n        System.out.\\n    }\\n}\\n";
+
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+    private final String url;
+    private final int requests;
+    private final long thinkMillis;
+    private final List<String> languages;
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    LoadTestDriver(String url, int requests, long thinkMillis, List<String> languages) {
+        this.url = url;
+        this.requests = requests;
+        this.thinkMillis = thinkMillis;
+        this.languages = languages;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = "ws://localhost:8080";
+        String clients = "10,50,100";
+        int requests = 50;
+        long think = 50;
+        String languages = "java,php";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--url":
+                    url = args[i + 1];
+                    break;
+                case "--clients":
+                    clients = args[i + 1];
+                    break;
+                case "--requests":
+                    requests = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--think-ms":
+                    think = Long.parseLong(args[i + 1]);
+                    break;
+                case "--languages":
+                    languages = args[i + 1];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        LoadTestDriver driver = new LoadTestDriver(url, requests, think, List.of(languages.split(",")));
+        System.out.printf("%7s %9s %9s %9s %9s %9s %9s %9s %7s %8s %8s %9s%n", "clients", "conn p50", "conn p99",
+                "init p50", "init p99", "req p50", "req p95", "req p99", "errors", "threads", "heap MB", "stubs MB");
+        for (String step : clients.split(",")) {
+            driver.run(Integer.parseInt(step.trim()));
+        }
+    }
+
+    private void run(int clients) throws InterruptedException {
+        List<Long> connect = Collections.synchronizedList(new ArrayList<>());
+        List<Long> initialize = Collections.synchronizedList(new ArrayList<>());
+        List<Long> latency = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger errors = new AtomicInteger();
+        List<Client> open = Collections.synchronizedList(new ArrayList<>());
+
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        List<Future<?>> running = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            String language = languages.get(i % languages.size());
+            running.add(executor.submit(() -> {
+                try {
+                    Client client = new Client(language, "load-" + sessions.incrementAndGet());
+                    open.add(client);
+                    client.session(connect, initialize, latency);
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+            }));
+        }
+
+        // Sample while every session is still connected
+        for (Future<?> future : running) {
+            try {
+                future.get(10, TimeUnit.MINUTES);
+            } catch (Exception e) {
+                errors.incrementAndGet();
+            }
+        }
+        double threads = metric("jvm.threads.live", null);
+        double heap = metric("jvm.memory.used", "area:heap") / (1024 * 1024);
+        double stubs = stubResidentKb() / 1024.0;
+        for (Client client : open) {
+            client.close();
+        }
+        executor.shutdownNow();
+
+        System.out.printf("%7d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %7d %8.0f %8.0f %9.0f%n", clients,
+                percentile(connect, 50), percentile(connect, 99), percentile(initialize, 50),
+                percentile(initialize, 99), percentile(latency, 50), percentile(latency, 95),
+                percentile(latency, 99), errors.get(), threads, heap, stubs);
+        // Let the proxy stop the servers before the next step
+        Thread.sleep(2000);
+    }
+
+    private final class Client implements WebSocket.Listener {
+        private final String language;
+        private final String userId;
+        private final Map<Integer, CompletableFuture<Long>> pending = new ConcurrentHashMap<>();
+        private final StringBuilder partial = new StringBuilder();
+        private WebSocket socket;
+
+        Client(String language, String userId) {
+            this.language = language;
+            this.userId = userId;
+        }
+
+        void session(List<Long> connect, List<Long> initialize, List<Long> latency) throws Exception {
+            String path = "java".equals(language) ? "/lsp" : "/php";
+            String file = "java".equals(language) ? "file:///workspace/Main.java" : "file:///workspace/index.php";
+            long start = System.nanoTime();
+            socket = http.newWebSocketBuilder().connectTimeout(Duration.ofSeconds(30))
+                    .buildAsync(URI.create(url + path + "?userId=" + userId), this).get(30, TimeUnit.SECONDS);
+            connect.add(System.nanoTime() - start);
+
+            request(0, "initialize", "{\"processId\":null,\"rootUri\":null,\"capabilities\":{}}")
+                    .get(2, TimeUnit.MINUTES);
+            initialize.add(System.nanoTime() - start);
+            send("{\"jsonrpc\":\"2.0\",\"method\":\"initialized\",\"params\":{}}");
+            send("{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didOpen\",\"params\":{\"textDocument\":{\"uri\":\""
+                    + file + "\",\"languageId\":\"" + language + "\",\"version\":1,\"text\":\"" + DOCUMENT + "\"}}}");
+
+            for (int id = 1; id <= requests; id++) {
+                latency.add(request(id, "textDocument/completion", "{\"textDocument\":{\"uri\":\"" + file
+                        + "\"},\"position\":{\"line\":2,\"character\":19}}").get(1, TimeUnit.MINUTES));
+                Thread.sleep(thinkMillis);
+            }
+        }
+
+        CompletableFuture<Long> request(int id, String method, String params) {
+            CompletableFuture<Long> response = new CompletableFuture<>();
+            long sent = System.nanoTime();
+            pending.put(id, response);
+            send("{\"jsonrpc\":\"2.0\",\"id\":" + id + ",\"method\":\"" + method + "\",\"params\":" + params + "}");
+            return response.thenApply(received -> received - sent);
+        }
+
+        synchronized void send(String message) {
+            socket.sendText(message, true).join();
+        }
+
+        void close() {
+            if (socket != null) {
+                socket.sendClose(WebSocket.NORMAL_CLOSURE, "done").exceptionally(e -> null);
+            }
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            partial.append(data);
+            if (last) {
+                received(partial.toString());
+                partial.setLength(0);
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onBinary(WebSocket webSocket, java.nio.ByteBuffer data, boolean last) {
+            partial.append(StandardCharsets.UTF_8.decode(data));
+            if (last) {
+                received(partial.toString());
+                partial.setLength(0);
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        private void received(String message) {
+            // Responses carry no method; server notifications and requests are ignored
+            if (message.contains("\"method\"")) {
+                return;
+            }
+            Matcher id = ID.matcher(message);
+            if (id.find()) {
+                CompletableFuture<Long> response = pending.remove(Integer.parseInt(id.group(1)));
+                if (response != null) {
+                    response.complete(System.nanoTime());
+                }
+            }
+        }
+
+        @Override
+        public void onError(WebSocket webSocket, Throwable error) {
+            pending.values().forEach(response -> response.completeExceptionally(error));
+        }
+    }
+
+    private double metric(String name, String tag) {
+        String endpoint = url.replaceFirst("^ws", "http") + "/actuator/metrics/" + name
+                + (tag == null ? "" : "?tag=" + tag);
+        try {
+            HttpResponse<String> response = http.send(HttpRequest.newBuilder(URI.create(endpoint)).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            Matcher value = VALUE.matcher(response.body());
+            return value.find() ? Double.parseDouble(value.group(1)) : Double.NaN;
+        } catch (IOException e) {
+            return Double.NaN;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Resident memory of the stub language servers on this host, in KB, or
+     * NaN without {@code /proc}.
+     */
+    private static double stubResidentKb() {
+        Path proc = Path.of("/proc");
+        if (!Files.isDirectory(proc)) {
+            return Double.NaN;
+        }
+        long total = 0;
+        try (Stream<Path> processes = Files.list(proc)) {
+            for (Path process : (Iterable<Path>) processes::iterator) {
+                try {
+                    String commandLine = Files.readString(process.resolve("cmdline"));
+                    if (!commandLine.contains(StubLanguageServer.class.getName())) {
+                        continue;
+                    }
+                    for (String line : Files.readAllLines(process.resolve("status"))) {
+                        if (line.startsWith("VmRSS:")) {
+                            total += Long.parseLong(line.replaceAll("\\D", ""));
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // Not a process directory, or it exited meanwhile
+                }
+            }
+        } catch (IOException e) {
+            return Double.NaN;
+        }
+        return total;
+    }
+
+    private static double percentile(List<Long> nanos, int percentile) {
+        List<Long> sorted;
+        synchronized (nanos) {
+            sorted = new ArrayList<>(nanos);
+        }
+        if (sorted.isEmpty()) {
+            return Double.NaN;
+        }
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1_000_000.0;
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.javalsp.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A fake language server for load tests: speaks Content-Length framed JSON-RPC
+ * on stdin/stdout, answers {@code initialize} at once, every other request
+ * after {@code --latency-ms} with a result of about {@code --payload-bytes},
+ * and publishes diagnostics of about {@code --diagnostics-bytes} for every
+ * didOpen/didChange. Only the JDK is used so that it starts quickly under
+ * light JVM flags, e.g.
+ *
+ * <pre>
+ * java -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -Xmx32m -Xss256k -cp target/test-classes \
+ *     com.example.javalsp.loadtest.StubLanguageServer --latency-ms 20 --payload-bytes 8192
+ * </pre>
+ */
+public final class StubLanguageServer {
+
+    private static final Pattern ID = Pattern.compile("\"id\"\\s*:\\s*(\"[^\"]*\"|-?\\d+)");
+    private static final Pattern METHOD = Pattern.compile("\"method\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern URI = Pattern.compile("\"uri\"\\s*:\\s*\"([^\"]+)\"");
+
+    private final OutputStream out;
+    private final ScheduledExecutorService replies = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "stub-replies");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long latencyMillis;
+    private final String payload;
+    private final String diagnostics;
+
+    StubLanguageServer(OutputStream out, long latencyMillis, int payloadBytes, int diagnosticsBytes) {
+        this.out = out;
+        this.latencyMillis = latencyMillis;
+        this.payload = items(payloadBytes);
+        this.diagnostics = diagnostics(diagnosticsBytes);
+    }
+
+    public static void main(String[] args) throws IOException {
+        long latency = 10;
+        int payloadBytes = 2048;
+        int diagnosticsBytes = 1024;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--latency-ms":
+                    latency = Long.parseLong(args[i + 1]);
+                    break;
+                case "--payload-bytes":
+                    payloadBytes = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--diagnostics-bytes":
+                    diagnosticsBytes = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        StubLanguageServer server = new StubLanguageServer(new BufferedOutputStream(System.out, 64 * 1024),
+                latency, payloadBytes, diagnosticsBytes);
+        System.err.println("Stub language server started");
+        server.serve(new BufferedInputStream(System.in, 64 * 1024));
+    }
+
+    void serve(InputStream in) throws IOException {
+        String message;
+        while ((message = read(in)) != null) {
+            if (!handle(message)) {
+                break;
+            }
+        }
+        replies.shutdownNow();
+    }
+
+    /**
+     * @return false once the client sent {@code exit}
+     */
+    private boolean handle(String message) throws IOException {
+        Matcher method = METHOD.matcher(message);
+        Matcher id = ID.matcher(message);
+        if (!method.find()) {
+            return true; // response to a server request
+        }
+        String name = method.group(1);
+        boolean request = id.find();
+        switch (name) {
+            case "exit":
+                return false;
+            case "initialize":
+                write("{\"jsonrpc\":\"2.0\",\"id\":" + id.group(1) + ",\"result\":{\"capabilities\":{"
+                        + "\"textDocumentSync\":2,\"hoverProvider\":true,\"completionProvider\":{}}}}");
+                return true;
+            case "shutdown":
+                write("{\"jsonrpc\":\"2.0\",\"id\":" + id.group(1) + ",\"result\":null}");
+                return true;
+            case "textDocument/didOpen":
+            case "textDocument/didChange":
+                Matcher uri = URI.matcher(message);
+                if (uri.find()) {
+                    String notification = "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/publishDiagnostics\","
+                            + "\"params\":{\"uri\":\"" + uri.group(1) + "\",\"diagnostics\":" + diagnostics + "}}";
+                    replies.schedule(() -> writeQuietly(notification), latencyMillis, TimeUnit.MILLISECONDS);
+                }
+                return true;
+            default:
+                if (request) {
+                    String response = "{\"jsonrpc\":\"2.0\",\"id\":" + id.group(1) + ",\"result\":{"
+                            + "\"isIncomplete\":false,\"items\":" + payload + "}}";
+                    replies.schedule(() -> writeQuietly(response), latencyMillis, TimeUnit.MILLISECONDS);
+                }
+                return true;
+        }
+    }
+
+    private void writeQuietly(String message) {
+        try {
+            write(message);
+        } catch (IOException e) {
+            replies.shutdownNow();
+        }
+    }
+
+    private synchronized void write(String message) throws IOException {
+        byte[] content = message.getBytes(StandardCharsets.UTF_8);
+        out.write(("Content-Length: " + content.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(content);
+        out.flush();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        int length = -1;
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int c = in.read();
+            if (c == -1) {
+                return null;
+            }
+            if (c == '\n') {
+                String header = line.toString().trim();
+                line.setLength(0);
+                if (header.isEmpty()) {
+                    if (length >= 0) {
+                        break;
+                    }
+                } else if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                    length = Integer.parseInt(header.substring(15).trim());
+                }
+            } else {
+                line.append((char) c);
+            }
+        }
+        byte[] content = in.readNBytes(length);
+        return content.length < length ? null : new String(content, StandardCharsets.UTF_8);
+    }
+
+    private static String items(int size) {
+        StringBuilder items = new StringBuilder("[");
+        for (int i = 0; items.length() < size - 64; i++) {
+            if (i > 0) {
+                items.append(',');
+            }
+            items.append("{\"label\":\"method").append(i).append("()\",\"kind\":2,\"detail\":\"java.util.List\"}");
+        }
+        return items.append(']').toString();
+    }
+
+    private static String diagnostics(int size) {
+        StringBuilder diagnostics = new StringBuilder("[");
+        for (int i = 0; diagnostics.length() < size - 160; i++) {
+            if (i > 0) {
+                diagnostics.append(',');
+            }
+            diagnostics.append("{\"range\":{\"start\":{\"line\":").append(i).append(",\"character\":0},\"end\":")
+                    .append("{\"line\":").append(i).append(",\"character\":8}},\"severity\":2,")
+                    .append("\"message\":\"The value of the local variable is not used\"}");
+        }
+        return diagnostics.append(']').toString();
+    }
+}
@@ -1,28 +1,68 @@
 package com.example.javalsp.lsp;
 
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
-import com.example.javalsp.lsp.Process.LanguageServerProcessTyped;
-import com.example.javalsp.lsp.Process.LanguageServerProcess;
+import com.example.javalsp.lsp.Process.LanguageServerMultiplexer;
 import com.example.javalsp.lsp.Process.LanguageServerProcessManager;
+import com.example.javalsp.lsp.Process.LspThreads;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 
 @Component
 public class LspWebSocketHandler extends TextWebSocketHandler {
 
     private final LanguageServerProcessManager processManager;
     private final Map<String, String> sessionToUser = new ConcurrentHashMap<>();
+    private final Map<String, WebSocketSessionSender> senders = new ConcurrentHashMap<>();
+    private final WebSocketSessionSender.Metrics senderMetrics;
+    private ExecutorService sendExecutor;
     private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(LspWebSocketHandler.class);
 
-    public LspWebSocketHandler(LanguageServerProcessManager processManager) {
+    // Relay server frames as binary WebSocket messages without decoding them.
+    // The client must read binary frames as UTF-8 JSON.
+    @Value("${lsp.relay.passthrough:false}")
+    private boolean passthrough;
+
+    @Value("${lsp.websocket.outbound.max-bytes:8388608}")
+    private long outboundMaxBytes;
+
+    @Value("${lsp.websocket.outbound.overflow:drop-stale}")
+    private String outboundOverflow;
+
+    @Value("${lsp.websocket.outbound.block-timeout-ms:5000}")
+    private long outboundBlockTimeoutMs;
+
+    @Value("${lsp.threads.mode:platform}")
+    private String threadMode;
+
+    public LspWebSocketHandler(LanguageServerProcessManager processManager, MeterRegistry meterRegistry) {
         this.processManager = processManager;
+        this.senderMetrics = new WebSocketSessionSender.Metrics(meterRegistry);
+    }
+
+    @PostConstruct
+    public void startSendExecutor() {
+        sendExecutor = Executors.newCachedThreadPool(LspThreads.of(threadMode).threadFactory("LSP-WebSocket-Sender-"));
+    }
+
+    @PreDestroy
+    public void stopSendExecutor() {
+        sendExecutor.shutdownNow();
     }
 
     @Override
@@ -34,31 +74,41 @@ public class LspWebSocketHandler extends TextWebSocketHandler {
         sessionToUser.put(session.getId(), userId);
         System.out.println("Session to User Map: " + sessionToUser.toString());
 
-        // Start or get existing LSP process for user
-        processManager.getOrCreateProcess(userId, language, message -> {
-            try {
-                session.sendMessage(new TextMessage(message));
-            } catch (IOException e) {
-                // Handle error
-            }
-        });
+        // Server output is queued per session so a slow browser cannot stall the LSP reader
+        WebSocketSessionSender sender = new WebSocketSessionSender(session, sendExecutor, outboundMaxBytes,
+                WebSocketSessionSender.OverflowPolicy.of(outboundOverflow), outboundBlockTimeoutMs, senderMetrics);
+        senders.put(session.getId(), sender);
+
+        // Start or join the user's LSP process; tabs of one user share it
+        Consumer<ByteBuffer> rawMessageHandler = passthrough
+                ? payload -> sender.send(new BinaryMessage(payload))
+                : null;
+        // Without capacity for another server the editor is told so and disconnected
+        processManager.attachSession(userId, session.getId(), language,
+                message -> sender.send(new TextMessage(message)),
+                rawMessageHandler,
+                () -> sender.closeWhenDrained(CloseStatus.SERVICE_OVERLOAD));
     }
 
     @Override
     protected void handleTextMessage(WebSocketSession session, TextMessage message) {
         String userId = sessionToUser.get(session.getId());
-        LanguageServerProcess process = processManager.getProcess(userId);
+        LanguageServerMultiplexer multiplexer = processManager.getMultiplexer(userId);
         logger.info("Received from editor: {}", message.toString());
 
-        if (process != null) {
-            process.sendMessage(message.getPayload());
+        if (multiplexer != null) {
+            multiplexer.send(session.getId(), message.getPayload());
         }
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
         String userId = sessionToUser.remove(session.getId());
-        processManager.cleanupUserSession(userId);
+        WebSocketSessionSender sender = senders.remove(session.getId());
+        if (sender != null) {
+            sender.discard();
+        }
+        processManager.detachSession(userId, session.getId());
     }
 
     private String extractUserId(WebSocketSession session) {
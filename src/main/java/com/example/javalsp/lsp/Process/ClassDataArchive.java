@@ -0,0 +1,90 @@
+package com.example.javalsp.lsp.Process;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A dynamic AppCDS archive of the classes JDT-LS loads while it starts and
+ * indexes, so spawned servers map them pre-parsed instead of loading and
+ * verifying them from jars each time, and share those pages between
+ * processes. The JVM archives classes of its built-in loaders only: the JDK
+ * and the Equinox launcher, not the bundle classes Equinox loads itself.
+ *
+ * <p>
+ * The archive is recorded once by a training server started with
+ * {@code -XX:ArchiveClassesAtExit}, which runs the workspace template
+ * workload in a scratch directory; an archive placed at {@link #getPath()} at
+ * image build time is used as is. Spawned servers use it with
+ * {@code -Xshare:auto}, so an archive that no longer matches the JVM or the
+ * launcher is ignored rather than failing the start.
+ */
+public class ClassDataArchive {
+
+    /**
+     * Starts JDT-LS on a {@code -data} directory with additional JVM options.
+     */
+    @FunctionalInterface
+    public interface Starter {
+        Process start(String dataPath, List<String> jvmOptions) throws IOException;
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(ClassDataArchive.class);
+
+    private final Path path;
+
+    /**
+     * @param key distinguishes archives of different launchers and JVM
+     *            profiles in the same directory
+     */
+    public ClassDataArchive(Path directory, String key) {
+        this.path = directory.resolve("jdtls-" + key.replaceAll("[^A-Za-z0-9._-]", "_") + ".jsa");
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public boolean isReady() {
+        return Files.isRegularFile(path);
+    }
+
+    /**
+     * Options that make a JVM use the archive; none until it is built.
+     */
+    public List<String> jvmOptions() {
+        return isReady() ? List.of("-XX:SharedArchiveFile=" + path, "-Xshare:auto") : List.of();
+    }
+
+    /**
+     * Records the archive with a training server from {@code starter}.
+     */
+    public void build(Starter starter, LanguageServerProcessOptions options) throws Exception {
+        long started = System.nanoTime();
+        Files.createDirectories(path.getParent());
+        Path training = Files.createTempDirectory(path.getParent(), "training-");
+        Path dump = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.deleteIfExists(dump);
+            // The archive is written while the training JVM exits
+            new WorkspaceTemplate(training).build(
+                    () -> starter.start(training.toString(), List.of("-XX:ArchiveClassesAtExit=" + dump)), options,
+                    "the class data archive training run");
+            if (!Files.isRegularFile(dump) || Files.size(dump) == 0) {
+                throw new IOException("The training server did not write a class data archive to " + dump);
+            }
+            Files.move(dump, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            WorkspaceFiles.deleteTree(training);
+            Files.deleteIfExists(dump);
+        }
+        logger.info("Recorded class data archive {} ({} MB) in {} s", path, Files.size(path) / (1024 * 1024),
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started));
+    }
+}
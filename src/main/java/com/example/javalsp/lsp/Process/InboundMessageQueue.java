@@ -0,0 +1,503 @@
+package com.example.javalsp.lsp.Process;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Client messages on their way to a language server's stdin, in arrival
+ * order. Messages wait here while the server is starting (the queue is paused
+ * until it is ready); afterwards they go straight on to the
+ * {@link LspWriteScheduler}. Before a message leaves the queue it can still be
+ * withdrawn:
+ *
+ * <ul>
+ * <li>{@code $/cancelRequest} for a queued request removes the request, and
+ * the cancel itself is never written;</li>
+ * <li>a position-based request (completion, hover, ...) supersedes a queued
+ * one of the same method for the same document from the same editor;</li>
+ * <li>a {@code didChange} makes queued requests that read the document at a
+ * position or range out of date;</li>
+ * <li>consecutive {@code didChange}s of a document are merged into one.</li>
+ * </ul>
+ *
+ * Withdrawn requests are answered locally with {@code RequestCancelled}
+ * (-32800) or {@code ContentModified} (-32801), as the server would. A
+ * superseded request that has already been written is cancelled on the server
+ * with {@code $/cancelRequest}, so it can stop computing an answer nobody will
+ * read.
+ *
+ * <p>
+ * Once the server is ready, messages waiting for stdin are in the write
+ * scheduler, which is told what each one cancels, reads or changes: a cancel
+ * withdraws its request there (a superseded request is cancelled that way
+ * too), and a {@code didChange} withdraws the queued requests it makes out of
+ * date. Merging {@code didChange}s only happens in the startup backlog.
+ *
+ * <p>
+ * The queued payload is bounded: beyond {@code maxBytes} the oldest queued
+ * requests are cancelled. Document notifications are never dropped, since the
+ * server's copy of the document would diverge from the editor's.
+ */
+public class InboundMessageQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(InboundMessageQueue.class);
+
+    static final int REQUEST_CANCELLED = -32800;
+    static final int CONTENT_MODIFIED = -32801;
+
+    private static final String DID_CHANGE = "textDocument/didChange";
+
+    // Requests whose answer is only useful for the latest cursor position
+    private static final Set<String> SUPERSEDABLE = Set.of(
+            "textDocument/completion",
+            "textDocument/hover",
+            "textDocument/signatureHelp",
+            "textDocument/documentHighlight");
+
+    // Requests answered for a document state that a later didChange replaces
+    private static final Set<String> OUTDATED_BY_CHANGE = Set.of(
+            "textDocument/completion",
+            "textDocument/hover",
+            "textDocument/signatureHelp",
+            "textDocument/documentHighlight",
+            "textDocument/codeAction",
+            "textDocument/inlayHint",
+            "textDocument/semanticTokens/full",
+            "textDocument/semanticTokens/full/delta",
+            "textDocument/semanticTokens/range");
+
+    /**
+     * Takes messages as they leave the queue, with the envelope they were
+     * offered with; must not block.
+     */
+    public interface Writer {
+        void write(String message, JsonRpcEnvelope envelope, LspWriteScheduler.MessageInfo info);
+    }
+
+    private static final class Entry {
+        private final String message;
+        private final JsonRpcEnvelope envelope;
+        private final String id;
+        private final String method;
+        private final String uri;
+        private final String supersedeKey;
+        // Parsed didChange, kept for merging
+        private final JsonObject didChange;
+        // Id of the request a $/cancelRequest cancels
+        private final String cancelledId;
+        private final long enqueuedAt;
+
+        private Entry(String message, JsonRpcEnvelope envelope, String uri, String supersedeKey,
+                JsonObject didChange, String cancelledId, long enqueuedAt) {
+            this.message = message;
+            this.envelope = envelope;
+            this.id = envelope.getId();
+            this.method = envelope.getMethod();
+            this.uri = uri;
+            this.supersedeKey = supersedeKey;
+            this.didChange = didChange;
+            this.cancelledId = cancelledId;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+        private boolean isRequest() {
+            return id != null;
+        }
+    }
+
+    private final Writer writer;
+    private final Consumer<String> localResponder;
+    private final long maxBytes;
+    // Request id -> the editor session that sent it, when several share the server
+    private volatile Function<String, String> requestOwner = id -> null;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Deque<Entry> queue = new ArrayDeque<>();
+    private long queuedBytes;
+    private boolean paused = true;
+    // Written, unanswered supersedable requests: key -> id and id -> key
+    private final Map<String, String> inFlightByKey = new HashMap<>();
+    private final Map<String, String> inFlightById = new HashMap<>();
+    private final Counter cancelled;
+    private final Counter superseded;
+    private final Counter outdated;
+    private final Counter overflow;
+    private final Counter supersededInFlight;
+    private final Counter merged;
+    private final DistributionSummary backlogMessages;
+    private final DistributionSummary backlogBytes;
+    private final Timer backlogAge;
+    private final Timer queueDelay;
+
+    public InboundMessageQueue(Writer writer, Consumer<String> localResponder, long maxBytes,
+            String language, MeterRegistry meterRegistry) {
+        this.writer = writer;
+        this.localResponder = localResponder;
+        this.maxBytes = maxBytes;
+        this.cancelled = dropped("cancelled", language, meterRegistry);
+        this.superseded = dropped("superseded", language, meterRegistry);
+        this.outdated = dropped("outdated", language, meterRegistry);
+        this.overflow = dropped("overflow", language, meterRegistry);
+        this.supersededInFlight = Counter.builder("lsp.inbound.superseded.inflight")
+                .description("Requests already sent to the server that a newer one superseded")
+                .tag("language", language)
+                .register(meterRegistry);
+        this.merged = Counter.builder("lsp.inbound.didchange.merged")
+                .description("Queued didChange notifications merged into a later one")
+                .tag("language", language)
+                .register(meterRegistry);
+        this.backlogMessages = DistributionSummary.builder("lsp.startup.backlog.messages")
+                .description("Client messages queued while the language server started")
+                .tag("language", language)
+                .register(meterRegistry);
+        this.backlogBytes = DistributionSummary.builder("lsp.startup.backlog.bytes")
+                .description("Payload queued while the language server started")
+                .tag("language", language)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.backlogAge = Timer.builder("lsp.startup.backlog.age")
+                .description("How long the oldest queued client message waited for the language server to start")
+                .tag("language", language)
+                .register(meterRegistry);
+        this.queueDelay = Timer.builder("lsp.inbound.queue.delay")
+                .description("Time client messages spend queued before they are written to the language server")
+                .tag("language", language)
+                .register(meterRegistry);
+    }
+
+    private static Counter dropped(String reason, String language, MeterRegistry meterRegistry) {
+        return Counter.builder("lsp.inbound.dropped")
+                .description("Client requests answered locally instead of being sent to the server")
+                .tag("language", language)
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+
+    public void offer(String message) {
+        offer(message, JsonRpcEnvelope.scan(message));
+    }
+
+    /**
+     * Like {@link #offer(String)} for a message the caller has already
+     * classified; the envelope is handed on to the writer. The message itself
+     * is only parsed to merge a didChange into a queued one.
+     */
+    public void offer(String message, JsonRpcEnvelope envelope) {
+        String method = envelope.getMethod();
+        String uri = envelope.getDocumentUri();
+        String cancelledId = envelope.getCancelledId();
+        // Two editors of the same document each wait for their own answer
+        String supersedeKey = envelope.isRequest() && SUPERSEDABLE.contains(method) && uri != null
+                ? method + " " + uri + " " + requestOwner.apply(envelope.getId())
+                : null;
+        boolean didChange = envelope.isNotification() && DID_CHANGE.equals(method) && uri != null;
+        // Parsing full documents only pays off when there is something to merge with
+        JsonObject parsed = didChange && isBacklogged() ? parseObject(message) : null;
+
+        List<String> answers = new ArrayList<>();
+        String serverCancel = null;
+        String serverCancelledId = null;
+        lock.lock();
+        try {
+            if (cancelledId != null) {
+                Entry request = remove(entry -> cancelledId.equals(entry.id));
+                if (request != null) {
+                    cancelled.increment();
+                    answers.add(cancelledResponse(request.id));
+                    message = null;
+                }
+            } else if (supersedeKey != null) {
+                Entry older = remove(entry -> supersedeKey.equals(entry.supersedeKey));
+                if (older != null) {
+                    superseded.increment();
+                    answers.add(cancelledResponse(older.id));
+                } else {
+                    String inFlight = inFlightByKey.remove(supersedeKey);
+                    if (inFlight != null) {
+                        inFlightById.remove(inFlight);
+                        supersededInFlight.increment();
+                        serverCancelledId = inFlight;
+                        serverCancel = "{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\",\"params\":{\"id\":"
+                                + inFlight + "}}";
+                    }
+                }
+            } else if (didChange) {
+                Entry request;
+                while ((request = remove(entry -> uri.equals(entry.uri)
+                        && OUTDATED_BY_CHANGE.contains(entry.method))) != null) {
+                    outdated.increment();
+                    answers.add(errorResponse(request.id, CONTENT_MODIFIED, "Content modified"));
+                }
+                if (parsed != null && mergeDidChange(uri, parsed)) {
+                    message = null;
+                }
+            }
+            if (serverCancel != null) {
+                add(new Entry(serverCancel, JsonRpcEnvelope.of("$/cancelRequest", null, false, false, true), null,
+                        null, null, serverCancelledId, System.nanoTime()));
+            }
+            if (message != null) {
+                add(new Entry(message, envelope, uri, supersedeKey, didChange ? parsed : null, cancelledId,
+                        System.nanoTime()));
+            }
+            enforceBound(answers);
+            drain();
+        } finally {
+            lock.unlock();
+        }
+
+        for (String answer : answers) {
+            logger.debug("Answering withdrawn request locally: {}", answer);
+            localResponder.accept(answer);
+        }
+    }
+
+    /**
+     * Tells which session sent a request, by id, so requests of different
+     * sessions never supersede each other.
+     */
+    public void setRequestOwner(Function<String, String> requestOwner) {
+        this.requestOwner = requestOwner;
+    }
+
+    /**
+     * Starts writing, once the server is ready, and hands over what has
+     * queued up so far.
+     */
+    public void resume() {
+        lock.lock();
+        try {
+            if (paused && !queue.isEmpty()) {
+                backlogMessages.record(queue.size());
+                backlogBytes.record(queuedBytes);
+                backlogAge.record(System.nanoTime() - queue.peekFirst().enqueuedAt, TimeUnit.NANOSECONDS);
+                logger.info("Releasing {} queued client messages ({} bytes) to the language server", queue.size(),
+                        queuedBytes);
+            }
+            paused = false;
+            drain();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands everything queued to the writer unless paused; called with the
+     * lock held, which keeps the messages in order.
+     */
+    private void drain() {
+        Entry entry;
+        while (!paused && (entry = queue.poll()) != null) {
+            queuedBytes -= entry.message.length();
+            queueDelay.record(System.nanoTime() - entry.enqueuedAt, TimeUnit.NANOSECONDS);
+            // Supersedable requests stay in flight until onResponse
+            if (entry.supersedeKey != null) {
+                inFlightByKey.put(entry.supersedeKey, entry.id);
+                inFlightById.put(entry.id, entry.supersedeKey);
+            }
+            String readsDocument = entry.id != null && OUTDATED_BY_CHANGE.contains(entry.method) ? entry.uri : null;
+            String changesDocument = entry.id == null && DID_CHANGE.equals(entry.method) ? entry.uri : null;
+            writer.write(entry.message, entry.envelope,
+                    new LspWriteScheduler.MessageInfo(entry.cancelledId, readsDocument, changesDocument));
+        }
+    }
+
+    /**
+     * Called for every response from the server.
+     */
+    public void onResponse(String id) {
+        if (id == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            String key = inFlightById.remove(id);
+            if (key != null) {
+                inFlightByKey.remove(key, id);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getQueuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            queue.clear();
+            queuedBytes = 0;
+            inFlightByKey.clear();
+            inFlightById.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isBacklogged() {
+        lock.lock();
+        try {
+            return paused || !queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void add(Entry entry) {
+        queue.add(entry);
+        queuedBytes += entry.message.length();
+    }
+
+    private Entry remove(Predicate<Entry> matches) {
+        Iterator<Entry> entries = queue.iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.isRequest() && matches.test(entry)) {
+                entries.remove();
+                queuedBytes -= entry.message.length();
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Folds {@code change} into the latest queued didChange of the same
+     * document when nothing queued after it reads the document and the new
+     * version follows the queued one. Returns true when merged.
+     */
+    private boolean mergeDidChange(String uri, JsonObject change) {
+        Iterator<Entry> entries = queue.descendingIterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.didChange != null && uri.equals(entry.uri)) {
+                JsonObject combined = merge(entry.didChange, change);
+                if (combined == null) {
+                    return false;
+                }
+                entries.remove();
+                queuedBytes -= entry.message.length();
+                add(new Entry(combined.toString(), entry.envelope, uri, null, combined, null, entry.enqueuedAt));
+                merged.increment();
+                return true;
+            }
+            // A request without a document may read any of them
+            if (uri.equals(entry.uri) || (entry.isRequest() && entry.uri == null)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static JsonObject merge(JsonObject older, JsonObject newer) {
+        JsonObject olderParams = older.getAsJsonObject("params");
+        JsonObject newerParams = newer.getAsJsonObject("params");
+        JsonElement olderVersion = olderParams.getAsJsonObject("textDocument").get("version");
+        JsonElement newerVersion = newerParams.getAsJsonObject("textDocument").get("version");
+        if (olderVersion == null || newerVersion == null || !olderVersion.isJsonPrimitive()
+                || !newerVersion.isJsonPrimitive()
+                || newerVersion.getAsLong() <= olderVersion.getAsLong()
+                || !(olderParams.get("contentChanges") instanceof JsonArray olderChanges)
+                || !(newerParams.get("contentChanges") instanceof JsonArray newerChanges)) {
+            return null;
+        }
+        JsonArray changes = new JsonArray();
+        changes.addAll(olderChanges);
+        changes.addAll(newerChanges);
+        // A full-text change overwrites everything before it
+        int start = 0;
+        for (int i = 0; i < changes.size(); i++) {
+            if (changes.get(i).isJsonObject() && !changes.get(i).getAsJsonObject().has("range")) {
+                start = i;
+            }
+        }
+        JsonArray kept = new JsonArray();
+        for (int i = start; i < changes.size(); i++) {
+            kept.add(changes.get(i));
+        }
+        JsonObject combined = newer.deepCopy();
+        combined.getAsJsonObject("params").add("contentChanges", kept);
+        return combined;
+    }
+
+    private void enforceBound(List<String> answers) {
+        if (maxBytes <= 0 || queuedBytes <= maxBytes) {
+            return;
+        }
+        Entry request;
+        while (queuedBytes > maxBytes && (request = remove(entry -> !"shutdown".equals(entry.method))) != null) {
+            overflow.increment();
+            answers.add(cancelledResponse(request.id));
+        }
+        if (queuedBytes > maxBytes) {
+            logger.warn("Client message backlog of {} bytes exceeds {} bytes with only notifications left",
+                    queuedBytes, maxBytes);
+        }
+    }
+
+    static String cancelledResponse(String id) {
+        return errorResponse(id, REQUEST_CANCELLED, "Request cancelled");
+    }
+
+    /**
+     * @param id the request id as written, a JSON number or string
+     */
+    static String errorResponse(String id, int code, String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("code", code);
+        error.addProperty("message", message);
+        JsonObject response = new JsonObject();
+        response.addProperty("jsonrpc", "2.0");
+        response.add("id", JsonParser.parseString(id));
+        response.add("error", error);
+        return response.toString();
+    }
+
+    private static JsonObject parseObject(String message) {
+        try {
+            JsonElement element = JsonParser.parseString(message);
+            return element.isJsonObject() ? element.getAsJsonObject() : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.javalsp.lsp.Process;
+
+/**
+ * Protocol-driven readiness: the client's {@code initialize} request is written
+ * as soon as the process is running, and everything else is held back until
+ * the server has answered it.
+ */
+public class InitializeResponseReadiness implements ReadinessStrategy {
+    // As written, like the id of the response
+    private volatile String initializeId;
+
+    @Override
+    public boolean forwardBeforeReady(JsonRpcEnvelope clientMessage) {
+        if (clientMessage.isRequest() && "initialize".equals(clientMessage.getMethod())) {
+            initializeId = clientMessage.getId();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean onServerMessage(JsonRpcEnvelope serverMessage) {
+        String expectedId = initializeId;
+        return expectedId != null && serverMessage.isResponse() && expectedId.equals(serverMessage.getId());
+    }
+
+    @Override
+    public boolean onStderrLine(String line) {
+        return false;
+    }
+}
@@ -0,0 +1,434 @@
+package com.example.javalsp.lsp.Process;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.JsonParser;
+
+/**
+ * Shallow view of a JSON-RPC message: where its top-level {@code id} sits, its
+ * {@code method}, and whether it carries {@code result}, {@code error} or
+ * {@code params}. Of the params only {@code textDocument.uri} and {@code id}
+ * (the request a {@code $/cancelRequest} names) are read. Other nested values
+ * are skipped rather than parsed, so routing a multi-megabyte response costs
+ * one scan and no allocation beyond the method name.
+ *
+ * <p>
+ * Works the same on UTF-8 bytes and on Strings: every structural JSON
+ * character is ASCII and never appears inside a multi-byte UTF-8 sequence.
+ */
+public final class JsonRpcEnvelope {
+
+    private static final JsonRpcEnvelope INVALID = new JsonRpcEnvelope(false, -1, -1, null, false, false, false,
+            null, null, null);
+
+    private final boolean valid;
+    private final int idStart;
+    private final int idEnd;
+    private final String method;
+    private final boolean hasResult;
+    private final boolean hasError;
+    private final boolean hasParams;
+    private final String id;
+    private final String documentUri;
+    private final String paramsId;
+
+    private JsonRpcEnvelope(boolean valid, int idStart, int idEnd, String method, boolean hasResult,
+            boolean hasError, boolean hasParams, String id, String documentUri, String paramsId) {
+        this.valid = valid;
+        this.idStart = idStart;
+        this.idEnd = idEnd;
+        this.method = method;
+        this.hasResult = hasResult;
+        this.hasError = hasError;
+        this.hasParams = hasParams;
+        this.id = id;
+        this.documentUri = documentUri;
+        this.paramsId = paramsId;
+    }
+
+    public static JsonRpcEnvelope scan(byte[] data) {
+        return scan(data, 0, data.length);
+    }
+
+    /**
+     * Scans {@code data[offset, offset + length)}. Id positions are absolute
+     * indexes into {@code data}.
+     */
+    public static JsonRpcEnvelope scan(byte[] data, int offset, int length) {
+        return new Scanner() {
+            @Override
+            int at(int i) {
+                return i < offset + length ? data[i] & 0xFF : -1;
+            }
+
+            @Override
+            String text(int start, int end) {
+                return new String(data, start, end - start, StandardCharsets.UTF_8);
+            }
+        }.scan(offset);
+    }
+
+    public static JsonRpcEnvelope scan(String text) {
+        return new Scanner() {
+            @Override
+            int at(int i) {
+                return i < text.length() ? text.charAt(i) : -1;
+            }
+
+            @Override
+            String text(int start, int end) {
+                return text.substring(start, end);
+            }
+        }.scan(0);
+    }
+
+    /**
+     * The envelope of a message parsed elsewhere. It knows no id position,
+     * so {@link #withId(String, String)} is not supported on it.
+     */
+    static JsonRpcEnvelope of(String method, String id, boolean hasResult, boolean hasError, boolean hasParams) {
+        return of(method, id, hasResult, hasError, hasParams, null, null);
+    }
+
+    /**
+     * Like {@link #of(String, String, boolean, boolean, boolean)} with the
+     * document URI and the {@code params.id} as written.
+     */
+    static JsonRpcEnvelope of(String method, String id, boolean hasResult, boolean hasError, boolean hasParams,
+            String documentUri, String paramsId) {
+        return new JsonRpcEnvelope(true, -1, -1, method, hasResult, hasError, hasParams, id, documentUri, paramsId);
+    }
+
+    /**
+     * False when the input is not a JSON object (for example a batch array).
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    public boolean isRequest() {
+        return valid && method != null && id != null;
+    }
+
+    public boolean isNotification() {
+        return valid && method != null && id == null;
+    }
+
+    public boolean isResponse() {
+        return valid && method == null && (hasResult || hasError);
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * The id exactly as written, e.g. {@code 7} or {@code "abc"}; null when
+     * absent.
+     */
+    public String getId() {
+        return id;
+    }
+
+    public boolean hasError() {
+        return hasError;
+    }
+
+    public boolean hasParams() {
+        return hasParams;
+    }
+
+    /**
+     * {@code params.textDocument.uri}; null when absent.
+     */
+    public String getDocumentUri() {
+        return documentUri;
+    }
+
+    /**
+     * The id of the request a {@code $/cancelRequest} cancels, as written;
+     * null for other messages and for a cancel that names no request.
+     */
+    public String getCancelledId() {
+        return "$/cancelRequest".equals(method) && isNotification() ? paramsId : null;
+    }
+
+    /**
+     * Returns {@code message} with its id token replaced by {@code newId},
+     * which must already be a JSON value.
+     */
+    public String withId(String message, String newId) {
+        requireIdPosition();
+        return message.substring(0, idStart) + newId + message.substring(idEnd);
+    }
+
+    public byte[] withId(byte[] message, String newId) {
+        requireIdPosition();
+        byte[] replacement = newId.getBytes(StandardCharsets.UTF_8);
+        byte[] result = new byte[message.length - (idEnd - idStart) + replacement.length];
+        System.arraycopy(message, 0, result, 0, idStart);
+        System.arraycopy(replacement, 0, result, idStart, replacement.length);
+        System.arraycopy(message, idEnd, result, idStart + replacement.length, message.length - idEnd);
+        return result;
+    }
+
+    /**
+     * The envelope of {@link #withId(String, String)}'s result.
+     */
+    public JsonRpcEnvelope withId(String newId) {
+        requireIdPosition();
+        return new JsonRpcEnvelope(valid, idStart, idStart + newId.length(), method, hasResult, hasError, hasParams,
+                newId, documentUri, paramsId);
+    }
+
+    private void requireIdPosition() {
+        if (idStart < 0) {
+            throw new IllegalStateException("No id position in this envelope");
+        }
+    }
+
+    private abstract static class Scanner {
+        abstract int at(int i);
+
+        abstract String text(int start, int end);
+
+        JsonRpcEnvelope scan(int start) {
+            int i = skipWhitespace(start);
+            if (at(i) != '{') {
+                return INVALID;
+            }
+            int idStart = -1;
+            int idEnd = -1;
+            String method = null;
+            boolean hasResult = false;
+            boolean hasError = false;
+            boolean hasParams = false;
+            String[] params = new String[2];
+
+            i = skipWhitespace(i + 1);
+            if (at(i) == '}') {
+                return new JsonRpcEnvelope(true, -1, -1, null, false, false, false, null, null, null);
+            }
+            while (true) {
+                if (at(i) != '"') {
+                    return INVALID;
+                }
+                int keyStart = i + 1;
+                int keyEnd = endOfString(i);
+                if (keyEnd < 0) {
+                    return INVALID;
+                }
+                i = skipWhitespace(keyEnd + 1);
+                if (at(i) != ':') {
+                    return INVALID;
+                }
+                int valueStart = skipWhitespace(i + 1);
+                boolean isParams = keyIs(keyStart, keyEnd, "params");
+                int valueEnd = isParams && at(valueStart) == '{' ? scanParams(valueStart, params)
+                        : skipValue(valueStart);
+                if (valueEnd < 0) {
+                    return INVALID;
+                }
+
+                if (keyIs(keyStart, keyEnd, "id")) {
+                    idStart = valueStart;
+                    idEnd = valueEnd;
+                } else if (keyIs(keyStart, keyEnd, "method")) {
+                    method = stringValue(valueStart, valueEnd);
+                } else if (keyIs(keyStart, keyEnd, "result")) {
+                    hasResult = true;
+                } else if (keyIs(keyStart, keyEnd, "error")) {
+                    hasError = true;
+                } else if (isParams) {
+                    hasParams = true;
+                }
+
+                i = skipWhitespace(valueEnd);
+                if (at(i) == ',') {
+                    i = skipWhitespace(i + 1);
+                } else if (at(i) == '}') {
+                    break;
+                } else {
+                    return INVALID;
+                }
+            }
+
+            String id = idStart >= 0 ? text(idStart, idEnd) : null;
+            if ("null".equals(id)) {
+                id = null;
+            }
+            return new JsonRpcEnvelope(true, idStart, idEnd, method, hasResult, hasError, hasParams, id, params[0],
+                    params[1]);
+        }
+
+        /**
+         * Walks the params object at {@code start} in the same single pass
+         * that skipping it would take, reading {@code textDocument.uri} into
+         * {@code fields[0]} and a scalar {@code id} into {@code fields[1]}.
+         * Returns the index just past it, or -1.
+         */
+        private int scanParams(int start, String[] fields) {
+            int i = skipWhitespace(start + 1);
+            if (at(i) == '}') {
+                return i + 1;
+            }
+            while (true) {
+                if (at(i) != '"') {
+                    return -1;
+                }
+                int keyStart = i + 1;
+                int keyEnd = endOfString(i);
+                if (keyEnd < 0) {
+                    return -1;
+                }
+                i = skipWhitespace(keyEnd + 1);
+                if (at(i) != ':') {
+                    return -1;
+                }
+                int valueStart = skipWhitespace(i + 1);
+                int valueEnd = skipValue(valueStart);
+                if (valueEnd < 0) {
+                    return -1;
+                }
+                if (keyIs(keyStart, keyEnd, "textDocument") && at(valueStart) == '{') {
+                    fields[0] = memberString(valueStart, "uri");
+                } else if (keyIs(keyStart, keyEnd, "id") && at(valueStart) != '{' && at(valueStart) != '[') {
+                    String id = text(valueStart, valueEnd);
+                    fields[1] = "null".equals(id) ? null : id;
+                }
+                i = skipWhitespace(valueEnd);
+                if (at(i) == ',') {
+                    i = skipWhitespace(i + 1);
+                } else if (at(i) == '}') {
+                    return i + 1;
+                } else {
+                    return -1;
+                }
+            }
+        }
+
+        /**
+         * The string member {@code key} of the object at {@code start}; null
+         * when absent, not a string or malformed.
+         */
+        private String memberString(int start, String key) {
+            int i = skipWhitespace(start + 1);
+            while (at(i) == '"') {
+                int keyStart = i + 1;
+                int keyEnd = endOfString(i);
+                if (keyEnd < 0) {
+                    return null;
+                }
+                i = skipWhitespace(keyEnd + 1);
+                if (at(i) != ':') {
+                    return null;
+                }
+                int valueStart = skipWhitespace(i + 1);
+                int valueEnd = skipValue(valueStart);
+                if (valueEnd < 0) {
+                    return null;
+                }
+                if (keyIs(keyStart, keyEnd, key)) {
+                    return stringValue(valueStart, valueEnd);
+                }
+                i = skipWhitespace(valueEnd);
+                if (at(i) != ',') {
+                    return null;
+                }
+                i = skipWhitespace(i + 1);
+            }
+            return null;
+        }
+
+        private boolean keyIs(int start, int end, String key) {
+            if (end - start != key.length()) {
+                return false;
+            }
+            for (int i = 0; i < key.length(); i++) {
+                if (at(start + i) != key.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String stringValue(int start, int end) {
+            if (at(start) != '"') {
+                return null;
+            }
+            for (int i = start + 1; i < end - 1; i++) {
+                if (at(i) == '\\') {
+                    return JsonParser.parseString(text(start, end)).getAsString();
+                }
+            }
+            return text(start + 1, end - 1);
+        }
+
+        private int skipWhitespace(int i) {
+            int c = at(i);
+            while (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                c = at(++i);
+            }
+            return i;
+        }
+
+        /**
+         * Index of the closing quote of the string opening at {@code i}, or -1.
+         */
+        private int endOfString(int i) {
+            int j = i + 1;
+            while (true) {
+                int c = at(j);
+                if (c == -1) {
+                    return -1;
+                }
+                if (c == '\\') {
+                    j += 2;
+                } else if (c == '"') {
+                    return j;
+                } else {
+                    j++;
+                }
+            }
+        }
+
+        /**
+         * Index just past the value starting at {@code i}, or -1.
+         */
+        private int skipValue(int i) {
+            int c = at(i);
+            if (c == '"') {
+                int end = endOfString(i);
+                return end < 0 ? -1 : end + 1;
+            }
+            if (c == '{' || c == '[') {
+                int depth = 0;
+                int j = i;
+                while (true) {
+                    c = at(j);
+                    if (c == -1) {
+                        return -1;
+                    }
+                    if (c == '"') {
+                        j = endOfString(j);
+                        if (j < 0) {
+                            return -1;
+                        }
+                    } else if (c == '{' || c == '[') {
+                        depth++;
+                    } else if (c == '}' || c == ']') {
+                        if (--depth == 0) {
+                            return j + 1;
+                        }
+                    }
+                    j++;
+                }
+            }
+            int j = i;
+            while (c != -1 && c != ',' && c != '}' && c != ']' && c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                c = at(++j);
+            }
+            return j == i ? -1 : j;
+        }
+    }
+}
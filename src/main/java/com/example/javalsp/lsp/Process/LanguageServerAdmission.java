@@ -0,0 +1,323 @@
+package com.example.javalsp.lsp.Process;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Decides whether a user may start a dedicated language server, so that a
+ * burst of logins cannot oversubscribe the node and get existing servers
+ * OOM-killed.
+ *
+ * <p>
+ * Capacity is a number of processes per language and a node-wide memory
+ * budget, from which every admitted server reserves a fixed estimate of its
+ * language (heap limit plus JVM overhead, not its current RSS, since servers
+ * keep growing after start). A user holds one permit until its server is
+ * stopped. Users that do not fit wait in arrival order: when capacity frees
+ * up the queue is granted front to back, a user blocked only by its own
+ * language's process limit is skipped, but nobody behind a user blocked by
+ * memory may take memory first. Users beyond the queue length, or waiting
+ * longer than the timeout, are rejected.
+ */
+public class LanguageServerAdmission {
+
+    public enum Decision {
+        ADMITTED, QUEUED, REJECTED
+    }
+
+    /**
+     * Outcome of a {@link Decision#QUEUED} request. Called without locks held.
+     */
+    public interface Waiter {
+        void granted();
+
+        void rejected(String reason);
+    }
+
+    private static final class Request {
+        private final String userId;
+        private final String language;
+        private final Waiter waiter;
+        private final long enqueuedAt = System.nanoTime();
+        private ScheduledFuture<?> timeout;
+
+        private Request(String userId, String language, Waiter waiter) {
+            this.userId = userId;
+            this.language = language;
+            this.waiter = waiter;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(LanguageServerAdmission.class);
+
+    private final Map<String, Integer> maxProcesses;
+    private final Map<String, Long> processMemoryMb;
+    private final long memoryBudgetMb;
+    private final int maxQueued;
+    private final long queueTimeoutMillis;
+    private final BooleanSupplier reclaimIdle;
+    private final MeterRegistry meterRegistry;
+    // Stopping a server blocks, so reclaiming runs on a thread of its own
+    private final ExecutorService reclaims = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "LSP-Admission-Reclaim");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // userId -> language of the admitted server
+    private final Map<String, String> holders = new HashMap<>();
+    private final Map<String, Integer> running = new HashMap<>();
+    private final LinkedHashMap<String, Request> queue = new LinkedHashMap<>();
+    private long reservedMb;
+    private final Map<String, Counter> decisions = new HashMap<>();
+    private final Timer waitTime;
+
+    /**
+     * @param maxProcesses    servers per language; languages without an entry
+     *                        are not limited
+     * @param processMemoryMb memory reserved per server of a language
+     * @param memoryBudgetMb  total reservation allowed on the node, 0 for no
+     *                        memory limit
+     * @param reclaimIdle     stops one idle (retained) server to make room and
+     *                        returns true, or false when there is none
+     */
+    public LanguageServerAdmission(Map<String, Integer> maxProcesses, Map<String, Long> processMemoryMb,
+            long memoryBudgetMb, int maxQueued, long queueTimeoutMillis, BooleanSupplier reclaimIdle,
+            MeterRegistry meterRegistry) {
+        this.maxProcesses = maxProcesses;
+        this.processMemoryMb = processMemoryMb;
+        this.memoryBudgetMb = memoryBudgetMb;
+        this.maxQueued = maxQueued;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.reclaimIdle = reclaimIdle;
+        this.meterRegistry = meterRegistry;
+        this.waitTime = Timer.builder("lsp.admission.wait")
+                .description("Time users waited in the queue for language server capacity")
+                .register(meterRegistry);
+        Gauge.builder("lsp.admission.queued", this, LanguageServerAdmission::getQueuedCount)
+                .description("Users waiting for language server capacity")
+                .register(meterRegistry);
+        Gauge.builder("lsp.admission.memory.reserved", this, LanguageServerAdmission::getReservedMb)
+                .description("Memory reserved by admitted language servers")
+                .baseUnit("megabytes")
+                .register(meterRegistry);
+        for (String language : processMemoryMb.keySet()) {
+            Gauge.builder("lsp.admission.processes", this, admission -> admission.getRunningCount(language))
+                    .description("Admitted dedicated language servers")
+                    .tag("language", language)
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Admits a user at once when it already holds a permit or there is
+     * capacity and nobody queued ahead could use it, otherwise queues it.
+     * {@code waiter} is only called for {@link Decision#QUEUED}.
+     */
+    public Decision admit(String userId, String language, Waiter waiter) {
+        List<Request> granted;
+        Decision decision;
+        synchronized (this) {
+            if (holders.containsKey(userId)) {
+                return Decision.ADMITTED;
+            }
+            if (queue.containsKey(userId)) {
+                return Decision.QUEUED;
+            }
+            if (!canEverFit(language)) {
+                count("rejected");
+                return Decision.REJECTED;
+            }
+            Request request = new Request(userId, language, waiter);
+            queue.put(userId, request);
+            granted = grantInOrder();
+            if (granted.remove(request)) {
+                decision = Decision.ADMITTED;
+                count("admitted");
+            } else if (queue.size() > maxQueued) {
+                queue.remove(userId);
+                decision = Decision.REJECTED;
+                count("rejected");
+                logger.info("Rejected {} LSP of user {}, {} users already waiting for capacity", language, userId,
+                        maxQueued);
+            } else {
+                decision = Decision.QUEUED;
+                count("queued");
+                request.timeout = LspThreads.scheduler().schedule(() -> expire(request), queueTimeoutMillis,
+                        TimeUnit.MILLISECONDS);
+                logger.info("Queued {} LSP of user {} at position {} ({} MB of {} MB reserved)", language, userId,
+                        queue.size(), reservedMb, memoryBudgetMb);
+            }
+        }
+        notifyGranted(granted);
+        return decision;
+    }
+
+    /**
+     * Returns the permit of a user whose server stopped, or withdraws it from
+     * the queue, and grants waiting users.
+     */
+    public void release(String userId) {
+        List<Request> granted;
+        synchronized (this) {
+            Request waiting = queue.remove(userId);
+            if (waiting != null && waiting.timeout != null) {
+                waiting.timeout.cancel(false);
+            }
+            String language = holders.remove(userId);
+            if (language != null) {
+                running.merge(language, -1, Integer::sum);
+                reservedMb -= memoryOf(language);
+            }
+            granted = grantInOrder();
+        }
+        notifyGranted(granted);
+    }
+
+    /**
+     * Stops idle servers while users are waiting for the capacity they hold;
+     * in the background.
+     */
+    public void reclaimIdleCapacity() {
+        try {
+            reclaims.execute(() -> {
+                while (getQueuedCount() > 0 && reclaimIdle.getAsBoolean()) {
+                    // Each stopped server releases its permit, which grants the queue
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shut down
+        }
+    }
+
+    /**
+     * Grants queued requests front to back; called with the lock held.
+     */
+    private List<Request> grantInOrder() {
+        List<Request> granted = new ArrayList<>();
+        boolean memoryBlocked = false;
+        for (Iterator<Request> it = queue.values().iterator(); it.hasNext();) {
+            Request request = it.next();
+            boolean fitsMemory = !memoryBlocked && fitsMemory(request.language);
+            if (fitsMemory && fitsProcesses(request.language)) {
+                it.remove();
+                holders.put(request.userId, request.language);
+                running.merge(request.language, 1, Integer::sum);
+                reservedMb += memoryOf(request.language);
+                granted.add(request);
+            } else if (!fitsMemory) {
+                // Later users must not take the memory this one is waiting for
+                memoryBlocked = true;
+            }
+        }
+        return granted;
+    }
+
+    private void notifyGranted(List<Request> granted) {
+        for (Request request : granted) {
+            if (request.timeout == null) {
+                continue; // admitted synchronously
+            }
+            request.timeout.cancel(false);
+            waitTime.record(System.nanoTime() - request.enqueuedAt, TimeUnit.NANOSECONDS);
+            logger.info("Admitted {} LSP of user {} after waiting for capacity", request.language, request.userId);
+            request.waiter.granted();
+        }
+    }
+
+    private void expire(Request request) {
+        synchronized (this) {
+            if (queue.get(request.userId) != request) {
+                return;
+            }
+            queue.remove(request.userId);
+            count("timeout");
+        }
+        waitTime.record(System.nanoTime() - request.enqueuedAt, TimeUnit.NANOSECONDS);
+        logger.info("User {} waited {} ms for {} LSP capacity, giving up", request.userId, queueTimeoutMillis,
+                request.language);
+        request.waiter.rejected("Timed out waiting for language server capacity");
+    }
+
+    private boolean fitsMemory(String language) {
+        return memoryBudgetMb <= 0 || reservedMb + memoryOf(language) <= memoryBudgetMb;
+    }
+
+    private boolean fitsProcesses(String language) {
+        Integer max = maxProcesses.get(language);
+        return max == null || running.getOrDefault(language, 0) < max;
+    }
+
+    private boolean canEverFit(String language) {
+        Integer max = maxProcesses.get(language);
+        return (max == null || max > 0) && (memoryBudgetMb <= 0 || memoryOf(language) <= memoryBudgetMb);
+    }
+
+    private long memoryOf(String language) {
+        return processMemoryMb.getOrDefault(language, 0L);
+    }
+
+    private void count(String outcome) {
+        decisions.computeIfAbsent(outcome, o -> Counter.builder("lsp.admission.decisions")
+                .description("Requests to start a dedicated language server, by outcome")
+                .tag("outcome", o)
+                .register(meterRegistry))
+                .increment();
+    }
+
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * 1-based place of a user in the queue, or 0 when it is not waiting.
+     */
+    public synchronized int getQueuePosition(String userId) {
+        int position = 1;
+        for (String queued : queue.keySet()) {
+            if (queued.equals(userId)) {
+                return position;
+            }
+            position++;
+        }
+        return 0;
+    }
+
+    public synchronized int getRunningCount(String language) {
+        return running.getOrDefault(language, 0);
+    }
+
+    public synchronized long getReservedMb() {
+        return reservedMb;
+    }
+
+    public void shutdown() {
+        synchronized (this) {
+            for (Request request : queue.values()) {
+                if (request.timeout != null) {
+                    request.timeout.cancel(false);
+                }
+            }
+            queue.clear();
+        }
+        reclaims.shutdown();
+    }
+}
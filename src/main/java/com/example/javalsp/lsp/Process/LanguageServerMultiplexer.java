@@ -0,0 +1,780 @@
+package com.example.javalsp.lsp.Process;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Lets several editor sessions (browser tabs) of one user share a single
+ * language server process.
+ *
+ * <p>
+ * Client requests get a proxy-wide id before they reach the server and the
+ * response is routed back, with the original id restored, to the session that
+ * sent it. Notifications from the server are fanned out to every session;
+ * requests from the server go to the oldest session. Only the first
+ * {@code initialize} reaches the server, later sessions are answered with its
+ * cached result, and {@code didOpen}/{@code didClose} are reference-counted per
+ * document. The multiplexer counts attached sessions so the owner knows when
+ * the process is no longer needed.
+ *
+ * <p>
+ * Subclasses can rewrite traffic per session and replace the default routing
+ * of server notifications and requests, see
+ * {@link SharedLanguageServerMultiplexer}.
+ */
+public class LanguageServerMultiplexer {
+
+    static final class Session {
+        final String id;
+        final String userId;
+        private final Consumer<String> messageHandler;
+        private final Consumer<ByteBuffer> rawMessageHandler;
+        private final Set<String> openDocuments = ConcurrentHashMap.newKeySet();
+
+        private Session(String id, String userId, Consumer<String> messageHandler,
+                Consumer<ByteBuffer> rawMessageHandler) {
+            this.id = id;
+            this.userId = userId;
+            this.messageHandler = messageHandler;
+            this.rawMessageHandler = rawMessageHandler;
+        }
+    }
+
+    private static final class PendingRequest {
+        private final String sessionId;
+        private final String originalId;
+        private final String method;
+        // Set for cacheable requests: where to store the response and the
+        // document version it has to still be current for
+        private final String cacheKey;
+        private final String uri;
+        private final String version;
+
+        private PendingRequest(String sessionId, String originalId, String method) {
+            this(sessionId, originalId, method, null, null, null);
+        }
+
+        private PendingRequest(String sessionId, String originalId, String method, String cacheKey, String uri,
+                String version) {
+            this.sessionId = sessionId;
+            this.originalId = originalId;
+            this.method = method;
+            this.cacheKey = cacheKey;
+            this.uri = uri;
+            this.version = version;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(LanguageServerMultiplexer.class);
+    private static final long MAX_HELD_CHARS = 4 * 1024 * 1024;
+    private static final AtomicLong cacheOwners = new AtomicLong();
+
+    private final String userId;
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
+    private final Map<String, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    // "<sessionId> <original id>" -> proxy id, to translate $/cancelRequest
+    private final Map<String, String> proxyIds = new ConcurrentHashMap<>();
+    // Server-initiated request id -> session that has to answer it
+    private final Map<String, String> serverRequestOwners = new ConcurrentHashMap<>();
+    private final Map<String, Integer> documentOpenCounts = new HashMap<>();
+    private final AtomicLong nextProxyId = new AtomicLong();
+    private volatile LanguageServerProcess process;
+    private volatile boolean retainsServer = false;
+    // Client messages sent before there is a process, e.g. while waiting for capacity
+    private final List<String> held = new ArrayList<>();
+    private long heldChars;
+    private LspResponseCache responseCache;
+    // Distinguishes this server's entries from other servers of the same user
+    private final String cacheOwner;
+    // Open document URI -> its current version, for cache keys
+    private final Map<String, String> documentVersions = new ConcurrentHashMap<>();
+
+    // initialize is forwarded once; later sessions reuse the answer
+    private boolean initializeSent = false;
+    private boolean initializedSent = false;
+    private byte[] initializeResponse;
+    private JsonRpcEnvelope initializeResponseEnvelope;
+    private final List<PendingRequest> waitingForInitialize = new ArrayList<>();
+
+    // Crash recovery, when enabled: what a replacement server has to be told
+    private OpenDocuments openDocuments;
+    private String initializeMessage;
+    private String initializedMessage;
+    // Id of the initialize replayed to a replacement server, and who waits for its answer
+    private String recoveryId;
+    private Runnable onRecovered;
+
+    public LanguageServerMultiplexer(String userId) {
+        this.userId = userId;
+        this.cacheOwner = userId + "#" + cacheOwners.incrementAndGet();
+    }
+
+    /**
+     * Answers repeated idempotent requests about unchanged documents from
+     * {@code cache}; null forwards every request.
+     */
+    public void setResponseCache(LspResponseCache cache) {
+        this.responseCache = cache;
+    }
+
+    /**
+     * Sets the server, first handing it the client messages held while there
+     * was none.
+     */
+    public void setProcess(LanguageServerProcess process) {
+        synchronized (held) {
+            if (process != null) {
+                process.setRequestOwner(this::ownerOf);
+                held.forEach(message -> process.sendMessage(message, JsonRpcEnvelope.scan(message)));
+            }
+            held.clear();
+            heldChars = 0;
+            this.process = process;
+        }
+    }
+
+    public LanguageServerProcess getProcess() {
+        return process;
+    }
+
+    /**
+     * The session that sent the request forwarded with {@code proxyId}.
+     */
+    private String ownerOf(String proxyId) {
+        PendingRequest request = proxyId != null ? pendingRequests.get(proxyId) : null;
+        return request != null ? request.sessionId : null;
+    }
+
+    /**
+     * Keeps the initialize request and the text of open documents, so that
+     * {@link #recover} can bring a replacement server to the same state.
+     */
+    public void setCrashRecovery(boolean enabled) {
+        this.openDocuments = enabled ? new OpenDocuments() : null;
+    }
+
+    /**
+     * Called when the server died unexpectedly. Requests in flight fail with
+     * ContentModified, which editors retry or drop silently, except an
+     * unanswered initialize, which is replayed; client messages are held
+     * until {@link #recover}. Sessions are told whether a new server is on
+     * its way.
+     */
+    public void serverCrashed(boolean restarting) {
+        synchronized (held) {
+            this.process = null;
+        }
+        String initializeProxyId = null;
+        synchronized (this) {
+            if (initializeResponse == null && initializeSent) {
+                for (Map.Entry<String, PendingRequest> entry : pendingRequests.entrySet()) {
+                    if ("initialize".equals(entry.getValue().method)) {
+                        initializeProxyId = entry.getKey();
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, PendingRequest> entry : pendingRequests.entrySet()) {
+            if (entry.getKey().equals(initializeProxyId) || pendingRequests.remove(entry.getKey()) == null) {
+                continue;
+            }
+            PendingRequest request = entry.getValue();
+            proxyIds.remove(request.sessionId + " " + request.originalId);
+            Session session = findSession(request.sessionId);
+            if (session != null) {
+                deliver(session, request.method, ("{\"jsonrpc\":\"2.0\",\"id\":" + request.originalId
+                        + ",\"error\":{\"code\":-32801,\"message\":\"The language server restarted\"}}")
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        // Requests of the dead server cannot be answered anymore
+        serverRequestOwners.clear();
+        broadcast(showMessage(restarting ? 2 : 1, restarting
+                ? "The language server stopped unexpectedly and is restarting, your open files are restored."
+                : "The language server keeps stopping unexpectedly, please reload the editor."));
+    }
+
+    /**
+     * Hands the sessions over to {@code replacement} after a crash: replays
+     * initialize and initialized as the first server got them, reopens every
+     * open document with its current text, then sends the client messages
+     * held in the meantime. Document notifications among those are already
+     * part of the reopened text and are dropped. {@code onRecovered} runs
+     * when the replacement answers initialize.
+     */
+    public void recover(LanguageServerProcess replacement, Runnable onRecovered) {
+        replacement.setRequestOwner(this::ownerOf);
+        synchronized (held) {
+            synchronized (this) {
+                String proxyId;
+                if (initializeResponse == null) {
+                    // Still pending; the answer goes to the sessions that wait for it
+                    proxyId = initializeMessage != null ? JsonRpcEnvelope.scan(initializeMessage).getId() : null;
+                } else {
+                    proxyId = Long.toString(nextProxyId.incrementAndGet());
+                }
+                this.recoveryId = proxyId;
+                this.onRecovered = onRecovered;
+                if (initializeMessage != null) {
+                    JsonRpcEnvelope envelope = JsonRpcEnvelope.scan(initializeMessage);
+                    replacement.sendMessage(envelope.withId(initializeMessage, proxyId), envelope.withId(proxyId));
+                }
+                if (initializedMessage != null) {
+                    replacement.sendMessage(initializedMessage, JsonRpcEnvelope.scan(initializedMessage));
+                }
+            }
+            if (openDocuments != null) {
+                for (String message : openDocuments.didOpenMessages()) {
+                    replacement.sendMessage(message, JsonRpcEnvelope.scan(message));
+                }
+            }
+            for (String message : held) {
+                JsonRpcEnvelope envelope = JsonRpcEnvelope.scan(message);
+                String method = envelope.getMethod();
+                if (openDocuments == null || method == null || !method.startsWith("textDocument/did")
+                        || method.equals("textDocument/didSave")) {
+                    replacement.sendMessage(message, envelope);
+                }
+            }
+            held.clear();
+            heldChars = 0;
+            this.process = replacement;
+        }
+        if (initializeMessage == null && onRecovered != null) {
+            // Crashed before any session initialized it; nothing to wait for
+            this.onRecovered = null;
+            onRecovered.run();
+        }
+    }
+
+    /**
+     * Keeps the server alive and consistent after the last session left, for
+     * a later session to reattach: clients cannot stop it and documents are
+     * closed when their last holder detaches.
+     */
+    public void setRetainsServer(boolean retainsServer) {
+        this.retainsServer = retainsServer;
+    }
+
+    public void attach(String sessionId, Consumer<String> messageHandler, Consumer<ByteBuffer> rawMessageHandler) {
+        attach(sessionId, userId, messageHandler, rawMessageHandler);
+    }
+
+    /**
+     * Attaches a session on behalf of {@code sessionUserId}, which differs from
+     * the owner when one process serves several users.
+     */
+    public void attach(String sessionId, String sessionUserId, Consumer<String> messageHandler,
+            Consumer<ByteBuffer> rawMessageHandler) {
+        Session session = new Session(sessionId, sessionUserId, messageHandler, rawMessageHandler);
+        sessions.add(session);
+        logger.info("Session {} attached to LSP of user {} ({} sessions)", sessionId, userId, sessions.size());
+        onSessionAttached(session);
+    }
+
+    /**
+     * Removes a session, closing the documents only it had open and failing
+     * server requests it still owed an answer. Returns the number of sessions
+     * of the same user still attached.
+     */
+    public int detach(String sessionId) {
+        Session session = findSession(sessionId);
+        if (session == null) {
+            return sessions.size();
+        }
+        sessions.remove(session);
+
+        for (String uri : session.openDocuments) {
+            if (!releaseDocument(uri)) {
+                continue;
+            }
+            documentClosed(uri);
+            if (!sessions.isEmpty() || keepsServerRunning()) {
+                forward("{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didClose\",\"params\":{\"textDocument\":{\"uri\":"
+                        + quote(uri) + "}}}");
+            }
+        }
+        pendingRequests.values().removeIf(request -> request.sessionId.equals(sessionId));
+        proxyIds.keySet().removeIf(key -> key.startsWith(sessionId + " "));
+        serverRequestOwners.entrySet().removeIf(entry -> {
+            if (!entry.getValue().equals(sessionId)) {
+                return false;
+            }
+            if (!sessions.isEmpty() || keepsServerRunning()) {
+                forward("{\"jsonrpc\":\"2.0\",\"id\":" + entry.getKey()
+                        + ",\"error\":{\"code\":-32803,\"message\":\"Client session closed\"}}");
+            }
+            return true;
+        });
+
+        logger.info("Session {} detached from LSP of user {} ({} sessions left)", sessionId, userId,
+                sessions.size());
+        int remaining = getSessionCount(session.userId);
+        onSessionDetached(session, remaining);
+        return remaining;
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public int getSessionCount(String sessionUserId) {
+        int count = 0;
+        for (Session session : sessions) {
+            if (session.userId.equals(sessionUserId)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Client to server.
+     */
+    public void send(String sessionId, String message) {
+        Session session = findSession(sessionId);
+        if (session == null) {
+            logger.warn("Dropping message from unknown session {} of user {}", sessionId, userId);
+            return;
+        }
+        JsonRpcEnvelope envelope = JsonRpcEnvelope.scan(message);
+        String rewritten = rewriteInbound(session, envelope, message);
+        if (rewritten == null) {
+            return;
+        }
+        if (rewritten != message) {
+            message = rewritten;
+            envelope = JsonRpcEnvelope.scan(message);
+        }
+
+        if (envelope.isRequest()) {
+            sendRequest(session, envelope, message);
+        } else if (envelope.isNotification()) {
+            sendNotification(session, envelope, message);
+        } else {
+            if (envelope.isResponse() && envelope.getId() != null) {
+                serverRequestOwners.remove(envelope.getId());
+            }
+            forward(message, envelope);
+        }
+    }
+
+    private void sendRequest(Session session, JsonRpcEnvelope envelope, String message) {
+        String method = envelope.getMethod();
+        PendingRequest request = new PendingRequest(session.id, envelope.getId(), method);
+        LspResponseCache cache = responseCache;
+
+        if ("initialize".equals(method)) {
+            synchronized (this) {
+                if (initializeResponse != null) {
+                    deliver(session, method,
+                            initializeResponseEnvelope.withId(initializeResponse, request.originalId));
+                    return;
+                }
+                if (initializeSent) {
+                    waitingForInitialize.add(request);
+                    return;
+                }
+                initializeSent = true;
+            }
+        } else if ("shutdown".equals(method) && (sessions.size() > 1 || keepsServerRunning())) {
+            // Other sessions still use the server; acknowledge without stopping it
+            deliver(session, method, ("{\"jsonrpc\":\"2.0\",\"id\":" + request.originalId + ",\"result\":null}")
+                    .getBytes(StandardCharsets.UTF_8));
+            return;
+        } else if (cache != null && LspResponseCache.isCacheable(method)) {
+            LspResponseCache.DocumentRef document = LspResponseCache.readDocument(message);
+            String version = document == null ? null : documentVersions.get(document.uri);
+            String key = LspResponseCache.key(cacheOwner, method, version, message);
+            if (key != null) {
+                byte[] cached = cache.get(key, method);
+                if (cached != null) {
+                    deliver(session, method, JsonRpcEnvelope.scan(cached).withId(cached, request.originalId));
+                    return;
+                }
+                request = new PendingRequest(session.id, request.originalId, method, key, document.uri, version);
+            }
+        }
+
+        String proxyId = Long.toString(nextProxyId.incrementAndGet());
+        pendingRequests.put(proxyId, request);
+        proxyIds.put(session.id + " " + request.originalId, proxyId);
+        String outgoing = envelope.withId(message, proxyId);
+        if ("initialize".equals(method)) {
+            outgoing = prepareInitialize(session, outgoing);
+            if (openDocuments != null) {
+                initializeMessage = outgoing;
+            }
+            forward(outgoing);
+            return;
+        }
+        forward(outgoing, envelope.withId(proxyId));
+    }
+
+    private void sendNotification(Session session, JsonRpcEnvelope envelope, String message) {
+        switch (envelope.getMethod()) {
+            case "initialized" -> {
+                synchronized (this) {
+                    if (initializedSent) {
+                        return;
+                    }
+                    initializedSent = true;
+                    if (openDocuments != null) {
+                        initializedMessage = message;
+                    }
+                }
+                forward(message, envelope);
+                onServerInitialized();
+            }
+            case "exit" -> {
+                if (sessions.size() <= 1 && !keepsServerRunning()) {
+                    forward(message, envelope);
+                }
+            }
+            case "$/cancelRequest" -> {
+                String proxyId = proxyIds.get(session.id + " " + envelope.getCancelledId());
+                if (proxyId != null) {
+                    forward("{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\",\"params\":{\"id\":" + proxyId
+                            + "}}");
+                }
+            }
+            case "textDocument/didOpen" -> {
+                String uri = envelope.getDocumentUri();
+                if (uri != null && session.openDocuments.add(uri) && acquireDocument(uri)) {
+                    documentChanged(message);
+                    forwardDocument("textDocument/didOpen", message, envelope);
+                }
+            }
+            case "textDocument/didChange" -> {
+                documentChanged(message);
+                forwardDocument("textDocument/didChange", message, envelope);
+            }
+            case "textDocument/didClose" -> {
+                String uri = envelope.getDocumentUri();
+                if (uri != null && session.openDocuments.remove(uri) && releaseDocument(uri)) {
+                    documentClosed(uri);
+                    forwardDocument("textDocument/didClose", message, envelope);
+                }
+            }
+            case "textDocument/didSave", "workspace/didChangeWatchedFiles", "workspace/didChangeConfiguration" -> {
+                if (responseCache != null) {
+                    responseCache.projectChanged(cacheOwner);
+                }
+                forward(message, envelope);
+            }
+            default -> forward(message, envelope);
+        }
+    }
+
+    /**
+     * Server to client, as raw UTF-8 frames from the process reader.
+     */
+    public void onServerFrame(ByteBuffer frame) {
+        byte[] message = toArray(frame);
+        JsonRpcEnvelope envelope = JsonRpcEnvelope.scan(message);
+
+        if (envelope.isResponse()) {
+            routeResponse(envelope, message);
+        } else if (envelope.isRequest()) {
+            routeServerRequest(envelope, message);
+        } else {
+            routeNotification(envelope, message);
+        }
+    }
+
+    /**
+     * Server to client, for processes that deliver decoded Strings.
+     */
+    public void onServerMessage(String message) {
+        onServerFrame(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void routeResponse(JsonRpcEnvelope envelope, byte[] message) {
+        Runnable recovered = null;
+        synchronized (this) {
+            if (recoveryId != null && recoveryId.equals(envelope.getId())) {
+                recoveryId = null;
+                recovered = onRecovered;
+                onRecovered = null;
+            }
+        }
+        if (recovered != null) {
+            recovered.run();
+            broadcast(showMessage(3, "The language server restarted."));
+        }
+        PendingRequest request = envelope.getId() == null ? null : pendingRequests.remove(envelope.getId());
+        if (request == null) {
+            logger.debug("Dropping LSP response {} for user {} with no waiting session", envelope.getId(), userId);
+            return;
+        }
+        proxyIds.remove(request.sessionId + " " + request.originalId);
+
+        LspResponseCache cache = responseCache;
+        if (request.cacheKey != null && cache != null && !envelope.hasError()
+                && request.version.equals(documentVersions.get(request.uri))) {
+            cache.put(request.cacheKey, cacheOwner, request.uri, request.method, message);
+        }
+
+        if ("initialize".equals(request.method)) {
+            List<PendingRequest> waiting;
+            synchronized (this) {
+                initializeResponse = message;
+                initializeResponseEnvelope = envelope;
+                waiting = new ArrayList<>(waitingForInitialize);
+                waitingForInitialize.clear();
+            }
+            for (PendingRequest other : waiting) {
+                Session session = findSession(other.sessionId);
+                if (session != null) {
+                    deliver(session, other.method, envelope.withId(message, other.originalId));
+                }
+            }
+        }
+
+        Session session = findSession(request.sessionId);
+        if (session != null) {
+            deliver(session, request.method, envelope.withId(message, request.originalId));
+        }
+    }
+
+    /**
+     * Sends a server request to the oldest session, which has to answer it.
+     */
+    protected void routeServerRequest(JsonRpcEnvelope envelope, byte[] message) {
+        Session owner = sessions.isEmpty() ? null : sessions.get(0);
+        if (owner != null) {
+            deliverServerRequest(owner, envelope, message);
+        }
+    }
+
+    protected void routeNotification(JsonRpcEnvelope envelope, byte[] message) {
+        broadcast(message);
+    }
+
+    protected final void deliverServerRequest(Session session, JsonRpcEnvelope envelope, byte[] message) {
+        serverRequestOwners.put(envelope.getId(), session.id);
+        deliver(session, envelope.getMethod(), message);
+    }
+
+    /**
+     * Called for every client message before routing. Returns the message to
+     * route (the same instance when unchanged) or null to drop it.
+     */
+    protected String rewriteInbound(Session session, JsonRpcEnvelope envelope, String message) {
+        return message;
+    }
+
+    /**
+     * Called for every message delivered to one session; {@code method} is the
+     * request method for responses. Returns the bytes to deliver or null to
+     * drop them.
+     */
+    protected byte[] rewriteOutbound(Session session, String method, byte[] message) {
+        return message;
+    }
+
+    /**
+     * Called with the only {@code initialize} request that reaches the server,
+     * after its id was replaced.
+     */
+    protected String prepareInitialize(Session session, String message) {
+        return message;
+    }
+
+    /**
+     * True when the server outlives its sessions, so {@code shutdown} and
+     * {@code exit} from clients never reach it.
+     */
+    protected boolean keepsServerRunning() {
+        return retainsServer;
+    }
+
+    protected void onSessionAttached(Session session) {
+    }
+
+    protected void onSessionDetached(Session session, int remainingForUser) {
+    }
+
+    /**
+     * Called once after {@code initialized} was forwarded to the server.
+     */
+    protected void onServerInitialized() {
+    }
+
+    protected final synchronized boolean isServerInitialized() {
+        return initializedSent;
+    }
+
+    protected final List<Session> sessions() {
+        return sessions;
+    }
+
+    private void broadcast(byte[] message) {
+        String decoded = null;
+        for (Session session : sessions) {
+            if (session.rawMessageHandler != null) {
+                session.rawMessageHandler.accept(ByteBuffer.wrap(message).asReadOnlyBuffer());
+            } else {
+                if (decoded == null) {
+                    decoded = new String(message, StandardCharsets.UTF_8);
+                }
+                session.messageHandler.accept(decoded);
+            }
+        }
+    }
+
+    protected final void deliver(Session session, String method, byte[] message) {
+        message = rewriteOutbound(session, method, message);
+        if (message == null) {
+            return;
+        }
+        if (session.rawMessageHandler != null) {
+            session.rawMessageHandler.accept(ByteBuffer.wrap(message));
+        } else {
+            session.messageHandler.accept(new String(message, StandardCharsets.UTF_8));
+        }
+    }
+
+    protected final void forward(String message) {
+        forward(message, JsonRpcEnvelope.scan(message));
+    }
+
+    /**
+     * Forwards a message with the envelope it was classified with, so the
+     * server does not scan it again.
+     */
+    private void forward(String message, JsonRpcEnvelope envelope) {
+        LanguageServerProcess target = process;
+        if (target == null) {
+            synchronized (held) {
+                target = process;
+                if (target == null) {
+                    hold(message);
+                    return;
+                }
+            }
+        }
+        target.sendMessage(message, envelope);
+    }
+
+    /**
+     * Forwards a document notification, recording its effect for crash
+     * recovery in the same step, so a replay never misses nor repeats it.
+     */
+    private void forwardDocument(String method, String message, JsonRpcEnvelope envelope) {
+        OpenDocuments documents = openDocuments;
+        if (documents == null) {
+            forward(message, envelope);
+            return;
+        }
+        synchronized (held) {
+            documents.apply(method, message);
+            forward(message, envelope);
+        }
+    }
+
+    private void hold(String message) {
+        if (heldChars + message.length() > MAX_HELD_CHARS) {
+            logger.warn("No LSP process for user {} and {} chars already held, dropping message", userId,
+                    heldChars);
+            return;
+        }
+        held.add(message);
+        heldChars += message.length();
+    }
+
+    private synchronized boolean acquireDocument(String uri) {
+        return documentOpenCounts.merge(uri, 1, Integer::sum) == 1;
+    }
+
+    /**
+     * Returns true when the last session holding the document let go of it.
+     */
+    private synchronized boolean releaseDocument(String uri) {
+        Integer count = documentOpenCounts.get(uri);
+        if (count == null) {
+            return false;
+        }
+        if (count <= 1) {
+            documentOpenCounts.remove(uri);
+            return true;
+        }
+        documentOpenCounts.put(uri, count - 1);
+        return false;
+    }
+
+    /**
+     * Records the version a didOpen or didChange brings a document to and
+     * drops the cached responses it made stale.
+     */
+    private void documentChanged(String message) {
+        LspResponseCache cache = responseCache;
+        if (cache == null) {
+            return;
+        }
+        LspResponseCache.DocumentRef document = LspResponseCache.readDocument(message);
+        if (document == null) {
+            return;
+        }
+        if (document.version != null) {
+            documentVersions.put(document.uri, document.version);
+        } else {
+            documentVersions.remove(document.uri);
+        }
+        cache.documentChanged(cacheOwner, document.uri);
+    }
+
+    private void documentClosed(String uri) {
+        OpenDocuments documents = openDocuments;
+        if (documents != null) {
+            documents.close(uri);
+        }
+        LspResponseCache cache = responseCache;
+        documentVersions.remove(uri);
+        if (cache != null) {
+            cache.documentChanged(cacheOwner, uri);
+        }
+    }
+
+    private Session findSession(String sessionId) {
+        for (Session session : sessions) {
+            if (session.id.equals(sessionId)) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] showMessage(int type, String message) {
+        return ("{\"jsonrpc\":\"2.0\",\"method\":\"window/showMessage\",\"params\":{\"type\":" + type
+                + ",\"message\":" + quote(message) + "}}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String quote(String value) {
+        return new JsonPrimitive(value).toString();
+    }
+
+    private static byte[] toArray(ByteBuffer frame) {
+        if (frame.hasArray() && frame.arrayOffset() == 0 && frame.position() == 0
+                && frame.remaining() == frame.array().length) {
+            return frame.array();
+        }
+        byte[] copy = new byte[frame.remaining()];
+        frame.duplicate().get(copy);
+        return copy;
+    }
+}
@@ -1,187 +1,414 @@
 package com.example.javalsp.lsp.Process;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
 public class LanguageServerProcess {
     private final Process process;
-    private final BufferedWriter writer;
     private final BufferedReader errorReader;
     private final Thread readerThread;
     private final Thread errorReaderThread;
-    private final String userId;
+    private volatile String userId;
+    private volatile Consumer<String> messageHandler;
+    // When set, frames are handed over as raw UTF-8 bytes and never decoded to a String
+    private volatile Consumer<ByteBuffer> rawMessageHandler;
     private volatile boolean isReady = false;
     private volatile boolean isShuttingDown = false;
-    private final List<String> pendingMessages = new CopyOnWriteArrayList<>();
+    private final ReadinessStrategy readiness;
+    private final Timer firstResponseTimer;
+    private volatile boolean awaitingFirstResponse = true;
+    private volatile long startedAt = System.nanoTime();
+    private final long spawnedAt = System.nanoTime();
+    private final String jvmProfile;
+    private final String language;
+    private final MeterRegistry meterRegistry;
+    // How the -data directory was prepared, for the first completion timer
+    private volatile String workspaceOrigin = "empty";
+    private volatile boolean awaitingFirstCompletion = true;
+    private volatile String firstCompletionId;
+    // Client messages not yet written; paused until the server is ready
+    private final InboundMessageQueue inbound;
+    private final LspTrafficMetrics traffic;
+    // Orders client messages on their way to stdin and is the only one writing it
+    private final LspWriteScheduler writes;
+    // Written requests by id, to time their responses
+    private final Map<String, SentRequest> sentRequests = new ConcurrentHashMap<>();
+    // Collapses diagnostics/progress bursts on their way to the client; null when disabled
+    private final NotificationCoalescer coalescer;
+    // Runs the coalescer's timed flushes, which may block on a slow editor; null when disabled
+    private final ExecutorService coalescerFlushes;
+    // Recent stderr lines and their forwarding to the log
+    private final LspStderrLog stderr;
+    // Told the exit code when the process dies other than through destroy()
+    private volatile IntConsumer crashHandler;
+    // Completed by the answer to the shutdown request of shutdownGracefully
+    private final CompletableFuture<Void> shutdownAnswered = new CompletableFuture<>();
     private static final Logger logger = LoggerFactory.getLogger(LanguageServerProcess.class);
+    private static final long MEMORY_SAMPLE_DELAY_SECONDS = 60;
+    private static final String SHUTDOWN_ID = "\"lsp-proxy-shutdown\"";
+
+    private static final class SentRequest {
+        private final String method;
+        private final long sentAt;
+
+        private SentRequest(String method, long sentAt) {
+            this.method = method;
+            this.sentAt = sentAt;
+        }
+    }
+
+    /**
+     * A process using the transport engine selected in {@code options}.
+     */
+    public static LanguageServerProcess create(Process process, String lang, Consumer<String> messageHandler,
+            String userId, LanguageServerProcessOptions options) {
+        if (options.getTransport() == LanguageServerProcessOptions.Transport.TYPED) {
+            return new LanguageServerProcessTyped(process, lang, messageHandler, userId, options);
+        }
+        return new LanguageServerProcess(process, lang, messageHandler, userId, options);
+    }
 
     public LanguageServerProcess(Process process, String lang, Consumer<String> messageHandler, String userId) {
+        this(process, lang, messageHandler, userId, LanguageServerProcessOptions.defaults());
+    }
+
+    public LanguageServerProcess(Process process, String lang, Consumer<String> messageHandler, String userId,
+            LanguageServerProcessOptions options) {
+        LspThreads threads = options.getThreads();
+        this.readiness = options.getReadiness().get();
+        this.firstResponseTimer = Timer.builder("lsp.startup.first.response")
+                .description("Time from session start until the language server answers its first request")
+                .tag("language", lang)
+                .register(options.getMeterRegistry());
+        this.language = lang;
+        this.meterRegistry = options.getMeterRegistry();
+        this.traffic = options.getTrafficMetrics();
+        this.jvmProfile = options.getJvmProfile();
         this.process = process;
         this.userId = userId;
+        this.messageHandler = messageHandler;
+        // No thread while nothing is being flushed
+        this.coalescerFlushes = options.getCoalesceWindowMillis() > 0
+                ? new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                        threads.threadFactory("LSP-Coalescer-"))
+                : null;
+        this.coalescer = coalescerFlushes != null
+                ? new NotificationCoalescer(options.getCoalesceWindowMillis(), LspThreads.scheduler(),
+                        coalescerFlushes, lang, options.getMeterRegistry())
+                : null;
+        this.inbound = new InboundMessageQueue(this::sendMessageInternal, this::deliverLocally,
+                options.getStartupQueueMaxBytes(), lang, options.getMeterRegistry());
+        this.writes = new LspWriteScheduler(options.isWritePriorities(), process.getOutputStream(),
+                new LspWriteScheduler.Listener() {
+                    @Override
+                    public void writing(JsonRpcEnvelope envelope, int contentLength) {
+                        traffic.message(language, LspTrafficMetrics.CLIENT, contentLength);
+                    }
+
+                    @Override
+                    public void failed(IOException e) {
+                        onWriteFailed(e);
+                    }
+
+                    @Override
+                    public void withdrawn(JsonRpcEnvelope request, int code, String message) {
+                        onWithdrawn(request, code, message);
+                    }
+                }, threads.writers(), lang, options.getMeterRegistry());
+        this.stderr = new LspStderrLog(options.getStderrBufferLines(), options.getStderrLinesPerSecond(), lang,
+                options.getMeterRegistry());
         // Correctly specify UTF-8 encoding for all readers and writers
-        this.writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
         this.errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8));
 
-        startProcessMonitor();
+        startProcessMonitor(threads);
 
-        this.errorReaderThread = new Thread(() -> {
+        this.errorReaderThread = threads.start("LSP-Error-Reader-" + userId, () -> {
             try {
                 String line;
-                boolean serverStarted = false;
-                StringBuilder errorBuffer = new StringBuilder();
-                if (lang.equals("php")) {
-                    Thread.sleep(2000);
-                    markAsReady();
-                }
                 while ((line = errorReader.readLine()) != null) {
-                    logger.error("LSP Error [{}]: {}", userId, line);
-                    errorBuffer.append(line).append("\n");
-
-                    if (line.contains("Exception") || line.contains("Error") ||
-                            line.contains("Failed") || line.contains("Cannot")) {
-                        logger.error("CRITICAL LSP Error [{}]: {}", userId, line);
-                    }
-
-                    if (!serverStarted && (line.contains("Main thread is waiting") ||
-                            line.contains("OpenJDK 64-Bit Server VM warning") ||
-                            line.contains("Started language server"))) {
-                        serverStarted = true;
-                        logger.info("LSP Server startup detected for user: {}", userId);
-                        Thread.sleep(2000); // Allow server time to initialize fully
+                    stderr.accept(this.userId, line);
 
+                    if (!isReady && readiness.onStderrLine(line)) {
+                        logger.info("LSP Server startup detected for user: {}", this.userId);
                         markAsReady();
                     }
                 }
 
-                if (errorBuffer.length() > 0) {
-                    logger.error("Final LSP stderr dump for user {}: \n{}", userId, errorBuffer.toString());
+                List<String> recent = stderr.recentLines();
+                if (!isShuttingDown && !recent.isEmpty()) {
+                    logger.error("Last {} of {} LSP stderr lines for user {}: \n{}", recent.size(),
+                            stderr.getTotalLines(), this.userId, String.join("\n", recent));
                 }
             } catch (IOException e) {
                 if (!isShuttingDown) {
-                    logger.error("Error reading stderr for user {}: {}", userId, e.getMessage());
+                    logger.error("Error reading stderr for user {}: {}", this.userId, e.getMessage());
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
             }
-        }, "LSP-Error-Reader-" + userId);
-        errorReaderThread.setDaemon(true);
-        errorReaderThread.start();
-
-        // **FIXED**: The reader thread now correctly processes the LSP byte stream.
-        // It reads headers and then reads the exact number of bytes specified by
-        // Content-Length.
-        this.readerThread = new Thread(() -> {
-            final InputStream inputStream = process.getInputStream();
-            try {
-                while (!Thread.currentThread().isInterrupted()) {
-                    ByteArrayOutputStream headerStream = new ByteArrayOutputStream();
-                    int b;
-                    byte[] sequence = new byte[4];
-                    int seqPtr = 0;
-
-                    while ((b = inputStream.read()) != -1) {
-                        headerStream.write(b);
-                        sequence[seqPtr % 4] = (byte) b;
-                        seqPtr++;
-                        if (seqPtr >= 4 &&
-                                sequence[(seqPtr - 4) % 4] == '\r' &&
-                                sequence[(seqPtr - 3) % 4] == '\n' &&
-                                sequence[(seqPtr - 2) % 4] == '\r' &&
-                                sequence[(seqPtr - 1) % 4] == '\n') {
-                            break;
-                        }
-                    }
-
-                    if (b == -1) {
-                        break;
-                    }
-
-                    String headers = new String(headerStream.toByteArray(), StandardCharsets.UTF_8);
-
-                    int contentLength = -1;
-                    for (String line : headers.split("\r\n")) {
-                        if (line.startsWith("Content-Length: ")) {
-                            try {
-                                contentLength = Integer.parseInt(line.substring("Content-Length: ".length()).trim());
-                            } catch (NumberFormatException e) {
-                                logger.error("Failed to parse Content-Length for user {}: {}", userId, line);
-                                contentLength = -1;
-                            }
-                            break;
-                        }
-                    }
-
-                    if (contentLength == -1) {
-                        logger.warn("LSP message received without a valid Content-Length header for user {}", userId);
-                        continue;
-                    }
-
-                    byte[] contentBytes = new byte[contentLength];
-                    int totalBytesRead = 0;
-                    while (totalBytesRead < contentLength) {
-                        int bytesRead = inputStream.read(contentBytes, totalBytesRead, contentLength - totalBytesRead);
-                        if (bytesRead == -1) {
-                            throw new IOException("Stream ended prematurely while reading content for user " + userId);
-                        }
-                        totalBytesRead += bytesRead;
-                    }
-
-                    String content = new String(contentBytes, StandardCharsets.UTF_8);
+        });
 
-                    logger.debug("LSP -> Monaco [{}]: {}", userId, content);
-                    messageHandler.accept(content);
-                }
+        // The reader thread decodes the Content-Length framed byte stream through a
+        // reusable buffer and hands each message body to the handler.
+        this.readerThread = threads.start("LSP-Output-Reader-" + userId, () -> {
+            try {
+                readServerOutput(process.getInputStream());
             } catch (IOException e) {
                 if (!isShuttingDown) {
-                    logger.error("Error reading from LSP process for user {}: {}", userId, e.getMessage());
+                    logger.error("Error reading from LSP process for user {}: {}", this.userId, e.getMessage());
                 }
             } catch (Exception e) {
                 if (!isShuttingDown) {
-                    logger.error("Unexpected error in LSP reader thread for user {}: {}", userId, e.getMessage(), e);
+                    logger.error("Unexpected error in LSP reader thread for user {}: {}", this.userId, e.getMessage(), e);
                 }
             }
-        }, "LSP-Output-Reader-" + userId);
+        });
+    }
+
+    /**
+     * Reads the server's stdout until it ends and relays every message. Runs
+     * on the reader thread, which is started by the constructor: overrides
+     * must not rely on fields of their own class.
+     */
+    protected void readServerOutput(InputStream stdout) throws IOException {
+        final LspFrameDecoder decoder = new LspFrameDecoder(stdout);
+        while (!Thread.currentThread().isInterrupted() && decoder.next()) {
+            Consumer<ByteBuffer> rawHandler = this.rawMessageHandler;
+            if (rawHandler != null) {
+                int offset = decoder.contentOffset();
+                byte[] frame = Arrays.copyOfRange(decoder.buffer(), offset, offset + decoder.contentLength());
+
+                logger.debug("LSP -> Monaco [{}]: {} bytes", this.userId, frame.length);
+                JsonRpcEnvelope envelope = JsonRpcEnvelope.scan(frame);
+                relay(envelope, frame.length, () -> new String(frame, StandardCharsets.UTF_8),
+                        () -> rawHandler.accept(ByteBuffer.wrap(frame)));
+                continue;
+            }
+
+            String content = decoder.contentAsString();
 
-        readerThread.setDaemon(true);
-        readerThread.start();
+            logger.debug("LSP -> Monaco [{}]: {}", this.userId, content);
+            JsonRpcEnvelope envelope = JsonRpcEnvelope.scan(content);
+            relay(envelope, decoder.contentLength(), () -> content, () -> this.messageHandler.accept(content));
+        }
     }
 
-    private void startProcessMonitor() {
-        Thread monitor = new Thread(() -> {
-            try {
-                int exitCode = process.waitFor();
-                isReady = false;
-
-                String exitMessage = switch (exitCode) {
-                    case 1 -> "GENERAL ERROR";
-                    case 2 -> "MISUSE OF SHELL COMMAND";
-                    case 13 ->
-                        "PERMISSION DENIED or INITIALIZATION FAILURE - Check workspace permissions and initialization";
-                    case 126 -> "COMMAND CANNOT EXECUTE";
-                    case 127 -> "COMMAND NOT FOUND";
-                    default -> "UNKNOWN ERROR";
-                };
-
-                logger.error("LSP process for user {} terminated with exit code {}: {}",
-                        userId, exitCode, exitMessage);
+    /**
+     * Accounts for one server message and delivers it, through the coalescer
+     * when enabled; {@code content} is only asked for when something needs
+     * to look inside the message.
+     */
+    protected final void relay(JsonRpcEnvelope envelope, int size, Supplier<String> content, Runnable delivery) {
+        onServerMessage(envelope, size);
+        if (coalescer != null) {
+            coalescer.accept(envelope, size, content, delivery);
+        } else {
+            delivery.run();
+        }
+        afterServerMessage(envelope);
+    }
 
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+    /**
+     * Like {@link #relay(JsonRpcEnvelope, int, Supplier, Runnable)} for a
+     * message whose coalescing subject (diagnostics URI or progress token)
+     * and progress kind are already known, so the coalescer does not read
+     * the content again.
+     */
+    protected final void relay(JsonRpcEnvelope envelope, int size, Runnable delivery, String subject,
+            String progressKind) {
+        onServerMessage(envelope, size);
+        if (coalescer != null) {
+            coalescer.accept(envelope.isNotification() ? envelope.getMethod() : null, subject, progressKind,
+                    size, delivery);
+        } else {
+            delivery.run();
+        }
+        afterServerMessage(envelope);
+    }
+
+    private void afterServerMessage(JsonRpcEnvelope envelope) {
+        if (awaitingFirstResponse || !isReady) {
+            observeStartup(envelope);
+        }
+        if (firstCompletionId != null) {
+            observeFirstCompletion(envelope);
+        }
+    }
+
+    /**
+     * The handler for raw frames, or null when messages are delivered as
+     * strings to {@link #deliverText(String)}.
+     */
+    protected final Consumer<ByteBuffer> rawHandler() {
+        return rawMessageHandler;
+    }
+
+    protected final void deliverText(String content) {
+        messageHandler.accept(content);
+    }
+
+    protected final String userId() {
+        return userId;
+    }
+
+    protected final String language() {
+        return language;
+    }
+
+    protected final MeterRegistry meterRegistry() {
+        return meterRegistry;
+    }
+
+    /**
+     * Method of a request written to the server and not answered yet, by its
+     * id as written ({@code 7} or {@code "abc"}, quotes included); null when
+     * unknown.
+     */
+    protected final String requestMethod(String id) {
+        SentRequest request = id != null ? sentRequests.get(id) : null;
+        return request != null ? request.method : null;
+    }
+
+    /**
+     * Classifies a client message on its way to the server.
+     */
+    protected JsonRpcEnvelope inspectClientMessage(String jsonMessage) {
+        return JsonRpcEnvelope.scan(jsonMessage);
+    }
+
+    /**
+     * Watches for process exit through {@link Process#onExit()}, which completes
+     * on the JDK's shared process reaper, so no thread is parked per process.
+     * The exit is handled on a named thread started only then, keeping the
+     * crash handler off the reaper.
+     */
+    private void startProcessMonitor(LspThreads threads) {
+        CompletableFuture<Process> exit = process.onExit();
+        if (exit == null) {
+            return;
+        }
+        exit.thenAcceptAsync(p -> {
+            int exitCode = p.exitValue();
+            isReady = false;
+
+            String exitMessage = switch (exitCode) {
+                case 1 -> "GENERAL ERROR";
+                case 2 -> "MISUSE OF SHELL COMMAND";
+                case 13 ->
+                    "PERMISSION DENIED or INITIALIZATION FAILURE - Check workspace permissions and initialization";
+                case 126 -> "COMMAND CANNOT EXECUTE";
+                case 127 -> "COMMAND NOT FOUND";
+                default -> "UNKNOWN ERROR";
+            };
+
+            logger.error("LSP process for user {} terminated with exit code {}: {}",
+                    userId, exitCode, exitMessage);
+            IntConsumer handler = crashHandler;
+            if (handler != null && !isShuttingDown && exitCode != 0) {
+                handler.accept(exitCode);
+            }
+        }, task -> threads.start("LSP-Exit-Monitor-" + userId, task));
+    }
+
+    /**
+     * Bookkeeping for every message read from the server, before it is
+     * delivered.
+     */
+    private void onServerMessage(JsonRpcEnvelope envelope, int size) {
+        traffic.message(language, LspTrafficMetrics.SERVER, size);
+        if (!envelope.isResponse()) {
+            return;
+        }
+        if (SHUTDOWN_ID.equals(envelope.getId())) {
+            shutdownAnswered.complete(null);
+            return;
+        }
+        inbound.onResponse(envelope.getId());
+        SentRequest request = envelope.getId() != null ? sentRequests.remove(envelope.getId()) : null;
+        if (request != null) {
+            traffic.requestCompleted(language, request.method, System.nanoTime() - request.sentAt,
+                    envelope.hasError());
+        }
+    }
+
+    /**
+     * Feeds server responses to the readiness strategy until the server is
+     * ready, and records how long the first response took.
+     */
+    private void observeStartup(JsonRpcEnvelope envelope) {
+        if (!envelope.isResponse()) {
+            return;
+        }
+        if (awaitingFirstResponse) {
+            awaitingFirstResponse = false;
+            long elapsed = System.nanoTime() - startedAt;
+            firstResponseTimer.record(elapsed, TimeUnit.NANOSECONDS);
+            logger.info("First LSP response for user {} after {} ms", userId, TimeUnit.NANOSECONDS.toMillis(elapsed));
+            if (!"pool".equals(workspaceOrigin)) {
+                // Pooled servers answer long after they were spawned
+                Timer.builder("lsp.process.spawn")
+                        .description("Time from starting a language server process until its first response")
+                        .tag("language", language)
+                        .tag("jvm", jvmProfile)
+                        .register(meterRegistry)
+                        .record(System.nanoTime() - spawnedAt, TimeUnit.NANOSECONDS);
             }
-        }, "LSP-Process-Monitor-" + userId);
-        monitor.setDaemon(true);
-        monitor.start();
+        }
+        if (!isReady && readiness.onServerMessage(envelope)) {
+            markAsReady();
+        }
+    }
+
+    /**
+     * Records the time from session start until the first completion list,
+     * the point where the editor becomes useful, tagged with how the
+     * workspace was prepared.
+     */
+    private void observeFirstCompletion(JsonRpcEnvelope envelope) {
+        String id = firstCompletionId;
+        if (id == null || !envelope.isResponse() || !id.equals(envelope.getId())) {
+            return;
+        }
+        firstCompletionId = null;
+        awaitingFirstCompletion = false;
+        long elapsed = System.nanoTime() - startedAt;
+        Timer.builder("lsp.startup.first.completion")
+                .description("Time from session start until the first completion response")
+                .tag("language", language)
+                .tag("workspace", workspaceOrigin)
+                .register(meterRegistry)
+                .record(elapsed, TimeUnit.NANOSECONDS);
+        logger.info("First completion for user {} after {} ms ({} workspace)", userId,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), workspaceOrigin);
+    }
+
+    private void noteFirstCompletion(JsonRpcEnvelope envelope) {
+        if (envelope.isRequest() && "textDocument/completion".equals(envelope.getMethod())) {
+            firstCompletionId = envelope.getId();
+        }
     }
 
     private synchronized void markAsReady() {
@@ -191,45 +418,115 @@ public class LanguageServerProcess {
 
         if (!process.isAlive()) {
             logger.error("Cannot mark LSP as ready for user {} - process is not alive", userId);
-            pendingMessages.clear();
+            inbound.clear();
             return;
         }
 
-        try {
-            Thread.sleep(1000);
-
-            if (!process.isAlive()) {
-                logger.error("LSP process died during ready initialization for user {}", userId);
-                pendingMessages.clear();
-                return;
-            }
+        logger.info("LSP Server READY for user: {}", userId);
 
-            isReady = true;
-            logger.info("LSP Server READY for user: {}", userId);
-
-            List<String> messagesToSend = List.copyOf(pendingMessages);
-            pendingMessages.clear();
+        // Flush the backlog before opening the fast path so nothing overtakes it
+        inbound.resume();
+        isReady = true;
+        LspThreads.scheduler().schedule(this::sampleMemory, MEMORY_SAMPLE_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
 
-            for (String msg : messagesToSend) {
-                sendMessageInternal(msg);
-            }
+    /**
+     * Records the footprint of a server that has settled after startup, per
+     * JVM profile. PSS splits pages shared between processes (e.g. a class
+     * data archive) among them, RSS counts them in full.
+     */
+    private void sampleMemory() {
+        if (!process.isAlive()) {
+            return;
+        }
+        recordMemory("rss", getResidentMemoryKb());
+        recordMemory("pss", getProportionalMemoryKb());
+    }
 
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            logger.error("Interrupted while marking LSP ready for user {}", userId);
+    private void recordMemory(String kind, long kb) {
+        if (kb < 0) {
+            return;
         }
+        DistributionSummary.builder("lsp.process.memory")
+                .description("Memory of language server processes " + MEMORY_SAMPLE_DELAY_SECONDS
+                        + " s after they became ready")
+                .tag("language", language)
+                .tag("jvm", jvmProfile)
+                .tag("kind", kind)
+                .baseUnit("bytes")
+                .register(meterRegistry)
+                .record(kb * 1024.0);
     }
 
+    /**
+     * Writes a client message to the server, or queues it while the server
+     * starts.
+     */
     public void sendMessage(String jsonMessage) {
+        sendMessage(jsonMessage, inspectClientMessage(jsonMessage));
+    }
+
+    /**
+     * Like {@link #sendMessage(String)} for a message its sender has already
+     * classified. The envelope travels with it through the inbound queue and
+     * the write scheduler, so the message is not scanned or parsed again to
+     * route, withdraw or prioritize it.
+     */
+    public void sendMessage(String jsonMessage, JsonRpcEnvelope envelope) {
+        if (awaitingFirstCompletion && firstCompletionId == null) {
+            noteFirstCompletion(envelope);
+        }
         if (!isReady()) {
-            logger.info("LSP not ready yet for user {}, queueing message", userId);
-            pendingMessages.add(jsonMessage);
-            return;
+            synchronized (this) {
+                if (!isReady) {
+                    if (readiness.forwardBeforeReady(envelope)) {
+                        logger.info("Forwarding startup message for user {} before the LSP is ready", userId);
+                        sendMessageInternal(jsonMessage, envelope, LspWriteScheduler.MessageInfo.NONE);
+                        return;
+                    }
+                    logger.info("LSP not ready yet for user {}, queueing message", userId);
+                    inbound.offer(jsonMessage, envelope);
+                    return;
+                }
+            }
         }
-        sendMessageInternal(jsonMessage);
+        inbound.offer(jsonMessage, envelope);
+    }
+
+    /**
+     * Tells which editor session sent a request, by the id it was written
+     * with, when several sessions share this server.
+     */
+    public void setRequestOwner(Function<String, String> requestOwner) {
+        inbound.setRequestOwner(requestOwner);
     }
 
+    /**
+     * Hands a response produced by the proxy itself (e.g. for a request
+     * withdrawn before it reached the server) to the client like server
+     * output.
+     */
+    private void deliverLocally(String message) {
+        String id = firstCompletionId;
+        if (id != null && id.equals(JsonRpcEnvelope.scan(message).getId())) {
+            firstCompletionId = null;
+        }
+        Consumer<ByteBuffer> rawHandler = this.rawMessageHandler;
+        Runnable delivery = rawHandler != null
+                ? () -> rawHandler.accept(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)))
+                : () -> this.messageHandler.accept(message);
+        if (coalescer != null) {
+            coalescer.accept(JsonRpcEnvelope.scan(message), message.length(), () -> message, delivery);
+        } else {
+            delivery.run();
+        }
+    }
     private void sendMessageInternal(String jsonMessage) {
+        sendMessageInternal(jsonMessage, inspectClientMessage(jsonMessage), LspWriteScheduler.MessageInfo.NONE);
+    }
+
+    private void sendMessageInternal(String jsonMessage, JsonRpcEnvelope envelope,
+            LspWriteScheduler.MessageInfo info) {
         if (!process.isAlive()) {
             logger.error("Cannot send message to LSP for user {} - process is not alive", userId);
             isReady = false;
@@ -241,38 +538,151 @@ public class LanguageServerProcess {
             return;
         }
 
-        try {
-            logger.info("LSP Request [{}]: {}", userId,
+        if (logger.isDebugEnabled()) {
+            logger.debug("LSP Request [{}]: {}", userId,
                     jsonMessage.length() > 200 ? jsonMessage.substring(0, 200) + "..." : jsonMessage);
+        }
+        if (envelope.isRequest() && sentRequests.putIfAbsent(envelope.getId(),
+                new SentRequest(envelope.getMethod(), System.nanoTime())) == null) {
+            traffic.requestStarted(language);
+        }
+        writes.submit(jsonMessage, envelope, info);
+    }
+
+    /**
+     * Answers a request that was cancelled or outdated while it waited for
+     * stdin, as the server would have.
+     */
+    private void onWithdrawn(JsonRpcEnvelope request, int code, String message) {
+        if (sentRequests.remove(request.getId()) != null) {
+            traffic.requestsAbandoned(language, 1);
+        }
+        inbound.onResponse(request.getId());
+        deliverLocally(InboundMessageQueue.errorResponse(request.getId(), code, message));
+    }
 
-            byte[] contentBytes = jsonMessage.getBytes(StandardCharsets.UTF_8);
-            int contentLength = contentBytes.length;
+    private void onWriteFailed(IOException e) {
+        logger.error("Error sending message to LSP for user {}: {}", userId, e.getMessage(), e);
+        isReady = false;
 
-            String headers = "Content-Length: " + contentLength + "\r\n" +
-                    "Content-Type: application/vscode-jsonrpc; charset=utf-8\r\n" +
-                    "\r\n";
+        if (!process.isAlive()) {
+            logger.error("LSP process died for user {}", userId);
+        }
+    }
 
-            synchronized (writer) {
-                writer.write(headers);
-                writer.write(jsonMessage);
-                writer.flush();
-            }
+    /**
+     * Hands a pre-started (warm) process over to a user session. Output produced
+     * from now on is delivered to the given handler and logged under the new user.
+     */
+    public void bind(String userId, Consumer<String> messageHandler, Consumer<ByteBuffer> rawMessageHandler) {
+        this.userId = userId;
+        this.messageHandler = messageHandler;
+        this.rawMessageHandler = rawMessageHandler;
+        // Startup latency is what the user sees, measured from the hand-over
+        this.startedAt = System.nanoTime();
+        readerThread.setName("LSP-Output-Reader-" + userId);
+        errorReaderThread.setName("LSP-Error-Reader-" + userId);
+        logger.info("LSP process {} bound to user: {}", process.pid(), userId);
+    }
 
-            logger.info("Sent message to LSP [{}], length: {}", userId, contentLength);
-        } catch (IOException e) {
-            logger.error("Error sending message to LSP for user {}: {}", userId, e.getMessage(), e);
-            isReady = false;
+    /**
+     * Describes how the workspace was prepared (e.g. {@code pool},
+     * {@code snapshot}, {@code template}, {@code empty}); used as a metric tag.
+     */
+    public void setWorkspaceOrigin(String workspaceOrigin) {
+        this.workspaceOrigin = workspaceOrigin;
+    }
 
-            if (!process.isAlive()) {
-                logger.error("LSP process died for user {}", userId);
-            }
-        }
+    /**
+     * Switches the process to byte passthrough: each frame body is delivered as a
+     * heap buffer owned by the handler instead of a decoded String. Pass null to
+     * return to String delivery.
+     */
+    public void setRawMessageHandler(Consumer<ByteBuffer> rawMessageHandler) {
+        this.rawMessageHandler = rawMessageHandler;
+    }
+
+    /**
+     * Runs {@code handler} with the exit code when the process exits with an
+     * error without having been stopped, e.g. after running out of memory.
+     */
+    public void setCrashHandler(IntConsumer handler) {
+        this.crashHandler = handler;
+    }
+
+    /**
+     * The server's most recent stderr lines, oldest first.
+     */
+    public List<String> getRecentStderr() {
+        return stderr.recentLines();
+    }
+
+    public boolean isAlive() {
+        return process.isAlive();
     }
 
     public boolean isReady() {
         return isReady && process.isAlive();
     }
 
+    /**
+     * Resident memory of the server process in KB, or -1 where {@code /proc} is
+     * not available.
+     */
+    public long getResidentMemoryKb() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/" + process.pid() + "/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Cannot read memory of LSP process for user {}: {}", userId, e.getMessage());
+        }
+        return -1;
+    }
+
+    /**
+     * Proportional set size of the server process in KB, or -1 where
+     * {@code /proc/<pid>/smaps_rollup} is not available.
+     */
+    public long getProportionalMemoryKb() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/" + process.pid() + "/smaps_rollup"))) {
+                if (line.startsWith("Pss:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Cannot read memory of LSP process for user {}: {}", userId, e.getMessage());
+        }
+        return -1;
+    }
+
+    /**
+     * Asks the server to shut down and, once it answered, to exit so it can
+     * flush its workspace state (e.g. the JDT index); waits up to
+     * {@code timeoutMillis} for both and then destroys it.
+     */
+    public void shutdownGracefully(long timeoutMillis) {
+        if (isReady()) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            sendMessageInternal("{\"jsonrpc\":\"2.0\",\"id\":" + SHUTDOWN_ID + ",\"method\":\"shutdown\"}");
+            try {
+                // A server told to exit before it answered shutdown exits without saving (exit code 1)
+                CompletableFuture.anyOf(shutdownAnswered, process.onExit()).get(timeoutMillis,
+                        TimeUnit.MILLISECONDS);
+                sendMessageInternal("{\"jsonrpc\":\"2.0\",\"method\":\"exit\"}");
+                process.onExit().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                logger.warn("LSP for user {} did not shut down within {} ms, killing it", userId, timeoutMillis);
+            }
+        }
+        destroy();
+    }
+
     public void destroy() {
         isShuttingDown = true;
         isReady = false;
@@ -280,13 +690,21 @@ public class LanguageServerProcess {
         try {
             logger.info("Destroying LSP process for user: {}", userId);
 
-            pendingMessages.clear();
+            inbound.clear();
+            writes.close();
+            int unanswered = sentRequests.size();
+            sentRequests.clear();
+            traffic.requestsAbandoned(language, unanswered);
+            if (coalescer != null) {
+                coalescer.close();
+                coalescerFlushes.shutdown();
+            }
 
             readerThread.interrupt();
             errorReaderThread.interrupt();
 
             try {
-                writer.close();
+                process.getOutputStream().close();
             } catch (Exception e) {
                 logger.debug("Error closing writer for user {}: {}", userId, e.getMessage());
             }
@@ -2,36 +2,1016 @@ package com.example.javalsp.lsp.Process;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import com.google.gson.JsonObject;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
 @Component
 public class LanguageServerProcessManager {
 
+    private static final long GRACEFUL_SHUTDOWN_MILLIS = 5000;
+    private static final long CLOSE_WAIT_MILLIS = 30_000;
+
     private final Map<String, LanguageServerProcess> processes = new ConcurrentHashMap<>();
+    private final Map<String, LanguageServerMultiplexer> multiplexers = new ConcurrentHashMap<>();
+    private final Map<String, LanguageServerProcessPool> pools = new ConcurrentHashMap<>();
+    // -data directories of pooled processes that were handed to a user
+    private final Map<String, String> pooledWorkspaces = new ConcurrentHashMap<>();
+    private final AtomicInteger pooledWorkspaceSequence = new AtomicInteger();
+    // Java servers that host several users as workspace folders; guarded by itself
+    private final List<SharedLanguageServerMultiplexer> sharedJavaServers = new ArrayList<>();
+    private final AtomicInteger sharedServerSequence = new AtomicInteger();
+    // userId -> stopping the user's previous server and deleting its workspace, which the next start waits for
+    private final Map<String, CompletableFuture<Void>> closingUsers = new ConcurrentHashMap<>();
+    // userId -> starting the user's server outside the map lock, which closing its workspace waits for
+    private final Map<String, CompletableFuture<Void>> startingUsers = new ConcurrentHashMap<>();
+    // userId -> sessions waiting for capacity, by session id
+    private final Map<String, Map<String, WaitingSession>> waitingSessions = new ConcurrentHashMap<>();
+    private final MeterRegistry meterRegistry;
+    private final LspTrafficMetrics trafficMetrics;
+
     @Value("${lsp.jdt.path}")
     private String jdtLsPath;
 
     @Value("${lsp.jdt.launcher.path}")
     private String jdtLauncherPath;
 
-    public LanguageServerProcess getOrCreateProcess(String userId, String lang, Consumer<String> messageHandler) {
-        return processes.computeIfAbsent(userId, id -> {
+    @Value("${lsp.workspace.base-path:/opt/lsp-workspace}")
+    private String workspaceBasePath;
+
+    @Value("${lsp.pool.java.size:0}")
+    private int javaPoolSize;
+
+    @Value("${lsp.pool.php.size:0}")
+    private int phpPoolSize;
+
+    @Value("${lsp.shared.java.enabled:false}")
+    private boolean sharedJavaEnabled;
+
+    @Value("${lsp.shared.java.max-processes:2}")
+    private int sharedJavaMaxProcesses;
+
+    @Value("${lsp.shared.java.users-per-process:20}")
+    private int sharedJavaUsersPerProcess;
+
+    @Value("${lsp.shared.java.max-heap:4G}")
+    private String sharedJavaMaxHeap;
+
+    @Value("${lsp.retention.idle-ttl-seconds:0}")
+    private long retentionIdleTtlSeconds;
+
+    @Value("${lsp.retention.memory-budget-mb:0}")
+    private long retentionMemoryBudgetMb;
+
+    @Value("${lsp.workspace.snapshot.enabled:false}")
+    private boolean snapshotsEnabled;
+
+    @Value("${lsp.workspace.snapshot.path:/opt/lsp-workspace-snapshots}")
+    private String snapshotPath;
+
+    @Value("${lsp.workspace.snapshot.quota-mb:10240}")
+    private long snapshotQuotaMb;
+
+    @Value("${lsp.workspace.template.enabled:false}")
+    private boolean templateEnabled;
+
+    @Value("${lsp.workspace.template.path:/opt/lsp-workspace-template}")
+    private String templatePath;
+
+    @Value("${lsp.threads.mode:platform}")
+    private String threadMode;
+
+    @Value("${lsp.readiness.java:initialize}")
+    private String javaReadiness;
+
+    @Value("${lsp.readiness.php:initialize}")
+    private String phpReadiness;
+
+    @Value("${lsp.coalesce.window-ms:0}")
+    private long coalesceWindowMillis;
+
+    @Value("${lsp.startup.queue.max-bytes:16777216}")
+    private long startupQueueMaxBytes;
+
+    // Replaces the real server command, e.g. with a stub for load tests
+    @Value("${lsp.server.command.java:}")
+    private String javaServerCommand;
+
+    @Value("${lsp.server.command.php:}")
+    private String phpServerCommand;
+
+    @Value("${lsp.jdt.jvm.profile:legacy}")
+    private String jdtJvmProfile;
+
+    // Overrides the profile's -Xmx of dedicated and pooled servers
+    @Value("${lsp.jdt.jvm.max-heap:}")
+    private String jdtJvmMaxHeap;
+
+    @Value("${lsp.jdt.jvm.options:}")
+    private String jdtJvmOptions;
+
+    @Value("${lsp.jdt.cds.enabled:false}")
+    private boolean cdsEnabled;
+
+    @Value("${lsp.jdt.cds.path:/opt/lsp-cds}")
+    private String cdsPath;
+
+    @Value("${lsp.admission.enabled:false}")
+    private boolean admissionEnabled;
+
+    @Value("${lsp.admission.memory-budget-mb:0}")
+    private long admissionMemoryBudgetMb;
+
+    @Value("${lsp.admission.java.max-processes:0}")
+    private int admissionJavaMaxProcesses;
+
+    @Value("${lsp.admission.php.max-processes:0}")
+    private int admissionPhpMaxProcesses;
+
+    @Value("${lsp.admission.java.process-memory-mb:1280}")
+    private long admissionJavaProcessMemoryMb;
+
+    @Value("${lsp.admission.php.process-memory-mb:256}")
+    private long admissionPhpProcessMemoryMb;
+
+    @Value("${lsp.admission.queue.max-length:50}")
+    private int admissionQueueMaxLength;
+
+    @Value("${lsp.admission.queue.timeout-seconds:120}")
+    private long admissionQueueTimeoutSeconds;
+
+    @Value("${lsp.cache.max-bytes:0}")
+    private long responseCacheMaxBytes;
+
+    @Value("${lsp.write.priorities.enabled:false}")
+    private boolean writePriorities;
+
+    @Value("${lsp.transport.engine:raw}")
+    private String transportEngine;
+
+    @Value("${lsp.stderr.buffer-lines:200}")
+    private int stderrBufferLines;
+
+    @Value("${lsp.stderr.lines-per-second:0}")
+    private int stderrLinesPerSecond;
+
+    @Value("${lsp.recovery.enabled:false}")
+    private boolean recoveryEnabled;
+
+    @Value("${lsp.recovery.max-restarts:3}")
+    private int recoveryMaxRestarts;
+
+    @Value("${lsp.recovery.window-seconds:600}")
+    private long recoveryWindowSeconds;
+
+    // User -> times of recent automatic restarts, to stop restarting a server that keeps crashing
+    private final Map<String, Deque<Long>> restarts = new ConcurrentHashMap<>();
+
+    private LspThreads threads = LspThreads.PLATFORM;
+    private LanguageServerRetention retention;
+    private LanguageServerAdmission admission;
+    private LspResponseCache responseCache;
+    private JdtLaunchProfile jdtProfile = JdtLaunchProfile.defaults();
+    private ClassDataArchive classDataArchive;
+    private WorkspaceSnapshotStore snapshots;
+    private WorkspaceTemplate template;
+
+    public LanguageServerProcessManager(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.trafficMetrics = new LspTrafficMetrics(meterRegistry);
+    }
+
+    @PostConstruct
+    public void startWarmPools() {
+        threads = LspThreads.of(threadMode);
+        System.out.println("LSP I/O threads mode: " + threads.getMode());
+        if (snapshotsEnabled) {
             try {
-                return startLanguageServerProcess(id, lang, messageHandler);
+                snapshots = new WorkspaceSnapshotStore(Paths.get(snapshotPath), snapshotQuotaMb * 1024 * 1024,
+                        meterRegistry);
             } catch (IOException e) {
-                throw new RuntimeException("Failed to start LSP for user: " + id, e);
+                System.err.println("Workspace snapshots disabled, cannot use " + snapshotPath + ": " + e.getMessage());
+            }
+        }
+        jdtProfile = JdtLaunchProfile.of(jdtJvmProfile, jdtJvmMaxHeap, jdtJvmOptions);
+        System.out.println("JDT-LS JVM profile " + jdtProfile.getName() + ": " + jdtProfile.jvmOptions());
+        if (cdsEnabled) {
+            // A new JDT-LS release has a new launcher jar name and gets its own archive
+            String launcher = jdtLauncherPath == null ? "" : Paths.get(jdtLauncherPath).getFileName().toString();
+            classDataArchive = new ClassDataArchive(Paths.get(cdsPath),
+                    launcher.replaceFirst("\\.jar$", "") + "-" + jdtProfile.getName());
+        }
+        if (templateEnabled) {
+            template = new WorkspaceTemplate(Paths.get(templatePath));
+        }
+        boolean buildArchive = classDataArchive != null && !classDataArchive.isReady();
+        boolean buildTemplate = template != null && !template.isReady();
+        if (buildArchive || buildTemplate) {
+            // Pooled servers should start with the archive and from the template, so they wait
+            threads.start("LSP-Java-Preparation", () -> {
+                if (buildArchive) {
+                    buildClassDataArchive();
+                }
+                if (buildTemplate) {
+                    buildWorkspaceTemplate();
+                }
+                startWarmPool("java", javaPoolSize);
+            });
+        } else {
+            startWarmPool("java", javaPoolSize);
+        }
+        startWarmPool("php", phpPoolSize);
+        if (retentionIdleTtlSeconds > 0) {
+            System.out.println("Keeping language servers for " + retentionIdleTtlSeconds
+                    + "s after the last session disconnects");
+            retention = new LanguageServerRetention(retentionIdleTtlSeconds * 1000,
+                    retentionMemoryBudgetMb * 1024, this::evictIdleUser, this::getResidentMemoryKb,
+                    this::getTotalResidentMemoryKb, meterRegistry);
+        }
+        if (admissionEnabled) {
+            startAdmission();
+        }
+        if (responseCacheMaxBytes > 0) {
+            System.out.println("Caching idempotent LSP responses in up to " + responseCacheMaxBytes / (1024 * 1024)
+                    + " MB");
+            responseCache = new LspResponseCache(responseCacheMaxBytes, meterRegistry);
+        }
+    }
+
+    private void startAdmission() {
+        Map<String, Integer> maxProcesses = new HashMap<>();
+        if (admissionJavaMaxProcesses > 0) {
+            maxProcesses.put("java", admissionJavaMaxProcesses);
+        }
+        if (admissionPhpMaxProcesses > 0) {
+            maxProcesses.put("php", admissionPhpMaxProcesses);
+        }
+        System.out.println("Admitting dedicated language servers within " + admissionMemoryBudgetMb
+                + " MB (0 = no memory limit), process limits " + maxProcesses);
+        admission = new LanguageServerAdmission(maxProcesses,
+                Map.of("java", admissionJavaProcessMemoryMb, "php", admissionPhpProcessMemoryMb),
+                admissionMemoryBudgetMb, admissionQueueMaxLength, admissionQueueTimeoutSeconds * 1000,
+                () -> retention != null && retention.evictOldest(), meterRegistry);
+    }
+
+    private void buildClassDataArchive() {
+        System.out.println("Recording JDT-LS class data archive " + classDataArchive.getPath());
+        try {
+            classDataArchive.build((dataPath, jvmOptions) -> startJavaServer(dataPath, jdtProfile.getMaxHeap(),
+                    jvmOptions), processOptions("java"));
+        } catch (Exception e) {
+            System.err.println("Failed to record the class data archive, JDT-LS starts without it: "
+                    + e.getMessage());
+        }
+    }
+
+    private void buildWorkspaceTemplate() {
+        System.out.println("Building Java workspace template in " + templatePath);
+        try {
+            template.build(() -> startJavaServer(templatePath), processOptions("java"));
+        } catch (Exception e) {
+            System.err.println("Failed to build the Java workspace template, new workspaces start empty: "
+                    + e.getMessage());
+        }
+    }
+
+    private void startWarmPool(String lang, int size) {
+        if (size <= 0) {
+            return;
+        }
+        System.out.println("Starting warm pool of " + size + " " + lang + " language servers");
+        LanguageServerProcessPool pool = new LanguageServerProcessPool(lang, size,
+                () -> startPooledProcess(lang), meterRegistry);
+        pools.put(lang, pool);
+        pool.refill();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (retention != null) {
+            retention.shutdown();
+        }
+        if (admission != null) {
+            admission.shutdown();
+        }
+        pools.values().forEach(LanguageServerProcessPool::shutdown);
+        processes.values().forEach(LanguageServerProcess::destroy);
+        synchronized (sharedJavaServers) {
+            sharedJavaServers.forEach(shared -> shared.getProcess().destroy());
+        }
+        if (snapshots != null) {
+            snapshots.shutdown();
+        }
+    }
+
+    /**
+     * A server started for a user, with the -data directory of the warm pool
+     * entry it came from, if any.
+     */
+    private record StartedProcess(LanguageServerProcess process, String pooledWorkspacePath) {
+    }
+
+    /**
+     * Starts a server for a user without registering it: restores or clones
+     * the workspace and spawns the process, which takes a while and must not
+     * happen under a map lock.
+     */
+    private StartedProcess createProcess(String userId, String lang, Consumer<String> messageHandler,
+            Consumer<ByteBuffer> rawMessageHandler) throws IOException {
+        // A saved index beats a warm server that still has to index the project
+        boolean restorable = lang.equals("java") && snapshots != null && snapshots.hasSnapshot(userId);
+        StartedProcess warm = restorable ? null : takeWarmProcess(userId, lang, messageHandler, rawMessageHandler);
+        if (warm != null) {
+            return warm;
+        }
+        LanguageServerProcess process = startLanguageServerProcess(userId, lang, messageHandler);
+        process.setRawMessageHandler(rawMessageHandler);
+        return new StartedProcess(process, null);
+    }
+
+    /**
+     * Stops a server that was started for nobody; its user's workspace is
+     * left to whoever owns it now.
+     */
+    private void abandon(String userId, StartedProcess started) {
+        started.process().destroy();
+        if (started.pooledWorkspacePath() != null) {
+            deleteWorkspace(userId, started.pooledWorkspacePath());
+        }
+    }
+
+    /**
+     * Attaches an editor session to the user's language server, starting one if
+     * needed. All sessions of a user share one process through a
+     * {@link LanguageServerMultiplexer}.
+     */
+    public LanguageServerMultiplexer attachSession(String userId, String sessionId, String lang,
+            Consumer<String> messageHandler, Consumer<ByteBuffer> rawMessageHandler) {
+        return attachSession(userId, sessionId, lang, messageHandler, rawMessageHandler, null);
+    }
+
+    /**
+     * Like {@link #attachSession(String, String, String, Consumer, Consumer)}
+     * under admission control: when the node has no capacity for another
+     * server the session waits, holding its messages, and is told so with a
+     * {@code window/showMessage}. When it cannot be served it gets an error
+     * message and {@code onRejected} is run, which should close it; null is
+     * returned when that happens right away.
+     */
+    public LanguageServerMultiplexer attachSession(String userId, String sessionId, String lang,
+            Consumer<String> messageHandler, Consumer<ByteBuffer> rawMessageHandler, Runnable onRejected) {
+        if (sharedJavaEnabled && lang.equals("java")) {
+            LanguageServerMultiplexer shared = attachSharedSession(userId, sessionId, messageHandler,
+                    rawMessageHandler);
+            if (shared != null) {
+                return shared;
+            }
+        }
+        Starting[] starting = { null };
+        LanguageServerAdmission.Decision[] decision = { LanguageServerAdmission.Decision.ADMITTED };
+        LanguageServerMultiplexer multiplexer = multiplexers.compute(userId, (id, existing) -> {
+            LanguageServerMultiplexer current = existing;
+            if (current != null && current.getSessionCount() == 0 && retention != null) {
+                if (current.getProcess() != null && current.getProcess().isAlive()) {
+                    retention.reclaim(id);
+                } else {
+                    // Died while retained; start over
+                    retention.forget(id);
+                    LanguageServerProcess dead = processes.remove(id);
+                    if (dead != null) {
+                        dead.destroy();
+                    }
+                    current = null;
+                }
+            }
+            if (current == null) {
+                current = new LanguageServerMultiplexer(id);
+                current.setRetainsServer(retention != null);
+                current.setCrashRecovery(recoveryEnabled);
+                current.setResponseCache(responseCache);
+                decision[0] = admission == null ? LanguageServerAdmission.Decision.ADMITTED
+                        : admission.admit(id, lang, new AdmissionWaiter(id, lang, current));
+                if (decision[0] == LanguageServerAdmission.Decision.REJECTED) {
+                    return null;
+                }
+                if (decision[0] == LanguageServerAdmission.Decision.ADMITTED) {
+                    starting[0] = claimStart(id);
+                }
+            } else if (current.getProcess() == null && waitingSessions.containsKey(id)) {
+                // Another session of the user is already waiting for capacity
+                decision[0] = LanguageServerAdmission.Decision.QUEUED;
+            }
+            if (decision[0] == LanguageServerAdmission.Decision.QUEUED) {
+                waitingSessions.computeIfAbsent(id, key -> new ConcurrentHashMap<>())
+                        .put(sessionId, new WaitingSession(messageHandler, onRejected));
+            }
+            current.attach(sessionId, messageHandler, rawMessageHandler);
+            return current;
+        });
+        if (decision[0] == LanguageServerAdmission.Decision.REJECTED) {
+            new WaitingSession(messageHandler, onRejected)
+                    .reject("The server is at capacity, please try again in a few minutes.");
+            return null;
+        }
+        if (decision[0] == LanguageServerAdmission.Decision.QUEUED) {
+            int position = admission.getQueuePosition(userId);
+            if (position > 0) {
+                messageHandler.accept(showMessage(3, "All language servers are busy, waiting for capacity"
+                        + " (position " + position + " in the queue)."));
+            }
+            admission.reclaimIdleCapacity();
+        }
+        if (starting[0] != null && startAdmittedProcess(userId, lang, multiplexer, starting[0])
+                && retention != null) {
+            retention.recordMiss();
+            retention.enforceMemoryBudget();
+        }
+        return multiplexer;
+    }
+
+    /**
+     * A start of the server of a user, which waits for the close claimed
+     * before it and is waited for by a close claimed after it.
+     */
+    private record Starting(CompletableFuture<Void> previousClose, CompletableFuture<Void> done) {
+    }
+
+    /**
+     * Marks the server of a user as being started; called with the user's
+     * multiplexer entry locked, the start itself happens after it is
+     * unlocked.
+     */
+    private Starting claimStart(String userId) {
+        Starting starting = new Starting(closingUsers.get(userId), new CompletableFuture<>());
+        startingUsers.put(userId, starting.done());
+        return starting;
+    }
+
+    /**
+     * Starts the server claimed by {@link #claimStart} and hands it to the
+     * multiplexer, unless every session left meanwhile and took the
+     * multiplexer with it. Returns true when the server was handed over.
+     */
+    private boolean startAdmittedProcess(String userId, String lang, LanguageServerMultiplexer multiplexer,
+            Starting starting) {
+        try {
+            if (starting.previousClose() != null) {
+                // The previous server of the user may still be stopping, or saving its workspace
+                await(starting.previousClose(), userId);
+                closingUsers.remove(userId, starting.previousClose());
+            }
+            StartedProcess started = createProcess(userId, lang, multiplexer::onServerMessage,
+                    multiplexer::onServerFrame);
+            boolean[] handedOver = { false };
+            multiplexers.computeIfPresent(userId, (id, current) -> {
+                if (current == multiplexer) {
+                    processes.put(id, started.process());
+                    if (started.pooledWorkspacePath() != null) {
+                        pooledWorkspaces.put(id, started.pooledWorkspacePath());
+                    }
+                    current.setProcess(started.process());
+                    handedOver[0] = true;
+                }
+                return current;
+            });
+            if (!handedOver[0]) {
+                System.out.println("Sessions of user " + userId + " left while their LSP started, stopping it");
+                abandon(userId, started);
+                return false;
+            }
+            if (recoveryEnabled) {
+                watchForCrash(userId, lang, multiplexer, started.process());
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            if (multiplexers.remove(userId, multiplexer) && admission != null) {
+                admission.release(userId);
             }
+            throw new RuntimeException("Failed to start LSP for user: " + userId, e);
+        } finally {
+            startingUsers.remove(userId, starting.done());
+            starting.done().complete(null);
+        }
+    }
+
+    /**
+     * Starts the server of a user that waited for capacity, unless all its
+     * sessions left in the meantime.
+     */
+    private void startGrantedProcess(String userId, String lang, LanguageServerMultiplexer multiplexer) {
+        Starting[] starting = { null };
+        multiplexers.computeIfPresent(userId, (id, current) -> {
+            if (current == multiplexer && current.getSessionCount() > 0) {
+                starting[0] = claimStart(id);
+            }
+            return current;
         });
+        if (starting[0] == null) {
+            waitingSessions.remove(userId);
+            if (multiplexers.get(userId) == null) {
+                admission.release(userId);
+            }
+            return;
+        }
+        boolean started;
+        try {
+            started = startAdmittedProcess(userId, lang, multiplexer, starting[0]);
+        } catch (RuntimeException e) {
+            System.err.println("Failed to start LSP for admitted user " + userId + ": " + e.getMessage());
+            rejectWaitingSessions(userId, "The language server failed to start, please try again.");
+            return;
+        }
+        waitingSessions.remove(userId);
+        if (started && retention != null) {
+            retention.recordMiss();
+            retention.enforceMemoryBudget();
+        }
+    }
+
+    private void rejectWaitingSessions(String userId, String reason) {
+        Map<String, WaitingSession> waiting = waitingSessions.remove(userId);
+        if (waiting != null) {
+            waiting.values().forEach(session -> session.reject(reason));
+        }
+    }
+
+    private void watchForCrash(String userId, String lang, LanguageServerMultiplexer multiplexer,
+            LanguageServerProcess process) {
+        // The exit is reported on the JDK's process reaper, which must not start processes
+        process.setCrashHandler(exitCode -> threads.start("LSP-Recovery",
+                () -> recoverCrashedServer(userId, lang, multiplexer, process, exitCode)));
+    }
+
+    /**
+     * Replaces the crashed server of a user's sessions with a new one on the
+     * same workspace, which the multiplexer brings to the state of the editor.
+     * Gives up after {@code lsp.recovery.max-restarts} restarts within the
+     * window, telling the sessions to reload. The restart is decided with the
+     * user's multiplexer entry locked; the replacement is spawned and sent the
+     * replay after it is unlocked.
+     */
+    private void recoverCrashedServer(String userId, String lang, LanguageServerMultiplexer multiplexer,
+            LanguageServerProcess crashed, int exitCode) {
+        long crashedAt = System.nanoTime();
+        boolean[] crashedFor = { false };
+        Starting[] restart = { null };
+        multiplexers.computeIfPresent(userId, (id, current) -> {
+            // Sessions gone, or the server replaced: the next attach starts over
+            if (current != multiplexer || current.getProcess() != crashed || current.getSessionCount() == 0
+                    || !processes.remove(id, crashed)) {
+                return current;
+            }
+            crashedFor[0] = true;
+            if (allowRestart(id)) {
+                restart[0] = claimStart(id);
+            }
+            return current;
+        });
+        if (!crashedFor[0]) {
+            return;
+        }
+        crashed.destroy();
+        multiplexer.serverCrashed(restart[0] != null);
+        if (restart[0] == null) {
+            System.err.println("LSP of user " + userId + " crashed again (exit code " + exitCode
+                    + "), not restarting it");
+            countRestart(lang, "abandoned");
+            return;
+        }
+        System.out.println("LSP of user " + userId + " crashed with exit code " + exitCode + ", restarting it");
+        try {
+            LanguageServerProcess replacement = restartLanguageServerProcess(userId, lang, multiplexer);
+            boolean[] handedOver = { false };
+            multiplexers.computeIfPresent(userId, (id, current) -> {
+                if (current == multiplexer && current.getSessionCount() > 0) {
+                    processes.put(id, replacement);
+                    handedOver[0] = true;
+                }
+                return current;
+            });
+            if (!handedOver[0]) {
+                // The sessions left while it started; the close they left behind deletes the workspace
+                replacement.destroy();
+                countRestart(lang, "abandoned");
+                return;
+            }
+            watchForCrash(userId, lang, multiplexer, replacement);
+            multiplexer.recover(replacement, () -> {
+                Timer.builder("lsp.process.recovery")
+                        .description("Time from a language server crash until its replacement answered initialize")
+                        .tag("language", lang)
+                        .register(meterRegistry)
+                        .record(System.nanoTime() - crashedAt, TimeUnit.NANOSECONDS);
+                countRestart(lang, "recovered");
+            });
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to restart LSP for user " + userId + ": " + e.getMessage());
+            multiplexer.serverCrashed(false);
+            countRestart(lang, "failed");
+        } finally {
+            startingUsers.remove(userId, restart[0].done());
+            restart[0].done().complete(null);
+        }
+    }
+
+    private boolean allowRestart(String userId) {
+        Deque<Long> times = restarts.computeIfAbsent(userId, id -> new ArrayDeque<>());
+        long now = System.nanoTime();
+        synchronized (times) {
+            while (!times.isEmpty() && now - times.peekFirst() > TimeUnit.SECONDS.toNanos(recoveryWindowSeconds)) {
+                times.removeFirst();
+            }
+            if (times.size() >= recoveryMaxRestarts) {
+                return false;
+            }
+            times.addLast(now);
+            return true;
+        }
+    }
+
+    private void countRestart(String lang, String outcome) {
+        Counter.builder("lsp.process.restarts")
+                .description("Automatic restarts of crashed language servers, by outcome")
+                .tag("language", lang)
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    /**
+     * Starts a server on the workspace the crashed one used, as it is: its
+     * index is newer than any snapshot or template.
+     */
+    private LanguageServerProcess restartLanguageServerProcess(String userId, String lang,
+            LanguageServerMultiplexer multiplexer) throws IOException {
+        Process process;
+        if (lang.equals("php")) {
+            process = startPhpServer();
+        } else {
+            String dataPath = pooledWorkspaces.get(userId);
+            process = startJavaServer(dataPath != null ? dataPath : getUserWorkspacePath(userId));
+        }
+        System.out.println("Restarted LSP for user " + userId + " with PID: " + process.pid());
+        LanguageServerProcess languageServer = LanguageServerProcess.create(process, lang,
+                multiplexer::onServerMessage, userId, processOptions(lang));
+        languageServer.setRawMessageHandler(multiplexer::onServerFrame);
+        languageServer.setWorkspaceOrigin("recovered");
+        return languageServer;
+    }
+
+    private static String showMessage(int type, String message) {
+        JsonObject params = new JsonObject();
+        params.addProperty("type", type);
+        params.addProperty("message", message);
+        JsonObject notification = new JsonObject();
+        notification.addProperty("jsonrpc", "2.0");
+        notification.addProperty("method", "window/showMessage");
+        notification.add("params", params);
+        return notification.toString();
+    }
+
+    /**
+     * Editor session of a user waiting for capacity.
+     */
+    private static final class WaitingSession {
+        private final Consumer<String> messageHandler;
+        private final Runnable onRejected;
+
+        private WaitingSession(Consumer<String> messageHandler, Runnable onRejected) {
+            this.messageHandler = messageHandler;
+            this.onRejected = onRejected;
+        }
+
+        void reject(String reason) {
+            messageHandler.accept(showMessage(1, reason));
+            if (onRejected != null) {
+                onRejected.run();
+            }
+        }
+    }
+
+    private final class AdmissionWaiter implements LanguageServerAdmission.Waiter {
+        private final String userId;
+        private final String lang;
+        private final LanguageServerMultiplexer multiplexer;
+
+        private AdmissionWaiter(String userId, String lang, LanguageServerMultiplexer multiplexer) {
+            this.userId = userId;
+            this.lang = lang;
+            this.multiplexer = multiplexer;
+        }
+
+        @Override
+        public void granted() {
+            // Called from whichever thread freed the capacity
+            threads.start("LSP-Admitted-Start", () -> startGrantedProcess(userId, lang, multiplexer));
+        }
+
+        @Override
+        public void rejected(String reason) {
+            rejectWaitingSessions(userId, reason + ", please try again in a few minutes.");
+        }
+    }
+
+    /**
+     * Detaches an editor session. When the last session of the user is gone
+     * the language server is either retained for a later reconnect or stopped
+     * and its workspace removed.
+     */
+    public void detachSession(String userId, String sessionId) {
+        if (userId == null || userId.isBlank()) {
+            System.err.println("Cannot detach session for a null or empty userId.");
+            return;
+        }
+        if (multiplexers.get(userId) instanceof SharedLanguageServerMultiplexer shared) {
+            detachSharedSession(userId, sessionId, shared);
+            return;
+        }
+        waitingSessions.computeIfPresent(userId, (id, waiting) -> {
+            waiting.remove(sessionId);
+            return waiting.isEmpty() ? null : waiting;
+        });
+        boolean[] retained = { false };
+        Closing[] closing = { null };
+        multiplexers.computeIfPresent(userId, (id, multiplexer) -> {
+            if (multiplexer.detach(sessionId) > 0) {
+                return multiplexer;
+            }
+            if (retention != null && multiplexer.getProcess() != null && multiplexer.getProcess().isAlive()) {
+                retained[0] = true;
+                return multiplexer;
+            }
+            closing[0] = claimClose(id);
+            return null;
+        });
+        if (retained[0]) {
+            retention.retain(userId);
+        } else if (closing[0] != null) {
+            close(closing[0]);
+        }
+    }
+
+    /**
+     * What a user's server leaves to be stopped, taken out of the maps in
+     * the same compute that removes the user's multiplexer, so that a session
+     * reconnecting from then on starts a server of its own instead of picking
+     * up this one, and waits for its workspace to be gone.
+     */
+    private record Closing(String userId, LanguageServerProcess process, String pooledWorkspacePath,
+            CompletableFuture<Void> starting, CompletableFuture<Void> done) {
+    }
+
+    /**
+     * Called with the user's multiplexer entry locked.
+     */
+    private Closing claimClose(String userId) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        closingUsers.put(userId, done);
+        restarts.remove(userId);
+        if (retention != null) {
+            retention.forget(userId);
+        }
+        if (admission != null) {
+            // Released now: once the entry is unlocked a reconnect of the user needs a permit of its own
+            admission.release(userId);
+        }
+        return new Closing(userId, processes.remove(userId), pooledWorkspaces.remove(userId),
+                startingUsers.get(userId), done);
+    }
+
+    private void close(Closing closing) {
+        if (closing.starting() == null) {
+            stopUserProcess(closing.userId(), closing.process(), closing.pooledWorkspacePath(), closing.done());
+            return;
+        }
+        // A server started for the sessions that left gives up once it sees they are gone; its workspace is
+        // deleted after that
+        closing.starting().whenComplete((result, error) -> stopUserProcess(closing.userId(), closing.process(),
+                closing.pooledWorkspacePath(), closing.done()));
+    }
+
+    private static void await(CompletableFuture<?> task, String userId) {
+        try {
+            task.get(CLOSE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (TimeoutException e) {
+            System.err.println("LSP of user " + userId + " is still starting or stopping, going ahead anyway");
+        } catch (ExecutionException e) {
+            // Reported where it failed
+        }
+    }
+
+    /**
+     * Stops the retained server of a user unless a session reattached to it.
+     */
+    private boolean evictIdleUser(String userId) {
+        Closing[] evicted = { null };
+        multiplexers.computeIfPresent(userId, (id, multiplexer) -> {
+            if (multiplexer.getSessionCount() > 0 || !processes.containsKey(id)) {
+                return multiplexer;
+            }
+            evicted[0] = claimClose(id);
+            return null;
+        });
+        if (evicted[0] == null) {
+            return false;
+        }
+        close(evicted[0]);
+        return true;
+    }
+
+    private long getResidentMemoryKb(String userId) {
+        LanguageServerProcess process = processes.get(userId);
+        return process == null ? 0 : process.getResidentMemoryKb();
+    }
+
+    /**
+     * Resident memory of every language server on this node, including idle
+     * pooled and shared ones.
+     */
+    private long getTotalResidentMemoryKb() {
+        long total = 0;
+        for (LanguageServerProcess process : processes.values()) {
+            total += Math.max(0, process.getResidentMemoryKb());
+        }
+        for (LanguageServerProcessPool pool : pools.values()) {
+            total += pool.getIdleResidentMemoryKb();
+        }
+        synchronized (sharedJavaServers) {
+            for (SharedLanguageServerMultiplexer shared : sharedJavaServers) {
+                total += Math.max(0, shared.getProcess().getResidentMemoryKb());
+            }
+        }
+        return total;
+    }
+
+    public LanguageServerMultiplexer getMultiplexer(String userId) {
+        return multiplexers.get(userId);
+    }
+
+    /**
+     * Mounts the user's project on a shared Java server with room for another
+     * tenant, starting one if the limit allows. Returns null when all shared
+     * servers are full, so the user gets a dedicated process.
+     */
+    private LanguageServerMultiplexer attachSharedSession(String userId, String sessionId,
+            Consumer<String> messageHandler, Consumer<ByteBuffer> rawMessageHandler) {
+        synchronized (sharedJavaServers) {
+            LanguageServerMultiplexer existing = multiplexers.get(userId);
+            if (existing != null && !(existing instanceof SharedLanguageServerMultiplexer)) {
+                return null;
+            }
+            SharedLanguageServerMultiplexer target = (SharedLanguageServerMultiplexer) existing;
+            try {
+                if (target == null) {
+                    target = selectSharedServer();
+                    if (target == null) {
+                        System.out.println("Shared Java servers are full, starting a dedicated LSP for user: "
+                                + userId);
+                        return null;
+                    }
+                    String userWorkspacePath = getUserWorkspacePath(userId);
+                    ensureWorkspaceDirectory(userWorkspacePath);
+                    ensureProjectDirectory(userWorkspacePath);
+                    target.addTenant(userId, Paths.get(userWorkspacePath, "project").toUri().toString());
+                    multiplexers.put(userId, target);
+                    System.out.println("Serving user " + userId + " from shared Java LSP (" + target.getTenantCount()
+                            + " tenants)");
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to start shared LSP for user: " + userId, e);
+            }
+            target.attach(sessionId, userId, messageHandler, rawMessageHandler);
+            return target;
+        }
+    }
+
+    private void detachSharedSession(String userId, String sessionId, SharedLanguageServerMultiplexer shared) {
+        synchronized (sharedJavaServers) {
+            if (shared.detach(sessionId) > 0) {
+                return;
+            }
+            multiplexers.remove(userId);
+        }
+        // The shared process keeps running for the other tenants
+        deleteWorkspace(userId, getUserWorkspacePath(userId));
+    }
+
+    /**
+     * Least loaded live shared server with a free slot; called with the list
+     * locked.
+     */
+    private SharedLanguageServerMultiplexer selectSharedServer() throws IOException {
+        sharedJavaServers.removeIf(shared -> {
+            if (shared.getProcess().isAlive()) {
+                return false;
+            }
+            System.err.println("Shared Java LSP died, dropping it from the rotation");
+            return true;
+        });
+        SharedLanguageServerMultiplexer target = null;
+        for (SharedLanguageServerMultiplexer shared : sharedJavaServers) {
+            if (shared.getTenantCount() < sharedJavaUsersPerProcess
+                    && (target == null || shared.getTenantCount() < target.getTenantCount())) {
+                target = shared;
+            }
+        }
+        if (target == null && sharedJavaServers.size() < sharedJavaMaxProcesses) {
+            target = startSharedJavaServer();
+            sharedJavaServers.add(target);
+        }
+        return target;
+    }
+
+    private SharedLanguageServerMultiplexer startSharedJavaServer() throws IOException {
+        String serverId = "shared-java-" + sharedServerSequence.incrementAndGet();
+        String dataPath = workspaceBasePath + "/" + serverId + "-workspace";
+        ensureWorkspaceDirectory(dataPath);
+        Process process = startJavaServer(dataPath, sharedJavaMaxHeap);
+        System.out.println("Started " + serverId + " LSP with PID: " + process.pid());
+
+        SharedLanguageServerMultiplexer multiplexer = new SharedLanguageServerMultiplexer(serverId);
+        multiplexer.setResponseCache(responseCache);
+        LanguageServerProcess languageServer = LanguageServerProcess.create(process, "java",
+                multiplexer::onServerMessage, serverId, processOptions("java"));
+        languageServer.setRawMessageHandler(multiplexer::onServerFrame);
+        multiplexer.setProcess(languageServer);
+        return multiplexer;
+    }
+
+    private StartedProcess takeWarmProcess(String userId, String lang, Consumer<String> messageHandler,
+            Consumer<ByteBuffer> rawMessageHandler) throws IOException {
+        LanguageServerProcessPool pool = pools.get(lang);
+        if (pool == null) {
+            return null;
+        }
+        LanguageServerProcessPool.Entry entry = pool.acquire();
+        if (entry == null) {
+            System.out.println("Warm pool empty for " + lang + ", cold-starting LSP for user: " + userId);
+            return null;
+        }
+
+        // The client still addresses its project under the user's own workspace
+        String userWorkspacePath = getUserWorkspacePath(userId);
+        ensureWorkspaceDirectory(userWorkspacePath);
+        ensureProjectDirectory(userWorkspacePath);
+
+        entry.getProcess().bind(userId, messageHandler, rawMessageHandler);
+        entry.getProcess().setWorkspaceOrigin("pool");
+        System.out.println("Serving user " + userId + " from warm " + lang + " pool");
+        return new StartedProcess(entry.getProcess(), entry.getWorkspacePath());
+    }
+
+    private LanguageServerProcessPool.Entry startPooledProcess(String lang) throws IOException {
+        String poolId = "pool-" + lang + "-" + pooledWorkspaceSequence.incrementAndGet();
+        String dataPath = null;
+        Process process;
+        if (lang.equals("php")) {
+            process = startPhpServer();
+        } else {
+            dataPath = workspaceBasePath + "/" + poolId + "-workspace";
+            ensureWorkspaceDirectory(dataPath);
+            if (template != null) {
+                template.cloneInto(Paths.get(dataPath));
+            }
+            process = startJavaServer(dataPath);
+        }
+        System.out.println("Pre-started " + lang + " LSP " + poolId + " with PID: " + process.pid());
+
+        return new LanguageServerProcessPool.Entry(
+                LanguageServerProcess.create(process, lang, message -> {
+                    // Nobody is listening until the process is bound to a session
+                }, poolId, processOptions(lang)),
+                dataPath);
     }
 
     private LanguageServerProcess startLanguageServerProcess(String userId, String lang,
@@ -42,56 +1022,140 @@ public class LanguageServerProcessManager {
         ensureWorkspaceDirectory(userWorkspacePath);
 
         Process process = null;
+        String workspaceOrigin = "empty";
         if (lang.equals("php")) {
-            ProcessBuilder processBuilder = new ProcessBuilder("intelephense", "--stdio");
-            process = processBuilder.start();
+            process = startPhpServer();
         } else {
-
-            Path projectDirectory = Paths.get(userWorkspacePath, "project");
-            if (!Files.exists(projectDirectory)) {
-                Files.createDirectories(projectDirectory);
-                System.out.println("Created project subdirectory: " + projectDirectory);
+            ensureProjectDirectory(userWorkspacePath);
+            if (snapshots != null && snapshots.restore(userId, Paths.get(userWorkspacePath))) {
+                workspaceOrigin = "snapshot";
+            } else if (template != null && template.cloneInto(Paths.get(userWorkspacePath))) {
+                workspaceOrigin = "template";
             }
-            System.out.println("Using JDT Launcher from: " + jdtLauncherPath);
-
-            ProcessBuilder processBuilder = new ProcessBuilder(
-                    "java",
-                    "-Declipse.application=org.eclipse.jdt.ls.core.id1",
-                    "-Dosgi.bundles.defaultStartLevel=4",
-                    "-Declipse.product=org.eclipse.jdt.ls.core.product",
-                    "-Dlog.level=ALL",
-                    "-noverify",
-                    "-Xmx1G",
-                    "-jar", jdtLauncherPath,
-                    "-configuration", jdtLsPath + "/config_linux",
-                    "-data", userWorkspacePath);
-
-            process = processBuilder.start();
+            process = startJavaServer(userWorkspacePath);
         }
-        System.out.println("LSP process started for user " + userId + " with PID: " + process.pid());
+        System.out.println("LSP process started for user " + userId + " with PID: " + process.pid()
+                + " (" + workspaceOrigin + " workspace)");
 
-        return new LanguageServerProcess(
+        LanguageServerProcess languageServer = LanguageServerProcess.create(
                 process,
                 lang,
                 messageHandler,
-                userId);
+                userId,
+                processOptions(lang));
+        languageServer.setWorkspaceOrigin(workspaceOrigin);
+        return languageServer;
     }
 
-    public void cleanupUserSession(String userId) {
-        if (userId == null || userId.isBlank()) {
-            System.err.println("Cannot cleanup session for a null or empty userId.");
+    private LanguageServerProcessOptions processOptions(String lang) {
+        String readiness = lang.equals("php") ? phpReadiness : javaReadiness;
+        return LanguageServerProcessOptions.defaults()
+                .threads(threads)
+                .readiness(() -> ReadinessStrategy.create(readiness))
+                .meterRegistry(meterRegistry)
+                .trafficMetrics(trafficMetrics)
+                .coalesceWindowMillis(coalesceWindowMillis)
+                .startupQueueMaxBytes(startupQueueMaxBytes)
+                .writePriorities(writePriorities)
+                .stderrBufferLines(stderrBufferLines)
+                .stderrLinesPerSecond(stderrLinesPerSecond)
+                .transport(LanguageServerProcessOptions.Transport.valueOf(transportEngine.toUpperCase(Locale.ROOT)))
+                .jvmProfile(lang.equals("java") ? javaJvmProfileName() : "node");
+    }
+
+    private String javaJvmProfileName() {
+        if (!javaServerCommand.isBlank()) {
+            return "custom";
+        }
+        return classDataArchive != null && classDataArchive.isReady() ? jdtProfile.getName() + "-cds"
+                : jdtProfile.getName();
+    }
+
+    private Process startPhpServer() throws IOException {
+        if (!phpServerCommand.isBlank()) {
+            return new ProcessBuilder(phpServerCommand.trim().split("\\s+")).start();
+        }
+        ProcessBuilder processBuilder = new ProcessBuilder("intelephense", "--stdio");
+        return processBuilder.start();
+    }
+
+    private Process startJavaServer(String dataPath) throws IOException {
+        return startJavaServer(dataPath, jdtProfile.getMaxHeap());
+    }
+
+    private Process startJavaServer(String dataPath, String maxHeap) throws IOException {
+        return startJavaServer(dataPath, maxHeap,
+                classDataArchive != null ? classDataArchive.jvmOptions() : List.of());
+    }
+
+    private Process startJavaServer(String dataPath, String maxHeap, List<String> extraJvmOptions)
+            throws IOException {
+        if (!javaServerCommand.isBlank()) {
+            return new ProcessBuilder(javaServerCommand.trim().split("\\s+")).start();
+        }
+        System.out.println("Using JDT Launcher from: " + jdtLauncherPath);
+
+        List<String> command = new ArrayList<>();
+        command.add("java");
+        command.add("-Declipse.application=org.eclipse.jdt.ls.core.id1");
+        command.add("-Dosgi.bundles.defaultStartLevel=4");
+        command.add("-Declipse.product=org.eclipse.jdt.ls.core.product");
+        command.addAll(jdtProfile.jvmOptions(maxHeap));
+        command.addAll(extraJvmOptions);
+        command.addAll(List.of(
+                "-jar", jdtLauncherPath,
+                "-configuration", jdtLsPath + "/config_linux",
+                "-data", dataPath));
+
+        return new ProcessBuilder(command).start();
+    }
+
+    private void stopUserProcess(String userId, LanguageServerProcess process, String pooledWorkspacePath,
+            CompletableFuture<Void> done) {
+        Runnable stop = () -> {
+            try {
+                stopAndDeleteWorkspace(userId, process, pooledWorkspacePath);
+            } finally {
+                closingUsers.remove(userId, done);
+                done.complete(null);
+            }
+        };
+        if (snapshots == null) {
+            stop.run();
             return;
         }
+        snapshots.runExclusive(userId, stop);
+    }
 
-        LanguageServerProcess process = processes.remove(userId);
+    private void stopAndDeleteWorkspace(String userId, LanguageServerProcess process, String pooledWorkspacePath) {
         if (process != null) {
             System.out.println("Stopping LSP process for user: " + userId);
-            process.destroy();
+            if (snapshots != null) {
+                // Let the server write its index before it is saved
+                process.shutdownGracefully(GRACEFUL_SHUTDOWN_MILLIS);
+            } else {
+                process.destroy();
+            }
         } else {
             System.out.println("No running LSP process found for user: " + userId);
         }
 
-        String userWorkspacePath = getUserWorkspacePath(userId);
+        String dataPath = pooledWorkspacePath != null ? pooledWorkspacePath : getUserWorkspacePath(userId);
+        if (snapshots != null) {
+            try {
+                snapshots.save(userId, Paths.get(dataPath));
+            } catch (IOException e) {
+                System.err.println("Failed to save workspace of user " + userId + ": " + e.getMessage());
+            }
+        }
+
+        if (pooledWorkspacePath != null) {
+            deleteWorkspace(userId, pooledWorkspacePath);
+        }
+        deleteWorkspace(userId, getUserWorkspacePath(userId));
+    }
+
+    private void deleteWorkspace(String userId, String userWorkspacePath) {
         Path workspacePath = Paths.get(userWorkspacePath);
         try {
             if (Files.exists(workspacePath)) {
@@ -111,7 +1175,15 @@ public class LanguageServerProcessManager {
     }
 
     private String getUserWorkspacePath(String userId) {
-        return "/opt/lsp-workspace/user-" + userId + "-workspace";
+        return workspaceBasePath + "/user-" + userId + "-workspace";
+    }
+
+    private void ensureProjectDirectory(String workspacePath) throws IOException {
+        Path projectDirectory = Paths.get(workspacePath, "project");
+        if (!Files.exists(projectDirectory)) {
+            Files.createDirectories(projectDirectory);
+            System.out.println("Created project subdirectory: " + projectDirectory);
+        }
     }
 
     private void ensureWorkspaceDirectory(String workspacePath) throws IOException {
@@ -130,4 +1202,14 @@ public class LanguageServerProcessManager {
     public LanguageServerProcess getProcess(String userId) {
         return processes.get(userId);
     }
+
+    /**
+     * The recent stderr of the server a user is on, dedicated or shared;
+     * null when the user has none.
+     */
+    public List<String> getRecentStderr(String userId) {
+        LanguageServerMultiplexer multiplexer = multiplexers.get(userId);
+        LanguageServerProcess process = multiplexer != null ? multiplexer.getProcess() : processes.get(userId);
+        return process != null ? process.getRecentStderr() : null;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,142 @@
+package com.example.javalsp.lsp.Process;
+
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+/**
+ * Per-process settings chosen by {@link LanguageServerProcessManager}. The
+ * defaults match a standalone process without metrics.
+ */
+public class LanguageServerProcessOptions {
+
+    /**
+     * How messages are read and classified on their way through the process:
+     * shallow scans of the raw text, or one LSP4J parse per message.
+     */
+    public enum Transport {
+        RAW, TYPED
+    }
+
+    private LspThreads threads = LspThreads.PLATFORM;
+    private Supplier<ReadinessStrategy> readiness = InitializeResponseReadiness::new;
+    // A composite without children records nothing
+    private MeterRegistry meterRegistry = new CompositeMeterRegistry();
+    // 0 delivers every notification as it arrives
+    private long coalesceWindowMillis;
+    // Client messages held while the server starts; 0 = unbounded
+    private long startupQueueMaxBytes = 16 * 1024 * 1024;
+    private LspTrafficMetrics trafficMetrics;
+    // JVM profile of the server, e.g. balanced-cds; a metric tag
+    private String jvmProfile = "default";
+    // Interactive requests overtake background ones on the way to stdin
+    private boolean writePriorities;
+    private Transport transport = Transport.RAW;
+    // Stderr lines kept for dumps, and forwarded to the log per second (0 = all)
+    private int stderrBufferLines = 200;
+    private int stderrLinesPerSecond;
+
+    public static LanguageServerProcessOptions defaults() {
+        return new LanguageServerProcessOptions();
+    }
+
+    public LanguageServerProcessOptions threads(LspThreads threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public LanguageServerProcessOptions readiness(Supplier<ReadinessStrategy> readiness) {
+        this.readiness = readiness;
+        return this;
+    }
+
+    public LanguageServerProcessOptions meterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        return this;
+    }
+
+    public LanguageServerProcessOptions coalesceWindowMillis(long coalesceWindowMillis) {
+        this.coalesceWindowMillis = coalesceWindowMillis;
+        return this;
+    }
+
+    public LanguageServerProcessOptions startupQueueMaxBytes(long startupQueueMaxBytes) {
+        this.startupQueueMaxBytes = startupQueueMaxBytes;
+        return this;
+    }
+
+    public LanguageServerProcessOptions trafficMetrics(LspTrafficMetrics trafficMetrics) {
+        this.trafficMetrics = trafficMetrics;
+        return this;
+    }
+
+    public LanguageServerProcessOptions jvmProfile(String jvmProfile) {
+        this.jvmProfile = jvmProfile;
+        return this;
+    }
+
+    public LanguageServerProcessOptions writePriorities(boolean writePriorities) {
+        this.writePriorities = writePriorities;
+        return this;
+    }
+
+    public LanguageServerProcessOptions transport(Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    public LanguageServerProcessOptions stderrBufferLines(int stderrBufferLines) {
+        this.stderrBufferLines = stderrBufferLines;
+        return this;
+    }
+
+    public LanguageServerProcessOptions stderrLinesPerSecond(int stderrLinesPerSecond) {
+        this.stderrLinesPerSecond = stderrLinesPerSecond;
+        return this;
+    }
+
+    public LspThreads getThreads() {
+        return threads;
+    }
+
+    public Supplier<ReadinessStrategy> getReadiness() {
+        return readiness;
+    }
+
+    public MeterRegistry getMeterRegistry() {
+        return meterRegistry;
+    }
+
+    public long getCoalesceWindowMillis() {
+        return coalesceWindowMillis;
+    }
+
+    public long getStartupQueueMaxBytes() {
+        return startupQueueMaxBytes;
+    }
+
+    public String getJvmProfile() {
+        return jvmProfile;
+    }
+
+    public boolean isWritePriorities() {
+        return writePriorities;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public int getStderrBufferLines() {
+        return stderrBufferLines;
+    }
+
+    public int getStderrLinesPerSecond() {
+        return stderrLinesPerSecond;
+    }
+
+    public LspTrafficMetrics getTrafficMetrics() {
+        return trafficMetrics != null ? trafficMetrics : new LspTrafficMetrics(meterRegistry);
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.javalsp.lsp.Process;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Keeps a fixed number of idle, already started language servers for one
+ * language so that a new session can take one over instead of cold-starting a
+ * JVM. Taken processes are replaced in the background.
+ *
+ * <p>Pooled servers are spawned but not initialized: the LSP {@code initialize}
+ * request carries the client's root URI and capabilities, so the handshake is
+ * left to the session that takes the process over. What the pool saves is the
+ * JVM and JDT-LS launch, not the workspace import.
+ */
+public class LanguageServerProcessPool {
+
+    /**
+     * A pre-started process together with the workspace it was launched with.
+     */
+    public static final class Entry {
+        private final LanguageServerProcess process;
+        private final String workspacePath;
+
+        public Entry(LanguageServerProcess process, String workspacePath) {
+            this.process = process;
+            this.workspacePath = workspacePath;
+        }
+
+        public LanguageServerProcess getProcess() {
+            return process;
+        }
+
+        public String getWorkspacePath() {
+            return workspacePath;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(LanguageServerProcessPool.class);
+
+    private final String language;
+    private final int size;
+    private final Callable<Entry> spawner;
+    private final BlockingQueue<Entry> idle = new LinkedBlockingQueue<>();
+    private final AtomicInteger starting = new AtomicInteger();
+    private final ExecutorService refillExecutor;
+    private final Counter hits;
+    private final Counter misses;
+    private volatile boolean isShuttingDown = false;
+
+    public LanguageServerProcessPool(String language, int size, Callable<Entry> spawner, MeterRegistry meterRegistry) {
+        this.language = language;
+        this.size = size;
+        this.spawner = spawner;
+        this.refillExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "LSP-Pool-Refill-" + language);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.hits = Counter.builder("lsp.pool.hits")
+                .description("Sessions served by a pre-started language server")
+                .tag("language", language)
+                .register(meterRegistry);
+        this.misses = Counter.builder("lsp.pool.misses")
+                .description("Sessions that had to cold-start a language server")
+                .tag("language", language)
+                .register(meterRegistry);
+        Gauge.builder("lsp.pool.idle", idle, BlockingQueue::size)
+                .description("Idle pre-started language servers")
+                .tag("language", language)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Takes a live idle process out of the pool, or returns null when none is
+     * available. Either way a refill is scheduled.
+     */
+    public Entry acquire() {
+        Entry entry;
+        while ((entry = idle.poll()) != null) {
+            if (entry.getProcess().isAlive()) {
+                break;
+            }
+            logger.warn("Discarding dead pooled {} language server", language);
+            entry.getProcess().destroy();
+        }
+
+        if (entry != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        refill();
+        return entry;
+    }
+
+    /**
+     * Starts processes in the background until the pool is back at its
+     * configured size.
+     */
+    public void refill() {
+        while (!isShuttingDown) {
+            int inFlight = starting.get();
+            if (idle.size() + inFlight >= size) {
+                return;
+            }
+            if (starting.compareAndSet(inFlight, inFlight + 1)) {
+                refillExecutor.execute(this::startOne);
+            }
+        }
+    }
+
+    private void startOne() {
+        try {
+            if (isShuttingDown) {
+                return;
+            }
+            Entry entry = spawner.call();
+            if (isShuttingDown) {
+                entry.getProcess().destroy();
+                return;
+            }
+            idle.add(entry);
+            logger.info("Warm {} language server added to pool ({}/{})", language, idle.size(), size);
+        } catch (Exception e) {
+            logger.error("Failed to pre-start {} language server: {}", language, e.getMessage());
+        } finally {
+            starting.decrementAndGet();
+        }
+    }
+
+    public long getHitCount() {
+        return (long) hits.count();
+    }
+
+    public long getMissCount() {
+        return (long) misses.count();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Resident memory of the idle processes in KB.
+     */
+    public long getIdleResidentMemoryKb() {
+        long total = 0;
+        for (Entry entry : idle) {
+            total += Math.max(0, entry.getProcess().getResidentMemoryKb());
+        }
+        return total;
+    }
+
+    public void shutdown() {
+        isShuttingDown = true;
+        refillExecutor.shutdownNow();
+        Entry entry;
+        while ((entry = idle.poll()) != null) {
+            entry.getProcess().destroy();
+        }
+    }
+}
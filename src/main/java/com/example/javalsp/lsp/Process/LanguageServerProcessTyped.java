@@ -1,262 +1,282 @@
 package com.example.javalsp.lsp.Process;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
 
-import org.eclipse.lsp4j.ShowMessageRequestParams;
-import org.eclipse.lsp4j.jsonrpc.Launcher;
+import org.eclipse.lsp4j.CodeActionParams;
+import org.eclipse.lsp4j.CodeLensParams;
+import org.eclipse.lsp4j.DidChangeTextDocumentParams;
+import org.eclipse.lsp4j.DidCloseTextDocumentParams;
+import org.eclipse.lsp4j.DidOpenTextDocumentParams;
+import org.eclipse.lsp4j.DidSaveTextDocumentParams;
+import org.eclipse.lsp4j.DocumentSymbolParams;
+import org.eclipse.lsp4j.FoldingRangeRequestParams;
+import org.eclipse.lsp4j.InlayHintParams;
+import org.eclipse.lsp4j.ProgressParams;
+import org.eclipse.lsp4j.PublishDiagnosticsParams;
+import org.eclipse.lsp4j.SemanticTokensDeltaParams;
+import org.eclipse.lsp4j.SemanticTokensParams;
+import org.eclipse.lsp4j.SemanticTokensRangeParams;
+import org.eclipse.lsp4j.TextDocumentIdentifier;
+import org.eclipse.lsp4j.TextDocumentPositionParams;
+import org.eclipse.lsp4j.WorkDoneProgressNotification;
+import org.eclipse.lsp4j.jsonrpc.MessageIssueException;
+import org.eclipse.lsp4j.jsonrpc.json.JsonRpcMethod;
+import org.eclipse.lsp4j.jsonrpc.json.MessageJsonHandler;
+import org.eclipse.lsp4j.jsonrpc.json.MethodProvider;
+import org.eclipse.lsp4j.jsonrpc.messages.CancelParams;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
+import org.eclipse.lsp4j.jsonrpc.messages.IdentifiableMessage;
+import org.eclipse.lsp4j.jsonrpc.messages.Message;
+import org.eclipse.lsp4j.jsonrpc.messages.NotificationMessage;
+import org.eclipse.lsp4j.jsonrpc.messages.RequestMessage;
+import org.eclipse.lsp4j.jsonrpc.messages.ResponseMessage;
+import org.eclipse.lsp4j.jsonrpc.services.ServiceEndpoints;
 import org.eclipse.lsp4j.services.LanguageClient;
 import org.eclipse.lsp4j.services.LanguageServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.eclipse.lsp4j.MessageActionItem;
 
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.function.Consumer;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import io.micrometer.core.instrument.Counter;
 
 /**
- * Improved Language Server Process using LSP4J with proper JSON handling
+ * Language server process with the typed transport engine: server messages,
+ * and client messages that reach {@link #sendMessage(String)} unclassified,
+ * are parsed once into LSP4J message objects, and the envelope derived from
+ * that parse travels with the message through the process pipeline
+ * (request/response bookkeeping, inbound queue, write priority, metrics,
+ * readiness, the coalescing key of diagnostics and progress). The original
+ * text is forwarded unchanged, so clients see the same bytes as with the raw
+ * engine.
+ *
+ * <p>
+ * Client messages relayed by a {@link LanguageServerMultiplexer} arrive with
+ * the envelope of its scan and are not classified again. With either engine
+ * the only further parse of a client message is the inbound queue's, of a
+ * didChange it may merge into a queued one while the server starts.
+ *
+ * <p>
+ * Messages LSP4J cannot parse fall back to {@link JsonRpcEnvelope#scan} and
+ * are counted in {@code lsp.transport.parse.failures}.
  */
-public class LanguageServerProcessTyped {
-    private final Process process;
-    private final String userId;
-    private final Launcher<LanguageServer> launcher;
-    private final Future<Void> listening;
-    private final ExecutorService executorService;
-    private final LanguageServer languageServer;
-    private final Gson gson;
-    private volatile boolean isReady = false;
-    private volatile boolean isShuttingDown = false;
-    private final Thread errorReaderThread;
-    private static final Logger logger = LoggerFactory.getLogger(LanguageServerProcessTyped.class);
-
-    public LanguageServerProcessTyped(Process process, Consumer<String> messageHandler, String userId) {
-        this.process = process;
-        this.userId = userId;
-        this.gson = new GsonBuilder().setPrettyPrinting().create();
-
-        this.executorService = Executors.newCachedThreadPool(r -> {
-            Thread thread = new Thread(r);
-            thread.setDaemon(true);
-            thread.setName("LSP4J-Typed-" + userId + "-" + thread.getId());
-            return thread;
-        });
-
-        // Create a client that captures responses
-        LanguageClientCapture client = new LanguageClientCapture(messageHandler, userId);
-
-        // Build typed launcher
-        this.launcher = new Launcher.Builder<LanguageServer>()
-                .setLocalService(client)
-                .setRemoteInterface(LanguageServer.class)
-                .setInput(process.getInputStream())
-                .setOutput(process.getOutputStream())
-                .setExecutorService(executorService)
-                .create();
+public class LanguageServerProcessTyped extends LanguageServerProcess {
 
-        this.languageServer = launcher.getRemoteProxy();
-        this.listening = launcher.startListening();
-
-        // Monitor process
-        startProcessMonitor();
+    // Both directions: requests and notifications of the server and of the client
+    private static final Map<String, JsonRpcMethod> METHODS = supportedMethods();
+    private static final MethodProvider NO_METHODS = id -> null;
+    private static final Logger logger = LoggerFactory.getLogger(LanguageServerProcessTyped.class);
 
-        // Read stderr
-        this.errorReaderThread = new Thread(() -> {
-            try {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                boolean serverStarted = false;
+    // Responses of the client answer server requests, whose result types do not matter here
+    private final MessageJsonHandler clientMessages = newJsonHandler(NO_METHODS);
 
-                while ((bytesRead = process.getErrorStream().read(buffer)) != -1) {
-                    String line = new String(buffer, 0, bytesRead);
-                    logger.error("LSP Error [{}]: {}", userId, line);
+    public LanguageServerProcessTyped(Process process, String lang, Consumer<String> messageHandler, String userId,
+            LanguageServerProcessOptions options) {
+        super(process, lang, messageHandler, userId, options);
+    }
 
-                    if (!serverStarted && (line.contains("Main thread is waiting") ||
-                            line.contains("Started language server"))) {
-                        serverStarted = true;
-                        logger.info("LSP Server startup detected for user: {}", userId);
-                        Thread.sleep(2000);
-                        markAsReady();
-                    }
-                }
-            } catch (Exception e) {
-                if (!isShuttingDown) {
-                    logger.error("Error reading stderr: {}", e.getMessage());
-                }
-            }
-        }, "LSP-Error-Reader-" + userId);
-        errorReaderThread.setDaemon(true);
-        errorReaderThread.start();
+    private static Map<String, JsonRpcMethod> supportedMethods() {
+        Map<String, JsonRpcMethod> methods = new HashMap<>(ServiceEndpoints.getSupportedMethods(LanguageServer.class));
+        ServiceEndpoints.getSupportedMethods(LanguageClient.class).forEach(methods::putIfAbsent);
+        return methods;
+    }
 
-        // Fallback timer
-        new Thread(() -> {
-            try {
-                Thread.sleep(10000);
-                if (!isReady && process.isAlive()) {
-                    logger.warn("Marking ready after timeout");
-                    markAsReady();
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        }).start();
+    /**
+     * A parser for LSP messages; {@code responses} names the method a
+     * response answers, which decides the type of its result.
+     */
+    static MessageJsonHandler newJsonHandler(MethodProvider responses) {
+        MessageJsonHandler handler = new MessageJsonHandler(METHODS);
+        handler.setMethodProvider(responses);
+        return handler;
     }
 
-    private void startProcessMonitor() {
-        Thread monitor = new Thread(() -> {
-            try {
-                int exitCode = process.waitFor();
-                isReady = false;
-                logger.error("LSP process exited with code: {}", exitCode);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+    @Override
+    protected void readServerOutput(InputStream stdout) throws IOException {
+        // Runs before this class's fields are assigned, so everything it uses is local
+        MessageJsonHandler serverMessages = newJsonHandler(this::answeredMethod);
+        LspFrameDecoder decoder = new LspFrameDecoder(stdout);
+        while (!Thread.currentThread().isInterrupted() && decoder.next()) {
+            String content = decoder.contentAsString();
+            int size = decoder.contentLength();
+            Consumer<ByteBuffer> rawHandler = rawHandler();
+            Runnable delivery;
+            if (rawHandler != null) {
+                int offset = decoder.contentOffset();
+                byte[] frame = Arrays.copyOfRange(decoder.buffer(), offset, offset + size);
+                delivery = () -> rawHandler.accept(ByteBuffer.wrap(frame));
+            } else {
+                delivery = () -> deliverText(content);
             }
-        });
-        monitor.setDaemon(true);
-        monitor.start();
-    }
 
-    private synchronized void markAsReady() {
-        if (isReady || isShuttingDown || !process.isAlive()) {
-            return;
-        }
-        try {
-            Thread.sleep(500);
-            if (process.isAlive()) {
-                isReady = true;
-                logger.info("✓ LSP Server READY for user: {}", userId);
+            logger.debug("LSP -> Monaco [{}]: {} bytes", userId(), size);
+            Message message = parse(serverMessages, content);
+            JsonRpcEnvelope envelope = message != null ? envelopeOf(message) : null;
+            if (envelope == null) {
+                relay(JsonRpcEnvelope.scan(content), size, () -> content, delivery);
+                continue;
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+            relay(envelope, size, delivery, coalescingSubject(message), progressKind(message));
         }
     }
 
-    /**
-     * Send raw JSON message - LSP4J parses and routes it correctly
-     */
-    public void sendMessage(String jsonMessage) {
-        if (!process.isAlive()) {
-            logger.error("Process not alive, cannot send message");
-            isReady = false;
-            return;
-        }
-
-        try {
-            logger.info("Sending message [{}]: {}", userId,
-                    jsonMessage.length() > 200 ? jsonMessage.substring(0, 200) + "..." : jsonMessage);
-
-            // Parse JSON and send through LSP4J
-            JsonObject json = gson.fromJson(jsonMessage, JsonObject.class);
-
-            // LSP4J's message router will handle this automatically
-            // by converting it to the appropriate method call
-            launcher.getRemoteProxy(); // This ensures the connection is active
-
-            // For raw message sending, you can write directly to the output
-            // But LSP4J's launcher handles this internally via the proxy
-
-            logger.info("✓ Message sent successfully [{}]", userId);
-
-        } catch (Exception e) {
-            logger.error("Error sending message: {}", e.getMessage(), e);
-            isReady = false;
-        }
+    @Override
+    protected JsonRpcEnvelope inspectClientMessage(String jsonMessage) {
+        Message message = parse(clientMessages, jsonMessage);
+        JsonRpcEnvelope envelope = message != null ? envelopeOf(message) : null;
+        return envelope != null ? envelope : JsonRpcEnvelope.scan(jsonMessage);
     }
 
     /**
-     * Get direct access to the language server for typed method calls
-     * This is the RECOMMENDED way to use LSP4J
+     * LSP4J hands over string ids without their quotes; requests are known by
+     * the id as written.
      */
-    public LanguageServer getLanguageServer() {
-        return languageServer;
-    }
-
-    public boolean isReady() {
-        return isReady && process.isAlive();
+    private String answeredMethod(String id) {
+        String method = requestMethod(id);
+        return method != null ? method : requestMethod(new JsonPrimitive(id).toString());
     }
 
-    public void destroy() {
-        isShuttingDown = true;
-        isReady = false;
-
+    private Message parse(MessageJsonHandler handler, String content) {
         try {
-            logger.info("Destroying LSP process for user: {}", userId);
-
-            if (listening != null && !listening.isDone()) {
-                listening.cancel(true);
-            }
-
-            if (errorReaderThread != null) {
-                errorReaderThread.interrupt();
+            return handler.parseMessage(content);
+        } catch (MessageIssueException e) {
+            // Parsed, but the params or result do not match the LSP types
+            if (e.getRpcMessage() != null) {
+                return e.getRpcMessage();
             }
-
-            executorService.shutdownNow();
-            process.destroyForcibly();
-
-            logger.info("✓ LSP process destroyed");
-
-        } catch (Exception e) {
-            logger.error("Error destroying LSP: {}", e.getMessage());
+            parseFailed(e);
+        } catch (RuntimeException e) {
+            parseFailed(e);
         }
+        return null;
     }
-}
-
-/**
- * Custom Language Client that captures all server-to-client messages
- */
-class LanguageClientCapture implements LanguageClient {
-    private final Consumer<String> messageHandler;
-    private final String userId;
-    private final Gson gson = new Gson();
-    private static final Logger logger = LoggerFactory.getLogger(LanguageClientCapture.class);
 
-    public LanguageClientCapture(Consumer<String> messageHandler, String userId) {
-        this.messageHandler = messageHandler;
-        this.userId = userId;
+    private void parseFailed(RuntimeException e) {
+        logger.debug("LSP4J could not parse a message for user {}: {}", userId(), e.getMessage());
+        Counter.builder("lsp.transport.parse.failures")
+                .description("Messages the typed transport could not parse and scanned instead")
+                .tag("language", language())
+                .register(meterRegistry())
+                .increment();
     }
 
-    @Override
-    public void telemetryEvent(Object object) {
-        forwardMessage("telemetry/event", object);
+    /**
+     * The envelope of a parsed message; null for message kinds the relay
+     * does not know.
+     */
+    static JsonRpcEnvelope envelopeOf(Message message) {
+        if (message instanceof RequestMessage request) {
+            return JsonRpcEnvelope.of(request.getMethod(), idOf(request), false, false, request.getParams() != null,
+                    documentUriOf(request.getParams()), null);
+        }
+        if (message instanceof NotificationMessage notification) {
+            Object params = notification.getParams();
+            return JsonRpcEnvelope.of(notification.getMethod(), null, false, false, params != null,
+                    documentUriOf(params), cancelledIdOf(params));
+        }
+        if (message instanceof ResponseMessage response) {
+            boolean error = response.getError() != null;
+            return JsonRpcEnvelope.of(null, idOf(response), !error, error, false);
+        }
+        return null;
     }
 
-    @Override
-    public void publishDiagnostics(org.eclipse.lsp4j.PublishDiagnosticsParams diagnostics) {
-        forwardMessage("textDocument/publishDiagnostics", diagnostics);
+    /**
+     * {@code textDocument.uri} of the params the relay withdraws, merges or
+     * caches by document; null for others.
+     */
+    private static String documentUriOf(Object params) {
+        TextDocumentIdentifier document = null;
+        if (params instanceof TextDocumentPositionParams position) {
+            document = position.getTextDocument();
+        } else if (params instanceof DidOpenTextDocumentParams open) {
+            return open.getTextDocument() != null ? open.getTextDocument().getUri() : null;
+        } else if (params instanceof DidChangeTextDocumentParams change) {
+            document = change.getTextDocument();
+        } else if (params instanceof DidCloseTextDocumentParams close) {
+            document = close.getTextDocument();
+        } else if (params instanceof DidSaveTextDocumentParams save) {
+            document = save.getTextDocument();
+        } else if (params instanceof CodeActionParams codeAction) {
+            document = codeAction.getTextDocument();
+        } else if (params instanceof InlayHintParams inlayHint) {
+            document = inlayHint.getTextDocument();
+        } else if (params instanceof SemanticTokensParams tokens) {
+            document = tokens.getTextDocument();
+        } else if (params instanceof SemanticTokensDeltaParams tokens) {
+            document = tokens.getTextDocument();
+        } else if (params instanceof SemanticTokensRangeParams tokens) {
+            document = tokens.getTextDocument();
+        } else if (params instanceof DocumentSymbolParams symbols) {
+            document = symbols.getTextDocument();
+        } else if (params instanceof FoldingRangeRequestParams folding) {
+            document = folding.getTextDocument();
+        } else if (params instanceof CodeLensParams codeLens) {
+            document = codeLens.getTextDocument();
+        } else if (params instanceof JsonObject json && json.get("textDocument") instanceof JsonObject untyped
+                && untyped.get("uri") instanceof JsonPrimitive uri) {
+            // Params of methods LSP4J does not know stay JSON
+            return uri.getAsString();
+        }
+        return document != null ? document.getUri() : null;
     }
 
-    @Override
-    public void showMessage(org.eclipse.lsp4j.MessageParams messageParams) {
-        forwardMessage("window/showMessage", messageParams);
+    /**
+     * The id a {@code $/cancelRequest} names, as written.
+     */
+    private static String cancelledIdOf(Object params) {
+        if (params instanceof CancelParams cancel) {
+            Either<String, Number> id = cancel.getRawId();
+            return id == null ? null
+                    : id.isLeft() ? new JsonPrimitive(id.getLeft()).toString() : id.getRight().toString();
+        }
+        if (params instanceof JsonObject json && json.get("id") instanceof JsonPrimitive id) {
+            return id.toString();
+        }
+        return null;
     }
 
-    @Override
-    public void logMessage(org.eclipse.lsp4j.MessageParams message) {
-        forwardMessage("window/logMessage", message);
-        logger.info("LSP Log [{}]: {}", userId, message.getMessage());
+    /**
+     * The id as it was written: numbers as they are, strings quoted.
+     */
+    private static String idOf(IdentifiableMessage message) {
+        Either<String, Number> id = message.getRawId();
+        if (id == null) {
+            return null;
+        }
+        return id.isLeft() ? new JsonPrimitive(id.getLeft()).toString() : id.getRight().toString();
     }
 
-    private void forwardMessage(String method, Object params) {
-        try {
-            JsonObject message = new JsonObject();
-            message.addProperty("jsonrpc", "2.0");
-            message.addProperty("method", method);
-            message.add("params", gson.toJsonTree(params));
-
-            String json = gson.toJson(message);
-            logger.debug("Forwarding message [{}]: {}", userId, method);
-            messageHandler.accept(json);
-        } catch (Exception e) {
-            logger.error("Error forwarding message [{}]: {}", userId, e.getMessage());
+    /**
+     * The URI of diagnostics or the token of progress, which later
+     * notifications about the same subject replace.
+     */
+    static String coalescingSubject(Message message) {
+        Object params = message instanceof NotificationMessage notification ? notification.getParams() : null;
+        if (params instanceof PublishDiagnosticsParams diagnostics) {
+            return diagnostics.getUri();
         }
+        if (params instanceof ProgressParams progress && progress.getToken() != null) {
+            Either<String, Integer> token = progress.getToken();
+            return token.isLeft() ? token.getLeft() : String.valueOf(token.getRight());
+        }
+        return null;
     }
 
-    @Override
-    public CompletableFuture<MessageActionItem> showMessageRequest(ShowMessageRequestParams requestParams) {
-        return null; // Not handling responses in this simple client
+    static String progressKind(Message message) {
+        Object params = message instanceof NotificationMessage notification ? notification.getParams() : null;
+        if (params instanceof ProgressParams progress && progress.getValue() != null
+                && progress.getValue().isLeft()) {
+            WorkDoneProgressNotification value = progress.getValue().getLeft();
+            return value.getKind() != null ? value.getKind().name() : null;
+        }
+        return null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,267 @@
+package com.example.javalsp.lsp.Process;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Keeps the language server of a user running for a grace period after the
+ * last session disconnected, so that a page refresh or a dropped connection
+ * reattaches to a warm, indexed server instead of cold-starting one.
+ *
+ * <p>
+ * Idle servers are evicted when their TTL expires, or earlier, least recently
+ * used first, while the language servers of the node use more memory than the
+ * configured budget. Eviction itself is delegated to the owner, which may
+ * refuse it when the user reconnected in the meantime. Stopping a server and
+ * reading the memory of every process both block, so expiries and budget
+ * checks run on a thread of their own; only their timers use the shared
+ * scheduler.
+ */
+public class LanguageServerRetention {
+
+    private static final Logger logger = LoggerFactory.getLogger(LanguageServerRetention.class);
+
+    private final long idleTtlMillis;
+    private final long memoryBudgetKb;
+    private final Predicate<String> evictor;
+    private final ToLongFunction<String> memoryOfUser;
+    private final LongSupplier totalMemory;
+    // userId -> TTL timer, oldest detach first
+    private final LinkedHashMap<String, ScheduledFuture<?>> idle = new LinkedHashMap<>();
+    private final ExecutorService evictions = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "LSP-Retention");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter ttlEvictions;
+    private final Counter memoryEvictions;
+    private final Counter capacityEvictions;
+    private final ScheduledFuture<?> budgetCheck;
+
+    /**
+     * @param evictor      stops the server of a user and returns true, or
+     *                     returns false when it is in use again
+     * @param memoryOfUser resident memory in KB of the server of a user
+     * @param totalMemory  resident memory in KB of all language servers
+     */
+    public LanguageServerRetention(long idleTtlMillis, long memoryBudgetKb, Predicate<String> evictor,
+            ToLongFunction<String> memoryOfUser, LongSupplier totalMemory, MeterRegistry meterRegistry) {
+        this.idleTtlMillis = idleTtlMillis;
+        this.memoryBudgetKb = memoryBudgetKb;
+        this.evictor = evictor;
+        this.memoryOfUser = memoryOfUser;
+        this.totalMemory = totalMemory;
+        this.hits = Counter.builder("lsp.retention.hits")
+                .description("Reconnects that reattached to a retained language server")
+                .register(meterRegistry);
+        this.misses = Counter.builder("lsp.retention.misses")
+                .description("Connects that had to start a language server")
+                .register(meterRegistry);
+        this.ttlEvictions = Counter.builder("lsp.retention.evictions")
+                .description("Retained language servers stopped")
+                .tag("reason", "ttl")
+                .register(meterRegistry);
+        this.memoryEvictions = Counter.builder("lsp.retention.evictions")
+                .description("Retained language servers stopped")
+                .tag("reason", "memory")
+                .register(meterRegistry);
+        this.capacityEvictions = Counter.builder("lsp.retention.evictions")
+                .description("Retained language servers stopped")
+                .tag("reason", "capacity")
+                .register(meterRegistry);
+        Gauge.builder("lsp.retention.idle", this, LanguageServerRetention::getIdleCount)
+                .description("Language servers kept running without a session")
+                .register(meterRegistry);
+        // Active servers grow too, so the budget is also checked periodically
+        this.budgetCheck = memoryBudgetKb > 0
+                ? LspThreads.scheduler().scheduleWithFixedDelay(this::enforceMemoryBudget, 30, 30,
+                        TimeUnit.SECONDS)
+                : null;
+    }
+
+    /**
+     * Starts the grace period of a user whose last session left.
+     */
+    public void retain(String userId) {
+        synchronized (this) {
+            ScheduledFuture<?> previous = idle.remove(userId);
+            if (previous != null) {
+                previous.cancel(false);
+            }
+            idle.put(userId, LspThreads.scheduler().schedule(() -> inBackground(() -> expire(userId)),
+                    idleTtlMillis, TimeUnit.MILLISECONDS));
+        }
+        logger.info("Retaining LSP of user {} for {} ms ({} idle)", userId, idleTtlMillis, getIdleCount());
+        enforceMemoryBudget();
+    }
+
+    /**
+     * Ends the grace period because the user reconnected. Returns true when
+     * the server was being retained.
+     */
+    public boolean reclaim(String userId) {
+        ScheduledFuture<?> timer;
+        synchronized (this) {
+            timer = idle.remove(userId);
+        }
+        if (timer == null) {
+            return false;
+        }
+        timer.cancel(false);
+        hits.increment();
+        logger.info("User {} reattached to retained LSP", userId);
+        return true;
+    }
+
+    /**
+     * Forgets a user without counting a hit, e.g. when its server died while
+     * retained.
+     */
+    public synchronized void forget(String userId) {
+        ScheduledFuture<?> timer = idle.remove(userId);
+        if (timer != null) {
+            timer.cancel(false);
+        }
+    }
+
+    /**
+     * Counts a connect that found no retained server.
+     */
+    public void recordMiss() {
+        misses.increment();
+    }
+
+    private void expire(String userId) {
+        synchronized (this) {
+            if (idle.remove(userId) == null) {
+                return;
+            }
+        }
+        if (evictor.test(userId)) {
+            ttlEvictions.increment();
+            logger.info("Retention of LSP of user {} expired", userId);
+        }
+    }
+
+    /**
+     * Evicts idle servers, least recently used first, until the language
+     * servers fit in the memory budget again; in the background.
+     */
+    public void enforceMemoryBudget() {
+        if (memoryBudgetKb > 0) {
+            inBackground(this::checkMemoryBudget);
+        }
+    }
+
+    private void inBackground(Runnable task) {
+        try {
+            evictions.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shut down
+        }
+    }
+
+    private void checkMemoryBudget() {
+        long used = totalMemory.getAsLong();
+        if (used <= memoryBudgetKb) {
+            return;
+        }
+        List<String> candidates;
+        synchronized (this) {
+            candidates = new ArrayList<>(idle.keySet());
+        }
+        for (String userId : candidates) {
+            if (used <= memoryBudgetKb) {
+                break;
+            }
+            long freed = Math.max(0, memoryOfUser.applyAsLong(userId));
+            synchronized (this) {
+                ScheduledFuture<?> timer = idle.remove(userId);
+                if (timer == null) {
+                    continue;
+                }
+                timer.cancel(false);
+            }
+            if (evictor.test(userId)) {
+                memoryEvictions.increment();
+                used -= freed;
+                logger.info("Evicted idle LSP of user {} to stay within memory budget ({} KB used of {} KB)",
+                        userId, used, memoryBudgetKb);
+            }
+        }
+        if (used > memoryBudgetKb) {
+            logger.debug("Language servers use {} KB, above the budget of {} KB, with nothing idle to evict", used,
+                    memoryBudgetKb);
+        }
+    }
+
+    /**
+     * Evicts the least recently used idle server to make room for a user
+     * waiting for capacity. Returns false when nothing idle could be stopped.
+     */
+    public boolean evictOldest() {
+        while (true) {
+            String userId;
+            synchronized (this) {
+                if (idle.isEmpty()) {
+                    return false;
+                }
+                userId = idle.keySet().iterator().next();
+                idle.remove(userId).cancel(false);
+            }
+            if (evictor.test(userId)) {
+                capacityEvictions.increment();
+                logger.info("Evicted idle LSP of user {} to make room for a waiting user", userId);
+                return true;
+            }
+        }
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    public long getHitCount() {
+        return (long) hits.count();
+    }
+
+    public long getMissCount() {
+        return (long) misses.count();
+    }
+
+    public long getEvictionCount() {
+        return (long) (ttlEvictions.count() + memoryEvictions.count() + capacityEvictions.count());
+    }
+
+    public void shutdown() {
+        if (budgetCheck != null) {
+            budgetCheck.cancel(false);
+        }
+        synchronized (this) {
+            for (Map.Entry<String, ScheduledFuture<?>> entry : idle.entrySet()) {
+                entry.getValue().cancel(false);
+            }
+            idle.clear();
+        }
+        evictions.shutdown();
+    }
+}
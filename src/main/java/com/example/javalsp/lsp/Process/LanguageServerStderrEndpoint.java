@@ -0,0 +1,33 @@
+package com.example.javalsp.lsp.Process;
+
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@code GET /actuator/lspstderr/{userId}}: the recent stderr lines of the
+ * language server a user is on, for debugging a session without raising the
+ * log level of the whole node. Requires authentication, stderr contains
+ * workspace paths and source snippets.
+ */
+@Component
+@Endpoint(id = "lspstderr")
+public class LanguageServerStderrEndpoint {
+
+    private final LanguageServerProcessManager processManager;
+
+    public LanguageServerStderrEndpoint(LanguageServerProcessManager processManager) {
+        this.processManager = processManager;
+    }
+
+    @ReadOperation
+    public Map<String, Object> stderr(@Selector String userId) {
+        List<String> lines = processManager.getRecentStderr(userId);
+        // null answers 404
+        return lines != null ? Map.of("userId", userId, "lines", lines) : null;
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.javalsp.lsp.Process;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streaming decoder for the LSP base protocol ({@code Content-Length} framed
+ * JSON-RPC). Input is read in blocks into a single buffer that is reused for
+ * every frame and only grows when a frame does not fit; headers are parsed in
+ * place without building strings.
+ *
+ * <p>
+ * After {@link #next()} returns true the frame body is available as
+ * {@link #buffer()} from {@link #contentOffset()} for {@link #contentLength()}
+ * bytes. The slice is only valid until the next call to {@link #next()}.
+ * Not thread-safe; one decoder belongs to one reader thread.
+ */
+public class LspFrameDecoder {
+    static final int DEFAULT_INITIAL_CAPACITY = 8 * 1024;
+    static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    static final int MAX_HEADER_SIZE = 8 * 1024;
+    // Growth up to this size is kept across frames; beyond it the buffer is released
+    static final int RETAINED_CAPACITY = 1024 * 1024;
+
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+    private static final Logger logger = LoggerFactory.getLogger(LspFrameDecoder.class);
+
+    private final InputStream in;
+    private final int initialCapacity;
+    private final int maxFrameSize;
+    private byte[] buffer;
+    // Unconsumed input is buffer[position, limit)
+    private int position;
+    private int limit;
+    private int contentOffset;
+    private int contentLength;
+    private long droppedFrames;
+
+    public LspFrameDecoder(InputStream in) {
+        this(in, DEFAULT_INITIAL_CAPACITY, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    public LspFrameDecoder(InputStream in, int initialCapacity, int maxFrameSize) {
+        this.in = in;
+        this.initialCapacity = initialCapacity;
+        this.maxFrameSize = maxFrameSize;
+        this.buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Reads the next frame. Returns false when the stream ends cleanly between
+     * frames. Frames without a usable {@code Content-Length} or larger than the
+     * configured maximum are skipped and counted in {@link #getDroppedFrames()}.
+     */
+    public boolean next() throws IOException {
+        shrinkIfIdle();
+        while (true) {
+            int headerEnd = readHeaders();
+            if (headerEnd == -1) {
+                return false;
+            }
+
+            int length = parseContentLength(position, headerEnd);
+            position = headerEnd;
+
+            if (length < 0) {
+                droppedFrames++;
+                logger.warn("LSP message received without a valid Content-Length header");
+                continue;
+            }
+            if (length > maxFrameSize) {
+                droppedFrames++;
+                logger.warn("Skipping LSP message of {} bytes, larger than the {} byte limit", length, maxFrameSize);
+                skip(length);
+                continue;
+            }
+
+            ensureReadable(length);
+            contentOffset = position;
+            contentLength = length;
+            position += length;
+            return true;
+        }
+    }
+
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int contentOffset() {
+        return contentOffset;
+    }
+
+    public int contentLength() {
+        return contentLength;
+    }
+
+    public String contentAsString() {
+        return new String(buffer, contentOffset, contentLength, StandardCharsets.UTF_8);
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Buffers input until a complete header block is available and returns the
+     * index just past its terminating blank line, or -1 on end of stream.
+     */
+    private int readHeaders() throws IOException {
+        int scanFrom = position;
+        while (true) {
+            for (int i = Math.max(scanFrom, position + 3); i < limit; i++) {
+                if (buffer[i] == '\n' && buffer[i - 1] == '\r' && buffer[i - 2] == '\n' && buffer[i - 3] == '\r') {
+                    return i + 1;
+                }
+            }
+            if (limit - position > MAX_HEADER_SIZE) {
+                throw new IOException("LSP header block exceeds " + MAX_HEADER_SIZE + " bytes");
+            }
+            int scanned = limit - position;
+            if (fill(limit - position + 1) == -1) {
+                if (limit > position) {
+                    logger.warn("LSP stream ended inside a header block ({} bytes discarded)", limit - position);
+                }
+                return -1;
+            }
+            scanFrom = position + scanned;
+        }
+    }
+
+    private int parseContentLength(int from, int to) {
+        int lineStart = from;
+        for (int i = from; i < to - 1; i++) {
+            if (buffer[i] != '\r' || buffer[i + 1] != '\n') {
+                continue;
+            }
+            if (startsWithIgnoreCase(lineStart, i, CONTENT_LENGTH)) {
+                return parseDecimal(lineStart + CONTENT_LENGTH.length, i);
+            }
+            lineStart = i + 2;
+        }
+        return -1;
+    }
+
+    private boolean startsWithIgnoreCase(int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            int b = buffer[from + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int parseDecimal(int from, int to) {
+        while (from < to && buffer[from] == ' ') {
+            from++;
+        }
+        while (to > from && buffer[to - 1] == ' ') {
+            to--;
+        }
+        if (from == to) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+            if (value > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) value;
+    }
+
+    private void ensureReadable(int length) throws IOException {
+        while (limit - position < length) {
+            if (fill(length) == -1) {
+                throw new EOFException("Stream ended after " + (limit - position) + " of " + length
+                        + " content bytes");
+            }
+        }
+    }
+
+    private void skip(int length) throws IOException {
+        int buffered = Math.min(length, limit - position);
+        position += buffered;
+        long remaining = length - buffered;
+        while (remaining > 0) {
+            position = 0;
+            limit = 0;
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new EOFException("Stream ended while skipping an oversized LSP message");
+            }
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Reads at least one more byte, first making room so that {@code needed}
+     * bytes starting at {@link #position} fit in the buffer.
+     */
+    private int fill(int needed) throws IOException {
+        if (buffer.length - position < needed || limit == buffer.length) {
+            if (needed > buffer.length) {
+                byte[] grown = new byte[Math.max(needed, Math.min(buffer.length * 2, maxFrameSize))];
+                System.arraycopy(buffer, position, grown, 0, limit - position);
+                buffer = grown;
+            } else {
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+            }
+            limit -= position;
+            position = 0;
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read > 0) {
+            limit += read;
+        }
+        return read;
+    }
+
+    /**
+     * Drops a buffer that grew for a large frame once the surplus is no longer
+     * needed, so one huge response does not pin memory for the process lifetime.
+     */
+    private void shrinkIfIdle() {
+        int pending = limit - position;
+        if (buffer.length > Math.max(initialCapacity, RETAINED_CAPACITY) && pending <= initialCapacity) {
+            byte[] shrunk = new byte[initialCapacity];
+            System.arraycopy(buffer, position, shrunk, 0, pending);
+            buffer = shrunk;
+            limit = pending;
+            position = 0;
+        }
+    }
+}
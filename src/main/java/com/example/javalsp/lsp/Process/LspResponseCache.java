@@ -0,0 +1,282 @@
+package com.example.javalsp.lsp.Process;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Responses to idempotent document requests that editors repeat on an
+ * unchanged document ({@code documentSymbol}, {@code foldingRange},
+ * {@code semanticTokens/full}, {@code codeLens}), shared by all multiplexers
+ * of a node and bounded in bytes, least recently used first.
+ *
+ * <p>
+ * Entries are keyed by owner (one multiplexer), method, document version and
+ * the request parameters, so a response is only reused for the exact same
+ * question about the exact same text. Edits drop the entries of the edited
+ * document eagerly; results that depend on other files too (semantic tokens,
+ * code lenses with reference counts) are dropped on any edit of the owner's
+ * documents.
+ */
+public class LspResponseCache {
+
+    /**
+     * Results that only depend on the text of the document.
+     */
+    private static final Set<String> DOCUMENT_SCOPED = Set.of(
+            "textDocument/documentSymbol",
+            "textDocument/foldingRange");
+
+    /**
+     * Results that also depend on other files of the project.
+     */
+    private static final Set<String> PROJECT_SCOPED = Set.of(
+            "textDocument/semanticTokens/full",
+            "textDocument/codeLens");
+
+    /**
+     * URI and version of the {@code params.textDocument} of a message.
+     */
+    public static final class DocumentRef {
+        public final String uri;
+        public final String version;
+
+        private DocumentRef(String uri, String version) {
+            this.uri = uri;
+            this.version = version;
+        }
+    }
+
+    private static final class Entry {
+        private final String documentKey;
+        private final String owner;
+        private final boolean projectScoped;
+        private final byte[] response;
+
+        private Entry(String documentKey, String owner, boolean projectScoped, byte[] response) {
+            this.documentKey = documentKey;
+            this.owner = owner;
+            this.projectScoped = projectScoped;
+            this.response = response;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    // owner + " " + uri -> keys of its entries
+    private final Map<String, Set<String>> keysByDocument = new HashMap<>();
+    // owner -> keys of its project scoped entries
+    private final Map<String, Set<String>> projectScopedKeys = new HashMap<>();
+    private long bytes;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Counter> hits = new ConcurrentHashMap<>();
+    private final Map<String, Counter> misses = new ConcurrentHashMap<>();
+    private final Counter evictions;
+    private long hitCount;
+    private long missCount;
+
+    public LspResponseCache(long maxBytes, MeterRegistry meterRegistry) {
+        this.maxBytes = maxBytes;
+        this.meterRegistry = meterRegistry;
+        this.evictions = Counter.builder("lsp.cache.evictions")
+                .description("Cached responses dropped to stay within the size bound")
+                .register(meterRegistry);
+        Gauge.builder("lsp.cache.bytes", this, LspResponseCache::getBytes)
+                .description("Size of the cached responses")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("lsp.cache.entries", this, LspResponseCache::size)
+                .description("Cached responses")
+                .register(meterRegistry);
+        Gauge.builder("lsp.cache.hit.ratio", this, LspResponseCache::getHitRatio)
+                .description("Share of cacheable requests answered from the cache")
+                .register(meterRegistry);
+    }
+
+    public static boolean isCacheable(String method) {
+        return method != null && (DOCUMENT_SCOPED.contains(method) || PROJECT_SCOPED.contains(method));
+    }
+
+    /**
+     * The cache key of a request, or null when it must go to the server: its
+     * document is not open (no known version) or it asks for progress
+     * reporting.
+     */
+    public static String key(String owner, String method, String version, String message) {
+        if (version == null) {
+            return null;
+        }
+        try {
+            JsonElement params = JsonParser.parseString(message).getAsJsonObject().get("params");
+            if (params == null || !params.isJsonObject()) {
+                return null;
+            }
+            JsonObject object = params.getAsJsonObject();
+            if (object.has("workDoneToken") || object.has("partialResultToken")) {
+                return null;
+            }
+            return owner + '\0' + method + '\0' + version + '\0' + object;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    public synchronized byte[] get(String key, String method) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            missCount++;
+            count(misses, "miss", method);
+            return null;
+        }
+        hitCount++;
+        count(hits, "hit", method);
+        return entry.response;
+    }
+
+    public synchronized void put(String key, String owner, String uri, String method, byte[] response) {
+        if (response.length > maxBytes / 4) {
+            return; // would push out too much else
+        }
+        String documentKey = owner + " " + uri;
+        boolean projectScoped = PROJECT_SCOPED.contains(method);
+        remove(key);
+        entries.put(key, new Entry(documentKey, owner, projectScoped, response));
+        bytes += response.length;
+        keysByDocument.computeIfAbsent(documentKey, k -> new HashSet<>()).add(key);
+        if (projectScoped) {
+            projectScopedKeys.computeIfAbsent(owner, k -> new HashSet<>()).add(key);
+        }
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Entry> next = eldest.next();
+            eldest.remove();
+            unindex(next.getKey(), next.getValue());
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Drops what an edit of {@code uri} may have made wrong: the document's
+     * own entries and the owner's project scoped ones.
+     */
+    public synchronized void documentChanged(String owner, String uri) {
+        Set<String> keys = keysByDocument.get(owner + " " + uri);
+        if (keys != null) {
+            new HashSet<>(keys).forEach(this::remove);
+        }
+        projectChanged(owner);
+    }
+
+    /**
+     * Drops the owner's entries that depend on files other than their own,
+     * e.g. after a save or a change on disk.
+     */
+    public synchronized void projectChanged(String owner) {
+        Set<String> keys = projectScopedKeys.get(owner);
+        if (keys != null) {
+            new HashSet<>(keys).forEach(this::remove);
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            unindex(key, entry);
+        }
+    }
+
+    private void unindex(String key, Entry entry) {
+        bytes -= entry.response.length;
+        Set<String> keys = keysByDocument.get(entry.documentKey);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            keysByDocument.remove(entry.documentKey);
+        }
+        if (entry.projectScoped) {
+            Set<String> scoped = projectScopedKeys.get(entry.owner);
+            if (scoped != null && scoped.remove(key) && scoped.isEmpty()) {
+                projectScopedKeys.remove(entry.owner);
+            }
+        }
+    }
+
+    private void count(Map<String, Counter> counters, String result, String method) {
+        counters.computeIfAbsent(method, m -> Counter.builder("lsp.cache.requests")
+                .description("Cacheable requests, by whether the cache answered them")
+                .tag("method", m)
+                .tag("result", result)
+                .register(meterRegistry))
+                .increment();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized double getHitRatio() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Reads {@code params.textDocument.uri} and {@code .version} without
+     * building a tree, so large didChange notifications stay cheap. Returns
+     * null when there is no URI.
+     */
+    public static DocumentRef readDocument(String message) {
+        try (JsonReader reader = new JsonReader(new StringReader(message))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals("params") || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (!reader.nextName().equals("textDocument") || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    String uri = null;
+                    String version = null;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String field = reader.nextName();
+                        JsonToken token = reader.peek();
+                        if (field.equals("uri") && token == JsonToken.STRING) {
+                            uri = reader.nextString();
+                        } else if (field.equals("version") && token == JsonToken.NUMBER) {
+                            version = reader.nextString();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    return uri == null ? null : new DocumentRef(uri, version);
+                }
+                return null;
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        return null;
+    }
+}
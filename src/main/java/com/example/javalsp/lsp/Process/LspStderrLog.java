@@ -0,0 +1,211 @@
+package com.example.javalsp.lsp.Process;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * The stderr of one language server: the most recent lines in a fixed-size
+ * ring for dumps on demand or after a crash, and every line forwarded to the
+ * application log at the level the server gave it, at most
+ * {@code linesPerSecond} per second.
+ *
+ * <p>
+ * Levels are read from what JDT-LS, its JVM and phpactor write: Eclipse log
+ * entries ({@code !ENTRY <bundle> <severity> ...}, up to the next blank line),
+ * an upper-case level word near the start of the line (logback,
+ * java.util.logging, monolog's {@code channel.LEVEL:}), and JVM fatal errors.
+ * Stack trace lines take the level of the line they continue; anything else
+ * is INFO. Only the error reader thread calls {@link #accept}.
+ */
+public class LspStderrLog {
+
+    public enum Level {
+        ERROR, WARN, INFO, DEBUG
+    }
+
+    // Longer lines (minified JSON, class paths) are cut in the ring and the log
+    private static final int MAX_LINE_CHARS = 2000;
+    // Where the level of a formatted log line is written
+    private static final int LEVEL_PREFIX_CHARS = 120;
+    private static final Pattern LEVEL_WORD = Pattern.compile(
+            "\\b(SEVERE|FATAL|ERROR|WARNING|WARN|INFO|CONFIG|DEBUG|TRACE|FINE|FINER|FINEST)\\b");
+    private static final long WINDOW_NANOS = 1_000_000_000L;
+    private static final Logger logger = LoggerFactory.getLogger(LspStderrLog.class);
+
+    private final String[] ring;
+    private int next;
+    private long total;
+    private final int linesPerSecond;
+    private final Map<Level, Counter> lines = new EnumMap<>(Level.class);
+    private final Counter suppressed;
+
+    // Reader thread state
+    private Level previous = Level.INFO;
+    private boolean inEclipseEntry;
+    private long windowStart = System.nanoTime();
+    private int forwardedInWindow;
+    private int suppressedInWindow;
+
+    /**
+     * @param bufferLines    lines kept for dumps; 0 keeps none
+     * @param linesPerSecond lines forwarded to the log per second; 0 = all
+     */
+    public LspStderrLog(int bufferLines, int linesPerSecond, String language, MeterRegistry meterRegistry) {
+        this.ring = new String[Math.max(0, bufferLines)];
+        this.linesPerSecond = linesPerSecond;
+        for (Level level : Level.values()) {
+            lines.put(level, Counter.builder("lsp.stderr.lines")
+                    .description("Lines language servers wrote to stderr, by parsed level")
+                    .tag("language", language)
+                    .tag("level", level.name().toLowerCase(Locale.ROOT))
+                    .register(meterRegistry));
+        }
+        this.suppressed = Counter.builder("lsp.stderr.suppressed")
+                .description("Stderr lines kept out of the application log by the rate limit")
+                .tag("language", language)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Records one stderr line of the server of {@code owner} and returns its
+     * level.
+     */
+    public Level accept(String owner, String line) {
+        Level level = parseLevel(line);
+        String text = line.length() > MAX_LINE_CHARS ? line.substring(0, MAX_LINE_CHARS) + "..." : line;
+        synchronized (this) {
+            if (ring.length > 0) {
+                ring[next] = text;
+                next = (next + 1) % ring.length;
+            }
+            total++;
+        }
+        lines.get(level).increment();
+        if (allowed(owner)) {
+            forward(level, owner, text);
+        }
+        return level;
+    }
+
+    Level parseLevel(String line) {
+        if (line.isEmpty()) {
+            inEclipseEntry = false;
+            return previous;
+        }
+        if (line.startsWith("!ENTRY ") || line.startsWith("!SUBENTRY ")) {
+            inEclipseEntry = true;
+            previous = eclipseSeverity(line);
+            return previous;
+        }
+        if (inEclipseEntry || isContinuation(line)) {
+            return previous;
+        }
+        if (line.startsWith("Exception in thread ") || line.startsWith("Error: ")
+                || line.startsWith("Error occurred during initialization of VM")
+                || line.contains("java.lang.OutOfMemoryError")) {
+            previous = Level.ERROR;
+            return previous;
+        }
+        Matcher word = LEVEL_WORD.matcher(line);
+        word.region(0, Math.min(line.length(), LEVEL_PREFIX_CHARS));
+        previous = word.find() ? levelOf(word.group(1)) : Level.INFO;
+        return previous;
+    }
+
+    private static boolean isContinuation(String line) {
+        char first = line.charAt(0);
+        return first == '\t' || line.startsWith("    at ") || line.startsWith("Caused by: ")
+                || line.startsWith("!MESSAGE") || line.startsWith("!STACK");
+    }
+
+    /**
+     * {@code !ENTRY bundle severity code date} or
+     * {@code !SUBENTRY depth bundle severity code date}; severities are
+     * Eclipse IStatus bits.
+     */
+    private static Level eclipseSeverity(String line) {
+        String[] fields = line.split(" ", 6);
+        int index = line.startsWith("!SUBENTRY ") ? 3 : 2;
+        if (fields.length <= index) {
+            return Level.INFO;
+        }
+        return switch (fields[index]) {
+            case "4" -> Level.ERROR;
+            case "2" -> Level.WARN;
+            default -> Level.INFO;
+        };
+    }
+
+    private static Level levelOf(String word) {
+        return switch (word) {
+            case "SEVERE", "FATAL", "ERROR" -> Level.ERROR;
+            case "WARNING", "WARN" -> Level.WARN;
+            case "INFO", "CONFIG" -> Level.INFO;
+            default -> Level.DEBUG;
+        };
+    }
+
+    private boolean allowed(String owner) {
+        if (linesPerSecond <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (now - windowStart >= WINDOW_NANOS) {
+            if (suppressedInWindow > 0) {
+                logger.warn("LSP stderr [{}]: {} lines not logged in the last second, see the stderr endpoint",
+                        owner, suppressedInWindow);
+            }
+            windowStart = now;
+            forwardedInWindow = 0;
+            suppressedInWindow = 0;
+        }
+        if (forwardedInWindow < linesPerSecond) {
+            forwardedInWindow++;
+            return true;
+        }
+        suppressedInWindow++;
+        suppressed.increment();
+        return false;
+    }
+
+    private static void forward(Level level, String owner, String text) {
+        switch (level) {
+            case ERROR -> logger.error("LSP stderr [{}]: {}", owner, text);
+            case WARN -> logger.warn("LSP stderr [{}]: {}", owner, text);
+            case INFO -> logger.info("LSP stderr [{}]: {}", owner, text);
+            default -> logger.debug("LSP stderr [{}]: {}", owner, text);
+        }
+    }
+
+    /**
+     * The buffered lines, oldest first.
+     */
+    public synchronized List<String> recentLines() {
+        List<String> recent = new ArrayList<>(ring.length);
+        for (int i = 0; i < ring.length; i++) {
+            String line = ring[(next + i) % ring.length];
+            if (line != null) {
+                recent.add(line);
+            }
+        }
+        return recent;
+    }
+
+    /**
+     * Lines written since the process started, buffered or not.
+     */
+    public synchronized long getTotalLines() {
+        return total;
+    }
+}
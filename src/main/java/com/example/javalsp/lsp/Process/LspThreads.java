@@ -0,0 +1,142 @@
+package com.example.javalsp.lsp.Process;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Execution model for the blocking loops that every language server process
+ * needs (stdout reader, stderr reader, LSP4J dispatch).
+ *
+ * <p>
+ * {@link Mode#PLATFORM} uses daemon platform threads with a reduced stack.
+ * {@link Mode#VIRTUAL} uses virtual threads when the runtime supports them
+ * (Java 21+) and falls back to platform threads otherwise; the project still
+ * compiles for Java 17, so they are looked up reflectively. Timers are run on
+ * one shared scheduler in both modes. Writes to server stdin run on a pool
+ * whose threads only exist while some process has messages to write.
+ */
+public final class LspThreads {
+
+    public enum Mode {
+        PLATFORM, VIRTUAL
+    }
+
+    // Reader loops only need a shallow stack; the JVM default is 1 MB
+    static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+    public static final LspThreads PLATFORM = new LspThreads(Mode.PLATFORM, null);
+
+    private static final Logger logger = LoggerFactory.getLogger(LspThreads.class);
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = lookupVirtualThreadFactory();
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "LSP-Scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Mode mode;
+    private final ThreadFactory virtualThreadFactory;
+    private volatile ExecutorService writers;
+
+    private LspThreads(Mode mode, ThreadFactory virtualThreadFactory) {
+        this.mode = mode;
+        this.virtualThreadFactory = virtualThreadFactory;
+    }
+
+    public static LspThreads of(Mode mode) {
+        if (mode == Mode.VIRTUAL) {
+            if (VIRTUAL_THREAD_FACTORY != null) {
+                return new LspThreads(Mode.VIRTUAL, VIRTUAL_THREAD_FACTORY);
+            }
+            logger.warn("Virtual threads are not available on Java {}, using platform threads",
+                    Runtime.version().feature());
+        }
+        return PLATFORM;
+    }
+
+    public static LspThreads of(String mode) {
+        return of(Mode.valueOf(mode.trim().toUpperCase(Locale.ROOT)));
+    }
+
+    public static boolean isVirtualAvailable() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /**
+     * Shared scheduler for short timer tasks. Tasks must not block.
+     */
+    public static ScheduledExecutorService scheduler() {
+        return SCHEDULER;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Creates and starts a daemon thread running {@code task}.
+     */
+    public Thread start(String name, Runnable task) {
+        Thread thread = newThread(name, task);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Executor for the stdin writers of all processes. Idle threads end after
+     * a minute, so idle sessions cost none.
+     */
+    public Executor writers() {
+        ExecutorService pool = writers;
+        if (pool == null) {
+            synchronized (this) {
+                pool = writers;
+                if (pool == null) {
+                    pool = Executors.newCachedThreadPool(threadFactory("LSP-Writer-"));
+                    writers = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Thread factory for executors owned by one process, naming threads
+     * {@code prefix + n}.
+     */
+    public ThreadFactory threadFactory(String prefix) {
+        AtomicInteger sequence = new AtomicInteger();
+        return r -> newThread(prefix + sequence.incrementAndGet(), r);
+    }
+
+    private Thread newThread(String name, Runnable task) {
+        Thread thread;
+        if (virtualThreadFactory != null) {
+            thread = virtualThreadFactory.newThread(task);
+            thread.setName(name);
+        } else {
+            thread = new Thread(null, task, name, PLATFORM_STACK_SIZE);
+            thread.setDaemon(true);
+        }
+        return thread;
+    }
+
+    private static ThreadFactory lookupVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
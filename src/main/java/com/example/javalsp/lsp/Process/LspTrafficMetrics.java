@@ -0,0 +1,102 @@
+package com.example.javalsp.lsp.Process;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * JSON-RPC traffic between proxy and language servers, shared by all
+ * processes of a manager: message and byte counts per direction, requests in
+ * flight, and request latency per method from the moment the request is
+ * written to stdin until its response is read from stdout.
+ *
+ * <p>
+ * Latency timers publish percentile histograms, so p99 per method can be
+ * computed and alerted on in Prometheus. Meters are cached per tag set since
+ * they are hit for every message.
+ */
+public class LspTrafficMetrics {
+
+    public static final String CLIENT = "client";
+    public static final String SERVER = "server";
+
+    // Method names come from the editor; anything unusual is folded into one tag
+    private static final Pattern METHOD_NAME = Pattern.compile("[A-Za-z$/_.]{1,64}");
+
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Counter> messages = new ConcurrentHashMap<>();
+    private final Map<String, Counter> bytes = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, Timer> latencies = new ConcurrentHashMap<>();
+
+    public LspTrafficMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Counts a message written to ({@link #CLIENT}) or read from
+     * ({@link #SERVER}) a language server.
+     */
+    public void message(String language, String direction, int size) {
+        String key = language + " " + direction;
+        messages.computeIfAbsent(key, k -> Counter.builder("lsp.messages")
+                .description("JSON-RPC messages exchanged with language servers, by sender")
+                .tag("language", language)
+                .tag("direction", direction)
+                .register(meterRegistry))
+                .increment();
+        bytes.computeIfAbsent(key, k -> Counter.builder("lsp.message.bytes")
+                .description("JSON-RPC payload exchanged with language servers, by sender")
+                .tag("language", language)
+                .tag("direction", direction)
+                .baseUnit("bytes")
+                .register(meterRegistry))
+                .increment(size);
+    }
+
+    public void requestStarted(String language) {
+        inFlight(language).incrementAndGet();
+    }
+
+    public void requestCompleted(String language, String method, long elapsedNanos, boolean error) {
+        inFlight(language).decrementAndGet();
+        String tag = method != null && METHOD_NAME.matcher(method).matches() ? method : "other";
+        String outcome = error ? "error" : "success";
+        latencies.computeIfAbsent(language + " " + tag + " " + outcome, k -> Timer.builder("lsp.request.latency")
+                .description("Time from writing a request to the language server until its response is read")
+                .tag("language", language)
+                .tag("method", tag)
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .maximumExpectedValue(Duration.ofSeconds(30))
+                .register(meterRegistry))
+                .record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Releases requests that will never be answered, e.g. when the server is
+     * destroyed.
+     */
+    public void requestsAbandoned(String language, int count) {
+        inFlight(language).addAndGet(-count);
+    }
+
+    private AtomicLong inFlight(String language) {
+        return inFlight.computeIfAbsent(language, lang -> {
+            AtomicLong count = new AtomicLong();
+            Gauge.builder("lsp.requests.inflight", count, AtomicLong::get)
+                    .description("Requests written to language servers and not answered yet")
+                    .tag("language", lang)
+                    .register(meterRegistry);
+            return count;
+        });
+    }
+}
@@ -0,0 +1,454 @@
+package com.example.javalsp.lsp.Process;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * The only writer of one server's stdin. Callers add messages to a lock-free
+ * queue and return; one drain task at a time, started when messages arrive at
+ * an idle writer, frames every message that may go next into one reused
+ * buffer and writes the batch with a single write and flush. A busy server
+ * costs one pipe write per batch rather than per message, a server that
+ * stopped reading blocks only its own writer, and an idle one holds no
+ * thread.
+ *
+ * <p>
+ * Messages are picked by {@link Priority}: interactive requests go ahead of
+ * other queued requests, and position-free background requests go last.
+ * Document notifications are barriers: they are written in arrival order and
+ * no request moves ahead of a notification that arrived before it, so
+ * requests never reach the server before the edits they were made against.
+ * Background requests may fall behind later notifications, then the server
+ * answers them for the newer text. Without prioritisation every message is
+ * written in arrival order.
+ *
+ * <p>
+ * A {@code $/cancelRequest} for a request that is still queued withdraws it:
+ * neither is written and the request is answered locally through the
+ * listener. Otherwise the request was written before, so the cancel may
+ * overtake anything queued. Likewise a {@code didChange} withdraws the queued
+ * requests that read its document at a position, whose answers would be out
+ * of date.
+ */
+public class LspWriteScheduler {
+
+    public enum Priority {
+        /** Requests a user is waiting on while typing, cancellations and answers to server requests. */
+        INTERACTIVE,
+        /** Other requests, in arrival order. */
+        NORMAL,
+        /** Notifications, strictly in arrival order. */
+        DOCUMENT,
+        /** Whole-document requests editors send after every edit or scroll. */
+        BACKGROUND;
+
+        private String tag() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * Told about every message as it goes into a batch and about the first
+     * failed write, after which the queue is discarded and nothing is written.
+     */
+    public interface Listener {
+        void writing(JsonRpcEnvelope envelope, int contentLength);
+
+        void failed(IOException e);
+
+        /**
+         * A queued request was withdrawn before it was written and needs an
+         * answer with this JSON-RPC error.
+         */
+        void withdrawn(JsonRpcEnvelope request, int code, String message);
+    }
+
+    /**
+     * What the caller knows about a message beyond its envelope.
+     *
+     * @param cancelledId     the id of the request a {@code $/cancelRequest}
+     *                        cancels, as written
+     * @param readsDocument   the URI of the document a request reads at a
+     *                        position or range
+     * @param changesDocument the URI of the document a {@code didChange}
+     *                        changes
+     */
+    public record MessageInfo(String cancelledId, String readsDocument, String changesDocument) {
+        public static final MessageInfo NONE = new MessageInfo(null, null, null);
+    }
+
+    private static final class Entry {
+        private final String message;
+        private final JsonRpcEnvelope envelope;
+        private final MessageInfo info;
+        private final Priority priority;
+        // Notifications queued before this message, which have to be written first
+        private long documentsBefore;
+        private final long enqueuedAt = System.nanoTime();
+
+        private Entry(String message, JsonRpcEnvelope envelope, MessageInfo info, Priority priority) {
+            this.message = message;
+            this.envelope = envelope;
+            this.info = info;
+            this.priority = priority;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(LspWriteScheduler.class);
+
+    private static final Set<String> INTERACTIVE_METHODS = Set.of(
+            "textDocument/completion",
+            "completionItem/resolve",
+            "textDocument/hover",
+            "textDocument/signatureHelp",
+            "textDocument/documentHighlight",
+            "$/cancelRequest");
+
+    // Requests without positions, so answering them for newer text is still right
+    private static final Set<String> BACKGROUND_METHODS = Set.of(
+            "textDocument/codeLens",
+            "codeLens/resolve",
+            "textDocument/documentSymbol",
+            "textDocument/semanticTokens/full",
+            "textDocument/semanticTokens/full/delta",
+            "textDocument/foldingRange",
+            "textDocument/documentLink",
+            "textDocument/documentColor",
+            "workspace/symbol");
+
+    // A background request waiting longer goes before new normal requests
+    private static final long MAX_BACKGROUND_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Stop adding to a batch beyond the size of a Linux pipe buffer
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_TYPE = "\r\nContent-Type: application/vscode-jsonrpc; charset=utf-8\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private final boolean prioritize;
+    private final OutputStream out;
+    private final Listener listener;
+    private final ConcurrentLinkedQueue<Entry> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    // Set while a drain task is scheduled or running
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Executor executor;
+    private volatile boolean closed;
+    private final Map<Priority, Timer> delays = new EnumMap<>(Priority.class);
+    private final DistributionSummary batchSize;
+    private final Counter writes;
+    private final Counter withdrawals;
+
+    // Owned by the running drain task
+    private final Map<Priority, ArrayDeque<Entry>> queues = new EnumMap<>(Priority.class);
+    private long documentsQueued;
+    private long documentsWritten;
+    private byte[] buffer = new byte[BATCH_BYTES];
+    private int length;
+
+    public LspWriteScheduler(boolean prioritize, OutputStream out, Listener listener, Executor executor,
+            String language, MeterRegistry meterRegistry) {
+        this.prioritize = prioritize;
+        this.out = out;
+        this.listener = listener;
+        this.executor = executor;
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new ArrayDeque<>());
+            delays.put(priority, Timer.builder("lsp.write.queue.delay")
+                    .description("Time client messages wait before they are written to the language server")
+                    .tag("language", language)
+                    .tag("priority", priority.tag())
+                    .register(meterRegistry));
+        }
+        this.batchSize = DistributionSummary.builder("lsp.write.batch.messages")
+                .description("Client messages written to a language server with one write")
+                .tag("language", language)
+                .register(meterRegistry);
+        this.writes = Counter.builder("lsp.write.syscalls")
+                .description("Writes and flushes of batches to language server stdin")
+                .tag("language", language)
+                .register(meterRegistry);
+        this.withdrawals = Counter.builder("lsp.write.withdrawn")
+                .description("Queued requests cancelled or outdated before they were written to the language server")
+                .tag("language", language)
+                .register(meterRegistry);
+    }
+
+    public static Priority priorityOf(JsonRpcEnvelope envelope) {
+        if (envelope.isResponse() || INTERACTIVE_METHODS.contains(envelope.getMethod())) {
+            return Priority.INTERACTIVE;
+        }
+        if (envelope.isNotification()) {
+            return Priority.DOCUMENT;
+        }
+        return BACKGROUND_METHODS.contains(envelope.getMethod()) ? Priority.BACKGROUND : Priority.NORMAL;
+    }
+
+    /**
+     * Queues a message for the writer. Never blocks.
+     */
+    public void submit(String message, JsonRpcEnvelope envelope) {
+        submit(message, envelope, MessageInfo.NONE);
+    }
+
+    public void submit(String message, JsonRpcEnvelope envelope, MessageInfo info) {
+        if (closed) {
+            return;
+        }
+        incoming.add(new Entry(message, envelope, info, priorityOf(envelope)));
+        queued.incrementAndGet();
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Messages submitted and not written yet.
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * Drops the messages not written yet.
+     */
+    public void close() {
+        closed = true;
+        incoming.clear();
+    }
+
+    private void drain() {
+        while (!closed) {
+            takeIncoming();
+            int count = fillBatch();
+            if (count == 0) {
+                draining.set(false);
+                // A submit that saw the flag still set relies on this check
+                if (incoming.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            try {
+                out.write(buffer, 0, length);
+                out.flush();
+                writes.increment();
+                batchSize.record(count);
+            } catch (IOException e) {
+                if (!closed) {
+                    // Stdin is gone and every later batch would fail the same way,
+                    // so discard the rest; finally takes this batch off the count
+                    closed = true;
+                    incoming.clear();
+                    queued.set(count);
+                    listener.failed(e);
+                }
+            } finally {
+                queued.addAndGet(-count);
+                if (buffer.length > 4 * BATCH_BYTES) {
+                    // Do not hold on to the buffer of a very large didChange
+                    buffer = new byte[BATCH_BYTES];
+                }
+            }
+        }
+        queues.values().forEach(ArrayDeque::clear);
+        logger.debug("Writer of a closed language server stopped");
+    }
+
+    private void takeIncoming() {
+        Entry entry;
+        while ((entry = incoming.poll()) != null) {
+            // In arrival order, so a request not found here has been written
+            String cancelledId = entry.info.cancelledId();
+            if (cancelledId != null && withdraw(queued -> cancelledId.equals(queued.envelope.getId()), false,
+                    InboundMessageQueue.REQUEST_CANCELLED, "Request cancelled")) {
+                queued.decrementAndGet();
+                continue;
+            }
+            String changed = entry.info.changesDocument();
+            if (changed != null) {
+                withdraw(queued -> changed.equals(queued.info.readsDocument()), true,
+                        InboundMessageQueue.CONTENT_MODIFIED, "Content modified");
+            }
+            entry.documentsBefore = documentsQueued;
+            // In arrival order everything is a barrier
+            Priority queue = prioritize ? entry.priority : Priority.DOCUMENT;
+            queues.get(queue).add(entry);
+            if (queue == Priority.DOCUMENT) {
+                documentsQueued++;
+            }
+        }
+    }
+
+    /**
+     * Removes the first, or every, queued request that {@code matches} and
+     * has it answered with the error. Returns false when none was queued.
+     */
+    private boolean withdraw(Predicate<Entry> matches, boolean every, int code, String message) {
+        boolean found = false;
+        for (Map.Entry<Priority, ArrayDeque<Entry>> queue : queues.entrySet()) {
+            Iterator<Entry> entries = queue.getValue().iterator();
+            while (entries.hasNext()) {
+                Entry entry = entries.next();
+                if (!entry.envelope.isRequest() || !matches.test(entry)) {
+                    continue;
+                }
+                entries.remove();
+                if (queue.getKey() == Priority.DOCUMENT) {
+                    // Later messages count it as written
+                    documentsWritten++;
+                }
+                queued.decrementAndGet();
+                withdrawals.increment();
+                listener.withdrawn(entry.envelope, code, message);
+                if (!every) {
+                    return true;
+                }
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Frames messages into the buffer in the order they may be written.
+     * Returns how many.
+     */
+    private int fillBatch() {
+        length = 0;
+        int count = 0;
+        Entry next;
+        while (length < BATCH_BYTES && (next = next()) != null) {
+            delays.get(next.priority).record(System.nanoTime() - next.enqueuedAt, TimeUnit.NANOSECONDS);
+            int contentLength = frame(next.message);
+            listener.writing(next.envelope, contentLength);
+            count++;
+        }
+        return count;
+    }
+
+    private Entry next() {
+        ArrayDeque<Entry> background = queues.get(Priority.BACKGROUND);
+        Entry overdue = background.peek();
+        if (overdue != null && System.nanoTime() - overdue.enqueuedAt > MAX_BACKGROUND_WAIT_NANOS
+                && isWritable(overdue)) {
+            return background.poll();
+        }
+        for (Priority priority : new Priority[] { Priority.INTERACTIVE, Priority.NORMAL }) {
+            Entry head = queues.get(priority).peek();
+            if (head != null && isWritable(head)) {
+                return queues.get(priority).poll();
+            }
+        }
+        Entry document = queues.get(Priority.DOCUMENT).poll();
+        if (document != null) {
+            documentsWritten++;
+            return document;
+        }
+        // Only reached with every notification written
+        return background.poll();
+    }
+
+    private boolean isWritable(Entry entry) {
+        return entry.documentsBefore <= documentsWritten;
+    }
+
+    /**
+     * Appends headers and the UTF-8 content of {@code message} to the buffer
+     * without an intermediate byte array. Returns the content length.
+     */
+    private int frame(String message) {
+        int contentLength = utf8Length(message);
+        String digits = Integer.toString(contentLength);
+        ensureCapacity(CONTENT_LENGTH.length + digits.length() + CONTENT_TYPE.length + contentLength);
+        System.arraycopy(CONTENT_LENGTH, 0, buffer, length, CONTENT_LENGTH.length);
+        length += CONTENT_LENGTH.length;
+        for (int i = 0; i < digits.length(); i++) {
+            buffer[length++] = (byte) digits.charAt(i);
+        }
+        System.arraycopy(CONTENT_TYPE, 0, buffer, length, CONTENT_TYPE.length);
+        length += CONTENT_TYPE.length;
+        encodeUtf8(message);
+        return contentLength;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (length + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+        }
+    }
+
+    /**
+     * Bytes {@link String#getBytes} would produce for UTF-8, where an unpaired
+     * surrogate becomes {@code '?'}.
+     */
+    static int utf8Length(String text) {
+        int bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private void encodeUtf8(String text) {
+        byte[] b = buffer;
+        int p = length;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                b[p++] = (byte) c;
+            } else if (c < 0x800) {
+                b[p++] = (byte) (0xC0 | (c >> 6));
+                b[p++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                b[p++] = (byte) (0xF0 | (codePoint >> 18));
+                b[p++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                b[p++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                b[p++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                b[p++] = '?';
+            } else {
+                b[p++] = (byte) (0xE0 | (c >> 12));
+                b[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                b[p++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        length = p;
+    }
+}
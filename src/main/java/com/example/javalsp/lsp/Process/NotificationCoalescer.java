@@ -0,0 +1,315 @@
+package com.example.javalsp.lsp.Process;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Collapses bursts of server notifications that a later one makes obsolete:
+ * {@code textDocument/publishDiagnostics} per document URI and {@code report}
+ * notifications of {@code $/progress} per token. Such a notification is held
+ * for up to the window; if a newer one for the same key arrives meanwhile, the
+ * older one is never sent.
+ *
+ * <p>
+ * Progress {@code begin} and {@code end} are passed through, after any report
+ * held for their token, so the client always sees a well formed sequence.
+ * Everything else is delivered immediately. Deliveries, whether immediate or
+ * flushed by the timer, are serialized in the order they were decided, so
+ * handlers never run concurrently, and run without holding the lock that
+ * {@link #accept} takes. The timer only hands the flush over to the
+ * process's own executor: a delivery may block on a slow editor, which the
+ * shared scheduler must not.
+ */
+public class NotificationCoalescer {
+
+    private static final Logger logger = LoggerFactory.getLogger(NotificationCoalescer.class);
+
+    static final String DIAGNOSTICS = "textDocument/publishDiagnostics";
+    static final String PROGRESS = "$/progress";
+
+    private static final class Held {
+        private final Runnable delivery;
+        private final int size;
+
+        private Held(Runnable delivery, int size) {
+            this.delivery = delivery;
+            this.size = size;
+        }
+    }
+
+    private final long windowMillis;
+    private final ScheduledExecutorService scheduler;
+    private final Executor flusher;
+    // Guards the held notifications; never held while delivering
+    private final ReentrantLock lock = new ReentrantLock();
+    // Serializes deliveries; taken before lock is released so they keep their order
+    private final ReentrantLock delivering = new ReentrantLock();
+    // Keyed by method and URI or token; keeps first-arrival order on flush
+    private final Map<String, Held> held = new LinkedHashMap<>();
+    private final Counter received;
+    private final Counter coalesced;
+    private final Counter bytesSaved;
+    private ScheduledFuture<?> flush;
+    private boolean closed;
+
+    /**
+     * @param scheduler times the window
+     * @param flusher   runs the deliveries of the window's flush
+     */
+    public NotificationCoalescer(long windowMillis, ScheduledExecutorService scheduler, Executor flusher,
+            String language, MeterRegistry meterRegistry) {
+        this.windowMillis = windowMillis;
+        this.scheduler = scheduler;
+        this.flusher = flusher;
+        this.received = Counter.builder("lsp.coalesce.frames.received")
+                .description("Coalescable notifications received from language servers")
+                .tag("language", language)
+                .register(meterRegistry);
+        this.coalesced = Counter.builder("lsp.coalesce.frames.saved")
+                .description("Notifications not sent to the editor because a newer one replaced them")
+                .tag("language", language)
+                .register(meterRegistry);
+        this.bytesSaved = Counter.builder("lsp.coalesce.bytes.saved")
+                .description("Payload bytes of notifications replaced before they were sent")
+                .tag("language", language)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Delivers a server message, or holds it for the window when it can be
+     * coalesced. {@code content} is only read for the two coalesced methods.
+     */
+    public void accept(JsonRpcEnvelope envelope, int size, Supplier<String> content, Runnable delivery) {
+        String method = envelope.isNotification() ? envelope.getMethod() : null;
+        String subject = null;
+        String[] kind = new String[1];
+        if (DIAGNOSTICS.equals(method)) {
+            subject = paramsField(content.get(), "uri", null);
+        } else if (PROGRESS.equals(method)) {
+            subject = paramsField(content.get(), "token", kind);
+        }
+        accept(method, subject, kind[0], size, delivery);
+    }
+
+    /**
+     * Like {@link #accept(JsonRpcEnvelope, int, Supplier, Runnable)} for a
+     * message already parsed: {@code method} is null unless it is a
+     * notification, {@code subject} is the URI of diagnostics or the token of
+     * progress, and {@code progressKind} the {@code value.kind} of progress.
+     */
+    public void accept(String method, String subject, String progressKind, int size, Runnable delivery) {
+        String key = null;
+        String releasedKey = null;
+        if (DIAGNOSTICS.equals(method)) {
+            key = subject != null ? DIAGNOSTICS + " " + subject : null;
+        } else if (PROGRESS.equals(method)) {
+            if (subject != null && "report".equals(progressKind)) {
+                key = PROGRESS + " " + subject;
+            } else if (subject != null) {
+                releasedKey = PROGRESS + " " + subject;
+            }
+        }
+        lock.lock();
+        try {
+            if (key == null) {
+                // Progress begin/end: release the token's held report first
+                Held report = releasedKey != null ? held.remove(releasedKey) : null;
+                List<Runnable> due = new ArrayList<>(2);
+                if (report != null) {
+                    due.add(report.delivery);
+                }
+                due.add(delivery);
+                deliverUnlocking(due);
+                return;
+            }
+            if (closed) {
+                return;
+            }
+            received.increment();
+            // Replacing in place keeps the key's first-arrival position
+            Held previous = held.put(key, new Held(delivery, size));
+            if (previous != null) {
+                coalesced.increment();
+                bytesSaved.increment(previous.size);
+            }
+            if (flush == null) {
+                flush = scheduler.schedule(this::flushLater, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            if (lock.isHeldByCurrentThread()) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Sends everything still held. Called when the window ends; the server
+     * stopping drops what is held instead, see {@link #close()}.
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            flush = null;
+            List<Runnable> due = new ArrayList<>(held.size());
+            for (Held entry : held.values()) {
+                due.add(entry.delivery);
+            }
+            held.clear();
+            deliverUnlocking(due);
+        } finally {
+            if (lock.isHeldByCurrentThread()) {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void flushLater() {
+        try {
+            flusher.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            // The process is being destroyed
+        }
+    }
+
+    /**
+     * Runs {@code due} in order after releasing {@link #lock}, which the
+     * caller holds; the delivery lock is taken first so deliveries decided
+     * later wait for these.
+     */
+    private void deliverUnlocking(List<Runnable> due) {
+        delivering.lock();
+        lock.unlock();
+        try {
+            for (Runnable delivery : due) {
+                run(delivery);
+            }
+        } finally {
+            delivering.unlock();
+        }
+    }
+
+    /**
+     * Drops everything held and stops holding new notifications. Called when
+     * the server stops: its diagnostics and progress are out of date by then,
+     * and a replacement server publishes its own.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            held.clear();
+            if (flush != null) {
+                flush.cancel(false);
+                flush = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getHeldCount() {
+        lock.lock();
+        try {
+            return held.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void run(Runnable delivery) {
+        try {
+            delivery.run();
+        } catch (RuntimeException e) {
+            logger.error("Failed to deliver language server message: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * What a later notification with the same key replaces: the method and
+     * URI of diagnostics, or the method and token of a progress
+     * {@code report}. Null for everything else, including progress
+     * {@code begin} and {@code end}, which nothing replaces.
+     */
+    public static String replacementKey(JsonRpcEnvelope envelope, Supplier<String> content) {
+        String method = envelope.isNotification() ? envelope.getMethod() : null;
+        if (DIAGNOSTICS.equals(method)) {
+            String uri = paramsField(content.get(), "uri", null);
+            return uri != null ? DIAGNOSTICS + " " + uri : null;
+        }
+        if (PROGRESS.equals(method)) {
+            String[] kind = new String[1];
+            String token = paramsField(content.get(), "token", kind);
+            return token != null && "report".equals(kind[0]) ? PROGRESS + " " + token : null;
+        }
+        return null;
+    }
+
+    /**
+     * Reads the top-level {@code params.<name>} string or number, skipping the
+     * rest of the message. With {@code kind} set, also reads
+     * {@code params.value.kind} into it.
+     */
+    private static String paramsField(String json, String name, String[] kind) {
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals("params") || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    reader.skipValue();
+                    continue;
+                }
+                String value = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    JsonToken token = reader.peek();
+                    if (field.equals(name) && (token == JsonToken.STRING || token == JsonToken.NUMBER)) {
+                        value = reader.nextString();
+                    } else if (kind != null && field.equals("value") && token == JsonToken.BEGIN_OBJECT) {
+                        kind[0] = stringField(reader, "kind");
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                return value;
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Cannot read params.{} of a notification: {}", name, e.getMessage());
+        }
+        return null;
+    }
+
+    private static String stringField(JsonReader reader, String name) throws IOException {
+        String value = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals(name) && reader.peek() == JsonToken.STRING) {
+                value = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return value;
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.javalsp.lsp.Process;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Text and version of the documents open on a language server, kept up to
+ * date from the client's didOpen, didChange and didClose notifications, so a
+ * replacement server can be brought to the state the editor sees.
+ *
+ * <p>
+ * Incremental changes are applied the way the server applies them: positions
+ * are zero-based lines and UTF-16 code units, which is what a Java String
+ * indexes, and lines end at {@code \n}, {@code \r\n} or {@code \r}.
+ */
+class OpenDocuments {
+
+    private static final class Document {
+        private final String languageId;
+        private JsonElement version;
+        private final StringBuilder text;
+
+        private Document(String languageId, JsonElement version, String text) {
+            this.languageId = languageId;
+            this.version = version;
+            this.text = new StringBuilder(text);
+        }
+    }
+
+    // In opening order, so replays open them in the same order
+    private final Map<String, Document> documents = new LinkedHashMap<>();
+
+    /**
+     * Applies a client notification; other messages are ignored.
+     */
+    synchronized void apply(String method, String message) {
+        try {
+            JsonObject params = JsonParser.parseString(message).getAsJsonObject().getAsJsonObject("params");
+            JsonObject textDocument = params.getAsJsonObject("textDocument");
+            String uri = textDocument.get("uri").getAsString();
+            switch (method) {
+                case "textDocument/didOpen" -> documents.put(uri, new Document(
+                        textDocument.get("languageId").getAsString(), textDocument.get("version"),
+                        textDocument.get("text").getAsString()));
+                case "textDocument/didChange" -> change(uri, textDocument.get("version"),
+                        params.getAsJsonArray("contentChanges"));
+                case "textDocument/didClose" -> documents.remove(uri);
+                default -> {
+                }
+            }
+        } catch (RuntimeException e) {
+            // Not a well-formed document notification; the server will not understand it either
+        }
+    }
+
+    synchronized void close(String uri) {
+        documents.remove(uri);
+    }
+
+    synchronized int size() {
+        return documents.size();
+    }
+
+    /**
+     * A didOpen with the current text and version of every open document.
+     */
+    synchronized List<String> didOpenMessages() {
+        List<String> messages = new ArrayList<>(documents.size());
+        for (Map.Entry<String, Document> entry : documents.entrySet()) {
+            Document document = entry.getValue();
+            JsonObject textDocument = new JsonObject();
+            textDocument.addProperty("uri", entry.getKey());
+            textDocument.addProperty("languageId", document.languageId);
+            textDocument.add("version", document.version);
+            textDocument.addProperty("text", document.text.toString());
+            JsonObject params = new JsonObject();
+            params.add("textDocument", textDocument);
+            JsonObject message = new JsonObject();
+            message.addProperty("jsonrpc", "2.0");
+            message.addProperty("method", "textDocument/didOpen");
+            message.add("params", params);
+            messages.add(message.toString());
+        }
+        return messages;
+    }
+
+    private void change(String uri, JsonElement version, JsonArray changes) {
+        Document document = documents.get(uri);
+        if (document == null) {
+            return;
+        }
+        for (JsonElement element : changes) {
+            JsonObject change = element.getAsJsonObject();
+            String text = change.get("text").getAsString();
+            JsonObject range = change.getAsJsonObject("range");
+            if (range == null) {
+                document.text.setLength(0);
+                document.text.append(text);
+                continue;
+            }
+            int start = offset(document.text, range.getAsJsonObject("start"));
+            int end = Math.max(start, offset(document.text, range.getAsJsonObject("end")));
+            document.text.replace(start, end, text);
+        }
+        document.version = version != null ? version : new JsonPrimitive(0);
+    }
+
+    /**
+     * The index of a position; characters beyond the end of the line mean
+     * its end, lines beyond the end of the text the end of the text.
+     */
+    private static int offset(CharSequence text, JsonObject position) {
+        int line = position.get("line").getAsInt();
+        int character = position.get("character").getAsInt();
+        int index = 0;
+        int length = text.length();
+        while (line > 0 && index < length) {
+            char c = text.charAt(index++);
+            if (c == '\n' || (c == '\r' && (index == length || text.charAt(index) != '\n'))) {
+                line--;
+            }
+        }
+        if (line > 0) {
+            return length;
+        }
+        int lineEnd = index;
+        while (lineEnd < length && text.charAt(lineEnd) != '\n' && text.charAt(lineEnd) != '\r') {
+            lineEnd++;
+        }
+        return Math.min(index + character, lineEnd);
+    }
+}
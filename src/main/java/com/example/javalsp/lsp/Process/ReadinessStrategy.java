@@ -0,0 +1,40 @@
+package com.example.javalsp.lsp.Process;
+
+import java.util.Locale;
+
+/**
+ * Decides when a language server may receive the messages a client sends
+ * before the server is ready. One instance belongs to one process.
+ */
+public interface ReadinessStrategy {
+
+    /**
+     * Whether a client message may be written while the server is not ready
+     * yet, instead of being queued.
+     */
+    boolean forwardBeforeReady(JsonRpcEnvelope clientMessage);
+
+    /**
+     * Observes a response from the server while it is not ready. Returns
+     * true once the server should be considered ready.
+     */
+    boolean onServerMessage(JsonRpcEnvelope serverMessage);
+
+    /**
+     * Observes a stderr line while the server is not ready. Returns true once
+     * the server should be considered ready.
+     */
+    boolean onStderrLine(String line);
+
+    /**
+     * Creates a strategy by configuration name: {@code initialize} (the
+     * default) or {@code stderr}.
+     */
+    static ReadinessStrategy create(String name) {
+        return switch (name.trim().toLowerCase(Locale.ROOT)) {
+            case "initialize" -> new InitializeResponseReadiness();
+            case "stderr" -> new StderrBannerReadiness();
+            default -> throw new IllegalArgumentException("Unknown LSP readiness strategy: " + name);
+        };
+    }
+}
@@ -0,0 +1,496 @@
+package com.example.javalsp.lsp.Process;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Multiplexer for one language server shared by several users. Each user
+ * (tenant) gets its project mounted as a workspace folder through
+ * {@code workspace/didChangeWorkspaceFolders} instead of a process of its own.
+ *
+ * <p>
+ * Isolation is done at the protocol level:
+ * <ul>
+ * <li>the client's root URI is rewritten to the tenant folder on the way in
+ * and back on the way out;</li>
+ * <li>client requests and notifications naming a {@code file:} URI outside
+ * the tenant folder never reach the server, requests are answered with
+ * InvalidParams;</li>
+ * <li>{@code publishDiagnostics} only reaches the tenant owning the document,
+ * other notifications ({@code $/progress}, log and show messages) are not
+ * attributable and are dropped;</li>
+ * <li>server requests are answered by the proxy, except
+ * {@code workspace/applyEdit}, which goes to the tenant whose files it
+ * edits;</li>
+ * <li>locations of other tenants are filtered out of search results.</li>
+ * </ul>
+ * Clients never stop the server: {@code shutdown} is acknowledged locally and
+ * {@code exit} is dropped.
+ */
+public class SharedLanguageServerMultiplexer extends LanguageServerMultiplexer {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedLanguageServerMultiplexer.class);
+    private static final int INVALID_PARAMS = -32602;
+
+    // Requests whose results are lists of locations or symbols in any folder
+    private static final Set<String> LOCATION_RESULTS = Set.of(
+            "workspace/symbol",
+            "textDocument/references",
+            "textDocument/implementation",
+            "textDocument/definition",
+            "textDocument/typeDefinition",
+            "textDocument/declaration");
+
+    private final String ownerId;
+    // userId -> URI of the tenant's workspace folder, without trailing slash
+    private final Map<String, String> tenantRoots = new ConcurrentHashMap<>();
+    // sessionId -> root URI the client announced in initialize
+    private final Map<String, String> clientRoots = new ConcurrentHashMap<>();
+    private final Set<String> announcedTenants = new HashSet<>();
+
+    public SharedLanguageServerMultiplexer(String ownerId) {
+        super(ownerId);
+        this.ownerId = ownerId;
+    }
+
+    /**
+     * Registers the workspace folder of a user; must be called before the
+     * user's first session attaches.
+     */
+    public void addTenant(String userId, String folderUri) {
+        tenantRoots.put(userId, stripSlash(folderUri));
+    }
+
+    public int getTenantCount() {
+        return tenantRoots.size();
+    }
+
+    public boolean hasTenant(String userId) {
+        return tenantRoots.containsKey(userId);
+    }
+
+    @Override
+    protected boolean keepsServerRunning() {
+        return true;
+    }
+
+    @Override
+    protected void onSessionAttached(Session session) {
+        announceTenants();
+    }
+
+    @Override
+    protected void onServerInitialized() {
+        announceTenants();
+    }
+
+    @Override
+    protected void onSessionDetached(Session session, int remainingForUser) {
+        clientRoots.remove(session.id);
+        if (remainingForUser > 0) {
+            return;
+        }
+        String root = tenantRoots.remove(session.userId);
+        boolean announced;
+        synchronized (this) {
+            announced = announcedTenants.remove(session.userId);
+        }
+        if (root != null && announced) {
+            forward(workspaceFoldersChange(session.userId, root, false));
+        }
+        logger.info("Tenant {} left shared LSP {} ({} tenants left)", session.userId, ownerId,
+                tenantRoots.size());
+    }
+
+    /**
+     * Mounts the folders of tenants that attached before the server was
+     * initialized, or after.
+     */
+    private synchronized void announceTenants() {
+        if (!isServerInitialized()) {
+            return;
+        }
+        for (Map.Entry<String, String> tenant : tenantRoots.entrySet()) {
+            if (announcedTenants.add(tenant.getKey())) {
+                forward(workspaceFoldersChange(tenant.getKey(), tenant.getValue(), true));
+            }
+        }
+    }
+
+    @Override
+    protected String prepareInitialize(Session session, String message) {
+        String root = tenantRoots.get(session.userId);
+        JsonObject json = JsonParser.parseString(message).getAsJsonObject();
+        JsonObject params = json.has("params") && json.get("params").isJsonObject()
+                ? json.getAsJsonObject("params")
+                : new JsonObject();
+        json.add("params", params);
+
+        // The server has no root of its own; every tenant is a workspace folder
+        params.add("rootUri", JsonNull.INSTANCE);
+        params.add("rootPath", JsonNull.INSTANCE);
+        JsonArray folders = new JsonArray();
+        if (root != null) {
+            folders.add(workspaceFolder(session.userId, root));
+            synchronized (this) {
+                announcedTenants.add(session.userId);
+            }
+        }
+        params.add("workspaceFolders", folders);
+        if (params.has("initializationOptions") && params.get("initializationOptions").isJsonObject()) {
+            params.getAsJsonObject("initializationOptions").remove("workspaceFolders");
+        }
+
+        JsonObject capabilities = objectMember(params, "capabilities");
+        JsonObject workspace = objectMember(capabilities, "workspace");
+        workspace.addProperty("workspaceFolders", true);
+        return json.toString();
+    }
+
+    @Override
+    protected String rewriteInbound(Session session, JsonRpcEnvelope envelope, String message) {
+        String method = envelope.getMethod();
+        if ("workspace/didChangeWorkspaceFolders".equals(method)) {
+            // The folder set belongs to the proxy
+            return null;
+        }
+        if ("initialize".equals(method)) {
+            String clientRoot = clientRootOf(message);
+            if (clientRoot != null) {
+                clientRoots.put(session.id, clientRoot);
+            }
+        }
+        String clientRoot = clientRoots.get(session.id);
+        String tenantRoot = tenantRoots.get(session.userId);
+        String rewritten = clientRoot == null || tenantRoot == null || clientRoot.equals(tenantRoot)
+                ? message
+                : replaceRoot(message, clientRoot, tenantRoot);
+        if ((envelope.isRequest() || envelope.isNotification())
+                && !staysInTenant(rewritten, "initialize".equals(method), tenantRoot)) {
+            logger.warn("Rejecting {} from session {} of user {}: file outside the tenant folder", method,
+                    session.id, session.userId);
+            if (envelope.isRequest()) {
+                deliver(session, method, ("{\"jsonrpc\":\"2.0\",\"id\":" + envelope.getId()
+                        + ",\"error\":{\"code\":" + INVALID_PARAMS
+                        + ",\"message\":\"Document outside of the workspace\"}}").getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        }
+        return rewritten;
+    }
+
+    @Override
+    protected byte[] rewriteOutbound(Session session, String method, byte[] message) {
+        String tenantRoot = tenantRoots.get(session.userId);
+        if (tenantRoot != null && method != null && LOCATION_RESULTS.contains(method)) {
+            message = filterForeignLocations(message, tenantRoot);
+        }
+        String clientRoot = clientRoots.get(session.id);
+        if (clientRoot == null || tenantRoot == null || clientRoot.equals(tenantRoot)) {
+            return message;
+        }
+        String text = new String(message, StandardCharsets.UTF_8);
+        String replaced = replaceRoot(text, tenantRoot, clientRoot);
+        return replaced == text ? message : replaced.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    protected void routeNotification(JsonRpcEnvelope envelope, byte[] message) {
+        if ("textDocument/publishDiagnostics".equals(envelope.getMethod())) {
+            String owner = ownerOf(paramsUri(message));
+            if (owner != null) {
+                for (Session session : sessions()) {
+                    if (session.userId.equals(owner)) {
+                        deliver(session, envelope.getMethod(), message);
+                    }
+                }
+            }
+            return;
+        }
+        logger.debug("Not relaying {} from shared LSP {}", envelope.getMethod(), ownerId);
+    }
+
+    @Override
+    protected void routeServerRequest(JsonRpcEnvelope envelope, byte[] message) {
+        String id = envelope.getId();
+        switch (envelope.getMethod()) {
+            case "client/registerCapability", "client/unregisterCapability",
+                    "window/workDoneProgress/create", "window/showMessageRequest" ->
+                forward("{\"jsonrpc\":\"2.0\",\"id\":" + id + ",\"result\":null}");
+            case "workspace/configuration" -> {
+                // Server defaults for everyone; per-user settings would leak between tenants
+                JsonArray result = new JsonArray();
+                JsonObject params = JsonParser.parseString(new String(message, StandardCharsets.UTF_8))
+                        .getAsJsonObject().getAsJsonObject("params");
+                JsonArray items = params == null ? null : params.getAsJsonArray("items");
+                for (int i = 0; items != null && i < items.size(); i++) {
+                    result.add(JsonNull.INSTANCE);
+                }
+                forward("{\"jsonrpc\":\"2.0\",\"id\":" + id + ",\"result\":" + result + "}");
+            }
+            case "workspace/applyEdit" -> {
+                Session target = sessionOfTenantIn(message);
+                if (target != null) {
+                    deliverServerRequest(target, envelope, message);
+                } else {
+                    forward("{\"jsonrpc\":\"2.0\",\"id\":" + id + ",\"result\":{\"applied\":false,"
+                            + "\"failureReason\":\"No tenant owns the edited files\"}}");
+                }
+            }
+            default -> forward("{\"jsonrpc\":\"2.0\",\"id\":" + id
+                    + ",\"error\":{\"code\":-32601,\"message\":\"Not supported by shared server\"}}");
+        }
+    }
+
+    private Session sessionOfTenantIn(byte[] message) {
+        String text = new String(message, StandardCharsets.UTF_8);
+        for (Map.Entry<String, String> tenant : tenantRoots.entrySet()) {
+            if (text.contains(tenant.getValue() + "/")) {
+                for (Session session : sessions()) {
+                    if (session.userId.equals(tenant.getKey())) {
+                        return session;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private String ownerOf(String uri) {
+        if (uri == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> tenant : tenantRoots.entrySet()) {
+            if (uri.startsWith(tenant.getValue() + "/") || uri.equals(tenant.getValue())) {
+                return tenant.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops entries of a location or symbol list that point at files outside
+     * the tenant's folder. Non-file URIs (e.g. JDK classes) are shared.
+     */
+    private static byte[] filterForeignLocations(byte[] message, String tenantRoot) {
+        JsonObject json = JsonParser.parseString(new String(message, StandardCharsets.UTF_8)).getAsJsonObject();
+        JsonElement result = json.get("result");
+        if (result == null || !result.isJsonArray()) {
+            return message;
+        }
+        JsonArray kept = new JsonArray();
+        for (JsonElement item : result.getAsJsonArray()) {
+            String uri = locationUri(item);
+            if (uri == null || !uri.startsWith("file:") || uri.startsWith(tenantRoot + "/")) {
+                kept.add(item);
+            }
+        }
+        if (kept.size() == result.getAsJsonArray().size()) {
+            return message;
+        }
+        json.add("result", kept);
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String locationUri(JsonElement item) {
+        if (!item.isJsonObject()) {
+            return null;
+        }
+        JsonObject object = item.getAsJsonObject();
+        if (object.has("location") && object.get("location").isJsonObject()) {
+            object = object.getAsJsonObject("location");
+        }
+        for (String key : new String[] { "uri", "targetUri" }) {
+            if (object.has(key) && object.get(key).isJsonPrimitive()) {
+                return object.get(key).getAsString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads {@code params.uri} without materializing the rest of the message;
+     * diagnostics lists can be large.
+     */
+    static String paramsUri(byte[] message) {
+        try (JsonReader reader = new JsonReader(
+                new InputStreamReader(new ByteArrayInputStream(message), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals("params")) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("uri")) {
+                        return reader.nextString();
+                    }
+                    reader.skipValue();
+                }
+                return null;
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Could not read params.uri: {}", e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * True when every {@code file:} URI in the message lies in the tenant
+     * folder, after resolving {@code ..} and percent-encoding; a null root
+     * admits none. Document text is not looked at, nor are the root and
+     * folders of an initialize, which {@link #prepareInitialize} replaces.
+     */
+    static boolean staysInTenant(String message, boolean initialize, String tenantRoot) {
+        if (!message.contains("file:")) {
+            return true;
+        }
+        try (JsonReader reader = new JsonReader(new StringReader(message))) {
+            return staysInTenant(reader, null, 0, initialize, tenantRoot);
+        } catch (IOException | RuntimeException e) {
+            // Neither the server could read it
+            return false;
+        }
+    }
+
+    private static boolean staysInTenant(JsonReader reader, String name, int depth, boolean initialize,
+            String tenantRoot) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String member = reader.nextName();
+                boolean replaced = initialize && depth == 1 && "params".equals(name)
+                        && (member.equals("rootUri") || member.equals("rootPath")
+                                || member.equals("workspaceFolders"));
+                if (member.equals("text") || replaced) {
+                    reader.skipValue();
+                } else if (!staysInTenant(reader, member, depth + 1, initialize, tenantRoot)) {
+                    return false;
+                }
+            }
+            reader.endObject();
+            return true;
+        }
+        if (token == JsonToken.BEGIN_ARRAY) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (!staysInTenant(reader, name, depth + 1, initialize, tenantRoot)) {
+                    return false;
+                }
+            }
+            reader.endArray();
+            return true;
+        }
+        if (token == JsonToken.STRING) {
+            String value = reader.nextString();
+            return !value.regionMatches(true, 0, "file:", 0, 5) || isWithin(value, tenantRoot);
+        }
+        reader.skipValue();
+        return true;
+    }
+
+    static boolean isWithin(String uri, String root) {
+        if (root == null) {
+            return false;
+        }
+        try {
+            Path path = filePath(uri);
+            return path != null && path.startsWith(filePath(root));
+        } catch (URISyntaxException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static Path filePath(String uri) throws URISyntaxException {
+        URI parsed = new URI(uri);
+        if (parsed.getAuthority() != null || parsed.getPath() == null || parsed.getPath().isEmpty()) {
+            return null;
+        }
+        return Path.of(parsed.getPath()).normalize();
+    }
+
+    private static String clientRootOf(String message) {
+        try {
+            JsonObject params = JsonParser.parseString(message).getAsJsonObject().getAsJsonObject("params");
+            if (params == null) {
+                return null;
+            }
+            if (params.has("rootUri") && params.get("rootUri").isJsonPrimitive()) {
+                return stripSlash(params.get("rootUri").getAsString());
+            }
+            if (params.has("workspaceFolders") && params.get("workspaceFolders").isJsonArray()) {
+                JsonArray folders = params.getAsJsonArray("workspaceFolders");
+                if (!folders.isEmpty()) {
+                    return stripSlash(folders.get(0).getAsJsonObject().get("uri").getAsString());
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.debug("Could not read the client root from initialize: {}", e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Replaces {@code from} with {@code to} where it is the whole URI or a
+     * path prefix of one, leaving e.g. {@code from + "2/"} alone.
+     */
+    static String replaceRoot(String message, String from, String to) {
+        if (!message.contains(from)) {
+            return message;
+        }
+        return message.replace(from + "/", to + "/").replace("\"" + from + "\"", "\"" + to + "\"");
+    }
+
+    private static String workspaceFoldersChange(String userId, String root, boolean added) {
+        JsonArray changed = new JsonArray();
+        changed.add(workspaceFolder(userId, root));
+        JsonObject event = new JsonObject();
+        event.add("added", added ? changed : new JsonArray());
+        event.add("removed", added ? new JsonArray() : changed);
+        return "{\"jsonrpc\":\"2.0\",\"method\":\"workspace/didChangeWorkspaceFolders\",\"params\":{\"event\":"
+                + event + "}}";
+    }
+
+    private static JsonObject workspaceFolder(String userId, String root) {
+        JsonObject folder = new JsonObject();
+        folder.addProperty("uri", root);
+        folder.addProperty("name", "user-" + userId);
+        return folder;
+    }
+
+    private static JsonObject objectMember(JsonObject parent, String name) {
+        if (parent.has(name) && parent.get(name).isJsonObject()) {
+            return parent.getAsJsonObject(name);
+        }
+        JsonObject child = new JsonObject();
+        parent.add(name, child);
+        return child;
+    }
+
+    private static String stripSlash(String uri) {
+        return uri.endsWith("/") ? uri.substring(0, uri.length() - 1) : uri;
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.javalsp.lsp.Process;
+
+/**
+ * Legacy readiness: the server is ready once it prints one of the known
+ * startup banners on stderr. Nothing is forwarded before that.
+ */
+public class StderrBannerReadiness implements ReadinessStrategy {
+
+    @Override
+    public boolean forwardBeforeReady(JsonRpcEnvelope clientMessage) {
+        return false;
+    }
+
+    @Override
+    public boolean onServerMessage(JsonRpcEnvelope serverMessage) {
+        return false;
+    }
+
+    @Override
+    public boolean onStderrLine(String line) {
+        return line.contains("Main thread is waiting") ||
+                line.contains("OpenJDK 64-Bit Server VM warning") ||
+                line.contains("Started language server");
+    }
+}
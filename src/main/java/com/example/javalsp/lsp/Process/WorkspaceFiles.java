@@ -0,0 +1,124 @@
+package com.example.javalsp.lsp.Process;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * File tree helpers for language server workspaces.
+ *
+ * <p>
+ * Cloning uses {@code cp -a --reflink=auto}, which shares data blocks on
+ * copy-on-write file systems (btrfs, XFS, overlayfs on those) and copies
+ * elsewhere, and falls back to a plain Java copy where GNU cp is not
+ * available. Hard links are not used: the server rewrites index files in
+ * place, which would corrupt every clone.
+ */
+final class WorkspaceFiles {
+
+    private static final Logger logger = LoggerFactory.getLogger(WorkspaceFiles.class);
+
+    private static volatile boolean copyCommandAvailable = true;
+
+    private WorkspaceFiles() {
+    }
+
+    /**
+     * Clones the entries of {@code source} into {@code target}, except those
+     * named in {@code excluded}. Returns the number of entries cloned.
+     */
+    static int cloneEntries(Path source, Path target, Set<String> excluded) throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(source)) {
+            for (Path entry : stream) {
+                if (!excluded.contains(entry.getFileName().toString())) {
+                    entries.add(entry);
+                }
+            }
+        }
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        Files.createDirectories(target);
+        if (!copyCommandAvailable || !copyWithCommand(entries, target)) {
+            for (Path entry : entries) {
+                copyTree(entry, target.resolve(entry.getFileName().toString()));
+            }
+        }
+        return entries.size();
+    }
+
+    private static boolean copyWithCommand(List<Path> entries, Path target) {
+        List<String> command = new ArrayList<>(List.of("cp", "-a", "--reflink=auto"));
+        entries.forEach(entry -> command.add(entry.toString()));
+        command.add(target.toString() + File.separator);
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            String output = new String(process.getInputStream().readAllBytes());
+            if (!process.waitFor(10, TimeUnit.MINUTES)) {
+                process.destroyForcibly();
+                return false;
+            }
+            if (process.exitValue() != 0) {
+                logger.warn("cp --reflink failed ({}), using a plain copy from now on", output.trim());
+                copyCommandAvailable = false;
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            copyCommandAvailable = false;
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    static void copyTree(Path source, Path target) throws IOException {
+        try (Stream<Path> walk = Files.walk(source)) {
+            walk.forEach(path -> {
+                Path destination = target.resolve(source.relativize(path).toString());
+                try {
+                    if (Files.isDirectory(path)) {
+                        Files.createDirectories(destination);
+                    } else {
+                        Files.copy(path, destination, StandardCopyOption.REPLACE_EXISTING,
+                                StandardCopyOption.COPY_ATTRIBUTES);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    static long sizeOf(Path directory) throws IOException {
+        try (Stream<Path> walk = Files.walk(directory)) {
+            return walk.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+
+    static void deleteTree(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(path)) {
+            walk.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
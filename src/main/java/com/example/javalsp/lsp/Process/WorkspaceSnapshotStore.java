@@ -0,0 +1,255 @@
+package com.example.javalsp.lsp.Process;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Keeps the language server metadata of a workspace (for JDT-LS the
+ * {@code .metadata} tree with the JDK and project indexes) between sessions,
+ * so a returning user starts from an indexed workspace instead of from
+ * scratch.
+ *
+ * <p>
+ * A snapshot holds everything in the {@code -data} directory except the
+ * user's {@code project} sources. Snapshots are written on a background
+ * thread after the server has exited; {@link #awaitPending(String)} lets the
+ * next start of the same user wait for its snapshot. The total size is
+ * bounded by a disk quota, evicting the least recently used snapshots first.
+ */
+public class WorkspaceSnapshotStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(WorkspaceSnapshotStore.class);
+
+    // The user's sources are not part of the server state
+    private static final String PROJECT_DIRECTORY = "project";
+
+    private final Path root;
+    private final long quotaBytes;
+    private final Map<String, Long> sizes = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final Counter saves;
+    private final Counter restores;
+    private final Counter misses;
+    private final Counter evictions;
+
+    public WorkspaceSnapshotStore(Path root, long quotaBytes, MeterRegistry meterRegistry) throws IOException {
+        this.root = root;
+        this.quotaBytes = quotaBytes;
+        Files.createDirectories(root);
+        try (DirectoryStream<Path> snapshots = Files.newDirectoryStream(root)) {
+            for (Path snapshot : snapshots) {
+                String name = snapshot.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    // Left over from a crash while saving
+                    WorkspaceFiles.deleteTree(snapshot);
+                } else if (Files.isDirectory(snapshot)) {
+                    sizes.put(name, WorkspaceFiles.sizeOf(snapshot));
+                }
+            }
+        }
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "LSP-Workspace-Snapshots");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.saves = Counter.builder("lsp.workspace.snapshot.saves")
+                .description("Language server workspaces saved on close")
+                .register(meterRegistry);
+        this.restores = Counter.builder("lsp.workspace.snapshot.restores")
+                .description("Language servers started from a saved workspace")
+                .register(meterRegistry);
+        this.misses = Counter.builder("lsp.workspace.snapshot.misses")
+                .description("Cold starts without a saved workspace")
+                .register(meterRegistry);
+        this.evictions = Counter.builder("lsp.workspace.snapshot.evictions")
+                .description("Saved workspaces deleted to stay within the disk quota")
+                .register(meterRegistry);
+        Gauge.builder("lsp.workspace.snapshot.bytes", this, WorkspaceSnapshotStore::getTotalBytes)
+                .description("Disk used by saved workspaces")
+                .register(meterRegistry);
+        logger.info("Workspace snapshots in {}: {} saved, {} bytes of {} allowed", root, sizes.size(),
+                getTotalBytes(), quotaBytes);
+    }
+
+    /**
+     * Runs {@code task} (stopping the server, {@link #save}, deleting the
+     * workspace) in the background; later starts of the user wait for it.
+     */
+    public void runExclusive(String userId, Runnable task) {
+        pending.compute(userId, (id, previous) -> {
+            CompletableFuture<Void> before = previous == null ? CompletableFuture.completedFuture(null) : previous;
+            return before.handle((result, error) -> null).thenRunAsync(task, executor);
+        }).whenComplete((result, error) -> {
+            if (error != null) {
+                logger.error("Closing the workspace of user {} failed: {}", userId, error.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Waits until background work for the user's workspace is done, at most
+     * {@code timeoutMillis}.
+     */
+    public void awaitPending(String userId, long timeoutMillis) {
+        CompletableFuture<Void> task = pending.get(userId);
+        if (task == null) {
+            return;
+        }
+        try {
+            task.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (TimeoutException e) {
+            logger.warn("Workspace of user {} is still being saved, starting anyway", userId);
+        } catch (Exception e) {
+            // Already logged by runExclusive
+        }
+        pending.remove(userId, task);
+    }
+
+    public void awaitPending(String userId) {
+        awaitPending(userId, TimeUnit.SECONDS.toMillis(30));
+    }
+
+    public boolean hasSnapshot(String userId) {
+        return sizes.containsKey(snapshotName(userId));
+    }
+
+    /**
+     * Saves the server state of {@code dataDirectory}, replacing the previous
+     * snapshot of the user. The server must have exited.
+     */
+    public void save(String userId, Path dataDirectory) throws IOException {
+        if (!Files.isDirectory(dataDirectory)) {
+            return;
+        }
+        String name = snapshotName(userId);
+        Path target = root.resolve(name);
+        Path temporary = root.resolve(name + ".tmp");
+        WorkspaceFiles.deleteTree(temporary);
+        if (WorkspaceFiles.cloneEntries(dataDirectory, temporary, Set.of(PROJECT_DIRECTORY)) == 0) {
+            // The server keeps no state in this workspace
+            return;
+        }
+        long size = WorkspaceFiles.sizeOf(temporary);
+        if (quotaBytes > 0 && size > quotaBytes) {
+            logger.warn("Workspace of user {} ({} bytes) exceeds the snapshot quota, not saving it", userId, size);
+            WorkspaceFiles.deleteTree(temporary);
+            return;
+        }
+        WorkspaceFiles.deleteTree(target);
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+        Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis()));
+        sizes.put(name, size);
+        saves.increment();
+        logger.info("Saved workspace of user {} ({} bytes)", userId, size);
+        enforceQuota(name);
+    }
+
+    /**
+     * Copies the user's snapshot into {@code dataDirectory}. Returns false
+     * when there is none.
+     */
+    public boolean restore(String userId, Path dataDirectory) throws IOException {
+        String name = snapshotName(userId);
+        Path snapshot = root.resolve(name);
+        if (!sizes.containsKey(name) || !Files.isDirectory(snapshot)) {
+            misses.increment();
+            return false;
+        }
+        WorkspaceFiles.cloneEntries(snapshot, dataDirectory, Set.of());
+        // Recently restored snapshots are evicted last
+        Files.setLastModifiedTime(snapshot, FileTime.fromMillis(System.currentTimeMillis()));
+        restores.increment();
+        logger.info("Restored workspace of user {} into {}", userId, dataDirectory);
+        return true;
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (long size : sizes.values()) {
+            total += size;
+        }
+        return total;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Deletes the least recently used snapshots other than {@code keep} until
+     * the store fits in its quota.
+     */
+    private synchronized void enforceQuota(String keep) throws IOException {
+        if (quotaBytes <= 0 || getTotalBytes() <= quotaBytes) {
+            return;
+        }
+        List<Path> candidates = new ArrayList<>();
+        for (String name : sizes.keySet()) {
+            if (!name.equals(keep)) {
+                candidates.add(root.resolve(name));
+            }
+        }
+        candidates.sort(Comparator.comparing(WorkspaceSnapshotStore::lastModified));
+        for (Path snapshot : candidates) {
+            if (getTotalBytes() <= quotaBytes) {
+                break;
+            }
+            WorkspaceFiles.deleteTree(snapshot);
+            sizes.remove(snapshot.getFileName().toString());
+            evictions.increment();
+            logger.info("Evicted workspace snapshot {} to stay within {} bytes", snapshot.getFileName(), quotaBytes);
+        }
+    }
+
+    static String snapshotName(String userId) {
+        // userIds come from the client; a digest keeps them inside the store and two users apart
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(userId.getBytes(StandardCharsets.UTF_8));
+            return "user-" + HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
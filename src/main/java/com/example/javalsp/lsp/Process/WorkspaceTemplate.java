@@ -0,0 +1,126 @@
+package com.example.javalsp.lsp.Process;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A "golden" JDT-LS workspace that has already indexed the JRE. New
+ * workspaces are cloned from it instead of starting empty, so the server only
+ * has to index the user's own project.
+ *
+ * <p>
+ * The template is built once by running a language server against a small
+ * project until a workspace symbol search, which waits for the indexer,
+ * returns. A marker file records that the build completed; a template
+ * prepared at image build time is used as is.
+ */
+public class WorkspaceTemplate {
+
+    private static final Logger logger = LoggerFactory.getLogger(WorkspaceTemplate.class);
+
+    static final String MARKER = ".template-ready";
+    private static final String PROJECT_DIRECTORY = "project";
+    private static final long BUILD_TIMEOUT_MINUTES = 10;
+
+    private final Path directory;
+
+    public WorkspaceTemplate(Path directory) {
+        this.directory = directory;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public boolean isReady() {
+        return Files.exists(directory.resolve(MARKER));
+    }
+
+    /**
+     * Builds the template with a language server started by {@code starter}
+     * with {@link #getDirectory()} as its {@code -data} directory.
+     */
+    public void build(Callable<Process> starter, LanguageServerProcessOptions options) throws Exception {
+        build(starter, options, "the workspace template");
+    }
+
+    /**
+     * Same as {@link #build(Callable, LanguageServerProcessOptions)}, with
+     * {@code purpose} naming the run in errors and the log.
+     */
+    void build(Callable<Process> starter, LanguageServerProcessOptions options, String purpose) throws Exception {
+        long started = System.nanoTime();
+        WorkspaceFiles.deleteTree(directory);
+        Path project = Files.createDirectories(directory.resolve(PROJECT_DIRECTORY));
+        Files.writeString(project.resolve("Main.java"), "import java.util.ArrayList;\n"
+                + "import java.util.List;\n\n"
+                + "public class Main {\n"
+                + "    public static void main(String[] args) {\n"
+                + "        List<String> values = new ArrayList<>();\n"
+                + "        System.out.println(values);\n"
+                + "    }\n"
+                + "}\n");
+
+        Map<String, CompletableFuture<Void>> responses = new ConcurrentHashMap<>();
+        responses.put("\"template-initialize\"", new CompletableFuture<>());
+        responses.put("\"template-symbols\"", new CompletableFuture<>());
+        Process process = starter.call();
+        LanguageServerProcess server = LanguageServerProcess.create(process, "java", message -> {
+            JsonRpcEnvelope envelope = JsonRpcEnvelope.scan(message);
+            CompletableFuture<Void> response = envelope.isResponse() ? responses.get(envelope.getId()) : null;
+            if (response != null) {
+                response.complete(null);
+            }
+        }, "workspace-template", options);
+
+        try {
+            server.sendMessage("{\"jsonrpc\":\"2.0\",\"id\":\"template-initialize\",\"method\":\"initialize\","
+                    + "\"params\":{\"processId\":null,\"rootUri\":\"" + project.toUri() + "\",\"capabilities\":{}}}");
+            await(responses.get("\"template-initialize\""), process, purpose);
+            server.sendMessage("{\"jsonrpc\":\"2.0\",\"method\":\"initialized\",\"params\":{}}");
+            // Answered only once the JRE and project are indexed
+            server.sendMessage("{\"jsonrpc\":\"2.0\",\"id\":\"template-symbols\",\"method\":\"workspace/symbol\","
+                    + "\"params\":{\"query\":\"ArrayList\"}}");
+            await(responses.get("\"template-symbols\""), process, purpose);
+            server.shutdownGracefully(TimeUnit.SECONDS.toMillis(30));
+        } finally {
+            server.destroy();
+        }
+
+        Files.writeString(directory.resolve(MARKER), Instant.now().toString());
+        logger.info("Built {} in {} in {} s", purpose, directory,
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started));
+    }
+
+    private static void await(CompletableFuture<Void> response, Process process, String purpose)
+            throws Exception {
+        CompletableFuture.anyOf(response, process.onExit()).get(BUILD_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        if (!response.isDone()) {
+            throw new IOException("Language server exited with code " + process.exitValue()
+                    + " while building " + purpose);
+        }
+    }
+
+    /**
+     * Clones the template into {@code dataDirectory}. Returns false when the
+     * template is not built yet.
+     */
+    public boolean cloneInto(Path dataDirectory) throws IOException {
+        if (!isReady()) {
+            return false;
+        }
+        WorkspaceFiles.cloneEntries(directory, dataDirectory, Set.of(PROJECT_DIRECTORY, MARKER));
+        return true;
+    }
+}
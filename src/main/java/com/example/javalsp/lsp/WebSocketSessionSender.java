@@ -0,0 +1,348 @@
+package com.example.javalsp.lsp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.example.javalsp.lsp.Process.JsonRpcEnvelope;
+import com.example.javalsp.lsp.Process.NotificationCoalescer;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Outbound queue of one WebSocket session. Producers (the LSP reader, the
+ * multiplexer) only enqueue; a drain task on a shared executor does the
+ * blocking {@code sendMessage} calls, one at a time per session, so a slow
+ * browser no longer stalls the language server's stdout.
+ *
+ * <p>
+ * The queue is bounded in payload size. What happens when it is full is set
+ * by the {@link OverflowPolicy}.
+ */
+public class WebSocketSessionSender {
+
+    public enum OverflowPolicy {
+        /** Wait for space, closing the session if none frees up in time. */
+        BLOCK,
+        /**
+         * Drop queued notifications that a later queued one makes obsolete
+         * (diagnostics of the same URI, progress reports of the same token),
+         * oldest first. Everything else, including the message being sent,
+         * is kept and may exceed the bound.
+         */
+        DROP_STALE,
+        /** Close the session. */
+        CLOSE;
+
+        public static OverflowPolicy of(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    /**
+     * Meters shared by all sessions.
+     */
+    public static final class Metrics {
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final AtomicLong queuedMessages = new AtomicLong();
+        private final DistributionSummary depth;
+        private final Counter dropped;
+        private final Counter overflowClosed;
+        private final Timer delay;
+
+        public Metrics(MeterRegistry meterRegistry) {
+            Gauge.builder("lsp.websocket.outbound.queued.bytes", queuedBytes, AtomicLong::get)
+                    .description("Payload bytes waiting to be sent to editors")
+                    .baseUnit("bytes")
+                    .register(meterRegistry);
+            Gauge.builder("lsp.websocket.outbound.queued.messages", queuedMessages, AtomicLong::get)
+                    .description("Messages waiting to be sent to editors")
+                    .register(meterRegistry);
+            this.depth = DistributionSummary.builder("lsp.websocket.outbound.queue.depth")
+                    .description("Bytes queued for a session when a message is added")
+                    .baseUnit("bytes")
+                    .register(meterRegistry);
+            this.dropped = Counter.builder("lsp.websocket.outbound.dropped")
+                    .description("Stale notifications dropped for slow editors")
+                    .register(meterRegistry);
+            this.overflowClosed = Counter.builder("lsp.websocket.outbound.overflow.closed")
+                    .description("Sessions closed because their outbound queue overflowed")
+                    .register(meterRegistry);
+            this.delay = Timer.builder("lsp.websocket.outbound.queue.delay")
+                    .description("Time messages wait in a session's outbound queue before they are sent")
+                    .register(meterRegistry);
+        }
+    }
+
+    private static final class Entry {
+        private final WebSocketMessage<?> message;
+        private final int size;
+        private final long enqueuedAt = System.nanoTime();
+        // Read on the first overflow that looks at this entry
+        private boolean keyed;
+        private String replacementKey;
+
+        private Entry(WebSocketMessage<?> message, int size) {
+            this.message = message;
+            this.size = size;
+        }
+
+        private String replacementKey() {
+            if (!keyed) {
+                replacementKey = WebSocketSessionSender.replacementKey(message);
+                keyed = true;
+            }
+            return replacementKey;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(WebSocketSessionSender.class);
+
+    private final WebSocketSession session;
+    private final Executor executor;
+    private final long maxBytes;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMillis;
+    private final Metrics metrics;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Deque<Entry> queue = new ArrayDeque<>();
+    private long queuedBytes;
+    private boolean draining;
+    private CloseStatus closeWhenDrained;
+    private volatile boolean closed;
+
+    public WebSocketSessionSender(WebSocketSession session, Executor executor, long maxBytes, OverflowPolicy policy,
+            long blockTimeoutMillis, Metrics metrics) {
+        this.session = session;
+        this.executor = executor;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.metrics = metrics;
+    }
+
+    public void send(WebSocketMessage<?> message) {
+        if (closed) {
+            return;
+        }
+        int size = message.getPayloadLength();
+        Entry added = new Entry(message, size);
+        boolean overflow = false;
+        lock.lock();
+        try {
+            // A single message larger than the bound still goes out on its own
+            if (queuedBytes + size > maxBytes && !queue.isEmpty()) {
+                switch (policy) {
+                    case BLOCK -> overflow = !awaitSpace(size);
+                    case DROP_STALE -> dropStale(added);
+                    case CLOSE -> overflow = true;
+                }
+            }
+            if (!overflow && !closed) {
+                queue.add(added);
+                queuedBytes += size;
+                metrics.queuedBytes.addAndGet(size);
+                metrics.queuedMessages.incrementAndGet();
+                metrics.depth.record(queuedBytes);
+                if (!draining) {
+                    draining = true;
+                    executor.execute(this::drain);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (overflow) {
+            logger.warn("Outbound queue of session {} overflowed ({} bytes), closing it", session.getId(),
+                    queuedBytes);
+            metrics.overflowClosed.increment();
+            close(CloseStatus.SESSION_NOT_RELIABLE);
+        }
+    }
+
+    /**
+     * Discards queued messages and closes the session if it is still open.
+     */
+    public void close(CloseStatus status) {
+        discard();
+        if (session.isOpen()) {
+            try {
+                session.close(status);
+            } catch (IOException e) {
+                logger.debug("Failed to close session {}: {}", session.getId(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Closes the session once the messages queued so far are sent, e.g. after
+     * telling the editor why it is disconnected.
+     */
+    public void closeWhenDrained(CloseStatus status) {
+        lock.lock();
+        try {
+            if (draining || !queue.isEmpty()) {
+                closeWhenDrained = status;
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        close(status);
+    }
+
+    /**
+     * Discards queued messages; called when the session is gone.
+     */
+    public void discard() {
+        lock.lock();
+        try {
+            closed = true;
+            metrics.queuedBytes.addAndGet(-queuedBytes);
+            metrics.queuedMessages.addAndGet(-queue.size());
+            queue.clear();
+            queuedBytes = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getQueuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean awaitSpace(int size) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+        try {
+            while (queuedBytes + size > maxBytes && !queue.isEmpty() && !closed) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = notFull.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Drops queued notifications that a later queued one, or {@code added},
+     * replaces, oldest first, until {@code added} fits.
+     */
+    private void dropStale(Entry added) {
+        Set<String> replaced = new HashSet<>();
+        if (added.replacementKey() != null) {
+            replaced.add(added.replacementKey());
+        }
+        Set<Entry> obsolete = new HashSet<>();
+        for (Iterator<Entry> entries = queue.descendingIterator(); entries.hasNext();) {
+            Entry entry = entries.next();
+            String key = entry.replacementKey();
+            if (key != null && !replaced.add(key)) {
+                obsolete.add(entry);
+            }
+        }
+        Iterator<Entry> entries = queue.iterator();
+        while (queuedBytes + added.size > maxBytes && !obsolete.isEmpty() && entries.hasNext()) {
+            Entry entry = entries.next();
+            if (obsolete.remove(entry)) {
+                entries.remove();
+                queuedBytes -= entry.size;
+                metrics.queuedBytes.addAndGet(-entry.size);
+                metrics.queuedMessages.decrementAndGet();
+                metrics.dropped.increment();
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Entry entry;
+            CloseStatus closeNow = null;
+            lock.lock();
+            try {
+                entry = queue.poll();
+                if (entry == null || closed) {
+                    draining = false;
+                    closeNow = closed ? null : closeWhenDrained;
+                    if (closeNow == null) {
+                        return;
+                    }
+                } else {
+                    queuedBytes -= entry.size;
+                    metrics.queuedBytes.addAndGet(-entry.size);
+                    metrics.queuedMessages.decrementAndGet();
+                    metrics.delay.record(System.nanoTime() - entry.enqueuedAt, TimeUnit.NANOSECONDS);
+                    notFull.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (closeNow != null) {
+                close(closeNow);
+                return;
+            }
+
+            try {
+                session.sendMessage(entry.message);
+            } catch (IOException | IllegalStateException e) {
+                logger.warn("Failed to send to session {}, closing it: {}", session.getId(), e.getMessage());
+                lock.lock();
+                try {
+                    draining = false;
+                } finally {
+                    lock.unlock();
+                }
+                close(CloseStatus.SESSION_NOT_RELIABLE);
+                return;
+            }
+        }
+    }
+
+    private static String replacementKey(WebSocketMessage<?> message) {
+        if (message instanceof TextMessage text) {
+            String payload = text.getPayload();
+            return NotificationCoalescer.replacementKey(JsonRpcEnvelope.scan(payload), () -> payload);
+        }
+        if (message instanceof BinaryMessage binary) {
+            ByteBuffer payload = binary.getPayload();
+            byte[] bytes = new byte[payload.remaining()];
+            payload.duplicate().get(bytes);
+            return NotificationCoalescer.replacementKey(JsonRpcEnvelope.scan(bytes),
+                    () -> new String(bytes, StandardCharsets.UTF_8));
+        }
+        return null;
+    }
+}
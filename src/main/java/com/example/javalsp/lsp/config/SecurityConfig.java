@@ -2,6 +2,7 @@ package com.example.javalsp.lsp.config;
 
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.security.config.Customizer;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.web.SecurityFilterChain;
 import org.springframework.web.cors.CorsConfiguration;
@@ -23,9 +24,13 @@ public class SecurityConfig {
                 .authorizeHttpRequests(auth -> auth
                         // Permit access to your WebSocket endpoint
                         .requestMatchers("/lsp", "/php").permitAll()
+                        // Liveness probes only; metrics and stderr dumps need credentials
+                        .requestMatchers("/actuator/health").permitAll()
                         // Add other public endpoints if needed
                         .anyRequest().authenticated() // All other requests require authentication
-                );
+                )
+                // 4. Let scrapers and operators authenticate with HTTP Basic
+                .httpBasic(Customizer.withDefaults());
         return http.build();
     }
 
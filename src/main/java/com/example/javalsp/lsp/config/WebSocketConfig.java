@@ -9,9 +9,17 @@ import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry
 import com.example.javalsp.lsp.LspWebSocketHandler;
 import com.example.javalsp.lsp.Process.LanguageServerProcessManager;
 
+import io.micrometer.core.instrument.MeterRegistry;
+
 @Configuration
 @EnableWebSocket
 public class WebSocketConfig implements WebSocketConfigurer {
+    private final MeterRegistry meterRegistry;
+
+    public WebSocketConfig(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
         registry.addHandler(lspWebSocketHandler(), "/lsp").addInterceptors(new QueryHandShakeInterceptor())
@@ -22,11 +30,11 @@ public class WebSocketConfig implements WebSocketConfigurer {
 
     @Bean
     public LspWebSocketHandler lspWebSocketHandler() {
-        return new LspWebSocketHandler(languageServerProcessManager());
+        return new LspWebSocketHandler(languageServerProcessManager(), meterRegistry);
     }
 
     @Bean
     public LanguageServerProcessManager languageServerProcessManager() {
-        return new LanguageServerProcessManager();
+        return new LanguageServerProcessManager(meterRegistry);
     }
 }
@@ -0,0 +1,104 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Spawns JDT-LS with and without an AppCDS archive recorded by
+ * {@link ClassDataArchive} and compares the time until {@code initialize} is
+ * answered and the RSS and PSS of the servers once they are all up. Needs a
+ * JDT-LS installation:
+ *
+ * <pre>
+ * mvn test -Dtest=ClassDataArchiveBenchmarkTest \
+ *     -Dlsp.bench.jdt.launcher=/opt/jdt-ls/plugins/org.eclipse.equinox.launcher_X.jar \
+ *     -Dlsp.bench.jdt.path=/opt/jdt-ls -Dlsp.bench.spawns=5 -Dlsp.bench.jvm.profile=balanced
+ * </pre>
+ */
+@EnabledIfSystemProperty(named = "lsp.bench.jdt.launcher", matches = ".+")
+public class ClassDataArchiveBenchmarkTest {
+
+    private static final long TIMEOUT_SECONDS = 300;
+
+    private final String launcher = System.getProperty("lsp.bench.jdt.launcher");
+    private final String jdtPath = System.getProperty("lsp.bench.jdt.path", "/opt/jdt-ls");
+    private final int spawns = Integer.getInteger("lsp.bench.spawns", 5);
+    private final JdtLaunchProfile profile = JdtLaunchProfile.of(
+            System.getProperty("lsp.bench.jvm.profile", "balanced"), null, null);
+
+    private Process startJdt(String data, List<String> extraOptions) throws IOException {
+        List<String> command = new ArrayList<>(List.of("java",
+                "-Declipse.application=org.eclipse.jdt.ls.core.id1",
+                "-Dosgi.bundles.defaultStartLevel=4",
+                "-Declipse.product=org.eclipse.jdt.ls.core.product"));
+        command.addAll(profile.jvmOptions());
+        command.addAll(extraOptions);
+        command.addAll(List.of("-jar", launcher, "-configuration", jdtPath + "/config_linux", "-data", data));
+        return new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+    }
+
+    private void spawnAndReport(String mode, Path root, List<String> extraOptions) throws Exception {
+        List<LanguageServerProcess> servers = new ArrayList<>();
+        List<Long> startupMillis = new ArrayList<>();
+        try {
+            List<CompletableFuture<Long>> initialized = new ArrayList<>();
+            for (int i = 0; i < spawns; i++) {
+                Path project = Files.createDirectories(root.resolve(mode + "-" + i).resolve("project"));
+                long start = System.nanoTime();
+                Process process = startJdt(root.resolve(mode + "-" + i).toString(), extraOptions);
+                CompletableFuture<Long> response = new CompletableFuture<>();
+                LanguageServerProcess server = new LanguageServerProcess(process, "java", message -> {
+                    if (JsonRpcEnvelope.scan(message).isResponse()) {
+                        response.complete(System.nanoTime() - start);
+                    }
+                }, mode + "-" + i);
+                server.sendMessage("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"initialize\",\"params\":"
+                        + "{\"processId\":null,\"rootUri\":\"" + project.toUri() + "\",\"capabilities\":{}}}");
+                servers.add(server);
+                initialized.add(response);
+            }
+            for (CompletableFuture<Long> response : initialized) {
+                startupMillis.add(TimeUnit.NANOSECONDS.toMillis(response.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+            }
+            Collections.sort(startupMillis);
+            // Let the servers finish the work that follows initialize
+            Thread.sleep(10_000);
+            long rss = 0;
+            long pss = 0;
+            for (LanguageServerProcess server : servers) {
+                rss += server.getResidentMemoryKb();
+                pss += server.getProportionalMemoryKb();
+            }
+            System.out.printf("CDS benchmark [%s, %s]: %d servers, initialize p50 %d ms, max %d ms, "
+                    + "RSS %.1f MB/server, PSS %.1f MB/server%n", mode, profile.getName(), spawns,
+                    startupMillis.get(startupMillis.size() / 2), startupMillis.get(startupMillis.size() - 1),
+                    rss / 1024.0 / spawns, pss / 1024.0 / spawns);
+        } finally {
+            servers.forEach(LanguageServerProcess::destroy);
+        }
+    }
+
+    @Test
+    public void testSpawnWithAndWithoutArchive(@TempDir Path root) throws Exception {
+        ClassDataArchive archive = new ClassDataArchive(root.resolve("cds"), "bench-" + profile.getName());
+        archive.build(this::startJdt, LanguageServerProcessOptions.defaults());
+        assertTrue(archive.isReady());
+
+        spawnAndReport("without-archive", root, List.of());
+        spawnAndReport("with-archive", root, archive.jvmOptions());
+    }
+}
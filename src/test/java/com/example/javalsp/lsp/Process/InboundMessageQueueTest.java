@@ -0,0 +1,185 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class InboundMessageQueueTest {
+
+    private final List<String> written = new ArrayList<>();
+    private final List<String> answered = new ArrayList<>();
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final InboundMessageQueue queue = new InboundMessageQueue((message, envelope, info) -> written.add(message), answered::add, 0, "java",
+            registry);
+
+    private static String request(int id, String method, String uri) {
+        return "{\"jsonrpc\":\"2.0\",\"id\":" + id + ",\"method\":\"" + method + "\",\"params\":{\"textDocument\":"
+                + "{\"uri\":\"" + uri + "\"},\"position\":{\"line\":1,\"character\":" + id + "}}}";
+    }
+
+    private static String cancel(int id) {
+        return "{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\",\"params\":{\"id\":" + id + "}}";
+    }
+
+    @Test
+    public void testCancelledRequestIsAnsweredLocally() {
+        String hover = request(1, "textDocument/hover", "file:///A.java");
+        String definition = request(2, "textDocument/definition", "file:///A.java");
+        queue.offer(hover);
+        queue.offer(definition);
+        queue.offer(cancel(1));
+
+        assertEquals(List.of(InboundMessageQueue.cancelledResponse("1")), answered);
+        queue.resume();
+        assertEquals(List.of(definition), written);
+        assertEquals(1, registry.get("lsp.inbound.dropped").tag("reason", "cancelled").counter().count());
+    }
+
+    @Test
+    public void testNewerCompletionSupersedesQueuedOne() {
+        String didChange = "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":{}}";
+        String first = request(1, "textDocument/completion", "file:///A.java");
+        String other = request(2, "textDocument/completion", "file:///B.java");
+        String latest = request(3, "textDocument/completion", "file:///A.java");
+        queue.offer(first);
+        queue.offer(didChange);
+        queue.offer(other);
+        queue.offer(latest);
+        queue.resume();
+
+        assertEquals(List.of(didChange, other, latest), written);
+        assertEquals(List.of(InboundMessageQueue.cancelledResponse("1")), answered);
+    }
+
+    @Test
+    public void testSessionsSharingTheServerDoNotSupersedeEachOther() {
+        // Odd ids come from one tab, even ids from another
+        queue.setRequestOwner(id -> Integer.parseInt(id) % 2 == 0 ? "tab-a" : "tab-b");
+        String first = request(1, "textDocument/hover", "file:///A.java");
+        String other = request(2, "textDocument/hover", "file:///A.java");
+        String latest = request(3, "textDocument/hover", "file:///A.java");
+        queue.offer(first);
+        queue.offer(other);
+        queue.offer(latest);
+        queue.resume();
+
+        assertEquals(List.of(other, latest), written);
+        assertEquals(List.of(InboundMessageQueue.cancelledResponse("1")), answered);
+    }
+
+    @Test
+    public void testSupersededRequestInFlightIsCancelledOnServer() {
+        queue.resume();
+        queue.offer(request(1, "textDocument/hover", "file:///A.java"));
+        queue.offer(request(2, "textDocument/hover", "file:///A.java"));
+        queue.onResponse("2");
+        queue.offer(request(3, "textDocument/hover", "file:///A.java"));
+
+        assertEquals(List.of(request(1, "textDocument/hover", "file:///A.java"), cancel(1),
+                request(2, "textDocument/hover", "file:///A.java"),
+                request(3, "textDocument/hover", "file:///A.java")), written);
+        assertEquals(List.of(), answered);
+    }
+
+    @Test
+    public void testReadyQueueTellsTheWriterWhatMessagesCancelReadAndChange() {
+        List<LspWriteScheduler.MessageInfo> infos = new ArrayList<>();
+        InboundMessageQueue ready = new InboundMessageQueue((message, envelope, info) -> infos.add(info), answered::add,
+                0, "java", registry);
+        ready.resume();
+        ready.offer(request(1, "textDocument/hover", "file:///A.java"));
+        ready.offer(didChange("file:///A.java", 2, edit("a")));
+        ready.offer(cancel(7));
+        ready.offer(request(2, "textDocument/hover", "file:///A.java"));
+
+        assertEquals(List.of(new LspWriteScheduler.MessageInfo(null, "file:///A.java", null),
+                new LspWriteScheduler.MessageInfo(null, null, "file:///A.java"),
+                new LspWriteScheduler.MessageInfo("7", null, null),
+                // The first hover is superseded through the write scheduler
+                new LspWriteScheduler.MessageInfo("1", null, null),
+                new LspWriteScheduler.MessageInfo(null, "file:///A.java", null)), infos);
+        assertEquals(0, ready.size());
+    }
+
+    @Test
+    public void testWriterGetsTheEnvelopeTheMessageWasOfferedWith() {
+        List<JsonRpcEnvelope> envelopes = new ArrayList<>();
+        InboundMessageQueue ready = new InboundMessageQueue((message, envelope, info) -> envelopes.add(envelope),
+                answered::add, 0, "java", registry);
+        ready.resume();
+        String hover = request(1, "textDocument/hover", "file:///A.java");
+        JsonRpcEnvelope classified = JsonRpcEnvelope.scan(hover);
+        ready.offer(hover, classified);
+        ready.offer(request(2, "textDocument/hover", "file:///A.java"));
+
+        assertSame(classified, envelopes.get(0));
+        // The cancel of the superseded hover, then the hover that superseded it
+        assertEquals("$/cancelRequest", envelopes.get(1).getMethod());
+        assertEquals("2", envelopes.get(2).getId());
+    }
+
+    private static String didChange(String uri, int version, String change) {
+        return "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":{\"textDocument\":"
+                + "{\"uri\":\"" + uri + "\",\"version\":" + version + "},\"contentChanges\":[" + change + "]}}";
+    }
+
+    private static String edit(String text) {
+        return "{\"range\":{\"start\":{\"line\":0,\"character\":0},\"end\":{\"line\":0,\"character\":0}},"
+                + "\"text\":\"" + text + "\"}";
+    }
+
+    @Test
+    public void testStartupBacklogMergesEditsAndDropsOutdatedRequests() {
+        String completion = request(1, "textDocument/completion", "file:///A.java");
+        String definition = request(2, "textDocument/definition", "file:///B.java");
+        queue.offer(didChange("file:///A.java", 2, edit("a")));
+        queue.offer(completion);
+        queue.offer(definition);
+        queue.offer(didChange("file:///A.java", 3, edit("b")));
+        queue.offer(didChange("file:///A.java", 4, "{\"text\":\"class A {}\"}"));
+        queue.offer(didChange("file:///A.java", 5, edit("c")));
+
+        assertEquals(List.of(InboundMessageQueue.errorResponse("1", InboundMessageQueue.CONTENT_MODIFIED,
+                "Content modified")), answered);
+        assertEquals(2, queue.size());
+
+        queue.resume();
+        assertEquals(definition, written.get(0));
+        assertEquals(didChange("file:///A.java", 5, "{\"text\":\"class A {}\"}," + edit("c")), written.get(1));
+        assertEquals(3, registry.get("lsp.inbound.didchange.merged").counter().count());
+        assertEquals(1, registry.get("lsp.startup.backlog.messages").summary().count());
+    }
+
+    @Test
+    public void testEditsAreNotMergedAcrossARequestOnTheDocument() {
+        String definition = request(1, "textDocument/definition", "file:///A.java");
+        queue.offer(didChange("file:///A.java", 2, edit("a")));
+        queue.offer(definition);
+        queue.offer(didChange("file:///A.java", 3, edit("b")));
+        queue.resume();
+
+        assertEquals(List.of(didChange("file:///A.java", 2, edit("a")), definition,
+                didChange("file:///A.java", 3, edit("b"))), written);
+    }
+
+    @Test
+    public void testOldestRequestsAreCancelledBeyondTheBound() {
+        InboundMessageQueue bounded = new InboundMessageQueue((message, envelope, info) -> written.add(message), answered::add, 600, "java", registry);
+        String change = didChange("file:///A.java", 2, edit("x".repeat(200)));
+        bounded.offer(request(1, "textDocument/definition", "file:///A.java"));
+        bounded.offer(request(2, "textDocument/references", "file:///B.java"));
+        bounded.offer(change);
+
+        assertEquals(List.of(InboundMessageQueue.cancelledResponse("1")), answered);
+        assertTrue(bounded.getQueuedBytes() <= 600);
+        bounded.resume();
+        assertEquals(List.of(request(2, "textDocument/references", "file:///B.java"), change), written);
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class JdtLaunchProfileTest {
+
+    @Test
+    public void testPresetWithHeapOverrideAndExtraOptions() {
+        JdtLaunchProfile profile = JdtLaunchProfile.of("Compact", "512m", " -XX:+UseStringDeduplication  -Dfoo=1 ");
+
+        List<String> options = profile.jvmOptions();
+        assertEquals("compact", profile.getName());
+        assertTrue(options.contains("-XX:+UseSerialGC"));
+        assertTrue(options.contains("-Xmx512m"));
+        assertEquals(List.of("-XX:+UseStringDeduplication", "-Dfoo=1"),
+                options.subList(options.size() - 2, options.size()));
+        // Shared servers pass their own heap
+        assertTrue(profile.jvmOptions("4G").contains("-Xmx4G"));
+        assertEquals("1G", JdtLaunchProfile.of("legacy", "", "").getMaxHeap());
+    }
+
+    @Test
+    public void testArchiveIsOnlyUsedOnceRecorded(@TempDir Path dir) throws Exception {
+        ClassDataArchive archive = new ClassDataArchive(dir, "org.eclipse.equinox.launcher_1.6-balanced");
+        assertEquals(List.of(), archive.jvmOptions());
+
+        Files.write(archive.getPath(), new byte[] { 1 });
+        assertEquals(List.of("-XX:SharedArchiveFile=" + archive.getPath(), "-Xshare:auto"), archive.jvmOptions());
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class JsonRpcEnvelopeTest {
+
+    @Test
+    public void testDocumentUriAndCancelledIdComeWithTheScan() {
+        JsonRpcEnvelope hover = JsonRpcEnvelope.scan("{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"textDocument/hover\","
+                + "\"params\":{\"position\":{\"line\":1,\"character\":2},"
+                + "\"textDocument\":{\"uri\":\"file:///A%20b.java\"}}}");
+        assertTrue(hover.isRequest());
+        assertEquals("file:///A%20b.java", hover.getDocumentUri());
+        assertNull(hover.getCancelledId());
+
+        JsonRpcEnvelope cancel = JsonRpcEnvelope.scan(
+                "{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\",\"params\":{\"id\":\"abc\"}}");
+        assertEquals("\"abc\"", cancel.getCancelledId());
+        assertNull(cancel.getDocumentUri());
+
+        // A request's own params.id is not a cancel target
+        assertNull(JsonRpcEnvelope.scan("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"x\",\"params\":{\"id\":2}}")
+                .getCancelledId());
+    }
+
+    @Test
+    public void testRenumberedEnvelopeMatchesTheRewrittenMessage() {
+        String message = "{\"jsonrpc\":\"2.0\",\"id\":\"client-7\",\"method\":\"textDocument/completion\","
+                + "\"params\":{\"textDocument\":{\"uri\":\"file:///A.java\"}}}";
+        JsonRpcEnvelope envelope = JsonRpcEnvelope.scan(message);
+        String rewritten = envelope.withId(message, "42");
+        JsonRpcEnvelope renumbered = envelope.withId("42");
+
+        assertEquals("42", renumbered.getId());
+        assertEquals("file:///A.java", renumbered.getDocumentUri());
+        assertEquals(renumbered.withId(rewritten, "7"), JsonRpcEnvelope.scan(rewritten).withId(rewritten, "7"));
+    }
+
+    @Test
+    public void testMalformedParamsMakeTheMessageInvalid() {
+        assertFalse(JsonRpcEnvelope.scan("{\"jsonrpc\":\"2.0\",\"method\":\"m\",\"params\":{\"a\" 1}}").isValid());
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class LanguageServerAdmissionTest {
+
+    private final List<String> events = new CopyOnWriteArrayList<>();
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private LanguageServerAdmission admission(Map<String, Integer> maxProcesses, long budgetMb, int maxQueued,
+            long timeoutMillis) {
+        return new LanguageServerAdmission(maxProcesses, Map.of("java", 1000L, "php", 200L), budgetMb, maxQueued,
+                timeoutMillis, () -> false, registry);
+    }
+
+    private LanguageServerAdmission.Waiter waiter(String userId) {
+        return new LanguageServerAdmission.Waiter() {
+            @Override
+            public void granted() {
+                events.add("granted " + userId);
+            }
+
+            @Override
+            public void rejected(String reason) {
+                events.add("rejected " + userId);
+            }
+        };
+    }
+
+    @Test
+    public void testWaitingUsersAreAdmittedInArrivalOrder() {
+        LanguageServerAdmission admission = admission(Map.of("java", 1), 0, 10, 60_000);
+        assertEquals(LanguageServerAdmission.Decision.ADMITTED, admission.admit("alice", "java", waiter("alice")));
+        assertEquals(LanguageServerAdmission.Decision.QUEUED, admission.admit("bob", "java", waiter("bob")));
+        assertEquals(LanguageServerAdmission.Decision.QUEUED, admission.admit("carol", "java", waiter("carol")));
+        // Another language has its own limit
+        assertEquals(LanguageServerAdmission.Decision.ADMITTED, admission.admit("dave", "php", waiter("dave")));
+        assertEquals(2, admission.getQueuePosition("carol"));
+
+        admission.release("alice");
+        assertEquals(List.of("granted bob"), events);
+        assertEquals(LanguageServerAdmission.Decision.ADMITTED, admission.admit("bob", "java", waiter("bob")));
+        assertEquals(1, admission.getQueuePosition("carol"));
+    }
+
+    @Test
+    public void testNobodyOvertakesAUserWaitingForMemory() {
+        LanguageServerAdmission admission = admission(Map.of(), 1200, 10, 60_000);
+        admission.admit("alice", "php", waiter("alice"));
+        admission.admit("bob", "java", waiter("bob"));
+        assertEquals(LanguageServerAdmission.Decision.QUEUED, admission.admit("carol", "java", waiter("carol")));
+        // Would fit in the remaining memory, but carol is first in line
+        assertEquals(LanguageServerAdmission.Decision.QUEUED, admission.admit("dave", "php", waiter("dave")));
+
+        admission.release("bob");
+        assertEquals(List.of("granted carol"), events);
+        assertEquals(1200, admission.getReservedMb());
+        assertEquals(1, admission.getQueuePosition("dave"));
+    }
+
+    @Test
+    public void testUsersBeyondTheQueueOrTimeoutAreRejected() throws InterruptedException {
+        LanguageServerAdmission admission = admission(Map.of("java", 1), 0, 1, 100);
+        admission.admit("alice", "java", waiter("alice"));
+        assertEquals(LanguageServerAdmission.Decision.QUEUED, admission.admit("bob", "java", waiter("bob")));
+        assertEquals(LanguageServerAdmission.Decision.REJECTED, admission.admit("carol", "java", waiter("carol")));
+
+        Thread.sleep(500);
+        assertEquals(List.of("rejected bob"), events);
+        assertEquals(0, admission.getQueuedCount());
+        assertEquals(1, registry.get("lsp.admission.decisions").tag("outcome", "timeout").counter().count());
+    }
+}
@@ -0,0 +1,247 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class LanguageServerMultiplexerTest {
+
+    private static void serverSends(LanguageServerMultiplexer multiplexer, String message) {
+        multiplexer.onServerFrame(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testResponsesAreRoutedToTheRequestingSession() {
+        LanguageServerProcess process = Mockito.mock(LanguageServerProcess.class);
+        LanguageServerMultiplexer multiplexer = new LanguageServerMultiplexer("test-user");
+        multiplexer.setProcess(process);
+
+        List<String> tabA = new ArrayList<>();
+        List<String> tabB = new ArrayList<>();
+        multiplexer.attach("a", tabA::add, null);
+        multiplexer.attach("b", tabB::add, null);
+
+        // Both tabs use id 1; the server must see two distinct ids
+        multiplexer.send("a", "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"textDocument/hover\",\"params\":{}}");
+        multiplexer.send("b", "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"textDocument/hover\",\"params\":{}}");
+
+        ArgumentCaptor<String> sent = ArgumentCaptor.forClass(String.class);
+        verify(process, times(2)).sendMessage(sent.capture(), Mockito.any());
+        assertEquals("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"textDocument/hover\",\"params\":{}}",
+                sent.getAllValues().get(0));
+        assertEquals("{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"textDocument/hover\",\"params\":{}}",
+                sent.getAllValues().get(1));
+
+        serverSends(multiplexer, "{\"jsonrpc\":\"2.0\",\"id\":2,\"result\":{\"contents\":\"B\"}}");
+        serverSends(multiplexer, "{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":{\"contents\":\"A\"}}");
+
+        assertEquals(List.of("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":{\"contents\":\"A\"}}"), tabA);
+        assertEquals(List.of("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":{\"contents\":\"B\"}}"), tabB);
+    }
+
+    @Test
+    public void testNotificationsAreFannedOut() {
+        LanguageServerMultiplexer multiplexer = new LanguageServerMultiplexer("test-user");
+        multiplexer.setProcess(Mockito.mock(LanguageServerProcess.class));
+
+        List<String> tabA = new ArrayList<>();
+        List<ByteBuffer> tabB = new ArrayList<>();
+        multiplexer.attach("a", tabA::add, null);
+        multiplexer.attach("b", message -> {
+        }, tabB::add);
+
+        String diagnostics = "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/publishDiagnostics\","
+                + "\"params\":{\"uri\":\"file:///A.java\",\"diagnostics\":[]}}";
+        serverSends(multiplexer, diagnostics);
+
+        assertEquals(List.of(diagnostics), tabA);
+        assertEquals(1, tabB.size());
+        assertEquals(diagnostics, StandardCharsets.UTF_8.decode(tabB.get(0)).toString());
+    }
+
+    @Test
+    public void testCancelIsTranslatedAndMalformedCancelsAreDropped() {
+        LanguageServerProcess process = Mockito.mock(LanguageServerProcess.class);
+        LanguageServerMultiplexer multiplexer = new LanguageServerMultiplexer("test-user");
+        multiplexer.setProcess(process);
+        multiplexer.attach("a", message -> {
+        }, null);
+        multiplexer.attach("b", message -> {
+        }, null);
+        multiplexer.send("a", "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"textDocument/hover\",\"params\":{}}");
+        multiplexer.send("b", "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"textDocument/hover\",\"params\":{}}");
+
+        multiplexer.send("b", "{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\"}");
+        multiplexer.send("b", "{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\",\"params\":[1]}");
+        multiplexer.send("b", "{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\",\"params\":{\"id\":{}}}");
+        multiplexer.send("b", "{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\",\"params\":{\"id\":1}}");
+
+        ArgumentCaptor<String> sent = ArgumentCaptor.forClass(String.class);
+        verify(process, times(3)).sendMessage(sent.capture(), Mockito.any());
+        assertEquals("{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\",\"params\":{\"id\":2}}",
+                sent.getAllValues().get(2));
+    }
+
+    @Test
+    public void testSecondInitializeIsAnsweredFromCache() {
+        LanguageServerProcess process = Mockito.mock(LanguageServerProcess.class);
+        LanguageServerMultiplexer multiplexer = new LanguageServerMultiplexer("test-user");
+        multiplexer.setProcess(process);
+
+        List<String> tabA = new ArrayList<>();
+        List<String> tabB = new ArrayList<>();
+        multiplexer.attach("a", tabA::add, null);
+        multiplexer.send("a", "{\"jsonrpc\":\"2.0\",\"id\":0,\"method\":\"initialize\",\"params\":{}}");
+        serverSends(multiplexer, "{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":{\"capabilities\":{}}}");
+        multiplexer.send("a", "{\"jsonrpc\":\"2.0\",\"method\":\"initialized\",\"params\":{}}");
+
+        multiplexer.attach("b", tabB::add, null);
+        multiplexer.send("b", "{\"jsonrpc\":\"2.0\",\"id\":\"init\",\"method\":\"initialize\",\"params\":{}}");
+        multiplexer.send("b", "{\"jsonrpc\":\"2.0\",\"method\":\"initialized\",\"params\":{}}");
+
+        verify(process, times(2)).sendMessage(Mockito.anyString(), Mockito.any());
+        assertEquals(List.of("{\"jsonrpc\":\"2.0\",\"id\":0,\"result\":{\"capabilities\":{}}}"), tabA);
+        assertEquals(List.of("{\"jsonrpc\":\"2.0\",\"id\":\"init\",\"result\":{\"capabilities\":{}}}"), tabB);
+    }
+
+    @Test
+    public void testSharedDocumentIsClosedWhenLastSessionLeaves() {
+        LanguageServerProcess process = Mockito.mock(LanguageServerProcess.class);
+        LanguageServerMultiplexer multiplexer = new LanguageServerMultiplexer("test-user");
+        multiplexer.setProcess(process);
+        multiplexer.attach("a", message -> {
+        }, null);
+        multiplexer.attach("b", message -> {
+        }, null);
+
+        String didOpen = "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didOpen\",\"params\":{\"textDocument\":"
+                + "{\"uri\":\"file:///A.java\",\"languageId\":\"java\",\"version\":1,\"text\":\"class A {}\"}}}";
+        multiplexer.send("a", didOpen);
+        multiplexer.send("b", didOpen);
+        verify(process, times(1)).sendMessage(Mockito.eq(didOpen), Mockito.any());
+
+        assertEquals(1, multiplexer.detach("a"));
+        verify(process, times(1)).sendMessage(Mockito.anyString(), Mockito.any());
+
+        multiplexer.attach("c", message -> {
+        }, null);
+        assertEquals(1, multiplexer.detach("b"));
+        ArgumentCaptor<String> sent = ArgumentCaptor.forClass(String.class);
+        verify(process, times(2)).sendMessage(sent.capture(), Mockito.any());
+        assertTrue(sent.getValue().contains("textDocument/didClose"));
+    }
+
+    @Test
+    public void testMessagesAreHeldUntilThereIsAProcess() {
+        LanguageServerMultiplexer multiplexer = new LanguageServerMultiplexer("test-user");
+        multiplexer.attach("a", message -> {
+        }, null);
+        multiplexer.send("a", "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"initialize\",\"params\":{}}");
+        multiplexer.send("a", "{\"jsonrpc\":\"2.0\",\"method\":\"initialized\",\"params\":{}}");
+
+        LanguageServerProcess process = Mockito.mock(LanguageServerProcess.class);
+        multiplexer.setProcess(process);
+
+        ArgumentCaptor<String> sent = ArgumentCaptor.forClass(String.class);
+        verify(process, times(2)).sendMessage(sent.capture(), Mockito.any());
+        assertEquals(List.of("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"initialize\",\"params\":{}}",
+                "{\"jsonrpc\":\"2.0\",\"method\":\"initialized\",\"params\":{}}"), sent.getAllValues());
+    }
+
+    @Test
+    public void testRepeatedRequestOnUnchangedDocumentIsAnsweredFromCache() {
+        LanguageServerProcess process = Mockito.mock(LanguageServerProcess.class);
+        LanguageServerMultiplexer multiplexer = new LanguageServerMultiplexer("test-user");
+        LspResponseCache cache = new LspResponseCache(1024 * 1024, new SimpleMeterRegistry());
+        multiplexer.setResponseCache(cache);
+        multiplexer.setProcess(process);
+        List<String> tab = new ArrayList<>();
+        multiplexer.attach("a", tab::add, null);
+        String symbols = "\"method\":\"textDocument/documentSymbol\",\"params\":{\"textDocument\":{\"uri\":\"file:///A.java\"}}}";
+
+        multiplexer.send("a", "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didOpen\",\"params\":"
+                + "{\"textDocument\":{\"uri\":\"file:///A.java\",\"version\":1,\"text\":\"class A {}\"}}}");
+        multiplexer.send("a", "{\"jsonrpc\":\"2.0\",\"id\":7," + symbols);
+        serverSends(multiplexer, "{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":[{\"name\":\"A\"}]}");
+        multiplexer.send("a", "{\"jsonrpc\":\"2.0\",\"id\":8," + symbols);
+
+        // The second request never reaches the server
+        verify(process, times(2)).sendMessage(Mockito.anyString(), Mockito.any());
+        assertEquals(List.of("{\"jsonrpc\":\"2.0\",\"id\":7,\"result\":[{\"name\":\"A\"}]}",
+                "{\"jsonrpc\":\"2.0\",\"id\":8,\"result\":[{\"name\":\"A\"}]}"), tab);
+        assertEquals(0.5, cache.getHitRatio());
+
+        multiplexer.send("a", "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":"
+                + "{\"textDocument\":{\"uri\":\"file:///A.java\",\"version\":2},\"contentChanges\":[]}}");
+        assertEquals(0, cache.size());
+        multiplexer.send("a", "{\"jsonrpc\":\"2.0\",\"id\":9," + symbols);
+        verify(process, times(4)).sendMessage(Mockito.anyString(), Mockito.any());
+    }
+
+    @Test
+    public void testCrashedServerIsReplacedWithTheEditorState() {
+        LanguageServerProcess crashed = Mockito.mock(LanguageServerProcess.class);
+        LanguageServerMultiplexer multiplexer = new LanguageServerMultiplexer("test-user");
+        multiplexer.setCrashRecovery(true);
+        multiplexer.setProcess(crashed);
+        List<String> tab = new ArrayList<>();
+        multiplexer.attach("a", tab::add, null);
+
+        multiplexer.send("a", "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"initialize\",\"params\":{}}");
+        serverSends(multiplexer, "{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":{\"capabilities\":{}}}");
+        multiplexer.send("a", "{\"jsonrpc\":\"2.0\",\"method\":\"initialized\",\"params\":{}}");
+        multiplexer.send("a", "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didOpen\",\"params\":{\"textDocument\":"
+                + "{\"uri\":\"file:///A.java\",\"languageId\":\"java\",\"version\":1,\"text\":\"class A {\\n}\\n\"}}}");
+        multiplexer.send("a", "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":{\"textDocument\":"
+                + "{\"uri\":\"file:///A.java\",\"version\":2},\"contentChanges\":[{\"range\":{\"start\":"
+                + "{\"line\":1,\"character\":0},\"end\":{\"line\":1,\"character\":0}},\"text\":\"  int x;\\n\"}]}}");
+        multiplexer.send("a", "{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"textDocument/hover\",\"params\":{}}");
+        tab.clear();
+
+        multiplexer.serverCrashed(true);
+        // The hover will never be answered; typing goes on meanwhile
+        assertEquals("{\"jsonrpc\":\"2.0\",\"id\":2,\"error\":{\"code\":-32801,"
+                + "\"message\":\"The language server restarted\"}}", tab.get(0));
+        multiplexer.send("a", "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":{\"textDocument\":"
+                + "{\"uri\":\"file:///A.java\",\"version\":3},\"contentChanges\":[{\"range\":{\"start\":"
+                + "{\"line\":0,\"character\":6},\"end\":{\"line\":0,\"character\":7}},\"text\":\"B\"}]}}");
+        multiplexer.send("a", "{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"textDocument/hover\",\"params\":{}}");
+
+        LanguageServerProcess replacement = Mockito.mock(LanguageServerProcess.class);
+        boolean[] recovered = { false };
+        multiplexer.recover(replacement, () -> recovered[0] = true);
+
+        ArgumentCaptor<String> sent = ArgumentCaptor.forClass(String.class);
+        verify(replacement, times(4)).sendMessage(sent.capture(), Mockito.any());
+        assertEquals("{\"jsonrpc\":\"2.0\",\"id\":4,\"method\":\"initialize\",\"params\":{}}",
+                sent.getAllValues().get(0));
+        assertEquals("{\"jsonrpc\":\"2.0\",\"method\":\"initialized\",\"params\":{}}", sent.getAllValues().get(1));
+        assertEquals("{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didOpen\",\"params\":{\"textDocument\":"
+                + "{\"uri\":\"file:///A.java\",\"languageId\":\"java\",\"version\":3,"
+                + "\"text\":\"class B {\\n  int x;\\n}\\n\"}}}", sent.getAllValues().get(2));
+        assertEquals("{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"textDocument/hover\",\"params\":{}}",
+                sent.getAllValues().get(3));
+
+        // The replayed initialize is answered to nobody
+        serverSends(multiplexer, "{\"jsonrpc\":\"2.0\",\"id\":4,\"result\":{\"capabilities\":{}}}");
+        assertTrue(recovered[0]);
+        // Told about the restart, then that it is done
+        assertEquals(3, tab.size());
+        assertTrue(tab.get(1).contains("is restarting"));
+        assertTrue(tab.get(2).contains("restarted."));
+        serverSends(multiplexer, "{\"jsonrpc\":\"2.0\",\"id\":3,\"result\":null}");
+        assertEquals("{\"jsonrpc\":\"2.0\",\"id\":3,\"result\":null}", tab.get(3));
+    }
+}
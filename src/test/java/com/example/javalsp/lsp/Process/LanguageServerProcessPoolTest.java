@@ -0,0 +1,114 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LanguageServerProcessPoolTest {
+
+    private final List<LanguageServerProcess> spawned = new CopyOnWriteArrayList<>();
+    private final AtomicInteger spawns = new AtomicInteger();
+    private LanguageServerProcessPool pool;
+
+    @AfterEach
+    public void shutdownPool() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private LanguageServerProcessPool pool(int size) {
+        pool = new LanguageServerProcessPool("java", size, () -> {
+            LanguageServerProcess process = Mockito.mock(LanguageServerProcess.class);
+            when(process.isAlive()).thenReturn(true);
+            spawned.add(process);
+            return new LanguageServerProcessPool.Entry(process, "/ws/pool-" + spawns.incrementAndGet());
+        }, new SimpleMeterRegistry());
+        return pool;
+    }
+
+    private static void awaitIdle(LanguageServerProcessPool pool, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getIdleCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, pool.getIdleCount());
+    }
+
+    @Test
+    public void testRefillStartsProcessesUpToTheSize() throws InterruptedException {
+        LanguageServerProcessPool pool = pool(2);
+        pool.refill();
+        awaitIdle(pool, 2);
+
+        pool.refill();
+        Thread.sleep(100);
+        assertEquals(2, spawns.get());
+    }
+
+    @Test
+    public void testTakenProcessIsCountedAsHitAndReplaced() throws InterruptedException {
+        LanguageServerProcessPool pool = pool(1);
+        pool.refill();
+        awaitIdle(pool, 1);
+
+        LanguageServerProcessPool.Entry entry = pool.acquire();
+
+        assertNotNull(entry);
+        assertSame(spawned.get(0), entry.getProcess());
+        assertEquals("/ws/pool-1", entry.getWorkspacePath());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(0, pool.getMissCount());
+        awaitIdle(pool, 1);
+        assertEquals(2, spawns.get());
+    }
+
+    @Test
+    public void testEmptyPoolIsAMissAndDeadProcessesAreDiscarded() throws InterruptedException {
+        LanguageServerProcessPool pool = pool(1);
+        assertNull(pool.acquire());
+        assertEquals(1, pool.getMissCount());
+        awaitIdle(pool, 1);
+
+        LanguageServerProcess dead = spawned.get(0);
+        when(dead.isAlive()).thenReturn(false);
+        assertNull(pool.acquire());
+
+        verify(dead).destroy();
+        assertEquals(2, pool.getMissCount());
+        assertEquals(0, pool.getHitCount());
+    }
+
+    @Test
+    public void testShutdownDestroysIdleProcessesAndStopsRefilling() throws InterruptedException {
+        LanguageServerProcessPool pool = pool(2);
+        pool.refill();
+        awaitIdle(pool, 2);
+
+        pool.shutdown();
+        pool.refill();
+        Thread.sleep(100);
+
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(2, spawns.get());
+        for (LanguageServerProcess process : spawned) {
+            verify(process).destroy();
+        }
+        LanguageServerProcess taken = spawned.get(0);
+        verify(taken, never()).sendMessage(Mockito.anyString());
+    }
+}
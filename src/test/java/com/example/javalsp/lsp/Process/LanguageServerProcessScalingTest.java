@@ -0,0 +1,168 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Starts 500 idle simulated sessions and reports how many platform threads and
+ * how much resident memory they cost. Run with {@code -Dlsp.threads.mode=platform}
+ * or {@code virtual} (virtual needs a Java 21 runtime, otherwise it falls back).
+ */
+public class LanguageServerProcessScalingTest {
+
+    private static final int SESSIONS = 500;
+
+    /**
+     * Stream that never delivers data, like the pipes of a language server that
+     * has nothing to say. Blocks on a latch so virtual threads can unmount.
+     */
+    private static class IdleInputStream extends InputStream {
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public int read() throws IOException {
+            try {
+                closed.await();
+                return -1;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return read();
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    private static class SimulatedProcess extends Process {
+        private final InputStream stdout = new IdleInputStream();
+        private final InputStream stderr = new IdleInputStream();
+        private final OutputStream stdin = new ByteArrayOutputStream();
+        private final CompletableFuture<Process> exit = new CompletableFuture<>();
+
+        @Override
+        public OutputStream getOutputStream() {
+            return stdin;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return stdout;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return stderr;
+        }
+
+        @Override
+        public int waitFor() throws InterruptedException {
+            new CountDownLatch(1).await();
+            return 0;
+        }
+
+        @Override
+        public int exitValue() {
+            return 0;
+        }
+
+        @Override
+        public boolean isAlive() {
+            return !exit.isDone();
+        }
+
+        @Override
+        public CompletableFuture<Process> onExit() {
+            return exit;
+        }
+
+        @Override
+        public void destroy() {
+            try {
+                stdout.close();
+                stderr.close();
+            } catch (IOException e) {
+                // Idle streams do not fail on close
+            }
+            exit.complete(this);
+        }
+
+        @Override
+        public long pid() {
+            return 0;
+        }
+    }
+
+    private static long readRssKb() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not on Linux
+        }
+        return -1;
+    }
+
+    @Test
+    public void testThreadsAndMemoryForConcurrentSessions() throws InterruptedException {
+        LspThreads threads = LspThreads.of(System.getProperty("lsp.threads.mode", "virtual"));
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+        System.gc();
+        int threadsBefore = threadBean.getThreadCount();
+        long rssBefore = readRssKb();
+
+        List<LanguageServerProcess> sessions = new ArrayList<>(SESSIONS);
+        for (int i = 0; i < SESSIONS; i++) {
+            sessions.add(new LanguageServerProcess(new SimulatedProcess(), "java", message -> {
+            }, "sim-" + i, LanguageServerProcessOptions.defaults().threads(threads)));
+        }
+        // Let every reader reach its blocking read
+        Thread.sleep(1000);
+
+        int threadsAfter = threadBean.getThreadCount();
+        long rssAfter = readRssKb();
+        int addedThreads = threadsAfter - threadsBefore;
+
+        System.out.printf("Scaling [%s, Java %d]: %d sessions -> +%d platform threads (%.2f/session), "
+                + "RSS %d KB -> %d KB (%+d KB, %.1f KB/session)%n",
+                threads.getMode(), Runtime.version().feature(), SESSIONS, addedThreads,
+                addedThreads / (double) SESSIONS, rssBefore, rssAfter, rssAfter - rssBefore,
+                (rssAfter - rssBefore) / (double) SESSIONS);
+
+        sessions.forEach(LanguageServerProcess::destroy);
+
+        if (threads.getMode() == LspThreads.Mode.VIRTUAL) {
+            // Idle sessions park their virtual threads and keep no carrier
+            assertTrue(addedThreads < SESSIONS / 10, "platform threads added: " + addedThreads);
+        } else {
+            // One stdout and one stderr reader per session; exit is watched without a thread
+            assertTrue(addedThreads <= 2 * SESSIONS + 10, "platform threads added: " + addedThreads);
+        }
+    }
+}
@@ -3,6 +3,8 @@ package com.example.javalsp.lsp.Process;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -10,17 +12,34 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.when;
 
 public class LanguageServerProcessTest {
 
+    // Messages reach stdin from the process's writer thread
+    private static boolean awaitWritten(ByteArrayOutputStream stdin, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!stdin.toString(StandardCharsets.UTF_8).contains(message)) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
     @Test
     public void testReaderThread() throws IOException, InterruptedException {
         Process mockProcess = Mockito.mock(Process.class);
@@ -92,4 +111,197 @@ public class LanguageServerProcessTest {
         inputStream.close();
         pipedOutputStream.close();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testRawPassthroughSkipsStringDecoding() throws IOException, InterruptedException {
+        Process mockProcess = Mockito.mock(Process.class);
+
+        PipedOutputStream pipedOutputStream = new PipedOutputStream();
+        InputStream inputStream = new PipedInputStream(pipedOutputStream);
+
+        when(mockProcess.getInputStream()).thenReturn(inputStream);
+        when(mockProcess.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        when(mockProcess.getErrorStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(mockProcess.isAlive()).thenReturn(true);
+
+        BlockingQueue<String> receivedMessages = new ArrayBlockingQueue<>(1);
+        BlockingQueue<ByteBuffer> receivedFrames = new ArrayBlockingQueue<>(1);
+
+        LanguageServerProcess lsp = new LanguageServerProcess(mockProcess, "java", receivedMessages::offer,
+                "test-user");
+        lsp.setRawMessageHandler(receivedFrames::offer);
+
+        String message = "{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":\"é\"}";
+        byte[] content = message.getBytes(StandardCharsets.UTF_8);
+        pipedOutputStream.write(("Content-Length: " + content.length + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        pipedOutputStream.write(content);
+        pipedOutputStream.flush();
+
+        ByteBuffer received = receivedFrames.poll(5, TimeUnit.SECONDS);
+
+        assertEquals(ByteBuffer.wrap(content), received);
+        assertNull(receivedMessages.poll());
+
+        lsp.destroy();
+        inputStream.close();
+        pipedOutputStream.close();
+    }
+
+    @Test
+    public void testInitializeResponseReleasesQueuedMessages() throws IOException, InterruptedException {
+        Process mockProcess = Mockito.mock(Process.class);
+
+        PipedOutputStream pipedOutputStream = new PipedOutputStream();
+        InputStream inputStream = new PipedInputStream(pipedOutputStream);
+        ByteArrayOutputStream serverStdin = new ByteArrayOutputStream();
+
+        when(mockProcess.getInputStream()).thenReturn(inputStream);
+        when(mockProcess.getOutputStream()).thenReturn(serverStdin);
+        when(mockProcess.getErrorStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(mockProcess.isAlive()).thenReturn(true);
+
+        BlockingQueue<String> receivedMessages = new ArrayBlockingQueue<>(1);
+        LanguageServerProcess lsp = new LanguageServerProcess(mockProcess, "java", receivedMessages::offer,
+                "test-user");
+
+        String initialize = "{\"jsonrpc\":\"2.0\",\"id\":0,\"method\":\"initialize\",\"params\":{}}";
+        String didOpen = "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didOpen\",\"params\":{}}";
+        lsp.sendMessage(initialize);
+        lsp.sendMessage(didOpen);
+
+        // initialize goes out straight away, everything else waits for its response
+        assertTrue(awaitWritten(serverStdin, initialize));
+        assertFalse(serverStdin.toString(StandardCharsets.UTF_8).contains(didOpen));
+        assertFalse(lsp.isReady());
+
+        String response = "{\"jsonrpc\":\"2.0\",\"id\":0,\"result\":{\"capabilities\":{}}}";
+        pipedOutputStream.write(("Content-Length: " + response.length() + "\r\n\r\n" + response)
+                .getBytes(StandardCharsets.UTF_8));
+        pipedOutputStream.flush();
+
+        assertEquals(response, receivedMessages.poll(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!lsp.isReady() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(lsp.isReady());
+        assertTrue(awaitWritten(serverStdin, didOpen));
+
+        lsp.destroy();
+        inputStream.close();
+        pipedOutputStream.close();
+    }
+
+    @Test
+    public void testRequestLatencyIsRecordedPerMethod() throws IOException, InterruptedException {
+        Process mockProcess = Mockito.mock(Process.class);
+
+        PipedOutputStream pipedOutputStream = new PipedOutputStream();
+        InputStream inputStream = new PipedInputStream(pipedOutputStream);
+
+        when(mockProcess.getInputStream()).thenReturn(inputStream);
+        when(mockProcess.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        when(mockProcess.getErrorStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(mockProcess.isAlive()).thenReturn(true);
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        BlockingQueue<String> receivedMessages = new ArrayBlockingQueue<>(2);
+        LanguageServerProcess lsp = new LanguageServerProcess(mockProcess, "java", receivedMessages::offer,
+                "test-user", LanguageServerProcessOptions.defaults().meterRegistry(registry));
+
+        lsp.sendMessage("{\"jsonrpc\":\"2.0\",\"id\":0,\"method\":\"initialize\",\"params\":{}}");
+        assertEquals(1, registry.get("lsp.requests.inflight").gauge().value());
+
+        String response = "{\"jsonrpc\":\"2.0\",\"id\":0,\"result\":{\"capabilities\":{}}}";
+        pipedOutputStream.write(("Content-Length: " + response.length() + "\r\n\r\n" + response)
+                .getBytes(StandardCharsets.UTF_8));
+        pipedOutputStream.flush();
+        assertEquals(response, receivedMessages.poll(5, TimeUnit.SECONDS));
+
+        assertEquals(1, registry.get("lsp.request.latency").tag("method", "initialize")
+                .tag("outcome", "success").timer().count());
+        assertEquals(0, registry.get("lsp.requests.inflight").gauge().value());
+        assertEquals(1, registry.get("lsp.messages").tag("direction", "server").counter().count());
+        assertEquals(response.length(), registry.get("lsp.message.bytes").tag("direction", "server").counter()
+                .count());
+
+        lsp.destroy();
+        inputStream.close();
+        pipedOutputStream.close();
+    }
+
+    @Test
+    public void testExitIsSentOnceShutdownIsAnswered() throws Exception {
+        Process mockProcess = Mockito.mock(Process.class);
+
+        PipedOutputStream pipedOutputStream = new PipedOutputStream();
+        InputStream inputStream = new PipedInputStream(pipedOutputStream);
+        ByteArrayOutputStream serverStdin = new ByteArrayOutputStream();
+        CompletableFuture<Process> exit = new CompletableFuture<>();
+
+        when(mockProcess.getInputStream()).thenReturn(inputStream);
+        when(mockProcess.getOutputStream()).thenReturn(serverStdin);
+        when(mockProcess.getErrorStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(mockProcess.isAlive()).thenReturn(true);
+        when(mockProcess.onExit()).thenReturn(exit);
+
+        BlockingQueue<String> receivedMessages = new ArrayBlockingQueue<>(2);
+        LanguageServerProcess lsp = new LanguageServerProcess(mockProcess, "java", receivedMessages::offer,
+                "test-user");
+        lsp.sendMessage("{\"jsonrpc\":\"2.0\",\"id\":0,\"method\":\"initialize\",\"params\":{}}");
+        String initialized = "{\"jsonrpc\":\"2.0\",\"id\":0,\"result\":{\"capabilities\":{}}}";
+        pipedOutputStream.write(("Content-Length: " + initialized.length() + "\r\n\r\n" + initialized)
+                .getBytes(StandardCharsets.UTF_8));
+        pipedOutputStream.flush();
+        assertEquals(initialized, receivedMessages.poll(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!lsp.isReady() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Thread stopping = new Thread(() -> lsp.shutdownGracefully(5000));
+        stopping.start();
+        assertTrue(awaitWritten(serverStdin, "\"method\":\"shutdown\""));
+        Thread.sleep(100);
+        assertFalse(serverStdin.toString(StandardCharsets.UTF_8).contains("\"method\":\"exit\""));
+
+        String answer = "{\"jsonrpc\":\"2.0\",\"id\":\"lsp-proxy-shutdown\",\"result\":null}";
+        pipedOutputStream.write(("Content-Length: " + answer.length() + "\r\n\r\n" + answer)
+                .getBytes(StandardCharsets.UTF_8));
+        pipedOutputStream.flush();
+        assertTrue(awaitWritten(serverStdin, "\"method\":\"exit\""));
+        exit.complete(mockProcess);
+        stopping.join(5000);
+        assertFalse(stopping.isAlive());
+
+        inputStream.close();
+        pipedOutputStream.close();
+    }
+
+    @Test
+    public void testCrashHandlerIsToldAboutUnexpectedExitsOnly() throws InterruptedException {
+        Process mockProcess = Mockito.mock(Process.class);
+        CompletableFuture<Process> exit = new CompletableFuture<>();
+        when(mockProcess.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(mockProcess.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        when(mockProcess.getErrorStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(mockProcess.onExit()).thenReturn(exit);
+        when(mockProcess.exitValue()).thenReturn(137);
+
+        BlockingQueue<Integer> crashes = new ArrayBlockingQueue<>(1);
+        LanguageServerProcess lsp = new LanguageServerProcess(mockProcess, "java", message -> {
+        }, "test-user");
+        lsp.setCrashHandler(crashes::offer);
+        exit.complete(mockProcess);
+        assertEquals(137, crashes.poll(5, TimeUnit.SECONDS));
+
+        CompletableFuture<Process> stopped = new CompletableFuture<>();
+        when(mockProcess.onExit()).thenReturn(stopped);
+        LanguageServerProcess destroyed = new LanguageServerProcess(mockProcess, "java", message -> {
+        }, "test-user");
+        destroyed.setCrashHandler(crashes::offer);
+        destroyed.destroy();
+        stopped.complete(mockProcess);
+        assertNull(crashes.poll(100, TimeUnit.MILLISECONDS));
+    }
+}
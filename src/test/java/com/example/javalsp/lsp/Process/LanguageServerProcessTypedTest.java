@@ -0,0 +1,94 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.lsp4j.jsonrpc.messages.Message;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+public class LanguageServerProcessTypedTest {
+
+    private static void write(PipedOutputStream stdout, String message) throws IOException {
+        byte[] content = message.getBytes(StandardCharsets.UTF_8);
+        stdout.write(("Content-Length: " + content.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        stdout.write(content);
+        stdout.flush();
+    }
+
+    @Test
+    public void testParsedMessagesAreRelayedUnchangedAndAccounted() throws IOException, InterruptedException {
+        Process mockProcess = Mockito.mock(Process.class);
+        PipedOutputStream pipedOutputStream = new PipedOutputStream();
+        InputStream inputStream = new PipedInputStream(pipedOutputStream);
+        when(mockProcess.getInputStream()).thenReturn(inputStream);
+        when(mockProcess.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        when(mockProcess.getErrorStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(mockProcess.isAlive()).thenReturn(true);
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        BlockingQueue<String> receivedMessages = new ArrayBlockingQueue<>(4);
+        LanguageServerProcess lsp = LanguageServerProcess.create(mockProcess, "java", receivedMessages::offer,
+                "test-user", LanguageServerProcessOptions.defaults().meterRegistry(registry)
+                        .transport(LanguageServerProcessOptions.Transport.TYPED));
+        assertInstanceOf(LanguageServerProcessTyped.class, lsp);
+
+        lsp.sendMessage("{\"jsonrpc\":\"2.0\",\"id\":\"init\",\"method\":\"initialize\",\"params\":{}}");
+        assertEquals(1, registry.get("lsp.requests.inflight").gauge().value());
+
+        // Spacing and field order survive, the parse is only looked at
+        String response = "{\"result\": {\"capabilities\": {}}, \"id\": \"init\", \"jsonrpc\": \"2.0\"}";
+        write(pipedOutputStream, response);
+        assertEquals(response, receivedMessages.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, registry.get("lsp.request.latency").tag("method", "initialize")
+                .tag("outcome", "success").timer().count());
+        assertEquals(0, registry.get("lsp.requests.inflight").gauge().value());
+
+        // Not a JSON-RPC object: scanned instead, and still delivered
+        String batch = "[{\"jsonrpc\":\"2.0\",\"method\":\"window/logMessage\"}]";
+        write(pipedOutputStream, batch);
+        assertEquals(batch, receivedMessages.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, registry.get("lsp.transport.parse.failures").counter().count());
+
+        lsp.destroy();
+        inputStream.close();
+        pipedOutputStream.close();
+    }
+
+    @Test
+    public void testEnvelopeAndCoalescingKeyComeFromTheParse() {
+        Message diagnostics = LanguageServerProcessTyped.newJsonHandler(id -> null).parseMessage(
+                "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/publishDiagnostics\","
+                        + "\"params\":{\"uri\":\"file:///A.java\",\"diagnostics\":[]}}");
+        assertTrue(LanguageServerProcessTyped.envelopeOf(diagnostics).isNotification());
+        assertEquals("file:///A.java", LanguageServerProcessTyped.coalescingSubject(diagnostics));
+
+        Message progress = LanguageServerProcessTyped.newJsonHandler(id -> null).parseMessage(
+                "{\"jsonrpc\":\"2.0\",\"method\":\"$/progress\","
+                        + "\"params\":{\"token\":42,\"value\":{\"kind\":\"report\",\"percentage\":50}}}");
+        assertEquals("42", LanguageServerProcessTyped.coalescingSubject(progress));
+        assertEquals("report", LanguageServerProcessTyped.progressKind(progress));
+
+        Message completion = LanguageServerProcessTyped.newJsonHandler(id -> "textDocument/completion")
+                .parseMessage("{\"jsonrpc\":\"2.0\",\"id\":7,\"result\":{\"isIncomplete\":false,\"items\":[]}}");
+        JsonRpcEnvelope envelope = LanguageServerProcessTyped.envelopeOf(completion);
+        assertTrue(envelope.isResponse());
+        assertEquals("7", envelope.getId());
+    }
+}
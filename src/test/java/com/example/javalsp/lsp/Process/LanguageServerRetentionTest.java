@@ -0,0 +1,79 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LanguageServerRetentionTest {
+
+    private final List<String> evicted = new CopyOnWriteArrayList<>();
+    private final Map<String, Long> memory = new ConcurrentHashMap<>();
+
+    private LanguageServerRetention retention(long ttlMillis, long budgetKb) {
+        return new LanguageServerRetention(ttlMillis, budgetKb, userId -> {
+            evicted.add(userId);
+            memory.remove(userId);
+            return true;
+        }, userId -> memory.getOrDefault(userId, 0L),
+                () -> memory.values().stream().mapToLong(Long::longValue).sum(),
+                new SimpleMeterRegistry());
+    }
+
+    @Test
+    public void testReconnectWithinTtlReattaches() throws InterruptedException {
+        LanguageServerRetention retention = retention(200, 0);
+        retention.retain("alice");
+        assertEquals(1, retention.getIdleCount());
+
+        assertTrue(retention.reclaim("alice"));
+        Thread.sleep(400);
+
+        assertTrue(evicted.isEmpty());
+        assertEquals(1, retention.getHitCount());
+        assertFalse(retention.reclaim("alice"));
+    }
+
+    @Test
+    public void testIdleServerIsEvictedWhenTtlExpires() throws InterruptedException {
+        LanguageServerRetention retention = retention(50, 0);
+        retention.retain("alice");
+        Thread.sleep(500);
+
+        assertEquals(List.of("alice"), evicted);
+        assertEquals(0, retention.getIdleCount());
+        assertEquals(1, retention.getEvictionCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvictedFirstOverBudget() throws InterruptedException {
+        LanguageServerRetention retention = retention(60_000, 1000);
+        memory.put("active", 300L);
+        memory.put("alice", 400L);
+        memory.put("bob", 400L);
+        memory.put("carol", 400L);
+
+        retention.retain("alice");
+        retention.retain("bob");
+        // 1500 KB used: alice left first and goes first, 1100 KB is still too much
+        retention.retain("carol");
+
+        // Evictions run in the background
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((evicted.size() < 2 || retention.getIdleCount() > 1) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(List.of("alice", "bob"), evicted);
+        assertEquals(1, retention.getIdleCount());
+        assertTrue(retention.reclaim("carol"));
+        retention.shutdown();
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LspFrameDecoderTest {
+
+    private static byte[] frame(String body) {
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        byte[] header = ("Content-Length: " + content.length + "\r\n"
+                + "Content-Type: application/vscode-jsonrpc; charset=utf-8\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] result = new byte[header.length + content.length];
+        System.arraycopy(header, 0, result, 0, header.length);
+        System.arraycopy(content, 0, result, header.length, content.length);
+        return result;
+    }
+
+    private static byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Hands out at most {@code chunk} bytes per read call, like a pipe that
+     * delivers a frame in several pieces.
+     */
+    private static InputStream chunked(byte[] data, int chunk) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    private static String repeat(char c, int count) {
+        return String.valueOf(c).repeat(count);
+    }
+
+    @Test
+    public void testSeveralFramesInOneRead() throws IOException {
+        String first = "{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":{}}";
+        String second = "{\"jsonrpc\":\"2.0\",\"method\":\"window/logMessage\",\"params\":{\"message\":\"héllo\"}}";
+        LspFrameDecoder decoder = new LspFrameDecoder(new ByteArrayInputStream(concat(frame(first), frame(second))));
+
+        assertTrue(decoder.next());
+        assertEquals(first, decoder.contentAsString());
+        assertTrue(decoder.next());
+        assertEquals(second, decoder.contentAsString());
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void testFragmentedFrames() throws IOException {
+        String first = "{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":[1,2,3]}";
+        String second = "{\"jsonrpc\":\"2.0\",\"id\":2,\"result\":\"é中\"}";
+        byte[] data = concat(frame(first), frame(second));
+
+        for (int chunk = 1; chunk <= 7; chunk++) {
+            LspFrameDecoder decoder = new LspFrameDecoder(chunked(data, chunk), 16, 1024);
+            assertTrue(decoder.next());
+            assertEquals(first, decoder.contentAsString());
+            assertTrue(decoder.next());
+            assertEquals(second, decoder.contentAsString());
+            assertFalse(decoder.next());
+        }
+    }
+
+    @Test
+    public void testFrameLargerThanBufferGrowsIt() throws IOException {
+        String large = "{\"result\":\"" + repeat('x', 3 * 1024 * 1024) + "\"}";
+        String small = "{\"id\":3}";
+        LspFrameDecoder decoder = new LspFrameDecoder(chunked(concat(frame(large), frame(small)), 4096), 64,
+                LspFrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+
+        assertTrue(decoder.next());
+        assertEquals(large, decoder.contentAsString());
+        assertTrue(decoder.next());
+        assertEquals(small, decoder.contentAsString());
+        // The oversized buffer is released once the large frame has been consumed
+        assertTrue(decoder.capacity() <= LspFrameDecoder.RETAINED_CAPACITY);
+    }
+
+    @Test
+    public void testFrameAboveLimitIsSkipped() throws IOException {
+        String tooLarge = "{\"result\":\"" + repeat('y', 5000) + "\"}";
+        String next = "{\"id\":4}";
+        LspFrameDecoder decoder = new LspFrameDecoder(chunked(concat(frame(tooLarge), frame(next)), 100), 32, 1024);
+
+        assertTrue(decoder.next());
+        assertEquals(next, decoder.contentAsString());
+        assertEquals(1, decoder.getDroppedFrames());
+    }
+
+    @Test
+    public void testHeaderWithoutContentLengthIsSkipped() throws IOException {
+        String body = "{\"id\":5}";
+        byte[] data = concat("Content-Type: text/plain\r\n\r\n".getBytes(StandardCharsets.US_ASCII),
+                ("content-length:  " + body.length() + " \r\n\r\n" + body).getBytes(StandardCharsets.US_ASCII));
+        LspFrameDecoder decoder = new LspFrameDecoder(new ByteArrayInputStream(data));
+
+        assertTrue(decoder.next());
+        assertEquals(body, decoder.contentAsString());
+        assertEquals(1, decoder.getDroppedFrames());
+    }
+
+    @Test
+    public void testStreamEndingInsideContent() {
+        byte[] data = frame("{\"jsonrpc\":\"2.0\",\"id\":6,\"result\":null}");
+        byte[] truncated = new byte[data.length - 5];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        LspFrameDecoder decoder = new LspFrameDecoder(chunked(truncated, 3));
+
+        assertThrows(EOFException.class, decoder::next);
+    }
+}
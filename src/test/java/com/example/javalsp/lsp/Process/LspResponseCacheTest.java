@@ -0,0 +1,55 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class LspResponseCacheTest {
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvictedBeyondTheBound() {
+        LspResponseCache cache = new LspResponseCache(400, new SimpleMeterRegistry());
+        for (int i = 0; i < 4; i++) {
+            cache.put("key" + i, "owner", "file:///" + i, "textDocument/foldingRange", new byte[100]);
+        }
+        assertNotNull(cache.get("key0", "textDocument/foldingRange"));
+
+        cache.put("key4", "owner", "file:///4", "textDocument/foldingRange", new byte[100]);
+        assertNull(cache.get("key1", "textDocument/foldingRange"));
+        assertNotNull(cache.get("key0", "textDocument/foldingRange"));
+        assertEquals(400, cache.getBytes());
+    }
+
+    @Test
+    public void testEditDropsProjectScopedEntriesOfOtherDocuments() {
+        LspResponseCache cache = new LspResponseCache(4096, new SimpleMeterRegistry());
+        cache.put("symbols", "owner", "file:///B.java", "textDocument/documentSymbol", new byte[10]);
+        cache.put("tokens", "owner", "file:///B.java", "textDocument/semanticTokens/full", new byte[10]);
+        cache.put("other", "other-owner", "file:///B.java", "textDocument/codeLens", new byte[10]);
+
+        cache.documentChanged("owner", "file:///A.java");
+
+        assertNotNull(cache.get("symbols", "textDocument/documentSymbol"));
+        assertNull(cache.get("tokens", "textDocument/semanticTokens/full"));
+        assertNotNull(cache.get("other", "textDocument/codeLens"));
+    }
+
+    @Test
+    public void testKeyNeedsAVersionAndNoProgressToken() {
+        String request = "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"textDocument/codeLens\",\"params\":"
+                + "{\"textDocument\":{\"uri\":\"file:///A.java\"}%s}}";
+        assertNull(LspResponseCache.key("owner", "textDocument/codeLens", null, String.format(request, "")));
+        assertNull(LspResponseCache.key("owner", "textDocument/codeLens", "3",
+                String.format(request, ",\"workDoneToken\":\"t\"")));
+        assertNotNull(LspResponseCache.key("owner", "textDocument/codeLens", "3", String.format(request, "")));
+
+        LspResponseCache.DocumentRef document = LspResponseCache.readDocument("{\"method\":\"textDocument/didChange\","
+                + "\"params\":{\"contentChanges\":[{\"text\":\"x\"}],\"textDocument\":{\"version\":5,\"uri\":\"file:///A.java\"}}}");
+        assertEquals("file:///A.java", document.uri);
+        assertEquals("5", document.version);
+    }
+}
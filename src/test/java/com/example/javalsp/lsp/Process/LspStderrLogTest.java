@@ -0,0 +1,49 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class LspStderrLogTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    public void testLevelsAreParsedAndContinuationsFollowTheirEntry() {
+        LspStderrLog log = new LspStderrLog(10, 0, "java", registry);
+
+        assertEquals(LspStderrLog.Level.ERROR, log.accept("u", "!ENTRY org.eclipse.jdt.ls.core 4 0 2025-01-01 10:00:00"));
+        assertEquals(LspStderrLog.Level.ERROR, log.accept("u", "!MESSAGE Build failed"));
+        assertEquals(LspStderrLog.Level.ERROR, log.accept("u", "java.lang.IllegalStateException: WARN"));
+        assertEquals(LspStderrLog.Level.ERROR, log.accept("u", ""));
+        assertEquals(LspStderrLog.Level.WARN, log.accept("u", "!ENTRY org.eclipse.jdt.ls.core 2 0 2025-01-01"));
+        assertEquals(LspStderrLog.Level.WARN, log.accept("u", ""));
+        assertEquals(LspStderrLog.Level.INFO, log.accept("u", "Started language server in 3000 ms"));
+        assertEquals(LspStderrLog.Level.WARN, log.accept("u", "WARNING: Using incubator modules: jdk.incubator.vector"));
+        assertEquals(LspStderrLog.Level.DEBUG, log.accept("u", "10:00:00.123 [main] DEBUG o.e.j.ls - resolved"));
+        assertEquals(LspStderrLog.Level.ERROR, log.accept("u", "[2025-01-01] phpactor.ERROR: Could not index"));
+        assertEquals(LspStderrLog.Level.ERROR, log.accept("u", "Exception in thread \"main\" java.lang.OutOfMemoryError"));
+        assertEquals(LspStderrLog.Level.ERROR, log.accept("u", "\tat java.base/java.util.Arrays.copyOf(Arrays.java:3512)"));
+        // Messages mentioning an error in lower case are not errors
+        assertEquals(LspStderrLog.Level.INFO, log.accept("u", "Indexed 12 files with 0 errors"));
+
+        assertEquals(7, registry.get("lsp.stderr.lines").tag("level", "error").counter().count());
+    }
+
+    @Test
+    public void testRingKeepsTheLatestLinesAndTheLogIsRateLimited() {
+        LspStderrLog log = new LspStderrLog(3, 5, "java", registry);
+        for (int i = 0; i < 100; i++) {
+            log.accept("u", "INFO line " + i);
+        }
+
+        assertEquals(List.of("INFO line 97", "INFO line 98", "INFO line 99"), log.recentLines());
+        assertEquals(100, log.getTotalLines());
+        // Unless the machine stalled for a second, only the first 5 were logged
+        assertEquals(95, registry.get("lsp.stderr.suppressed").counter().count(), 5);
+    }
+}
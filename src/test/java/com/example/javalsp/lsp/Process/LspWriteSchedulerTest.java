@@ -0,0 +1,240 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LspWriteSchedulerTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final ByteArrayOutputStream stdin = new ByteArrayOutputStream();
+    private final CountDownLatch firstWrite = new CountDownLatch(1);
+    private final CountDownLatch pipeFull = new CountDownLatch(1);
+    private int writes;
+    private final List<String> withdrawn = new ArrayList<>();
+    // Requests of this method read A.java at a position, which didChanges change
+    private String readsAtPosition;
+    private LspWriteScheduler scheduler;
+
+    // The first write blocks like a server that stopped reading
+    private final OutputStream pipe = new OutputStream() {
+        @Override
+        public void write(int b) {
+            stdin.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            firstWrite.countDown();
+            try {
+                pipeFull.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            synchronized (LspWriteSchedulerTest.this) {
+                writes++;
+                stdin.write(b, off, len);
+            }
+        }
+    };
+
+    private static String request(int id, String method) {
+        return "{\"jsonrpc\":\"2.0\",\"id\":" + id + ",\"method\":\"" + method + "\",\"params\":{}}";
+    }
+
+    private static String didChange(int version) {
+        return "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didChange\",\"params\":{\"textDocument\":"
+                + "{\"uri\":\"file:///A.java\",\"version\":" + version + "}}}";
+    }
+
+    private static List<String> unframe(byte[] data) {
+        List<String> messages = new ArrayList<>();
+        String text = new String(data, StandardCharsets.ISO_8859_1);
+        int position = 0;
+        while (position < text.length()) {
+            int headerEnd = text.indexOf("\r\n\r\n", position);
+            int length = Integer.parseInt(text.substring(position + "Content-Length: ".length(),
+                    text.indexOf("\r\n", position)));
+            messages.add(new String(data, headerEnd + 4, length, StandardCharsets.UTF_8));
+            position = headerEnd + 4 + length;
+        }
+        return messages;
+    }
+
+    private List<String> writeWhileBlocked(boolean prioritize, String... messages) throws Exception {
+        scheduler = new LspWriteScheduler(prioritize, pipe, new LspWriteScheduler.Listener() {
+            @Override
+            public void writing(JsonRpcEnvelope envelope, int contentLength) {
+            }
+
+            @Override
+            public void failed(IOException e) {
+            }
+
+            @Override
+            public void withdrawn(JsonRpcEnvelope request, int code, String message) {
+                withdrawn.add(request.getId() + " " + code);
+            }
+        }, LspThreads.PLATFORM.writers(), "java", registry);
+
+        scheduler.submit(messages[0], JsonRpcEnvelope.scan(messages[0]));
+        assertTrue(firstWrite.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < messages.length; i++) {
+            JsonRpcEnvelope envelope = JsonRpcEnvelope.scan(messages[i]);
+            String cancelledId = "$/cancelRequest".equals(envelope.getMethod())
+                    ? messages[i].replaceAll(".*\\{\"id\":(\\d+)\\}\\}$", "$1")
+                    : null;
+            String reads = envelope.isRequest() && envelope.getMethod().equals(readsAtPosition) ? "file:///A.java"
+                    : null;
+            String changes = readsAtPosition != null && "textDocument/didChange".equals(envelope.getMethod())
+                    ? "file:///A.java"
+                    : null;
+            scheduler.submit(messages[i], envelope, new LspWriteScheduler.MessageInfo(cancelledId, reads, changes));
+        }
+        pipeFull.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getQueuedCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        synchronized (this) {
+            return unframe(stdin.toByteArray());
+        }
+    }
+
+    @AfterEach
+    public void stop() {
+        scheduler.close();
+    }
+
+    @Test
+    public void testInteractiveRequestsOvertakeBackgroundButNotEdits() throws Exception {
+        String lens = request(1, "textDocument/codeLens");
+        String symbols = request(2, "textDocument/documentSymbol");
+        String definition = request(3, "textDocument/definition");
+        String hover = request(4, "textDocument/hover");
+        String completion = request(5, "textDocument/completion");
+
+        List<String> written = writeWhileBlocked(true, lens, symbols, definition, hover, didChange(2), completion);
+
+        assertEquals(List.of(lens, hover, definition, didChange(2), completion, symbols), written);
+        assertEquals(2, registry.get("lsp.write.queue.delay").tag("priority", "background").timer().count());
+    }
+
+    @Test
+    public void testCancelWithdrawsItsQueuedRequestInsteadOfOvertakingIt() throws Exception {
+        String definition = request(1, "textDocument/definition");
+        String lens = request(2, "textDocument/codeLens");
+        String references = request(3, "textDocument/references");
+        String cancelLens = "{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\",\"params\":{\"id\":2}}";
+        String cancelDefinition = "{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\",\"params\":{\"id\":1}}";
+
+        List<String> written = writeWhileBlocked(true, definition, lens, references, cancelLens, cancelDefinition);
+
+        assertEquals(List.of(definition, cancelDefinition, references), written);
+        assertEquals(List.of("2 " + InboundMessageQueue.REQUEST_CANCELLED), withdrawn);
+        assertEquals(1, registry.get("lsp.write.withdrawn").counter().count());
+    }
+
+    @Test
+    public void testEditWithdrawsQueuedRequestsItMakesOutOfDate() throws Exception {
+        readsAtPosition = "textDocument/signatureHelp";
+        String definition = request(1, "textDocument/definition");
+        String help = request(2, "textDocument/signatureHelp");
+        String lens = request(3, "textDocument/codeLens");
+        String laterHelp = request(4, "textDocument/signatureHelp");
+
+        List<String> written = writeWhileBlocked(true, definition, help, lens, didChange(2), laterHelp);
+
+        assertEquals(List.of(definition, didChange(2), laterHelp, lens), written);
+        assertEquals(List.of("2 " + InboundMessageQueue.CONTENT_MODIFIED), withdrawn);
+    }
+
+    @Test
+    public void testMessagesQueuedDuringAWriteGoOutInOneBatch() throws Exception {
+        String lens = request(1, "textDocument/codeLens");
+        String symbols = request(2, "textDocument/documentSymbol");
+        String completion = request(3, "textDocument/completion") + " é😀";
+
+        assertEquals(List.of(lens, symbols, didChange(2), completion),
+                writeWhileBlocked(false, lens, symbols, didChange(2), completion));
+        assertEquals(2, writes);
+        assertEquals(4, registry.get("lsp.write.batch.messages").summary().totalAmount());
+        String unpaired = "a\ud800b";
+        assertEquals(unpaired.getBytes(StandardCharsets.UTF_8).length, LspWriteScheduler.utf8Length(unpaired));
+    }
+
+    @Test
+    public void testFirstFailedWriteDiscardsTheQueue() throws Exception {
+        List<IOException> failures = new ArrayList<>();
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                firstWrite.countDown();
+                try {
+                    pipeFull.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                synchronized (LspWriteSchedulerTest.this) {
+                    writes++;
+                }
+                throw new IOException("Broken pipe");
+            }
+        };
+        scheduler = new LspWriteScheduler(true, broken, new LspWriteScheduler.Listener() {
+            @Override
+            public void writing(JsonRpcEnvelope envelope, int contentLength) {
+            }
+
+            @Override
+            public void failed(IOException e) {
+                synchronized (failures) {
+                    failures.add(e);
+                }
+            }
+
+            @Override
+            public void withdrawn(JsonRpcEnvelope request, int code, String message) {
+            }
+        }, LspThreads.PLATFORM.writers(), "java", registry);
+
+        scheduler.submit(request(1, "textDocument/hover"), JsonRpcEnvelope.scan(request(1, "textDocument/hover")));
+        assertTrue(firstWrite.await(5, TimeUnit.SECONDS));
+        for (int i = 2; i <= 4; i++) {
+            scheduler.submit(didChange(i), JsonRpcEnvelope.scan(didChange(i)));
+        }
+        pipeFull.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getQueuedCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        scheduler.submit(didChange(5), JsonRpcEnvelope.scan(didChange(5)));
+        Thread.sleep(100);
+
+        assertEquals(0, scheduler.getQueuedCount());
+        synchronized (this) {
+            assertEquals(1, writes);
+        }
+        synchronized (failures) {
+            assertEquals(1, failures.size());
+        }
+    }
+}
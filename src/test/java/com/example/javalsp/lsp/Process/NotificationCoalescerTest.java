@@ -0,0 +1,120 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class NotificationCoalescerTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor();
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final List<String> delivered = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    public void stopScheduler() {
+        scheduler.shutdownNow();
+        flusher.shutdownNow();
+    }
+
+    private void offer(NotificationCoalescer coalescer, String message) {
+        coalescer.accept(JsonRpcEnvelope.scan(message), message.length(), () -> message,
+                () -> delivered.add(message));
+    }
+
+    private static String diagnostics(String uri, int count) {
+        return "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/publishDiagnostics\",\"params\":{\"diagnostics\":["
+                + "{\"message\":\"m\",\"relatedInformation\":[{\"location\":{\"uri\":\"file:///Other.java\"}}]}"
+                .repeat(count).replace("}{", "},{")
+                + "],\"uri\":\"" + uri + "\"}}";
+    }
+
+    private static String progress(String token, String kind) {
+        return "{\"jsonrpc\":\"2.0\",\"method\":\"$/progress\",\"params\":{\"token\":\"" + token
+                + "\",\"value\":{\"kind\":\"" + kind + "\"}}}";
+    }
+
+    @Test
+    public void testLatestDiagnosticsPerUriWin() {
+        NotificationCoalescer coalescer = new NotificationCoalescer(10_000, scheduler, flusher, "java", registry);
+        String first = diagnostics("file:///A.java", 3);
+        String latest = diagnostics("file:///A.java", 1);
+        String other = diagnostics("file:///B.java", 2);
+        String response = "{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":null}";
+
+        offer(coalescer, first);
+        offer(coalescer, other);
+        offer(coalescer, latest);
+        offer(coalescer, response);
+        assertEquals(List.of(response), delivered);
+
+        coalescer.flush();
+        // A.java arrived first, so its latest version goes first
+        assertEquals(List.of(response, latest, other), delivered);
+        assertEquals(1, registry.get("lsp.coalesce.frames.saved").counter().count());
+        assertEquals(first.length(), registry.get("lsp.coalesce.bytes.saved").counter().count());
+    }
+
+    @Test
+    public void testProgressReportsCollapseBetweenBeginAndEnd() {
+        NotificationCoalescer coalescer = new NotificationCoalescer(10_000, scheduler, flusher, "java", registry);
+
+        offer(coalescer, progress("build", "begin"));
+        offer(coalescer, progress("build", "report").replace("report", "report\",\"percentage\":\"10"));
+        String last = progress("build", "report").replace("report", "report\",\"percentage\":\"90");
+        offer(coalescer, last);
+        offer(coalescer, progress("build", "end"));
+
+        assertEquals(List.of(progress("build", "begin"), last, progress("build", "end")), delivered);
+        assertEquals(0, coalescer.getHeldCount());
+    }
+
+    @Test
+    public void testWindowFlushesOnItsOwn() throws InterruptedException {
+        NotificationCoalescer coalescer = new NotificationCoalescer(20, scheduler, flusher, "java", registry);
+        String message = diagnostics("file:///A.java", 1);
+
+        offer(coalescer, message);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (delivered.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        assertEquals(List.of(message), delivered);
+    }
+
+    @Test
+    public void testSlowFlushBlocksNeitherSchedulerNorServer() throws InterruptedException {
+        NotificationCoalescer coalescer = new NotificationCoalescer(20, scheduler, flusher, "java", registry);
+        CountDownLatch editorBusy = new CountDownLatch(1);
+        coalescer.accept(JsonRpcEnvelope.scan(diagnostics("file:///A.java", 1)), 10,
+                () -> diagnostics("file:///A.java", 1), () -> {
+                    try {
+                        editorBusy.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+        Thread.sleep(100);
+
+        CountDownLatch timer = new CountDownLatch(1);
+        scheduler.execute(timer::countDown);
+        assertTrue(timer.await(1, TimeUnit.SECONDS));
+        // Held while the flush delivers, without waiting for it
+        offer(coalescer, diagnostics("file:///B.java", 1));
+        assertEquals(1, coalescer.getHeldCount());
+        editorBusy.countDown();
+    }
+}
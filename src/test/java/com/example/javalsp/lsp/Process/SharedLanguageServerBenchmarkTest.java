@@ -0,0 +1,211 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares one JDT-LS per user with users sharing one JDT-LS as workspace
+ * folders: resident memory of the language servers per user and
+ * {@code documentSymbol} latency. Needs a JDT-LS installation:
+ *
+ * <pre>
+ * mvn test -Dtest=SharedLanguageServerBenchmarkTest \
+ *     -Dlsp.bench.jdt.launcher=/opt/jdt-ls/plugins/org.eclipse.equinox.launcher_X.jar \
+ *     -Dlsp.bench.jdt.path=/opt/jdt-ls -Dlsp.bench.users=10
+ * </pre>
+ */
+@EnabledIfSystemProperty(named = "lsp.bench.jdt.launcher", matches = ".+")
+public class SharedLanguageServerBenchmarkTest {
+
+    private static final int REQUESTS_PER_USER = 20;
+    private static final long TIMEOUT_SECONDS = 300;
+
+    private final String launcher = System.getProperty("lsp.bench.jdt.launcher");
+    private final String jdtPath = System.getProperty("lsp.bench.jdt.path", "/opt/jdt-ls");
+    private final int users = Integer.getInteger("lsp.bench.users", 10);
+
+    /**
+     * One editor session that waits for responses by id.
+     */
+    private static class Client {
+        private final String userId;
+        private final Path project;
+        private final Map<String, CompletableFuture<String>> waiting = new ConcurrentHashMap<>();
+        private final AtomicInteger nextId = new AtomicInteger();
+        private LanguageServerMultiplexer multiplexer;
+
+        Client(String userId, Path project) {
+            this.userId = userId;
+            this.project = project;
+        }
+
+        void onMessage(String message) {
+            JsonRpcEnvelope envelope = JsonRpcEnvelope.scan(message);
+            if (envelope.isResponse()) {
+                CompletableFuture<String> future = waiting.remove(envelope.getId());
+                if (future != null) {
+                    future.complete(message);
+                }
+            }
+        }
+
+        String request(String method, String params) throws Exception {
+            String id = Integer.toString(nextId.incrementAndGet());
+            CompletableFuture<String> future = new CompletableFuture<>();
+            waiting.put(id, future);
+            multiplexer.send(userId, "{\"jsonrpc\":\"2.0\",\"id\":" + id + ",\"method\":\"" + method
+                    + "\",\"params\":" + params + "}");
+            return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        void notify(String method, String params) {
+            multiplexer.send(userId, "{\"jsonrpc\":\"2.0\",\"method\":\"" + method + "\",\"params\":" + params + "}");
+        }
+
+        String mainUri() {
+            return project.resolve("Main.java").toUri().toString();
+        }
+    }
+
+    private Process startJdt(Path data, String maxHeap) throws IOException {
+        return new ProcessBuilder("java",
+                "-Declipse.application=org.eclipse.jdt.ls.core.id1",
+                "-Dosgi.bundles.defaultStartLevel=4",
+                "-Declipse.product=org.eclipse.jdt.ls.core.product",
+                "-Xmx" + maxHeap,
+                "-jar", launcher,
+                "-configuration", jdtPath + "/config_linux",
+                "-data", data.toString())
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+    }
+
+    private List<Client> createClients(Path root, String mode) throws IOException {
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            Path project = root.resolve(mode + "-user-" + i).resolve("project");
+            Files.createDirectories(project);
+            Files.writeString(project.resolve("Main.java"), "public class Main {\n"
+                    + "    private int counter;\n"
+                    + "    public int next() { return ++counter; }\n"
+                    + "    public static void main(String[] args) { System.out.println(new Main().next()); }\n"
+                    + "}\n");
+            clients.add(new Client("u" + i, project));
+        }
+        return clients;
+    }
+
+    private static void open(Client client) throws Exception {
+        client.request("initialize", "{\"processId\":null,\"rootUri\":\""
+                + client.project.toUri() + "\",\"capabilities\":{}}");
+        client.notify("initialized", "{}");
+        client.notify("textDocument/didOpen", "{\"textDocument\":{\"uri\":\"" + client.mainUri()
+                + "\",\"languageId\":\"java\",\"version\":1,\"text\":"
+                + new com.google.gson.JsonPrimitive(Files.readString(client.project.resolve("Main.java")))
+                + "}}");
+    }
+
+    private static List<Long> measureLatency(List<Client> clients) throws Exception {
+        List<Long> latencies = new ArrayList<>();
+        for (Client client : clients) {
+            // First request waits for the project import; not counted
+            client.request("textDocument/documentSymbol", "{\"textDocument\":{\"uri\":\"" + client.mainUri() + "\"}}");
+        }
+        for (int round = 0; round < REQUESTS_PER_USER; round++) {
+            for (Client client : clients) {
+                long start = System.nanoTime();
+                client.request("textDocument/documentSymbol",
+                        "{\"textDocument\":{\"uri\":\"" + client.mainUri() + "\"}}");
+                latencies.add((System.nanoTime() - start) / 1000);
+            }
+        }
+        Collections.sort(latencies);
+        return latencies;
+    }
+
+    private static long rssKb(List<Process> processes) {
+        long total = 0;
+        for (Process process : processes) {
+            try {
+                for (String line : Files.readAllLines(Path.of("/proc/" + process.pid() + "/status"))) {
+                    if (line.startsWith("VmRSS:")) {
+                        total += Long.parseLong(line.replaceAll("[^0-9]", ""));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                return -1;
+            }
+        }
+        return total;
+    }
+
+    private void report(String mode, List<Process> processes, List<Long> latencies) {
+        long rss = rssKb(processes);
+        System.out.printf("Shared JDT benchmark [%s]: %d users, %d processes, RSS %d MB (%.1f MB/user), "
+                + "documentSymbol p50 %.2f ms, p95 %.2f ms%n",
+                mode, users, processes.size(), rss / 1024, rss / 1024.0 / users,
+                latencies.get(latencies.size() / 2) / 1000.0,
+                latencies.get(latencies.size() * 95 / 100) / 1000.0);
+    }
+
+    @Test
+    public void testDedicatedVersusSharedServers(@TempDir Path root) throws Exception {
+        List<Process> dedicated = new ArrayList<>();
+        List<LanguageServerProcess> dedicatedServers = new ArrayList<>();
+        try {
+            List<Client> clients = createClients(root, "dedicated");
+            for (Client client : clients) {
+                Process process = startJdt(root.resolve("dedicated-data-" + client.userId), "1G");
+                dedicated.add(process);
+                LanguageServerMultiplexer multiplexer = new LanguageServerMultiplexer(client.userId);
+                LanguageServerProcess server = new LanguageServerProcess(process, "java",
+                        multiplexer::onServerMessage, client.userId);
+                dedicatedServers.add(server);
+                multiplexer.setProcess(server);
+                multiplexer.attach(client.userId, client::onMessage, null);
+                client.multiplexer = multiplexer;
+                open(client);
+            }
+            report("dedicated", dedicated, measureLatency(clients));
+        } finally {
+            dedicatedServers.forEach(LanguageServerProcess::destroy);
+        }
+
+        LanguageServerProcess sharedServer = null;
+        try {
+            List<Client> clients = createClients(root, "shared");
+            Process process = startJdt(root.resolve("shared-data"), "4G");
+            SharedLanguageServerMultiplexer multiplexer = new SharedLanguageServerMultiplexer("shared-bench");
+            sharedServer = new LanguageServerProcess(process, "java", multiplexer::onServerMessage, "shared-bench");
+            multiplexer.setProcess(sharedServer);
+            for (Client client : clients) {
+                multiplexer.addTenant(client.userId, client.project.toUri().toString());
+                multiplexer.attach(client.userId, client.userId, client::onMessage, null);
+                client.multiplexer = multiplexer;
+                open(client);
+            }
+            List<Long> latencies = measureLatency(clients);
+            report("shared", List.of(process), latencies);
+            assertTrue(sharedServer.isAlive());
+        } finally {
+            if (sharedServer != null) {
+                sharedServer.destroy();
+            }
+        }
+    }
+}
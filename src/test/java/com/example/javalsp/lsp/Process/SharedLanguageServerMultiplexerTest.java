@@ -0,0 +1,155 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class SharedLanguageServerMultiplexerTest {
+
+    private static final String ROOT_A = "file:///ws/user-a-workspace/project";
+    private static final String ROOT_B = "file:///ws/user-b-workspace/project";
+
+    private static void serverSends(LanguageServerMultiplexer multiplexer, String message) {
+        multiplexer.onServerFrame(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static List<String> sentToServer(LanguageServerProcess process) {
+        ArgumentCaptor<String> sent = ArgumentCaptor.forClass(String.class);
+        verify(process, atLeastOnce()).sendMessage(sent.capture(), Mockito.any());
+        return sent.getAllValues();
+    }
+
+    private static SharedLanguageServerMultiplexer initializedServer(LanguageServerProcess process,
+            List<String> tabA, List<String> tabB) {
+        SharedLanguageServerMultiplexer multiplexer = new SharedLanguageServerMultiplexer("shared-java-1");
+        multiplexer.setProcess(process);
+        multiplexer.addTenant("a", ROOT_A + "/");
+        multiplexer.attach("s1", "a", tabA::add, null);
+        multiplexer.send("s1", "{\"jsonrpc\":\"2.0\",\"id\":0,\"method\":\"initialize\",\"params\":"
+                + "{\"rootUri\":\"file:///home/a\",\"capabilities\":{}}}");
+        serverSends(multiplexer, "{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":{\"capabilities\":{}}}");
+        multiplexer.send("s1", "{\"jsonrpc\":\"2.0\",\"method\":\"initialized\",\"params\":{}}");
+
+        multiplexer.addTenant("b", ROOT_B);
+        multiplexer.attach("s2", "b", tabB::add, null);
+        multiplexer.send("s2", "{\"jsonrpc\":\"2.0\",\"id\":0,\"method\":\"initialize\",\"params\":"
+                + "{\"rootUri\":\"" + ROOT_B + "\",\"capabilities\":{}}}");
+        return multiplexer;
+    }
+
+    @Test
+    public void testTenantsAreMountedAsWorkspaceFolders() {
+        LanguageServerProcess process = Mockito.mock(LanguageServerProcess.class);
+        List<String> tabA = new ArrayList<>();
+        List<String> tabB = new ArrayList<>();
+        SharedLanguageServerMultiplexer multiplexer = initializedServer(process, tabA, tabB);
+
+        List<String> sent = sentToServer(process);
+        assertEquals(3, sent.size());
+        // The first tenant is the initial folder; the server gets no root
+        assertTrue(sent.get(0).contains("\"rootUri\":null"));
+        assertTrue(sent.get(0).contains("\"workspaceFolders\":[{\"uri\":\"" + ROOT_A + "\""));
+        assertTrue(sent.get(2).contains("workspace/didChangeWorkspaceFolders"));
+        assertTrue(sent.get(2).contains("\"added\":[{\"uri\":\"" + ROOT_B + "\""));
+        assertEquals(List.of("{\"jsonrpc\":\"2.0\",\"id\":0,\"result\":{\"capabilities\":{}}}"), tabB);
+
+        assertEquals(0, multiplexer.detach("s1"));
+        assertTrue(sentToServer(process).get(3).contains("\"removed\":[{\"uri\":\"" + ROOT_A + "\""));
+    }
+
+    @Test
+    public void testUrisAreRewrittenAndDiagnosticsStayWithTheirTenant() {
+        LanguageServerProcess process = Mockito.mock(LanguageServerProcess.class);
+        List<String> tabA = new ArrayList<>();
+        List<String> tabB = new ArrayList<>();
+        SharedLanguageServerMultiplexer multiplexer = initializedServer(process, tabA, tabB);
+        tabA.clear();
+
+        multiplexer.send("s1", "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didOpen\",\"params\":{\"textDocument\":"
+                + "{\"uri\":\"file:///home/a/Main.java\",\"languageId\":\"java\",\"version\":1,\"text\":\"\"}}}");
+        assertTrue(sentToServer(process).get(3).contains("\"uri\":\"" + ROOT_A + "/Main.java\""));
+
+        serverSends(multiplexer, "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/publishDiagnostics\","
+                + "\"params\":{\"uri\":\"" + ROOT_A + "/Main.java\",\"diagnostics\":[]}}");
+        serverSends(multiplexer, "{\"jsonrpc\":\"2.0\",\"method\":\"window/logMessage\","
+                + "\"params\":{\"type\":3,\"message\":\"" + ROOT_B + "\"}}");
+
+        assertEquals(List.of("{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/publishDiagnostics\","
+                + "\"params\":{\"uri\":\"file:///home/a/Main.java\",\"diagnostics\":[]}}"), tabA);
+        assertEquals(1, tabB.size());
+    }
+
+    @Test
+    public void testSearchResultsOfOtherTenantsAreFiltered() {
+        LanguageServerProcess process = Mockito.mock(LanguageServerProcess.class);
+        List<String> tabA = new ArrayList<>();
+        List<String> tabB = new ArrayList<>();
+        SharedLanguageServerMultiplexer multiplexer = initializedServer(process, tabA, tabB);
+
+        multiplexer.send("s2", "{\"jsonrpc\":\"2.0\",\"id\":5,\"method\":\"workspace/symbol\",\"params\":"
+                + "{\"query\":\"Main\"}}");
+        String proxyId = JsonRpcEnvelope.scan(sentToServer(process).get(3)).getId();
+        serverSends(multiplexer, "{\"jsonrpc\":\"2.0\",\"id\":" + proxyId + ",\"result\":["
+                + "{\"name\":\"Main\",\"location\":{\"uri\":\"" + ROOT_A + "/Main.java\"}},"
+                + "{\"name\":\"Main\",\"location\":{\"uri\":\"" + ROOT_B + "/Main.java\"}}]}");
+
+        String response = tabB.get(tabB.size() - 1);
+        assertFalse(response.contains(ROOT_A));
+        assertTrue(response.contains(ROOT_B + "/Main.java"));
+    }
+
+    @Test
+    public void testFilesOfOtherTenantsAreOutOfReach() {
+        LanguageServerProcess process = Mockito.mock(LanguageServerProcess.class);
+        List<String> tabA = new ArrayList<>();
+        List<String> tabB = new ArrayList<>();
+        SharedLanguageServerMultiplexer multiplexer = initializedServer(process, tabA, tabB);
+        int forwarded = sentToServer(process).size();
+
+        // b's client root is its tenant folder, so nothing is rewritten for it
+        multiplexer.send("s2", "{\"jsonrpc\":\"2.0\",\"id\":6,\"method\":\"textDocument/hover\",\"params\":"
+                + "{\"textDocument\":{\"uri\":\"" + ROOT_A + "/Main.java\"},\"position\":{\"line\":0,\"character\":0}}}");
+        multiplexer.send("s2", "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didOpen\",\"params\":{\"textDocument\":"
+                + "{\"uri\":\"" + ROOT_B + "/../../user-a-workspace/project/Main.java\",\"languageId\":\"java\","
+                + "\"version\":1,\"text\":\"\"}}}");
+        multiplexer.send("s1", "{\"jsonrpc\":\"2.0\",\"id\":7,\"method\":\"textDocument/definition\",\"params\":"
+                + "{\"textDocument\":{\"uri\":\"file:///home/a/%2e%2e/%2e%2e/ws/user-b-workspace/project/B.java\"},"
+                + "\"position\":{\"line\":0,\"character\":0}}}");
+
+        assertEquals(forwarded, sentToServer(process).size());
+        assertTrue(tabB.get(tabB.size() - 1).startsWith("{\"jsonrpc\":\"2.0\",\"id\":6,\"error\":{\"code\":-32602"));
+        assertTrue(tabA.get(tabA.size() - 1).startsWith("{\"jsonrpc\":\"2.0\",\"id\":7,\"error\":{\"code\":-32602"));
+
+        // Their own files, and text that merely mentions another folder, still go through
+        multiplexer.send("s2", "{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/didOpen\",\"params\":{\"textDocument\":"
+                + "{\"uri\":\"" + ROOT_B + "/B.java\",\"languageId\":\"java\",\"version\":1,"
+                + "\"text\":\"" + ROOT_A + "/Main.java\"}}}");
+        assertEquals(forwarded + 1, sentToServer(process).size());
+    }
+
+    @Test
+    public void testClientsCannotStopTheSharedServer() {
+        LanguageServerProcess process = Mockito.mock(LanguageServerProcess.class);
+        List<String> tabA = new ArrayList<>();
+        SharedLanguageServerMultiplexer multiplexer = initializedServer(process, tabA, new ArrayList<>());
+        multiplexer.detach("s2");
+
+        multiplexer.send("s1", "{\"jsonrpc\":\"2.0\",\"id\":9,\"method\":\"shutdown\"}");
+        multiplexer.send("s1", "{\"jsonrpc\":\"2.0\",\"method\":\"exit\"}");
+
+        verify(process, never()).sendMessage(Mockito.eq("{\"jsonrpc\":\"2.0\",\"method\":\"exit\"}"), Mockito.any());
+        assertEquals("{\"jsonrpc\":\"2.0\",\"id\":9,\"result\":null}", tabA.get(tabA.size() - 1));
+    }
+}
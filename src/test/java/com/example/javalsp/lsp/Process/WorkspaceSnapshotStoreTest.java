@@ -0,0 +1,95 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WorkspaceSnapshotStoreTest {
+
+    private static Path workspace(Path parent, String name, int indexBytes) throws Exception {
+        Path data = parent.resolve(name);
+        Files.createDirectories(data.resolve(".metadata/.plugins/org.eclipse.jdt.core"));
+        Files.write(data.resolve(".metadata/.plugins/org.eclipse.jdt.core/1.index"), new byte[indexBytes]);
+        Files.createDirectories(data.resolve("project"));
+        Files.writeString(data.resolve("project/Main.java"), "class Main {}");
+        return data;
+    }
+
+    @Test
+    public void testIndexIsRestoredWithoutProjectSources(@TempDir Path dir) throws Exception {
+        WorkspaceSnapshotStore store = new WorkspaceSnapshotStore(dir.resolve("snapshots"), 0,
+                new SimpleMeterRegistry());
+        store.save("alice", workspace(dir, "old", 100));
+        assertTrue(store.hasSnapshot("alice"));
+
+        Path fresh = dir.resolve("new");
+        assertTrue(store.restore("alice", fresh));
+        assertEquals(100, Files.size(fresh.resolve(".metadata/.plugins/org.eclipse.jdt.core/1.index")));
+        assertFalse(Files.exists(fresh.resolve("project")));
+        assertFalse(store.restore("bob", dir.resolve("other")));
+    }
+
+    @Test
+    public void testUsersWithSimilarIdsKeepTheirOwnSnapshot(@TempDir Path dir) throws Exception {
+        WorkspaceSnapshotStore store = new WorkspaceSnapshotStore(dir.resolve("snapshots"), 0,
+                new SimpleMeterRegistry());
+        store.save("a@b", workspace(dir, "a", 100));
+
+        assertFalse(store.hasSnapshot("a_b"));
+        assertFalse(store.hasSnapshot("a/b"));
+        store.save("../a_b", workspace(dir, "b", 50));
+        assertTrue(store.restore("a@b", dir.resolve("a2")));
+        assertEquals(100, Files.size(dir.resolve("a2/.metadata/.plugins/org.eclipse.jdt.core/1.index")));
+        assertEquals(150, store.getTotalBytes());
+        assertTrue(Files.isDirectory(dir.resolve("snapshots").resolve(WorkspaceSnapshotStore.snapshotName("../a_b"))));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedSnapshotIsEvictedOverQuota(@TempDir Path dir) throws Exception {
+        WorkspaceSnapshotStore store = new WorkspaceSnapshotStore(dir.resolve("snapshots"), 250,
+                new SimpleMeterRegistry());
+        store.save("alice", workspace(dir, "a", 100));
+        store.save("bob", workspace(dir, "b", 100));
+        Files.setLastModifiedTime(dir.resolve("snapshots").resolve(WorkspaceSnapshotStore.snapshotName("alice")),
+                FileTime.fromMillis(1000));
+        store.restore("bob", dir.resolve("b2"));
+        store.save("carol", workspace(dir, "c", 100));
+
+        assertFalse(store.hasSnapshot("alice"));
+        assertTrue(store.hasSnapshot("bob"));
+        assertTrue(store.hasSnapshot("carol"));
+        assertEquals(200, store.getTotalBytes());
+    }
+
+    @Test
+    public void testStartWaitsForPendingSave(@TempDir Path dir) throws Exception {
+        WorkspaceSnapshotStore store = new WorkspaceSnapshotStore(dir.resolve("snapshots"), 0,
+                new SimpleMeterRegistry());
+        Path data = workspace(dir, "a", 10);
+        AtomicBoolean saved = new AtomicBoolean();
+        store.runExclusive("alice", () -> {
+            try {
+                Thread.sleep(200);
+                store.save("alice", data);
+                saved.set(true);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        store.awaitPending("alice");
+        assertTrue(saved.get());
+        assertTrue(store.hasSnapshot("alice"));
+        store.shutdown();
+    }
+}
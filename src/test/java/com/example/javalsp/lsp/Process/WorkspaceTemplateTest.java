@@ -0,0 +1,36 @@
+package com.example.javalsp.lsp.Process;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WorkspaceTemplateTest {
+
+    @Test
+    public void testCloneCopiesIndexButNotTemplateProject(@TempDir Path dir) throws Exception {
+        Path templateDirectory = dir.resolve("template");
+        Path index = templateDirectory.resolve(".metadata/.plugins/org.eclipse.jdt.core/jre.index");
+        Files.createDirectories(index.getParent());
+        Files.write(index, new byte[] { 1, 2, 3 });
+        Files.createDirectories(templateDirectory.resolve("project"));
+        Files.writeString(templateDirectory.resolve("project/Main.java"), "public class Main {}");
+
+        WorkspaceTemplate template = new WorkspaceTemplate(templateDirectory);
+        Path user = dir.resolve("user-workspace");
+        assertFalse(template.cloneInto(user), "an unfinished template must not be used");
+
+        Files.writeString(templateDirectory.resolve(WorkspaceTemplate.MARKER), "built");
+        assertTrue(template.cloneInto(user));
+
+        assertArrayEquals(new byte[] { 1, 2, 3 },
+                Files.readAllBytes(user.resolve(".metadata/.plugins/org.eclipse.jdt.core/jre.index")));
+        assertFalse(Files.exists(user.resolve("project")));
+        assertFalse(Files.exists(user.resolve(WorkspaceTemplate.MARKER)));
+    }
+}
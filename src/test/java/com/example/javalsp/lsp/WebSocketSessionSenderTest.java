@@ -0,0 +1,160 @@
+package com.example.javalsp.lsp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WebSocketSessionSenderTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final CountDownLatch browserStalled = new CountDownLatch(1);
+    private final List<String> delivered = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    public void stopExecutor() {
+        browserStalled.countDown();
+        executor.shutdownNow();
+    }
+
+    /**
+     * A session whose first send hangs until the test releases it.
+     */
+    private WebSocketSession slowSession() throws Exception {
+        WebSocketSession session = Mockito.mock(WebSocketSession.class);
+        when(session.getId()).thenReturn("slow");
+        when(session.isOpen()).thenReturn(true);
+        doAnswer(invocation -> {
+            browserStalled.await(5, TimeUnit.SECONDS);
+            delivered.add(((WebSocketMessage<?>) invocation.getArgument(0)).getPayload().toString());
+            return null;
+        }).when(session).sendMessage(any());
+        return session;
+    }
+
+    private static TextMessage diagnostics(int i) {
+        return new TextMessage("{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/publishDiagnostics\","
+                + "\"params\":{\"uri\":\"file:///A" + i + ".java\",\"diagnostics\":[]}}");
+    }
+
+    private static TextMessage diagnostics(int file, int revision) {
+        return new TextMessage("{\"jsonrpc\":\"2.0\",\"method\":\"textDocument/publishDiagnostics\","
+                + "\"params\":{\"uri\":\"file:///A" + file + ".java\",\"diagnostics\":[{\"message\":\"r" + revision
+                + "\"}]}}");
+    }
+
+    private static TextMessage progress(String kind) {
+        return new TextMessage("{\"jsonrpc\":\"2.0\",\"method\":\"$/progress\",\"params\":{\"token\":\"build\","
+                + "\"value\":{\"kind\":\"" + kind + "\"}}}");
+    }
+
+    private static void awaitDelivery(List<String> delivered, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (delivered.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testStaleNotificationsAreDroppedButResponsesKept() throws Exception {
+        WebSocketSessionSender sender = new WebSocketSessionSender(slowSession(), executor, 300,
+                WebSocketSessionSender.OverflowPolicy.DROP_STALE, 0,
+                new WebSocketSessionSender.Metrics(new SimpleMeterRegistry()));
+
+        // The first message is taken by the stalled send, the rest queue up
+        for (int i = 0; i < 10; i++) {
+            sender.send(diagnostics(i % 2));
+        }
+        String response = "{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":{\"contents\":\"hover\"}}";
+        sender.send(new TextMessage(response));
+        assertTrue(sender.getQueuedBytes() <= 300 + response.length());
+
+        browserStalled.countDown();
+        awaitDelivery(delivered, 2);
+        Thread.sleep(100);
+
+        assertTrue(delivered.size() < 11, "stale notifications should have been dropped");
+        assertEquals(response, delivered.get(delivered.size() - 1));
+    }
+
+    @Test
+    public void testLatestDiagnosticsPerUriAndProgressBoundariesSurviveOverflow() throws Exception {
+        WebSocketSessionSender sender = new WebSocketSessionSender(slowSession(), executor, 400,
+                WebSocketSessionSender.OverflowPolicy.DROP_STALE, 0,
+                new WebSocketSessionSender.Metrics(new SimpleMeterRegistry()));
+
+        sender.send(diagnostics(9, 0));
+        sender.send(progress("begin"));
+        for (int revision = 1; revision <= 6; revision++) {
+            sender.send(diagnostics(1, revision));
+            sender.send(progress("report"));
+            sender.send(diagnostics(2, revision));
+        }
+        sender.send(progress("end"));
+        browserStalled.countDown();
+        awaitDelivery(delivered, 6);
+        Thread.sleep(100);
+
+        assertTrue(delivered.size() < 20, "replaced notifications should have been dropped");
+        assertTrue(delivered.contains(diagnostics(1, 6).getPayload()));
+        assertTrue(delivered.contains(diagnostics(2, 6).getPayload()));
+        assertTrue(delivered.contains(progress("begin").getPayload()));
+        assertEquals(progress("end").getPayload(), delivered.get(delivered.size() - 1));
+    }
+
+    @Test
+    public void testCloseSessionOnOverflow() throws Exception {
+        WebSocketSession session = slowSession();
+        WebSocketSessionSender sender = new WebSocketSessionSender(session, executor, 300,
+                WebSocketSessionSender.OverflowPolicy.CLOSE, 0,
+                new WebSocketSessionSender.Metrics(new SimpleMeterRegistry()));
+
+        for (int i = 0; i < 10; i++) {
+            sender.send(diagnostics(i));
+        }
+
+        verify(session).close(CloseStatus.SESSION_NOT_RELIABLE);
+        assertEquals(0, sender.getQueuedBytes());
+    }
+
+    @Test
+    public void testBlockWaitsForTheBrowser() throws Exception {
+        WebSocketSessionSender sender = new WebSocketSessionSender(slowSession(), executor, 300,
+                WebSocketSessionSender.OverflowPolicy.BLOCK, 5000,
+                new WebSocketSessionSender.Metrics(new SimpleMeterRegistry()));
+        executor.execute(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+            browserStalled.countDown();
+        });
+
+        for (int i = 0; i < 10; i++) {
+            sender.send(diagnostics(i));
+        }
+        awaitDelivery(delivered, 10);
+
+        assertEquals(10, delivered.size());
+    }
+}